@@ -0,0 +1,106 @@
+package Bench;
+
+import Interface.ObserverRI;
+import Interface.SubjectRI;
+import Server.ServerConfig;
+import Server.SubjectImpl;
+import Server.SubjectRegistry;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Users and folders for one benchmark trial, created under the temp data directory that
+ * {@link BenchmarkMain} points {@code dds.data.dir} at. Usernames are unique per trial so trials
+ * never see each other's files.
+ */
+public class BenchFixture {
+
+    private static final AtomicInteger TRIALS = new AtomicInteger();
+
+    private final String prefix = "t" + TRIALS.incrementAndGet() + "_";
+    private final List<String> users = new ArrayList<>();
+    private final List<Remote> exported = new ArrayList<>();
+
+    /** Observer that swallows notifications, so session benchmarks measure only the fan-out. */
+    private static class NoopObserver implements ObserverRI {
+        @Override
+        public void update() {
+        }
+    }
+
+    public String user(int index) {
+        return prefix + "user" + index;
+    }
+
+    /** Creates the same folder layout {@code FileSystemImpl} creates at login. */
+    public String createUser(int index) throws IOException {
+        String name = user(index);
+        Path data = ServerConfig.dataDir();
+        Files.createDirectories(data.resolve("storage").resolve(name).resolve("local"));
+        Files.createDirectories(data.resolve("storage").resolve(name).resolve("shared"));
+        Files.createDirectories(data.resolve("serverStorage").resolve(name).resolve("local"));
+        users.add(name);
+        return name;
+    }
+
+    public Path serverLocal(String user) {
+        return ServerConfig.dataDir().resolve("serverStorage").resolve(user).resolve("local");
+    }
+
+    /** A subject with a no-op observer, registered so fan-out reaches it. */
+    public SubjectRI subjectFor(String user) throws RemoteException {
+        SubjectImpl subject = new SubjectImpl();
+        subject.attach(new NoopObserver());
+        SubjectRegistry.register(user, subject);
+        return track(subject);
+    }
+
+    public <T extends Remote> T track(T remote) {
+        exported.add(remote);
+        return remote;
+    }
+
+    public static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        new java.util.Random(size).nextBytes(data);
+        return data;
+    }
+
+    public void close() throws IOException {
+        for (Remote remote : exported) {
+            try {
+                UnicastRemoteObject.unexportObject(remote, true);
+            } catch (java.rmi.NoSuchObjectException ignored) {
+            }
+        }
+        Path data = ServerConfig.dataDir();
+        for (String user : users) {
+            deleteRecursively(data.resolve("storage").resolve(user));
+            deleteRecursively(data.resolve("serverStorage").resolve(user));
+        }
+    }
+
+    static void deleteRecursively(Path target) throws IOException {
+        if (!Files.exists(target)) return;
+        Files.walkFileTree(target, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,46 @@
+package Bench;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One benchmark: a parameter space, a per-trial setup and the operation being measured.
+ * The runner creates a fresh instance for every combination of parameters.
+ */
+public abstract class BenchmarkCase {
+
+    private Map<String, String> params = new LinkedHashMap<>();
+
+    /** Parameter name to the values to explore, e.g. {@code fileSize -> [1024, 1048576]}. */
+    public abstract Map<String, List<String>> parameterSpace();
+
+    /** Builds the fixture for one trial. Not measured. */
+    public abstract void setUp() throws Exception;
+
+    /**
+     * The measured operation. Return what it computed, if anything: the runner consumes the result
+     * so that the JIT cannot drop the work that produced it.
+     */
+    public abstract Object invoke() throws Exception;
+
+    /** Releases the fixture. Not measured. */
+    public void tearDown() throws Exception {
+    }
+
+    public String name() {
+        return getClass().getSimpleName();
+    }
+
+    void setParams(Map<String, String> params) {
+        this.params = params;
+    }
+
+    Map<String, String> params() {
+        return params;
+    }
+
+    protected int intParam(String name) {
+        return Integer.parseInt(params.get(name));
+    }
+}
@@ -0,0 +1,79 @@
+package Bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Entry point for {@code runBench.sh}.
+ * <pre>
+ *   runBench.sh [regex] [-wi 3] [-i 5] [-t 1000] [-p fileSize=1024,4096] [-o results.csv]
+ * </pre>
+ * {@code regex} selects benchmarks by name, {@code -wi}/{@code -i} are warmup and measurement
+ * iterations, {@code -t} is the iteration length in milliseconds and {@code -p} overrides a
+ * parameter's values. Data is written to a fresh temp directory unless {@code -Ddds.data.dir} is set.
+ */
+public class BenchmarkMain {
+
+    private static final Map<String, Supplier<? extends BenchmarkCase>> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        BENCHMARKS.put("Upload", FileSystemBenchmarks.Upload::new);
+        BENCHMARKS.put("ListFiles", FileSystemBenchmarks.ListFiles::new);
+        BENCHMARKS.put("GetAuthorizedUsers", FileSystemBenchmarks.GetAuthorizedUsers::new);
+        BENCHMARKS.put("Share", FileSystemBenchmarks.Share::new);
+        BENCHMARKS.put("Rename", FileSystemBenchmarks.Rename::new);
+        BENCHMARKS.put("SessionUpload", FileSystemBenchmarks.SessionUpload::new);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(".*");
+        int warmup = 3, iterations = 5;
+        long millis = 1000;
+        Path csv = null;
+        Map<String, List<String>> overrides = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi" -> warmup = Integer.parseInt(args[++i]);
+                case "-i" -> iterations = Integer.parseInt(args[++i]);
+                case "-t" -> millis = Long.parseLong(args[++i]);
+                case "-o" -> csv = Paths.get(args[++i]);
+                case "-p" -> {
+                    String[] kv = args[++i].split("=", 2);
+                    overrides.put(kv[0], List.of(kv[1].split(",")));
+                }
+                default -> filter = Pattern.compile(args[i]);
+            }
+        }
+
+        Path dataDir = null;
+        if (System.getProperty("dds.data.dir") == null) {
+            dataDir = Files.createTempDirectory("ddsystem-bench");
+            System.setProperty("dds.data.dir", dataDir.toString());
+        }
+        System.out.println("[BENCH] data dir: " + System.getProperty("dds.data.dir")
+                + ", mirror mode: " + System.getProperty("dds.mirror.mode", "LINK"));
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, millis, overrides);
+        try {
+            for (Map.Entry<String, Supplier<? extends BenchmarkCase>> entry : BENCHMARKS.entrySet()) {
+                if (filter.matcher(entry.getKey()).find()) {
+                    runner.run(entry.getValue());
+                }
+            }
+            if (csv != null) {
+                runner.writeCsv(csv);
+                System.out.println("[BENCH] results written to " + csv);
+            }
+        } finally {
+            if (dataDir != null) {
+                BenchFixture.deleteRecursively(dataDir);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,202 @@
+package Bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Minimal JMH-style harness: warmup and measurement iterations of a fixed duration, reporting
+ * throughput, average time and (like JMH's {@code -prof gc}) allocation rate, bytes allocated per
+ * operation and GC count/time. Allocation is counted across all threads, so it includes work a
+ * benchmarked call hands to other threads, and whatever background threads allocate meanwhile.
+ */
+public class BenchmarkRunner {
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationMillis;
+    private final Map<String, List<String>> overrides;
+    private final List<Result> results = new ArrayList<>();
+    /**
+     * Every result of {@link BenchmarkCase#invoke} is folded into this, JMH-blackhole style: the
+     * JIT must keep a call whose result reaches a volatile field.
+     */
+    private volatile long sink;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis,
+                           Map<String, List<String>> overrides) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+        this.overrides = overrides;
+    }
+
+    // ========== Results ==========
+
+    public static class Result {
+        final String benchmark;
+        final Map<String, String> params;
+        final double opsPerSecond;
+        final double opsPerSecondError;
+        final double microsPerOp;
+        final double allocMbPerSecond;
+        final double allocBytesPerOp;
+        final long gcCount;
+        final long gcMillis;
+
+        Result(String benchmark, Map<String, String> params, double opsPerSecond, double opsPerSecondError,
+               double microsPerOp, double allocMbPerSecond, double allocBytesPerOp, long gcCount, long gcMillis) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.opsPerSecond = opsPerSecond;
+            this.opsPerSecondError = opsPerSecondError;
+            this.microsPerOp = microsPerOp;
+            this.allocMbPerSecond = allocMbPerSecond;
+            this.allocBytesPerOp = allocBytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        String paramString() {
+            StringJoiner joiner = new StringJoiner(",");
+            params.forEach((k, v) -> joiner.add(k + "=" + v));
+            return joiner.toString();
+        }
+    }
+
+    private static class Sample {
+        long ops;
+        long nanos;
+        long allocatedBytes;
+        long gcCount;
+        long gcMillis;
+    }
+
+    // ========== Running ==========
+
+    public void run(Supplier<? extends BenchmarkCase> factory) throws Exception {
+        BenchmarkCase prototype = factory.get();
+        for (Map<String, String> params : combinations(prototype.parameterSpace())) {
+            BenchmarkCase bench = factory.get();
+            bench.setParams(params);
+            bench.setUp();
+            try {
+                for (int i = 0; i < warmupIterations; i++) {
+                    iteration(bench);
+                }
+                List<Sample> samples = new ArrayList<>();
+                for (int i = 0; i < measurementIterations; i++) {
+                    samples.add(iteration(bench));
+                }
+                Result result = summarize(bench.name(), params, samples);
+                results.add(result);
+                System.out.printf("%-28s %-40s %12.1f +- %8.1f ops/s %12.2f us/op %10.2f MB/s %12.0f B/op%n",
+                        result.benchmark, result.paramString(), result.opsPerSecond, result.opsPerSecondError,
+                        result.microsPerOp, result.allocMbPerSecond, result.allocBytesPerOp);
+            } finally {
+                bench.tearDown();
+            }
+        }
+    }
+
+    private Sample iteration(BenchmarkCase bench) throws Exception {
+        Sample sample = new Sample();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        // process-wide: session calls run on request virtual threads, not on this one
+        long allocBefore = threads.getTotalThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + iterationMillis * 1_000_000L;
+        long now;
+        long consumed = 0;
+        do {
+            consumed += System.identityHashCode(bench.invoke());
+            sample.ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += consumed;
+        sample.nanos = now - start;
+        sample.allocatedBytes = threads.getTotalThreadAllocatedBytes() - allocBefore;
+        sample.gcCount = gcCount() - gcCountBefore;
+        sample.gcMillis = gcMillis() - gcMillisBefore;
+        return sample;
+    }
+
+    private static Result summarize(String name, Map<String, String> params, List<Sample> samples) {
+        double[] throughput = new double[samples.size()];
+        long ops = 0, nanos = 0, bytes = 0, gcCount = 0, gcMillis = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            Sample s = samples.get(i);
+            throughput[i] = s.ops * 1e9 / s.nanos;
+            ops += s.ops;
+            nanos += s.nanos;
+            bytes += s.allocatedBytes;
+            gcCount += s.gcCount;
+            gcMillis += s.gcMillis;
+        }
+        double mean = Arrays.stream(throughput).average().orElse(0);
+        double variance = Arrays.stream(throughput).map(t -> (t - mean) * (t - mean)).sum()
+                / Math.max(1, throughput.length - 1);
+        return new Result(name, params, mean, Math.sqrt(variance),
+                nanos / 1e3 / ops,
+                bytes / (1024.0 * 1024.0) / (nanos / 1e9),
+                (double) bytes / ops,
+                gcCount, gcMillis);
+    }
+
+    private List<Map<String, String>> combinations(Map<String, List<String>> space) {
+        List<Map<String, String>> result = new ArrayList<>();
+        result.add(new LinkedHashMap<>());
+        for (Map.Entry<String, List<String>> axis : space.entrySet()) {
+            List<String> values = overrides.getOrDefault(axis.getKey(), axis.getValue());
+            List<Map<String, String>> next = new ArrayList<>();
+            for (Map<String, String> partial : result) {
+                for (String value : values) {
+                    Map<String, String> combination = new LinkedHashMap<>(partial);
+                    combination.put(axis.getKey(), value);
+                    next.add(combination);
+                }
+            }
+            result = next;
+        }
+        return result;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    // ========== Reporting ==========
+
+    /** Writes the results as CSV, one row per benchmark and parameter combination. */
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("benchmark,params,thrpt_ops_s,thrpt_error,avgt_us_op,gc_alloc_rate_mb_s,gc_alloc_rate_norm_b_op,gc_count,gc_time_ms");
+            for (Result r : results) {
+                out.printf(Locale.ROOT, "%s,\"%s\",%.3f,%.3f,%.3f,%.3f,%.1f,%d,%d%n",
+                        r.benchmark, r.paramString(), r.opsPerSecond, r.opsPerSecondError, r.microsPerOp,
+                        r.allocMbPerSecond, r.allocBytesPerOp, r.gcCount, r.gcMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package Bench;
+
+import Server.FileSystemImpl;
+import Server.SessionFactoryImpl;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks for the {@link FileSystemImpl} / {@link SessionFactoryImpl} hot paths, called
+ * in-process (no RMI hop) against the temp data directory.
+ */
+public final class FileSystemBenchmarks {
+
+    private FileSystemBenchmarks() {
+    }
+
+    private static Map<String, List<String>> space(String... axes) {
+        Map<String, List<String>> space = new LinkedHashMap<>();
+        for (int i = 0; i < axes.length; i += 2) {
+            space.put(axes[i], List.of(axes[i + 1].split(",")));
+        }
+        return space;
+    }
+
+    /**
+     * Shared setup: an owner at {@code /local} holding {@code item}, {@code userCount - 1} other users,
+     * and the item shared with the first {@code fanout} of them.
+     */
+    private abstract static class SharedItemCase extends BenchmarkCase {
+        protected BenchFixture fixture;
+        protected FileSystemImpl owner;
+        protected String[] recipients;
+
+        protected void setUpOwner(int userCount, int fanout, String item, byte[] data) throws Exception {
+            fixture = new BenchFixture();
+            owner = fixture.track(new FileSystemImpl(fixture.createUser(0)));
+            owner.changeDirectory("local");
+            owner.upload(item, data);
+            recipients = new String[userCount - 1];
+            for (int i = 1; i < userCount; i++) {
+                recipients[i - 1] = fixture.createUser(i);
+            }
+            for (int i = 0; i < fanout && i < recipients.length; i++) {
+                owner.share(item, recipients[i]);
+            }
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            fixture.close();
+        }
+    }
+
+    // ========== upload ==========
+
+    public static class Upload extends BenchmarkCase {
+        private BenchFixture fixture;
+        private FileSystemImpl fs;
+        private byte[] data;
+        private int next;
+
+        @Override
+        public Map<String, List<String>> parameterSpace() {
+            return space("fileSize", "1024,65536,1048576");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            fixture = new BenchFixture();
+            fs = fixture.track(new FileSystemImpl(fixture.createUser(0)));
+            fs.changeDirectory("local");
+            data = BenchFixture.payload(intParam("fileSize"));
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            return fs.upload("file" + (next++ & 63) + ".bin", data);
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            fixture.close();
+        }
+    }
+
+    // ========== listFiles ==========
+
+    public static class ListFiles extends BenchmarkCase {
+        private BenchFixture fixture;
+        private FileSystemImpl fs;
+
+        @Override
+        public Map<String, List<String>> parameterSpace() {
+            return space("dirWidth", "10,1000,10000");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            fixture = new BenchFixture();
+            String user = fixture.createUser(0);
+            Path dir = Files.createDirectories(fixture.serverLocal(user).resolve("wide"));
+            for (int i = 0; i < intParam("dirWidth"); i++) {
+                Files.createFile(dir.resolve("entry" + i));
+            }
+            fs = fixture.track(new FileSystemImpl(user));
+            fs.changeDirectory("local");
+            fs.changeDirectory("wide");
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            return fs.listFiles();
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            fixture.close();
+        }
+    }
+
+    // ========== getAuthorizedUsers ==========
+
+    public static class GetAuthorizedUsers extends SharedItemCase {
+        @Override
+        public Map<String, List<String>> parameterSpace() {
+            return space("userCount", "10,100,1000", "shareFanout", "1,10,100");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            setUpOwner(intParam("userCount"), intParam("shareFanout"), "doc.txt", new byte[64]);
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            return owner.getAuthorizedUsers("doc.txt");
+        }
+    }
+
+    // ========== share ==========
+
+    public static class Share extends SharedItemCase {
+        private int next;
+
+        @Override
+        public Map<String, List<String>> parameterSpace() {
+            return space("fileSize", "1024,1048576", "shareFanout", "1,10");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            int fanout = intParam("shareFanout");
+            setUpOwner(fanout + 1, 0, "doc.bin", BenchFixture.payload(intParam("fileSize")));
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            return owner.share("doc.bin", recipients[next++ % recipients.length]);
+        }
+    }
+
+    // ========== rename ==========
+
+    public static class Rename extends SharedItemCase {
+        private boolean renamed;
+
+        @Override
+        public Map<String, List<String>> parameterSpace() {
+            return space("shareFanout", "0,10,100");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            int fanout = intParam("shareFanout");
+            setUpOwner(fanout + 1, fanout, "doc.txt", new byte[64]);
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            boolean done = renamed ? owner.rename("renamed.txt", "doc.txt") : owner.rename("doc.txt", "renamed.txt");
+            renamed = !renamed;
+            return done;
+        }
+    }
+
+    // ========== SessionFactory upload (disk + notification fan-out) ==========
+
+    public static class SessionUpload extends BenchmarkCase {
+        private BenchFixture fixture;
+        private SessionFactoryImpl session;
+        private byte[] data;
+
+        @Override
+        public Map<String, List<String>> parameterSpace() {
+            return space("fileSize", "1024,65536", "shareFanout", "0,10,100");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            fixture = new BenchFixture();
+            String owner = fixture.createUser(0);
+            session = fixture.track(new SessionFactoryImpl(owner));
+            session.setSubjectRI(fixture.subjectFor(owner));
+            session.changeDirectory("local");
+            data = BenchFixture.payload(intParam("fileSize"));
+            session.upload("doc.bin", data);
+            for (int i = 1; i <= intParam("shareFanout"); i++) {
+                String recipient = fixture.createUser(i);
+                fixture.subjectFor(recipient);
+                session.shareWithUser("doc.bin", recipient);
+            }
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            session.upload("doc.bin", data);
+            return null;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            session.close();
+            fixture.close();
+        }
+    }
+}
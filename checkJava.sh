@@ -0,0 +1,9 @@
+#!/bin/bash
+
+# Sourced by the run*.sh scripts: the sources use Java 21 APIs (virtual threads, Thread.ofPlatform),
+# so stop with a clear message instead of a page of compile errors on an older JDK.
+JAVAC_VERSION=$(javac -version 2>&1 | sed -nE 's/^javac ([0-9]+).*/\1/p')
+if [ -z "$JAVAC_VERSION" ] || [ "$JAVAC_VERSION" -lt 21 ]; then
+    echo "Java 21 or newer is required, found: $(javac -version 2>&1 | head -n 1)" >&2
+    exit 1
+fi
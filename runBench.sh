@@ -0,0 +1,11 @@
+#!/bin/bash
+
+echo "Compiling and running FileSystemImpl benchmarks..."
+cd "$(dirname "$0")"
+source ./checkJava.sh
+
+# Compile src/ and bench/ into out/
+javac -encoding UTF-8 -d out src/**/*.java bench/**/*.java
+
+# Run the benchmarks, e.g. ./runBench.sh Upload -p fileSize=4096 -o bench.csv
+java $JAVA_OPTS -cp out Bench.BenchmarkMain "$@"
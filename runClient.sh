@@ -2,9 +2,10 @@
 
 echo "Compiling and starting RMI Client..."
 cd "$(dirname "$0")"
+source ./checkJava.sh
 
 # Compile from src/ into out/
-javac -d out src/**/*.java
+javac -encoding UTF-8 -d out src/**/*.java
 
-# Run the Client class in package Client
-java -cp out Client.Client
\ No newline at end of file
+# Run the Client class in package Client (--read-replica sends reads to the backup)
+java -cp out Client.Client "$@"
\ No newline at end of file
@@ -0,0 +1,26 @@
+#!/bin/bash
+
+echo "Compiling and starting a sharded cluster on localhost..."
+cd "$(dirname "$0")"
+source ./checkJava.sh
+
+# Compile from src/ into out/
+javac -encoding UTF-8 -d out src/**/*.java
+
+# Nodes n1..nN on ports 1099, 1101, ... with their data under cluster/<node>, e.g. ./runCluster.sh 3
+NODES=${1:-3}
+CLUSTER=""
+for i in $(seq 1 "$NODES"); do
+    CLUSTER="$CLUSTER${CLUSTER:+,}n$i@localhost:$((1097 + 2 * i))"
+done
+
+mkdir -p cluster
+PIDS=""
+for i in $(seq 1 "$NODES"); do
+    java $JAVA_OPTS -Ddds.cluster="$CLUSTER" -Ddds.node.id="n$i" -Ddds.data.dir="cluster/n$i" \
+        -cp out Server.Server > "cluster/n$i.log" 2>&1 &
+    PIDS="$PIDS $!"
+done
+trap 'kill $PIDS 2>/dev/null' EXIT
+echo "Cluster: $CLUSTER (logs in cluster/)"
+wait
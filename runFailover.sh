@@ -0,0 +1,12 @@
+#!/bin/bash
+
+echo "Compiling and running the failover drill..."
+cd "$(dirname "$0")"
+source ./checkJava.sh
+
+# Compile from src/ into out/
+javac -encoding UTF-8 -d out src/**/*.java
+
+# Starts its own Server + ServerBackup (data under failover/), e.g.
+# JAVA_OPTS="-Ddds.ha.acceptablePauseMillis=1000" ./runFailover.sh --fault pause --observe 10
+java $JAVA_OPTS -cp out Client.FailoverDrill "$@"
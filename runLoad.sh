@@ -0,0 +1,20 @@
+#!/bin/bash
+
+echo "Compiling and starting load test against local Server + ServerBackup..."
+cd "$(dirname "$0")"
+source ./checkJava.sh
+
+# Compile from src/ into out/
+javac -encoding UTF-8 -d out src/**/*.java
+
+# Start both servers with their own data under loadtest/
+mkdir -p loadtest
+java $JAVA_OPTS -Ddds.data.dir=loadtest/primary -cp out Server.Server > loadtest/server.log 2>&1 &
+SERVER_PID=$!
+java $JAVA_OPTS -Ddds.data.dir=loadtest/backup -cp out Server.ServerBackup > loadtest/backup.log 2>&1 &
+BACKUP_PID=$!
+trap 'kill $SERVER_PID $BACKUP_PID 2>/dev/null' EXIT
+sleep 2
+
+# Run the load generator, e.g. ./runLoad.sh --users 50 --rate 500 --duration 60 --out run1.json
+java -cp out Client.LoadGenerator "$@"
@@ -2,9 +2,10 @@
 
 echo "Compiling and starting RMI Server..."
 cd "$(dirname "$0")"
+source ./checkJava.sh
 
 # Compile from src/ into out/
-javac -d out src/**/*.java
+javac -encoding UTF-8 -d out src/**/*.java
 
 # Run the Server class in package Server
-java -cp out Server.Server
\ No newline at end of file
+java $JAVA_OPTS -cp out Server.Server
\ No newline at end of file
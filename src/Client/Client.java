@@ -3,13 +3,14 @@ package Client;
 import Interface.AuthFactory;
 
 import java.rmi.Naming;
+import java.util.Arrays;
 
 public class Client {
     public static void main(String[] args) {
         try{
             AuthFactory authService = (AuthFactory) Naming.lookup("rmi://localhost:1099/AuthService");
             //System.out.println("Connected to RMIServer on port 1099");
-            ClientMenu menu = new ClientMenu(authService);
+            ClientMenu menu = new ClientMenu(authService, replica(args));
             menu.run();
         }catch (Exception e){
             System.out.println("[WARN] Primary server offline. Trying backup...");
@@ -24,4 +25,15 @@ public class Client {
             }
         }
     }
+
+    /** The backup, when started with {@code --read-replica}, to serve reads. */
+    private static AuthFactory replica(String[] args) {
+        if (!Arrays.asList(args).contains("--read-replica")) return null;
+        try {
+            return (AuthFactory) Naming.lookup("rmi://localhost:1100/AuthService");
+        } catch (Exception e) {
+            System.out.println("[WARN] Backup offline. Reads go to the primary.");
+            return null;
+        }
+    }
 }
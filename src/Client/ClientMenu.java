@@ -9,9 +9,16 @@ import java.util.Scanner;
 
 public class ClientMenu {
     private final AuthFactory authService;
+    private final AuthFactory replicaService;
 
     public ClientMenu(AuthFactory authService) {
+        this(authService, null);
+    }
+
+    /** {@code replicaService}, if not null, is a backup that serves this client's reads. */
+    public ClientMenu(AuthFactory authService, AuthFactory replicaService) {
         this.authService = authService;
+        this.replicaService = replicaService;
     }
 
     public void run() {
@@ -63,6 +70,9 @@ public class ClientMenu {
 
         try {
             SessionFactory session = authService.login(username, password);
+            if (session != null && replicaService != null) {
+                session = withReplica(session, username, password);
+            }
             if (session != null) {
                 System.out.println("Login successful!");
                 SubjectRI subjectRI = session.getSubjectRI();
@@ -76,4 +86,16 @@ public class ClientMenu {
         }
     }
 
+    private SessionFactory withReplica(SessionFactory session, String username, String password) {
+        try {
+            SessionFactory replica = replicaService.login(username, password);
+            if (replica != null) {
+                return new ReplicaRoutingSession(session, replica);
+            }
+        } catch (Exception e) {
+            System.out.println("[WARN] Backup unavailable for reads, using the primary only.");
+        }
+        return session;
+    }
+
 }
@@ -0,0 +1,131 @@
+package Client;
+
+import Interface.TransferTicket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Client side of the server's data plane: moves the bytes of a {@link TransferTicket} over its
+ * own socket. Local files go out with {@link FileChannel#transferTo} and come in with
+ * {@link FileChannel#transferFrom}, so they are not copied through the Java heap.
+ */
+public final class DataPlaneClient {
+
+    /** Files smaller than this are cheaper to send in the RMI call itself. */
+    public static final long MIN_BYTES = 64 * 1024;
+
+    private DataPlaneClient() {
+    }
+
+    /**
+     * Streams the ranges of {@code file} an upload ticket lists as missing, one connection each,
+     * and waits for the server to confirm every one.
+     */
+    public static void send(TransferTicket ticket, Path file) throws IOException {
+        long[] missing = ticket.getMissing();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < missing.length; i += 2) {
+                send(ticket, in, missing[i], missing[i + 1]);
+            }
+        }
+    }
+
+    private static void send(TransferTicket ticket, FileChannel in, long start, long end) throws IOException {
+        try (SocketChannel channel = connect(ticket, start, end - start)) {
+            long position = start;
+            while (position < end) {
+                long n = in.transferTo(position, end - position, channel);
+                if (n == 0 && position >= in.size()) {
+                    throw new EOFException("Local file shrank to " + in.size() + " bytes while being sent");
+                }
+                position += n;
+            }
+            awaitAck(channel);
+        }
+    }
+
+    public static void send(TransferTicket ticket, byte[] data) throws IOException {
+        long[] missing = ticket.getMissing();
+        for (int i = 0; i < missing.length; i += 2) {
+            try (SocketChannel channel = connect(ticket, missing[i], missing[i + 1] - missing[i])) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, (int) missing[i], (int) (missing[i + 1] - missing[i]));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                awaitAck(channel);
+            }
+        }
+    }
+
+    /** Reads a download ticket's bytes into {@code target}, replacing it. */
+    public static void receive(TransferTicket ticket, Path target) throws IOException {
+        receive(ticket, target, 0);
+    }
+
+    /** Reads a download ticket's bytes from {@code offset} on into {@code target}, keeping the bytes before it. */
+    public static void receive(TransferTicket ticket, Path target, long offset) throws IOException {
+        try (SocketChannel channel = connect(ticket, offset, ticket.getSize() - offset);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(offset);
+            long position = offset;
+            while (position < ticket.getSize()) {
+                long n = out.transferFrom(channel, position, ticket.getSize() - position);
+                if (n == 0) {
+                    throw new EOFException("Download ended after " + position + " of " + ticket.getSize() + " bytes");
+                }
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * Reads a folder archive into {@code target} until the server ends it.
+     *
+     * @return the archive's size
+     */
+    public static long receiveArchive(TransferTicket ticket, Path target) throws IOException {
+        try (SocketChannel channel = connect(ticket, 0, ticket.getSize());
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            // a clean end of stream is the end of the archive; a failed one resets the connection
+            long position = 0;
+            long n;
+            while ((n = out.transferFrom(channel, position, 1L << 30)) > 0) {
+                position += n;
+            }
+            return position;
+        }
+    }
+
+    private static SocketChannel connect(TransferTicket ticket, long offset, long length) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(ticket.getHost(), ticket.getPort()));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer header = ByteBuffer.allocate(3 * Long.BYTES)
+                    .putLong(ticket.getId()).putLong(offset).putLong(length).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void awaitAck(SocketChannel channel) throws IOException {
+        ByteBuffer status = ByteBuffer.allocate(1);
+        while (status.hasRemaining()) {
+            if (channel.read(status) < 0) throw new EOFException("Server closed the transfer without confirming it");
+        }
+        if (status.get(0) != 0) throw new IOException("Server rejected the transfer");
+    }
+}
@@ -0,0 +1,376 @@
+package Client;
+
+import Interface.AuthFactory;
+import Interface.MetricsService;
+import Interface.ObserverRI;
+import Interface.SessionFactory;
+import Interface.SubjectRI;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Fault-injection drill for primary/backup failover.
+ * <p>
+ * Starts a {@code Server} and a {@code ServerBackup} as child processes (data under {@code --dir};
+ * every {@code -Ddds.*} property of this JVM is passed on), logs one user in on both and writes
+ * small files at {@code --rate} per second to whichever node accepts them. A second, stale writer
+ * keeps writing to the original primary only. After {@code --warmup} seconds the drill injects
+ * {@code --fault}: {@code kill} (SIGKILL, then a restart of the old primary once the backup has
+ * taken over) or {@code pause} (SIGSTOP, then SIGCONT once the backup has taken over), and watches
+ * for {@code --observe} more seconds.
+ * <p>
+ * It reports the time from the fault to the backup's promotion and to the first write it accepted,
+ * the acknowledged writes the new primary does not have (replication is asynchronous), and the
+ * split-brain writes: writes the old primary accepted that were sent after the new primary had
+ * accepted one. Results are printed and written as JSON to {@code --out}; the exit status is 1 if
+ * there was any split brain or no failover.
+ */
+public class FailoverDrill {
+
+    private enum Fault { KILL, PAUSE }
+
+    private static final String USER = "drill";
+
+    // ========== Configuration ==========
+
+    private Fault fault = Fault.KILL;
+    private int warmupSeconds = 3;
+    private int observeSeconds = 5;
+    private double rate = 50;
+    private String dir = "failover";
+    private String out = "failover-results.json";
+
+    // ========== Results ==========
+
+    private long startNanos;
+    private volatile long faultNanos;
+    private volatile long promotedNanos;
+    private volatile long firstNewWriteNanos;
+    private final AtomicLong splitBrain = new AtomicLong();
+    private final Set<String> acknowledged = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    private Node primary;
+    private Node backup;
+
+    private static class DrillObserver extends UnicastRemoteObject implements ObserverRI {
+        DrillObserver(SubjectRI subjectRI) throws RemoteException {
+            super();
+            subjectRI.attach(this);
+        }
+
+        @Override
+        public void update() throws RemoteException {
+        }
+    }
+
+    /** One server process and this drill's session on it. */
+    private class Node {
+        final String name;
+        final String mainClass;
+        final int port;
+        final AtomicLong accepted = new AtomicLong();
+        final AtomicLong refused = new AtomicLong();
+        final AtomicLong unreachable = new AtomicLong();
+        Process process;
+        volatile SessionFactory session;
+
+        Node(String name, String mainClass, int port) {
+            this.name = name;
+            this.mainClass = mainClass;
+            this.port = port;
+        }
+
+        void launch() throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            for (String key : System.getProperties().stringPropertyNames()) {
+                if (key.startsWith("dds.") && !key.equals("dds.data.dir")) {
+                    command.add("-D" + key + "=" + System.getProperty(key));
+                }
+            }
+            command.add("-Ddds.data.dir=" + Paths.get(dir, name));
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(mainClass);
+            File log = Paths.get(dir, name + ".log").toFile();
+            process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+        }
+
+        void signal(String signal) throws Exception {
+            new ProcessBuilder("kill", "-" + signal, Long.toString(process.pid())).inheritIO().start().waitFor();
+        }
+
+        String url(String service) {
+            return "rmi://localhost:" + port + "/" + service;
+        }
+
+        /** Logs in, retrying until the node knows the user or {@code timeoutMillis} passed. */
+        SessionFactory login(long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (System.nanoTime() < deadline) {
+                try {
+                    AuthFactory auth = (AuthFactory) Naming.lookup(url("AuthService"));
+                    SessionFactory s = auth.login(USER, USER);
+                    if (s != null) {
+                        new DrillObserver(s.getSubjectRI());
+                        s.changeDirectory("local");
+                        session = s;
+                        return s;
+                    }
+                } catch (Exception e) {
+                    // not up yet, or not caught up with the user
+                }
+                Thread.sleep(100);
+            }
+            return null;
+        }
+
+        long gauge(String gauge) {
+            try {
+                MetricsService metrics = (MetricsService) Naming.lookup(url("MetricsService"));
+                return metrics.getSnapshot().getGauges().getOrDefault(gauge, -1L);
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+    }
+
+    // ========== Writers ==========
+
+    /** Uploads {@code file} to {@code node}; true if the node accepted it. */
+    private boolean write(Node node, String file) {
+        SessionFactory s = node.session;
+        long sent = System.nanoTime();
+        if (s == null) {
+            node.unreachable.incrementAndGet();
+            return false;
+        }
+        try {
+            s.upload(file, file.getBytes());
+        } catch (ServerException e) {
+            node.refused.incrementAndGet();
+            return false;
+        } catch (RemoteException e) {
+            node.unreachable.incrementAndGet();
+            node.session = null;
+            return false;
+        }
+        node.accepted.incrementAndGet();
+        if (node == backup && firstNewWriteNanos == 0) {
+            firstNewWriteNanos = System.nanoTime();
+        }
+        if (node == primary && firstNewWriteNanos != 0 && sent > firstNewWriteNanos) {
+            splitBrain.incrementAndGet();
+            System.err.println("[DRILL] Split brain: old primary accepted " + file);
+        }
+        return true;
+    }
+
+    /** Writes to whichever node accepts, switching on every failure. */
+    private void writer() {
+        Node target = primary;
+        long interval = (long) (1_000_000_000L / rate);
+        for (int n = 0; running; n++) {
+            String file = "w" + n + ".txt";
+            if (write(target, file)) {
+                acknowledged.add(file);
+            } else {
+                target = target == primary ? backup : primary;
+                if (target.session == null) reconnect(target);
+            }
+            sleep(interval);
+        }
+    }
+
+    /** Keeps writing to the original primary, as a client that never noticed the failover would. */
+    private void staleWriter() {
+        long interval = (long) (1_000_000_000L / rate);
+        for (int n = 0; running; n++) {
+            if (!write(primary, "s" + n + ".txt") && primary.session == null) reconnect(primary);
+            sleep(interval);
+        }
+    }
+
+    private void reconnect(Node node) {
+        try {
+            node.login(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watchPromotion() {
+        while (running && promotedNanos == 0) {
+            if (faultNanos != 0 && backup.gauge("ha.primary") == 1) {
+                promotedNanos = System.nanoTime();
+            }
+            sleep(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+    }
+
+    private static void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ========== Drill ==========
+
+    private void run() throws Exception {
+        Path root = Paths.get(dir);
+        if (Files.exists(root)) {
+            try (Stream<Path> tree = Files.walk(root)) {
+                for (Path p : tree.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+            }
+        }
+        Files.createDirectories(root);
+        primary = new Node("primary", "Server.Server", 1099);
+        backup = new Node("backup", "Server.ServerBackup", 1100);
+        primary.launch();
+        backup.launch();
+
+        AuthFactory auth = null;
+        for (int attempt = 0; auth == null && attempt < 100; attempt++) {
+            try {
+                auth = (AuthFactory) Naming.lookup(primary.url("AuthService"));
+            } catch (Exception e) {
+                Thread.sleep(100);
+            }
+        }
+        if (auth == null) throw new IllegalStateException("Primary did not start, see " + dir + "/primary.log");
+        auth.register(USER, USER);
+        if (primary.login(10_000) == null || backup.login(10_000) == null) {
+            throw new IllegalStateException("Could not log in on both nodes");
+        }
+
+        startNanos = System.nanoTime();
+        List<Thread> threads = List.of(
+                Thread.ofPlatform().name("writer").start(this::writer),
+                Thread.ofPlatform().name("stale-writer").start(this::staleWriter),
+                Thread.ofPlatform().name("promotion-watch").start(this::watchPromotion));
+        Thread.sleep(warmupSeconds * 1000L);
+
+        System.out.println("[DRILL] Injecting " + fault + " into the primary (pid " + primary.process.pid() + ")");
+        faultNanos = System.nanoTime();
+        if (fault == Fault.KILL) {
+            primary.process.destroyForcibly().waitFor();
+        } else {
+            primary.signal("STOP");
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (promotedNanos == 0 && System.nanoTime() < deadline) Thread.sleep(20);
+        Thread.sleep(500);
+        if (fault == Fault.KILL) {
+            System.out.println("[DRILL] Restarting the old primary");
+            primary.launch();
+        } else {
+            System.out.println("[DRILL] Resuming the old primary");
+            primary.signal("CONT");
+        }
+        Thread.sleep(observeSeconds * 1000L);
+        running = false;
+        for (Thread t : threads) t.join();
+
+        Set<String> present = new HashSet<>();
+        SessionFactory survivor = backup.login(5_000);
+        if (survivor != null) present.addAll(survivor.listFiles());
+        long lost = acknowledged.stream().filter(f -> !present.contains(f)).count();
+        report(lost);
+
+        primary.process.destroy();
+        backup.process.destroy();
+    }
+
+    private static double millisBetween(long from, long to) {
+        return from == 0 || to == 0 ? -1 : (to - from) / 1e6;
+    }
+
+    private void report(long lost) throws IOException {
+        double toPromotion = millisBetween(faultNanos, promotedNanos);
+        double toWrite = millisBetween(faultNanos, firstNewWriteNanos);
+        System.out.printf("%nFault %s after %.1fs%n", fault, millisBetween(startNanos, faultNanos) / 1000);
+        System.out.printf("Time to promotion      %10.1f ms%n", toPromotion);
+        System.out.printf("Time to accepted write %10.1f ms%n", toWrite);
+        System.out.printf("%-8s %9s %9s %12s %6s %6s%n", "node", "accepted", "refused", "unreachable", "epoch", "role");
+        for (Node node : List.of(primary, backup)) {
+            long role = node.gauge("ha.primary");
+            System.out.printf("%-8s %9d %9d %12d %6d %6s%n", node.name, node.accepted.get(), node.refused.get(),
+                    node.unreachable.get(), node.gauge("ha.epoch"), role == 1 ? "P" : role == 0 ? "B" : "-");
+        }
+        System.out.printf("Acknowledged writes lost: %d of %d%n", lost, acknowledged.size());
+        System.out.printf("Split-brain writes:       %d%n", splitBrain.get());
+
+        try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(out)))) {
+            json.println("{");
+            json.printf(Locale.ROOT, "  \"fault\": \"%s\",%n  \"timeToPromotionMillis\": %.1f,%n  \"timeToWriteMillis\": %.1f,%n",
+                    fault.name().toLowerCase(), toPromotion, toWrite);
+            json.printf(Locale.ROOT, "  \"acknowledged\": %d,%n  \"lost\": %d,%n  \"splitBrain\": %d,%n",
+                    acknowledged.size(), lost, splitBrain.get());
+            StringJoiner nodes = new StringJoiner(",\n");
+            for (Node node : List.of(primary, backup)) {
+                nodes.add(String.format(Locale.ROOT,
+                        "    \"%s\": {\"accepted\": %d, \"refused\": %d, \"unreachable\": %d, \"epoch\": %d, \"primary\": %d}",
+                        node.name, node.accepted.get(), node.refused.get(), node.unreachable.get(),
+                        node.gauge("ha.epoch"), node.gauge("ha.primary")));
+            }
+            json.println("  \"nodes\": {");
+            json.println(nodes);
+            json.println("  }");
+            json.println("}");
+        }
+        System.out.println("\nResults written to " + out);
+    }
+
+    // ========== Main ==========
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+                case "--fault" -> fault = Fault.valueOf(value.toUpperCase());
+                case "--warmup" -> warmupSeconds = Integer.parseInt(value);
+                case "--observe" -> observeSeconds = Integer.parseInt(value);
+                case "--rate" -> rate = Double.parseDouble(value);
+                case "--dir" -> dir = value;
+                case "--out" -> out = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            i++;
+        }
+    }
+
+    public static void main(String[] args) {
+        // a paused server must fail calls instead of blocking the writers
+        System.setProperty("sun.rmi.transport.tcp.responseTimeout", "1000");
+        FailoverDrill drill = new FailoverDrill();
+        try {
+            drill.parse(args);
+            drill.run();
+            System.exit(drill.splitBrain.get() == 0 && drill.promotedNanos != 0 ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("[ERROR] Failover drill failed: " + e.getMessage());
+            e.printStackTrace();
+            if (drill.primary != null && drill.primary.process != null) drill.primary.process.destroyForcibly();
+            if (drill.backup != null && drill.backup.process != null) drill.backup.process.destroyForcibly();
+            System.exit(1);
+        }
+    }
+}
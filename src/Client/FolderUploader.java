@@ -0,0 +1,231 @@
+package Client;
+
+import Interface.ServerBusyException;
+import Interface.SessionFactory;
+import Interface.WriteResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Uploads a local folder tree into the session's current folder ({@code upload -r}).
+ * <p>
+ * The remote folders are created first, in one request. Files then go through at most
+ * {@code parallel} concurrent transfers: files under {@link DataPlaneClient#MIN_BYTES} are packed,
+ * up to {@link #BATCH_FILES} files or {@link #BATCH_BYTES} bytes at a time, into
+ * {@link SessionFactory#uploadBatch} requests, and larger ones are sent one by one over the data
+ * plane. A transfer the server turns away as busy is retried after the delay it asks for. Progress
+ * and throughput are printed twice a second.
+ */
+public class FolderUploader {
+
+    static final int BATCH_FILES = 256;
+    static final long BATCH_BYTES = 4L << 20;
+    private static final int FOLDERS_PER_REQUEST = 1000;
+    private static final int BUSY_RETRIES = 10;
+
+    private final SessionFactory session;
+    private final int parallel;
+
+    private long totalFiles;
+    private long totalBytes;
+    private final AtomicLong doneFiles = new AtomicLong();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private final Queue<String> failed = new ConcurrentLinkedQueue<>();
+
+    public FolderUploader(SessionFactory session, int parallel) {
+        this.session = session;
+        this.parallel = Math.max(1, parallel);
+    }
+
+    /**
+     * Uploads a single file, over the data plane if it is large and the data plane is reachable,
+     * resuming an earlier interrupted upload of it.
+     */
+    public static void uploadFile(SessionFactory session, String remoteName, Path file) throws IOException, InterruptedException {
+        uploadFile(session, remoteName, file, WriteResult.ANY);
+    }
+
+    /** Like {@link #uploadFile(SessionFactory, String, Path)}, stored only if the remote file is at {@code expectedVersion}. */
+    public static WriteResult uploadFile(SessionFactory session, String remoteName, Path file, long expectedVersion)
+            throws IOException, InterruptedException {
+        if (Files.size(file) >= DataPlaneClient.MIN_BYTES) {
+            WriteResult result = ResumableTransfer.upload(session, remoteName, file, expectedVersion);
+            if (result != null) return result;
+        }
+        return session.upload(remoteName, Files.readAllBytes(file), expectedVersion);
+    }
+
+    public void upload(Path root) throws IOException, InterruptedException {
+        String base = root.toAbsolutePath().normalize().getFileName().toString();
+        List<String> folders = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> tree = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) tree::iterator) {
+                if (Files.isDirectory(p)) {
+                    folders.add(remoteName(base, root, p));
+                } else if (Files.isRegularFile(p)) {
+                    files.add(p);
+                    totalBytes += Files.size(p);
+                }
+            }
+        }
+        totalFiles = files.size();
+        for (int i = 0; i < folders.size(); i += FOLDERS_PER_REQUEST) {
+            List<String> chunk = new ArrayList<>(folders.subList(i, Math.min(folders.size(), i + FOLDERS_PER_REQUEST)));
+            retryBusy(() -> session.createFolders(chunk));
+        }
+        System.out.printf("Uploading %d files (%s) in %d folders, %d at a time%n",
+                totalFiles, size(totalBytes), folders.size(), parallel);
+
+        long start = System.nanoTime();
+        Thread progress = Thread.ofPlatform().daemon().name("upload-progress").start(() -> progress(start));
+        Semaphore slots = new Semaphore(parallel);
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Path> batch = new ArrayList<>();
+            long batchBytes = 0;
+            for (Path file : files) {
+                long size = Files.size(file);
+                if (size >= DataPlaneClient.MIN_BYTES) {
+                    submit(pool, slots, () -> sendOne(file, remoteName(base, root, file)));
+                    continue;
+                }
+                batch.add(file);
+                batchBytes += size;
+                if (batch.size() >= BATCH_FILES || batchBytes >= BATCH_BYTES) {
+                    List<Path> full = batch;
+                    submit(pool, slots, () -> sendBatch(full, root, base));
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+            List<Path> last = batch;
+            if (!last.isEmpty()) submit(pool, slots, () -> sendBatch(last, root, base));
+        } finally {
+            progress.interrupt();
+            progress.join();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%nUploaded %d of %d files (%s) in %.1fs, %s/s, %.0f files/s%n",
+                doneFiles.get(), totalFiles, size(doneBytes.get()), seconds,
+                size((long) (doneBytes.get() / seconds)), doneFiles.get() / seconds);
+        if (!failed.isEmpty()) {
+            System.out.println(failed.size() + " file(s) failed, e.g. " + failed.stream().limit(5).toList());
+        }
+    }
+
+    /** Runs {@code transfer} once one of the {@code parallel} slots is free. */
+    private static void submit(ExecutorService pool, Semaphore slots, Runnable transfer) throws InterruptedException {
+        slots.acquire();
+        pool.execute(() -> {
+            try {
+                transfer.run();
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    private void sendOne(Path file, String remoteName) {
+        try {
+            long size = Files.size(file);
+            retryBusy(() -> uploadFile(session, remoteName, file));
+            doneFiles.incrementAndGet();
+            doneBytes.addAndGet(size);
+        } catch (IOException | InterruptedException e) {
+            failed.add(remoteName);
+        }
+    }
+
+    private void sendBatch(List<Path> files, Path root, String base) {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        long bytes = 0;
+        for (Path file : files) {
+            String remoteName = remoteName(base, root, file);
+            try {
+                byte[] data = Files.readAllBytes(file);
+                contents.put(remoteName, data);
+                bytes += data.length;
+            } catch (IOException e) {
+                failed.add(remoteName);
+            }
+        }
+        try {
+            List<String> stored = retryBusy(() -> session.uploadBatch(contents));
+            Set<String> ok = new HashSet<>(stored);
+            for (String name : contents.keySet()) {
+                if (!ok.contains(name)) failed.add(name);
+            }
+            doneFiles.addAndGet(stored.size());
+            doneBytes.addAndGet(stored.size() == contents.size() ? bytes
+                    : stored.stream().mapToLong(name -> contents.get(name).length).sum());
+        } catch (IOException | InterruptedException e) {
+            failed.addAll(contents.keySet());
+        }
+    }
+
+    // ========== Helpers ==========
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    @FunctionalInterface
+    private interface Action {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static void retryBusy(Action action) throws IOException, InterruptedException {
+        retryBusy(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private static <T> T retryBusy(Call<T> call) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return call.run();
+            } catch (ServerBusyException e) {
+                if (attempt >= BUSY_RETRIES) throw new RemoteException("Server stayed busy", e);
+                Thread.sleep(Math.max(e.getRetryAfterMillis(), 50));
+            }
+        }
+    }
+
+    private static String remoteName(String base, Path root, Path p) {
+        String relative = root.relativize(p).toString().replace('\\', '/');
+        return relative.isEmpty() ? base : base + "/" + relative;
+    }
+
+    private void progress(long start) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("\r  %d/%d files, %s/%s, %s/s   ", doneFiles.get(), totalFiles,
+                    size(doneBytes.get()), size(totalBytes), size((long) (doneBytes.get() / seconds)));
+        }
+    }
+
+    static String size(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024));
+        return String.format(Locale.ROOT, "%.2f GiB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,366 @@
+package Client;
+
+import Interface.AuthFactory;
+import Interface.LatencyHistogram;
+import Interface.ObserverRI;
+import Interface.ServerBusyException;
+import Interface.SessionFactory;
+import Interface.SubjectRI;
+import Server.State;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless multi-client load generator.
+ * <p>
+ * Registers {@code --users} accounts, logs each one in through {@code AuthService}, attaches an
+ * observer and then issues a weighted mix of ls/cd/upload/share/rename/delete at {@code --rate}
+ * operations per second for {@code --duration} seconds. Latency is measured from the moment an
+ * operation was scheduled, so a slow server is not hidden by the generator falling behind.
+ * Results (p50/p99/p999 per operation and notification delivery delay) are printed and written
+ * as JSON to {@code --out}. With {@code --read-replica true}, reads go to the backup through a
+ * {@link ReplicaRoutingSession}.
+ */
+public class LoadGenerator {
+
+    private enum Op { LS, CD, UPLOAD, SHARE, RENAME, DELETE }
+
+    // ========== Configuration ==========
+
+    private String host = "localhost";
+    private int port = 1099;
+    private int backupPort = 1100;
+    private boolean readReplica;
+    private int userCount = 20;
+    private double rate = 100;
+    private int durationSeconds = 30;
+    private int fileSize = 4096;
+    private String userPrefix = "load";
+    private String out = "load-results.json";
+    private final Map<Op, Integer> mix = new EnumMap<>(Op.class);
+
+    // ========== Results ==========
+
+    private final Map<Op, LatencyHistogram> latencies = new EnumMap<>(Op.class);
+    private final Map<Op, AtomicLong> errors = new EnumMap<>(Op.class);
+    private final Map<Op, AtomicLong> busy = new EnumMap<>(Op.class);
+    private final Map<String, LatencyHistogram> notificationDelays = new ConcurrentHashMap<>();
+    private final AtomicLong missed = new AtomicLong();
+
+    private final List<VirtualUser> users = new ArrayList<>();
+    private final Random random = new Random();
+    private byte[] payload;
+
+    public LoadGenerator() {
+        mix.put(Op.LS, 40);
+        mix.put(Op.CD, 20);
+        mix.put(Op.UPLOAD, 15);
+        mix.put(Op.SHARE, 10);
+        mix.put(Op.RENAME, 10);
+        mix.put(Op.DELETE, 5);
+        for (Op op : Op.values()) {
+            latencies.put(op, new LatencyHistogram());
+            errors.put(op, new AtomicLong());
+            busy.put(op, new AtomicLong());
+        }
+    }
+
+    private class LoadObserver extends UnicastRemoteObject implements ObserverRI {
+        private final SubjectRI subjectRI;
+
+        LoadObserver(SubjectRI subjectRI) throws RemoteException {
+            super();
+            this.subjectRI = subjectRI;
+            this.subjectRI.attach(this);
+        }
+
+        @Override
+        public void update() throws RemoteException {
+            State state = subjectRI.getState();
+            notificationDelays.computeIfAbsent(state.getId(), k -> new LatencyHistogram())
+                    .record(nowMicros() - state.getCreatedAtMicros());
+        }
+    }
+
+    /** One logged-in account. Operations on a user never overlap, since the session keeps a cwd. */
+    private static class VirtualUser {
+        final String name;
+        final SessionFactory session;
+        final AtomicBoolean busy = new AtomicBoolean();
+        final List<String> rootFiles = new ArrayList<>();
+        final List<String> workFiles = new ArrayList<>();
+        boolean inWork;
+        int seq;
+
+        VirtualUser(String name, SessionFactory session) {
+            this.name = name;
+            this.session = session;
+        }
+
+        List<String> files() {
+            return inWork ? workFiles : rootFiles;
+        }
+    }
+
+    // ========== Setup ==========
+
+    private AuthFactory connect() throws Exception {
+        try {
+            return (AuthFactory) Naming.lookup("rmi://" + host + ":" + port + "/AuthService");
+        } catch (Exception e) {
+            System.out.println("[WARN] Primary server offline. Trying backup...");
+            return (AuthFactory) Naming.lookup("rmi://" + host + ":" + backupPort + "/AuthService");
+        }
+    }
+
+    private void setUp(AuthFactory authService) throws Exception {
+        AuthFactory replicaService = readReplica
+                ? (AuthFactory) Naming.lookup("rmi://" + host + ":" + backupPort + "/AuthService")
+                : null;
+        for (int i = 0; i < userCount; i++) {
+            String name = userPrefix + i;
+            authService.register(name, name);
+            SessionFactory session = authService.login(name, name);
+            if (session == null) {
+                throw new IllegalStateException("Login failed for " + name);
+            }
+            if (replicaService != null) {
+                session = new ReplicaRoutingSession(session, replicaLogin(replicaService, name));
+            }
+            new LoadObserver(session.getSubjectRI());
+            session.changeDirectory("local");
+            session.createFolder("work");
+            users.add(new VirtualUser(name, session));
+        }
+        payload = new byte[fileSize];
+        random.nextBytes(payload);
+        notificationDelays.clear();
+    }
+
+    /** Logs in on the backup, giving it a few seconds to replicate the registration. */
+    private static SessionFactory replicaLogin(AuthFactory replicaService, String name) throws Exception {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            SessionFactory session = replicaService.login(name, name);
+            if (session != null) return session;
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Backup never saw user " + name);
+    }
+
+    // ========== Run ==========
+
+    private void run() throws InterruptedException {
+        long intervalNanos = (long) (1_000_000_000L / rate);
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1_000_000_000L;
+        long next = start;
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (next < end) {
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                long scheduledAt = next;
+                next += intervalNanos;
+
+                VirtualUser user = claimIdleUser();
+                if (user == null) {
+                    missed.incrementAndGet();
+                    continue;
+                }
+                Op op = resolve(user, pick(totalWeight));
+                workers.execute(() -> {
+                    try {
+                        execute(user, op);
+                        latencies.get(op).recordSince(scheduledAt);
+                    } catch (ServerBusyException e) {
+                        busy.get(op).incrementAndGet();
+                    } catch (RemoteException e) {
+                        errors.get(op).incrementAndGet();
+                    } finally {
+                        user.busy.set(false);
+                    }
+                });
+            }
+        }
+    }
+
+    private VirtualUser claimIdleUser() {
+        int offset = random.nextInt(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            VirtualUser user = users.get((offset + i) % users.size());
+            if (user.busy.compareAndSet(false, true)) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private Op pick(int totalWeight) {
+        int roll = random.nextInt(totalWeight);
+        for (Map.Entry<Op, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) return entry.getKey();
+        }
+        return Op.LS;
+    }
+
+    /**
+     * The operation {@code user} will actually run for {@code op}, so it is recorded under the right
+     * name: an upload when there is no file to share, rename or delete yet, and a listing when the
+     * only user to share with is {@code user} itself.
+     */
+    private Op resolve(VirtualUser user, Op op) {
+        if (user.files().isEmpty() && (op == Op.SHARE || op == Op.RENAME || op == Op.DELETE)) {
+            return Op.UPLOAD;
+        }
+        if (op == Op.SHARE && users.size() < 2) {
+            return Op.LS;
+        }
+        return op;
+    }
+
+    private void execute(VirtualUser user, Op op) throws RemoteException {
+        List<String> files = user.files();
+        switch (op) {
+            case LS -> user.session.listFiles();
+            case CD -> {
+                user.session.changeDirectory(user.inWork ? ".." : "work");
+                user.inWork = !user.inWork;
+            }
+            case UPLOAD -> {
+                String name = "f" + (user.seq++) + ".bin";
+                user.session.upload(name, payload);
+                files.add(name);
+            }
+            case SHARE -> {
+                VirtualUser target;
+                do {
+                    target = users.get(random.nextInt(users.size()));
+                } while (target == user);
+                user.session.shareWithUser(files.get(random.nextInt(files.size())), target.name);
+            }
+            case RENAME -> {
+                int index = random.nextInt(files.size());
+                String name = "f" + (user.seq++) + ".bin";
+                user.session.rename(files.get(index), name);
+                files.set(index, name);
+            }
+            case DELETE -> user.session.delete(files.remove(random.nextInt(files.size())));
+        }
+    }
+
+    private static long nowMicros() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+
+    // ========== Report ==========
+
+    private void report(double elapsedSeconds) throws IOException {
+        long completed = latencies.values().stream().mapToLong(LatencyHistogram::count).sum();
+        System.out.printf("%nTarget %.1f ops/s, achieved %.1f ops/s, %d missed (no idle user)%n",
+                rate, completed / elapsedSeconds, missed.get());
+        System.out.printf("%-14s %9s %7s %7s %10s %10s %10s %10s%n", "operation", "count", "errors", "busy", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+        for (Op op : Op.values()) {
+            printRow(op.name().toLowerCase(), latencies.get(op).snapshot(), errors.get(op).get(), busy.get(op).get());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(notificationDelays).entrySet()) {
+            printRow("notify:" + entry.getKey(), entry.getValue().snapshot(), 0, 0);
+        }
+
+        try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(out)))) {
+            json.println("{");
+            json.printf(Locale.ROOT, "  \"users\": %d,%n  \"targetRate\": %.1f,%n  \"durationSeconds\": %.3f,%n", userCount, rate, elapsedSeconds);
+            json.printf(Locale.ROOT, "  \"achievedRate\": %.3f,%n  \"missed\": %d,%n  \"fileSize\": %d,%n", completed / elapsedSeconds, missed.get(), fileSize);
+            json.println("  \"operations\": {");
+            StringJoiner ops = new StringJoiner(",\n");
+            for (Op op : Op.values()) {
+                ops.add(jsonEntry(op.name().toLowerCase(), latencies.get(op).snapshot(), errors.get(op).get(), busy.get(op).get()));
+            }
+            json.println(ops);
+            json.println("  },");
+            json.println("  \"notifications\": {");
+            StringJoiner notifications = new StringJoiner(",\n");
+            for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(notificationDelays).entrySet()) {
+                notifications.add(jsonEntry(entry.getKey(), entry.getValue().snapshot(), 0, 0));
+            }
+            json.println(notifications);
+            json.println("  }");
+            json.println("}");
+        }
+        System.out.println("\nResults written to " + out);
+    }
+
+    private static void printRow(String name, LatencyHistogram.Snapshot s, long errors, long busy) {
+        System.out.printf("%-14s %9d %7d %7d %10d %10d %10d %10d%n",
+                name, s.count(), errors, busy, s.percentile(50), s.percentile(99), s.percentile(99.9), s.max());
+    }
+
+    private static String jsonEntry(String name, LatencyHistogram.Snapshot s, long errors, long busy) {
+        return String.format(Locale.ROOT,
+                "    \"%s\": {\"count\": %d, \"errors\": %d, \"busy\": %d, \"meanMicros\": %.1f, \"p50Micros\": %d, \"p99Micros\": %d, \"p999Micros\": %d, \"maxMicros\": %d}",
+                name, s.count(), errors, busy, s.mean(), s.percentile(50), s.percentile(99), s.percentile(99.9), s.max());
+    }
+
+    // ========== Main ==========
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+                case "--host" -> host = value;
+                case "--port" -> port = Integer.parseInt(value);
+                case "--backup-port" -> backupPort = Integer.parseInt(value);
+                case "--read-replica" -> readReplica = Boolean.parseBoolean(value);
+                case "--users" -> userCount = Integer.parseInt(value);
+                case "--rate" -> rate = Double.parseDouble(value);
+                case "--duration" -> durationSeconds = Integer.parseInt(value);
+                case "--file-size" -> fileSize = Integer.parseInt(value);
+                case "--user-prefix" -> userPrefix = value;
+                case "--out" -> out = value;
+                case "--mix" -> {
+                    mix.clear();
+                    for (String part : value.split(",")) {
+                        String[] kv = part.split("=");
+                        mix.put(Op.valueOf(kv[0].trim().toUpperCase()), Integer.parseInt(kv[1].trim()));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            i++;
+        }
+    }
+
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+            AuthFactory authService = generator.connect();
+            System.out.println("[LOAD] Logging in " + generator.userCount + " users...");
+            generator.setUp(authService);
+            System.out.printf("[LOAD] Running %s at %.1f ops/s for %ds%n", generator.mix, generator.rate, generator.durationSeconds);
+            long start = System.nanoTime();
+            generator.run();
+            generator.report((System.nanoTime() - start) / 1e9);
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("[ERROR] Load generator failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
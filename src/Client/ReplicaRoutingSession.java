@@ -0,0 +1,259 @@
+package Client;
+
+import Interface.ChangeSet;
+import Interface.FileEntry;
+import Interface.ListingPage;
+import Interface.SessionFactory;
+import Interface.StaleReadException;
+import Interface.SubjectRI;
+import Interface.TransferTicket;
+import Interface.WriteResult;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends writes to the primary's session and reads ({@code ls}, {@code cd}, the path, fetching a
+ * file) to a session on the backup, with read-your-writes staleness: after a write, the backup is
+ * told the primary's replication sequence, and a read it cannot serve at that sequence in time goes
+ * to the primary.
+ * If the backup's working directory ever diverges from the primary's, or the backup fails, reads
+ * fall back to the primary for the rest of the session.
+ */
+public class ReplicaRoutingSession implements SessionFactory {
+    private final SessionFactory primary;
+    private final SessionFactory replica;
+    private boolean replicaUsable = true;
+    private long requiredSequence;
+    private boolean sequenceSent;
+
+    public ReplicaRoutingSession(SessionFactory primary, SessionFactory replica) throws RemoteException {
+        this.primary = primary;
+        this.replica = replica;
+        this.requiredSequence = primary.getSequence();
+    }
+
+    @FunctionalInterface
+    private interface Read<T> {
+        T run(SessionFactory session) throws RemoteException;
+    }
+
+    @FunctionalInterface
+    private interface Write {
+        void run() throws RemoteException;
+    }
+
+    private <T> T read(Read<T> read) throws RemoteException {
+        if (replicaUsable) {
+            try {
+                if (!sequenceSent) {
+                    replica.setMinSequence(requiredSequence);
+                    sequenceSent = true;
+                }
+                return read.run(replica);
+            } catch (StaleReadException e) {
+                // replica is behind this session's last write; the primary has it
+            } catch (RemoteException e) {
+                replicaUsable = false;
+            }
+        }
+        return read.run(primary);
+    }
+
+    private void write(Write write) throws RemoteException {
+        write.run();
+        wrote(null);
+    }
+
+    /** Makes later reads wait for the write that returned {@code result}. */
+    private <T> T wrote(T result) throws RemoteException {
+        requiredSequence = primary.getSequence();
+        sequenceSent = false;
+        return result;
+    }
+
+    // ========== Reads ==========
+
+    @Override
+    public List<String> listFiles() throws RemoteException {
+        return read(SessionFactory::listFiles);
+    }
+
+    @Override
+    public ListingPage list(String prefix, FileEntry.Sort sort, boolean descending, int pageSize, String cursor)
+            throws RemoteException {
+        return read(session -> session.list(prefix, sort, descending, pageSize, cursor));
+    }
+
+    @Override
+    public String getPath() throws RemoteException {
+        return read(SessionFactory::getPath);
+    }
+
+    @Override
+    public List<String> find(String query) throws RemoteException {
+        return read(session -> session.find(query));
+    }
+
+    @Override
+    public long[] usage(String folderName) throws RemoteException {
+        return read(session -> session.usage(folderName));
+    }
+
+    @Override
+    public boolean changeDirectory(String folderName) throws RemoteException {
+        boolean changed = primary.changeDirectory(folderName);
+        if (replicaUsable) {
+            try {
+                if (!sequenceSent) {
+                    replica.setMinSequence(requiredSequence);
+                    sequenceSent = true;
+                }
+                replicaUsable = replica.changeDirectory(folderName) == changed;
+            } catch (StaleReadException | RemoteException e) {
+                replicaUsable = false;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean subscribe(String folderName) throws RemoteException {
+        // changes are published by the primary, which makes them
+        return primary.subscribe(folderName);
+    }
+
+    @Override
+    public void unsubscribe(String folderName) throws RemoteException {
+        primary.unsubscribe(folderName);
+    }
+
+    @Override
+    public TransferTicket openDownload(String filename) throws RemoteException {
+        return read(session -> session.openDownload(filename));
+    }
+
+    @Override
+    public TransferTicket openArchive(String folderName, String format, int level) throws RemoteException {
+        return read(session -> session.openArchive(folderName, format, level));
+    }
+
+    @Override
+    public long getSequence() throws RemoteException {
+        return primary.getSequence();
+    }
+
+    @Override
+    public void setMinSequence(long sequence) throws RemoteException {
+        requiredSequence = Math.max(requiredSequence, sequence);
+        sequenceSent = false;
+    }
+
+    // ========== Writes ==========
+
+    @Override
+    public void setSubjectRI(SubjectRI subjectRI) throws RemoteException {
+        primary.setSubjectRI(subjectRI);
+    }
+
+    @Override
+    public SubjectRI getSubjectRI() throws RemoteException {
+        return primary.getSubjectRI();
+    }
+
+    @Override
+    public void createFolder(String folderName) throws RemoteException {
+        write(() -> primary.createFolder(folderName));
+    }
+
+    @Override
+    public void createFolders(List<String> folderNames) throws RemoteException {
+        write(() -> primary.createFolders(folderNames));
+    }
+
+    @Override
+    public void rename(String oldName, String newName) throws RemoteException {
+        write(() -> primary.rename(oldName, newName));
+    }
+
+    @Override
+    public WriteResult rename(String oldName, String newName, long expectedVersion) throws RemoteException {
+        return wrote(primary.rename(oldName, newName, expectedVersion));
+    }
+
+    @Override
+    public void move(String itemName, String targetFolder) throws RemoteException {
+        write(() -> primary.move(itemName, targetFolder));
+    }
+
+    @Override
+    public void copy(String sourceName, String targetName) throws RemoteException {
+        write(() -> primary.copy(sourceName, targetName));
+    }
+
+    @Override
+    public void upload(String filename, byte[] data) throws RemoteException {
+        write(() -> primary.upload(filename, data));
+    }
+
+    @Override
+    public List<String> uploadBatch(Map<String, byte[]> files) throws RemoteException {
+        return wrote(primary.uploadBatch(files));
+    }
+
+    @Override
+    public WriteResult upload(String filename, byte[] data, long expectedVersion) throws RemoteException {
+        return wrote(primary.upload(filename, data, expectedVersion));
+    }
+
+    @Override
+    public TransferTicket openUpload(String filename, long size) throws RemoteException {
+        return primary.openUpload(filename, size);
+    }
+
+    @Override
+    public ChangeSet changesSince(String token, int max) throws RemoteException {
+        return primary.changesSince(token, max);
+    }
+
+    @Override
+    public long version(String filename) throws RemoteException {
+        return primary.version(filename);
+    }
+
+    @Override
+    public TransferTicket resumeUpload(long transferId) throws RemoteException {
+        return primary.resumeUpload(transferId);
+    }
+
+    @Override
+    public void commitUpload(TransferTicket ticket) throws RemoteException {
+        write(() -> primary.commitUpload(ticket));
+    }
+
+    @Override
+    public WriteResult commitUpload(TransferTicket ticket, long expectedVersion) throws RemoteException {
+        return wrote(primary.commitUpload(ticket, expectedVersion));
+    }
+
+    @Override
+    public void download(String filename) throws RemoteException {
+        write(() -> primary.download(filename));
+    }
+
+    @Override
+    public void delete(String filename) throws RemoteException {
+        write(() -> primary.delete(filename));
+    }
+
+    @Override
+    public WriteResult delete(String filename, long expectedVersion) throws RemoteException {
+        return wrote(primary.delete(filename, expectedVersion));
+    }
+
+    @Override
+    public void shareWithUser(String filename, String withUsername) throws RemoteException {
+        write(() -> primary.shareWithUser(filename, withUsername));
+    }
+}
@@ -0,0 +1,206 @@
+package Client;
+
+import Interface.SessionFactory;
+import Interface.TransferTicket;
+import Interface.WriteResult;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Data-plane transfers that survive dropped connections.
+ * <p>
+ * Each transfer keeps a checkpoint under {@code ~/.dds/transfers} (or {@code -Ddds.checkpointDir}),
+ * named after the local and remote paths. An upload's checkpoint records the server's transfer id
+ * and the local file's size and modification time; the server keeps the partial file and the
+ * chunks it has, so a retry asks it through {@link SessionFactory#resumeUpload(long)} which ranges
+ * are missing and sends only those. A download goes into {@code <target>.part} and its checkpoint
+ * records the remote file's size and modification time, so a retry continues from the end of the
+ * partial file if the remote file is unchanged. A transfer is retried {@link #ATTEMPTS} times;
+ * after that the checkpoint stays and running the same command again, even after a restart or a
+ * failover to the backup, picks up where it stopped.
+ */
+public final class ResumableTransfer {
+
+    static final int ATTEMPTS = 5;
+    private static final long BACKOFF_MILLIS = 500;
+    private static final Path CHECKPOINTS = Paths.get(System.getProperty("dds.checkpointDir",
+            Paths.get(System.getProperty("user.home"), ".dds", "transfers").toString()));
+
+    private ResumableTransfer() {
+    }
+
+    /**
+     * Uploads {@code file} as {@code remoteName} over the data plane, stored only if the remote file
+     * is at {@code expectedVersion} when the upload is committed.
+     *
+     * @return null if the data plane could not be reached before any byte was sent
+     */
+    public static WriteResult upload(SessionFactory session, String remoteName, Path file, long expectedVersion)
+            throws IOException, InterruptedException {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        Checkpoint checkpoint = Checkpoint.of("upload", remoteName, file);
+        TransferTicket ticket = null;
+        if (checkpoint.matches(size, modified)) {
+            ticket = session.resumeUpload(checkpoint.id());
+            if (ticket != null) {
+                System.out.println("Resuming upload of '" + remoteName + "': " + (size - missing(ticket))
+                        + " of " + size + " bytes already on the server");
+            }
+        }
+        if (ticket == null) {
+            try {
+                ticket = session.openUpload(remoteName, size);
+            } catch (IOException e) {
+                System.err.println("Data plane unavailable, uploading over RMI: " + e.getMessage());
+                return null;
+            }
+            checkpoint.save(ticket.getId(), size, modified);
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                DataPlaneClient.send(ticket, file);
+                break;
+            } catch (ConnectException e) {
+                if (attempt == 1 && missing(ticket) == size) {
+                    System.err.println("Data plane unavailable, uploading over RMI: " + e.getMessage());
+                    checkpoint.delete();
+                    return null;
+                }
+                ticket = retry(session, checkpoint, remoteName, attempt, e);
+            } catch (IOException e) {
+                ticket = retry(session, checkpoint, remoteName, attempt, e);
+            }
+        }
+        WriteResult result = session.commitUpload(ticket, expectedVersion);
+        checkpoint.delete();
+        return result;
+    }
+
+    /** Waits, then asks the server for a new ticket listing what it is still missing. */
+    private static TransferTicket retry(SessionFactory session, Checkpoint checkpoint, String remoteName,
+                                        int attempt, IOException cause) throws IOException, InterruptedException {
+        for (; ; attempt++) {
+            if (attempt >= ATTEMPTS) throw interrupted("Upload of '" + remoteName + "'", cause);
+            Thread.sleep(BACKOFF_MILLIS << Math.min(attempt - 1, 3));
+            try {
+                TransferTicket ticket = session.resumeUpload(checkpoint.id());
+                if (ticket == null) {
+                    checkpoint.delete();
+                    throw new IOException("The server no longer has the upload of '" + remoteName + "'", cause);
+                }
+                System.err.println("Upload of '" + remoteName + "' interrupted (" + cause.getMessage() + "), resuming with "
+                        + missing(ticket) + " bytes to go");
+                return ticket;
+            } catch (java.rmi.ConnectException e) {
+                cause = e;
+            }
+        }
+    }
+
+    /**
+     * Downloads {@code remoteName} to {@code target} over the data plane, continuing an earlier
+     * partial download of the same remote file.
+     *
+     * @return the file's size
+     */
+    public static long download(SessionFactory session, String remoteName, Path target) throws IOException, InterruptedException {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        Checkpoint checkpoint = Checkpoint.of("download", remoteName, target);
+        for (int attempt = 1; ; attempt++) {
+            TransferTicket ticket = session.openDownload(remoteName);
+            long offset = 0;
+            if (checkpoint.matches(ticket.getSize(), ticket.getModified()) && Files.exists(part)) {
+                offset = Math.min(Files.size(part), ticket.getSize());
+                if (offset > 0) System.out.println("Resuming download of '" + remoteName + "' at byte " + offset);
+            } else {
+                checkpoint.save(ticket.getId(), ticket.getSize(), ticket.getModified());
+            }
+            try {
+                DataPlaneClient.receive(ticket, part, offset);
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                checkpoint.delete();
+                return ticket.getSize();
+            } catch (IOException e) {
+                if (attempt >= ATTEMPTS) throw interrupted("Download of '" + remoteName + "'", e);
+                System.err.println("Download of '" + remoteName + "' interrupted (" + e.getMessage() + "), resuming");
+                Thread.sleep(BACKOFF_MILLIS << Math.min(attempt - 1, 3));
+            }
+        }
+    }
+
+    private static long missing(TransferTicket ticket) {
+        long[] missing = ticket.getMissing();
+        long bytes = 0;
+        for (int i = 0; i < missing.length; i += 2) {
+            bytes += missing[i + 1] - missing[i];
+        }
+        return bytes;
+    }
+
+    private static IOException interrupted(String transfer, IOException cause) {
+        return new IOException(transfer + " gave up after " + ATTEMPTS + " attempts (" + cause.getMessage()
+                + "); run the same command again to resume it", cause);
+    }
+
+    // ========== Checkpoints ==========
+
+    /** A transfer's checkpoint file: {@code id}, {@code size} and {@code modified}. */
+    private static final class Checkpoint {
+        private final Path file;
+        private final Properties properties = new Properties();
+
+        private Checkpoint(Path file) {
+            this.file = file;
+        }
+
+        static Checkpoint of(String kind, String remoteName, Path local) throws IOException {
+            String key = kind + "\n" + remoteName + "\n" + local.toAbsolutePath().normalize();
+            Checkpoint checkpoint = new Checkpoint(CHECKPOINTS.resolve(
+                    UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + ".properties"));
+            if (Files.exists(checkpoint.file)) {
+                try (Reader in = Files.newBufferedReader(checkpoint.file, StandardCharsets.UTF_8)) {
+                    checkpoint.properties.load(in);
+                } catch (IllegalArgumentException e) {
+                    checkpoint.properties.clear();
+                }
+            }
+            return checkpoint;
+        }
+
+        boolean matches(long size, long modified) {
+            return Long.toString(size).equals(properties.getProperty("size"))
+                    && Long.toString(modified).equals(properties.getProperty("modified"));
+        }
+
+        long id() {
+            return Long.parseLong(properties.getProperty("id"));
+        }
+
+        void save(long id, long size, long modified) throws IOException {
+            properties.setProperty("id", Long.toString(id));
+            properties.setProperty("size", Long.toString(size));
+            properties.setProperty("modified", Long.toString(modified));
+            Files.createDirectories(CHECKPOINTS);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(out, null);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -1,13 +1,27 @@
 package Client;
 
+import Interface.FileEntry;
+import Interface.ListingPage;
+import Interface.QuotaExceededException;
+import Interface.ServerBusyException;
 import Interface.SessionFactory;
+import Interface.TransferTicket;
+import Interface.WriteResult;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.List;
 import java.util.Scanner;
 
 public class SessionMenu {
 
+    private static final int LIST_PAGE = 200;
+
     private final String username;
     private final SessionFactory session;
     private final ObserverImpl observer;
@@ -27,6 +41,15 @@ public class SessionMenu {
             try {
                 String currentPath = session.getPath();
                 System.out.print(username + ":" + currentPath + "$ ");
+            } catch (ServerBusyException e) {
+                busy(e);
+                try {
+                    Thread.sleep(e.getRetryAfterMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
             } catch (RemoteException e) {
                 System.err.println("Error fetching current directory.");
                 break;
@@ -39,7 +62,7 @@ public class SessionMenu {
             String command = parts[0];
 
             switch (command) {
-                case "ls" -> listFiles();
+                case "ls" -> listFiles(parts);
                 case "cd" -> {
                     if (parts.length < 2) System.out.println("Usage: cd <folder>");
                     else changeDirectory(parts[1]);
@@ -49,24 +72,50 @@ public class SessionMenu {
                     else createFolder(parts[1]);
                 }
                 case "rename" -> {
-                    if (parts.length < 3) System.out.println("Usage: rename <old_name> <new_name>");
-                    else rename(parts[1], parts[2]);
+                    if (parts.length < 3) System.out.println("Usage: rename <old_name> <new_name> [--if <version>]");
+                    else rename(parts[1], parts[2], expectedVersion(parts, 3));
                 }
                 case "move" -> {
                     if (parts.length < 3) System.out.println("Usage: move <item_name> <target_folder>");
                     else move(parts[1], parts[2]);
                 }
+                case "copy" -> {
+                    if (parts.length < 3) System.out.println("Usage: copy <item_name> <target>");
+                    else copy(parts[1], parts[2]);
+                }
+                case "du" -> usage(parts.length > 1 ? parts[1] : ".");
+                case "watch", "unwatch" -> {
+                    if (parts.length < 2) System.out.println("Usage: " + command + " <folder>");
+                    else watch(parts[1], command.equals("watch"));
+                }
+                case "find" -> {
+                    if (parts.length < 2) System.out.println("Usage: find <text>|<prefix>*|*.<ext>");
+                    else find(input.substring(command.length()).trim());
+                }
                 case "upload" -> {
-                    if (parts.length < 2) System.out.println("Usage: upload <local_path>");
-                    else uploadFile(parts[1]);
+                    if (parts.length >= 3 && parts[1].equals("-r")) {
+                        uploadFolder(parts[2], parts.length >= 5 && parts[3].equals("-p") ? Integer.parseInt(parts[4]) : 8);
+                    } else if (parts.length < 2) {
+                        System.out.println("Usage: upload <local_path> [--if <version>] | upload -r <local_dir> [-p <parallel>]");
+                    } else {
+                        uploadFile(parts[1], expectedVersion(parts, 2));
+                    }
                 }
                 case "download" -> {
                     if (parts.length < 2) System.out.println("Usage: download <filename>");
                     else downloadFile(parts[1]);
                 }
+                case "fetch" -> {
+                    if (parts.length < 2) System.out.println("Usage: fetch <filename> [local_path]");
+                    else fetchFile(parts[1], parts.length > 2 ? parts[2] : parts[1]);
+                }
+                case "archive" -> {
+                    if (parts.length < 2) System.out.println("Usage: archive <folder> [local_file.zip|.tar|.tgz] [-l <level>]");
+                    else archiveFolder(parts);
+                }
                 case "delete" -> {
-                    if (parts.length < 2) System.out.println("Usage: delete <filename>");
-                    else deleteFile(parts[1]);
+                    if (parts.length < 2) System.out.println("Usage: delete <filename> [--if <version>]");
+                    else deleteFile(parts[1], expectedVersion(parts, 2));
                 }
                 case "share" -> {
                     if (parts.length < 3) System.out.println("Usage: share <filename> <target_user>");
@@ -87,10 +136,55 @@ public class SessionMenu {
         }
     }
 
-    private void listFiles() {
+    /** The version after {@code --if} at {@code parts[at]}, or {@link WriteResult#ANY} without one. */
+    private static long expectedVersion(String[] parts, int at) {
+        if (parts.length < at + 2 || !parts[at].equals("--if")) return WriteResult.ANY;
         try {
-            for (String s : session.listFiles())
-                System.out.println(s);
+            return Long.parseLong(parts[at + 1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Not a version: " + parts[at + 1] + "; ignoring --if");
+            return WriteResult.ANY;
+        }
+    }
+
+    /** Prints why a conditional write was not applied. */
+    private static void conflict(String item, WriteResult result) {
+        if (result.isApplied()) return;
+        System.out.println("[CONFLICT] '" + item + "' is " + (result.getVersion() == WriteResult.ABSENT
+                ? "not there" : "at version " + result.getVersion()) + "; nothing was changed");
+    }
+
+    /** {@code ls [-l] [-S|-t] [-r] [prefix]}, fetched and printed a page at a time. */
+    private void listFiles(String[] parts) {
+        boolean details = false;
+        boolean descending = false;
+        FileEntry.Sort sort = FileEntry.Sort.NAME;
+        String prefix = null;
+        for (int i = 1; i < parts.length; i++) {
+            switch (parts[i]) {
+                case "-l" -> details = true;
+                case "-S" -> sort = FileEntry.Sort.SIZE;
+                case "-t" -> sort = FileEntry.Sort.MODIFIED;
+                case "-r" -> descending = true;
+                default -> prefix = parts[i];
+            }
+        }
+        try {
+            String cursor = null;
+            do {
+                ListingPage page = session.list(prefix, sort, descending, LIST_PAGE, cursor);
+                for (FileEntry entry : page.getEntries()) {
+                    if (!details) {
+                        System.out.println(entry);
+                        continue;
+                    }
+                    System.out.printf("%s %12d %tF %<tR v%-6d %s%n", entry.isFolder() ? "d" : "-", entry.getSize(),
+                            new Date(entry.getModified()), entry.getVersion(), entry);
+                }
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (RemoteException e) {
             System.err.println("Error listing files: " + e.getMessage());
         }
@@ -99,6 +193,8 @@ public class SessionMenu {
     private void changeDirectory(String folder) {
         try {
             session.changeDirectory(folder);
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (RemoteException ignore) {
         }
     }
@@ -106,45 +202,166 @@ public class SessionMenu {
     private void createFolder(String folderName) {
         try {
             session.createFolder(folderName);
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (RemoteException e) {
             e.printStackTrace();
         }
     }
 
-    private void rename(String oldName, String newName) {
+    private void rename(String oldName, String newName, long expectedVersion) {
         try {
-            session.rename(oldName, newName);
+            if (expectedVersion == WriteResult.ANY) session.rename(oldName, newName);
+            else conflict(oldName, session.rename(oldName, newName, expectedVersion));
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (RemoteException ignored) {
         }
     }
     private void move(String itemName, String targetFolder) {
         try {
             session.move(itemName, targetFolder);
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (RemoteException e) {
             System.err.println("Failed to move item: " + e.getMessage());
         }
     }
-    private void uploadFile(String localPath) {
+    private void copy(String sourceName, String targetName) {
+        try {
+            session.copy(sourceName, targetName);
+        } catch (ServerBusyException e) {
+            busy(e);
+        } catch (RemoteException e) {
+            System.err.println("Failed to copy item: " + e.getMessage());
+        } catch (QuotaExceededException e) {
+            System.out.println("[QUOTA] " + e.getMessage());
+        }
+    }
+    private void usage(String folderName) {
+        try {
+            long[] usage = session.usage(folderName);
+            if (usage == null) {
+                System.out.println("No such folder: " + folderName);
+                return;
+            }
+            System.out.println(FolderUploader.size(usage[0]) + " in " + usage[1] + " file(s)");
+            if (usage[2] > 0 || usage[3] > 0) {
+                long[] total = folderName.equals("/") ? usage : session.usage("/");
+                System.out.println("Quota: " + (usage[2] > 0 ? FolderUploader.size(total[0]) + " of " + FolderUploader.size(usage[2]) : "no byte limit")
+                        + ", " + (usage[3] > 0 ? total[1] + " of " + usage[3] + " files" : "no file limit"));
+            }
+        } catch (ServerBusyException e) {
+            busy(e);
+        } catch (RemoteException e) {
+            System.err.println("Failed to get usage: " + e.getMessage());
+        }
+    }
+    private void watch(String folderName, boolean on) {
+        try {
+            if (!on) {
+                session.unsubscribe(folderName);
+            } else if (!session.subscribe(folderName)) {
+                System.out.println("Cannot watch " + folderName);
+            }
+        } catch (ServerBusyException e) {
+            busy(e);
+        } catch (RemoteException e) {
+            System.err.println("Failed to change subscription: " + e.getMessage());
+        }
+    }
+    private void find(String query) {
+        try {
+            List<String> found = session.find(query);
+            if (found.isEmpty()) System.out.println("(no matches)");
+            for (String path : found) {
+                System.out.println(path);
+            }
+        } catch (ServerBusyException e) {
+            busy(e);
+        } catch (RemoteException e) {
+            System.err.println("Failed to search: " + e.getMessage());
+        }
+    }
+    private void uploadFile(String localPath, long expectedVersion) {
         try {
-            byte[] data = java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(localPath));
-            String filename = java.nio.file.Paths.get(localPath).getFileName().toString();
-            session.upload(filename, data);
+            Path path = Paths.get(localPath);
+            conflict(path.getFileName().toString(),
+                    FolderUploader.uploadFile(session, path.getFileName().toString(), path, expectedVersion));
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (Exception e) {
             System.err.println("Failed to upload file: " + e.getMessage());
         }
     }
 
+    private void uploadFolder(String localPath, int parallel) {
+        try {
+            new FolderUploader(session, parallel).upload(Paths.get(localPath));
+        } catch (ServerBusyException e) {
+            busy(e);
+        } catch (Exception e) {
+            System.err.println("Failed to upload folder: " + e.getMessage());
+        }
+    }
+
+    private void fetchFile(String filename, String localPath) {
+        try {
+            long size = ResumableTransfer.download(session, filename, Paths.get(localPath));
+            System.out.println("'" + filename + "' (" + size + " bytes) saved to " + localPath);
+        } catch (ServerBusyException e) {
+            busy(e);
+        } catch (Exception e) {
+            System.err.println("Failed to fetch file: " + e.getMessage());
+        }
+    }
+
+    /** {@code archive <folder> [local_file] [-l <level>]}; the format follows the local file's extension. */
+    private void archiveFolder(String[] parts) {
+        String folder = parts[1];
+        String localPath = null;
+        int level = -1;
+        for (int i = 2; i < parts.length; i++) {
+            if (parts[i].equals("-l") && i + 1 < parts.length) level = Integer.parseInt(parts[++i]);
+            else localPath = parts[i];
+        }
+        if (localPath == null) {
+            Path name = Paths.get(folder).normalize().getFileName();
+            localPath = (name == null || name.toString().isEmpty() ? "archive" : name) + ".zip";
+        }
+        String lower = localPath.toLowerCase();
+        String format = lower.endsWith(".tar") ? "tar"
+                : lower.endsWith(".tgz") || lower.endsWith(".tar.gz") ? "tgz" : "zip";
+        try {
+            TransferTicket ticket = session.openArchive(folder, format, level);
+            Path target = Paths.get(localPath);
+            Path part = target.resolveSibling(target.getFileName() + ".part");
+            long size = DataPlaneClient.receiveArchive(ticket, part);
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("'" + folder + "' (" + size + " bytes, " + format + ") saved to " + localPath);
+        } catch (ServerBusyException e) {
+            busy(e);
+        } catch (Exception e) {
+            System.err.println("Failed to archive folder: " + e.getMessage());
+        }
+    }
+
     private void downloadFile(String filename) {
         try {
             session.download(filename);
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (Exception e) {
             System.err.println("Failed to download file: " + e.getMessage());
         }
     }
 
-    private void deleteFile(String filename) {
+    private void deleteFile(String filename, long expectedVersion) {
         try {
-            session.delete(filename);
+            if (expectedVersion == WriteResult.ANY) session.delete(filename);
+            else conflict(filename, session.delete(filename, expectedVersion));
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (RemoteException ignored) {
         }
     }
@@ -152,23 +369,40 @@ public class SessionMenu {
     private void shareFile(String filename, String targetUser) {
         try {
             session.shareWithUser(filename, targetUser);
+        } catch (ServerBusyException e) {
+            busy(e);
         } catch (RemoteException ignored) {
         }
     }
 
+    private void busy(ServerBusyException e) {
+        System.out.println("[BUSY] " + e.getMessage());
+    }
 
     private void printHelp() {
         System.out.println("""
             Available commands:
-              ls                            List files
+              ls [-l] [-S|-t] [-r] [prefix] List files, with details, by size or time, reversed
               cd <folder>                   Change directory
               create <folder>               Create new folder
               rename <name> <newname>       Rename a file or folder
               move <item> <target_folder>   Move a file or folder into a subfolder
+              copy <item> <target>          Copy a file or folder on the server, to a new name
+                                            or into a folder
+              find <text>|<prefix>*|*.<ext> Find files and folders by name in local and shared
+              du [folder]                   Show the space a folder ("/" for all) takes, and the quota
+              watch <folder>                Be notified of changes anywhere under a folder, not
+                                            only in the one you are in; unwatch to stop
               upload <local_path>           Upload a file to your remote area
+              upload -r <dir> [-p <n>]      Upload a folder tree, n transfers at a time (default 8)
               download <filename>           Download a file from remote (in memory)
+              fetch <filename> [local_path] Save a file from the current folder to this machine
+              archive <folder> [file] [-l n] Save a folder as file.zip, .tar or .tgz, compressed
+                                            at level n (0-9)
               delete <name>                 Delete a file or folder
               share <filename> <user>       Share a file with another user
+              --if <version>                After upload, rename or delete: only if the file is
+                                            at that version (ls -l); 0 for upload to only create
               help                          Show this help
               exit                          Exit the session
         """);
@@ -0,0 +1,541 @@
+package Client;
+
+import Interface.AuthFactory;
+import Interface.ChangeSet;
+import Interface.FileChange;
+import Interface.FileEntry;
+import Interface.ListingPage;
+import Interface.ObserverRI;
+import Interface.ServerBusyException;
+import Interface.SessionFactory;
+import Interface.SubjectRI;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Background process that keeps a local folder and the user's remote {@code local} folder in sync.
+ * <p>
+ * Local changes are picked up with a {@link WatchService} on every folder of the tree and pushed
+ * once the tree has been quiet for {@code --debounce} milliseconds (default 500), so a burst of
+ * writes to one file is sent once. Remote changes are pulled every {@code --poll} milliseconds
+ * (default 2000), and as soon as the server reports one under {@code local}, with
+ * {@link SessionFactory#changesSince}, which returns only what changed after the last sync token,
+ * leaving out the agent's own pushes. A manifest of the size and modification
+ * time of every synced file, in {@code <dir>/.dds-sync}, lets both sides skip files that did not
+ * change, so a quiet workspace costs one small request per poll whatever its size. Only when the
+ * server cannot answer from its journal (first run, or a token too old) are both trees compared
+ * in full, by size and modification time.
+ * <p>
+ * A file changed on both sides is taken from the server, and the local version is kept next to it
+ * as {@code <name>.conflict-<n>}. If the server goes away the agent logs in again, to the backup if
+ * need be, and continues from the saved token.
+ */
+public class SyncAgent {
+
+    private static final String STATE_DIR = ".dds-sync";
+    private static final int CHANGES_PER_REQUEST = 500;
+    private static final int LIST_PAGE = 1000;
+    private static final long MAX_DELAY_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 2000;
+
+    // ========== Configuration ==========
+
+    private String host = "localhost";
+    private int port = 1099;
+    private int backupPort = 1100;
+    private String user;
+    private String password;
+    private Path root;
+    private long debounceMillis = 500;
+    private long pollMillis = 2000;
+
+    // ========== State ==========
+
+    /** Size and modification time of a synced file; folders have size -1. */
+    private record Stamp(long size, long modified) {
+        static final Stamp FOLDER = new Stamp(-1, 0);
+
+        static Stamp of(Path p) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class);
+            return attributes.isDirectory() ? FOLDER : new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+        boolean folder() {
+            return size < 0;
+        }
+    }
+
+    /** Hears of changes other sessions make under {@code local}, so they are pulled without waiting for the poll. */
+    private class SyncObserver extends UnicastRemoteObject implements ObserverRI {
+        SyncObserver(SubjectRI subjectRI) throws RemoteException {
+            super();
+            subjectRI.attach(this);
+        }
+
+        @Override
+        public void update() throws RemoteException {
+            remoteChanged = true;
+        }
+    }
+
+    private SessionFactory session;
+    private String token;
+    private final TreeMap<String, Stamp> manifest = new TreeMap<>();
+    private boolean manifestChanged;
+    private WatchService watcher;
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+    private final Set<String> dirty = new TreeSet<>();
+    private boolean rescan;
+    private volatile boolean remoteChanged;
+    private long pushed;
+    private long pulled;
+
+    // ========== Main loop ==========
+
+    private void run() throws IOException, InterruptedException {
+        Files.createDirectories(root.resolve(STATE_DIR));
+        loadState();
+        watcher = root.getFileSystem().newWatchService();
+        watchTree(root);
+        connect();
+        if (token != null) rescan = true;
+
+        long firstDirty = 0;
+        long lastEvent = 0;
+        long nextPull = 0;
+        while (true) {
+            try {
+                if (System.currentTimeMillis() >= nextPull || remoteChanged) {
+                    remoteChanged = false;
+                    pull();
+                    nextPull = System.currentTimeMillis() + pollMillis;
+                }
+                long now = System.currentTimeMillis();
+                boolean quiet = now - lastEvent >= debounceMillis || now - firstDirty >= MAX_DELAY_MILLIS;
+                if ((rescan || !dirty.isEmpty()) && quiet) {
+                    push();
+                    firstDirty = 0;
+                }
+                saveState();
+            } catch (ServerBusyException e) {
+                Thread.sleep(Math.max(e.getRetryAfterMillis(), 50));
+            } catch (RemoteException e) {
+                System.err.println("[SYNC] Lost the server (" + e.getMessage() + "); reconnecting");
+                Thread.sleep(RECONNECT_MILLIS);
+                connect();
+            }
+
+            long wait = Math.max(1, Math.min(nextPull - System.currentTimeMillis(), debounceMillis));
+            WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+            while (key != null) {
+                collect(key);
+                lastEvent = System.currentTimeMillis();
+                if (firstDirty == 0) firstDirty = lastEvent;
+                key = watcher.poll();
+            }
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        while (true) {
+            try {
+                AuthFactory auth;
+                try {
+                    auth = (AuthFactory) Naming.lookup("rmi://" + host + ":" + port + "/AuthService");
+                    session = login(auth);
+                } catch (Exception e) {
+                    auth = (AuthFactory) Naming.lookup("rmi://" + host + ":" + backupPort + "/AuthService");
+                    session = login(auth);
+                }
+                System.out.println("[SYNC] Syncing " + root + " with " + user + ":/local");
+                return;
+            } catch (Exception e) {
+                System.err.println("[SYNC] Could not log in: " + e.getMessage());
+                Thread.sleep(RECONNECT_MILLIS);
+            }
+        }
+    }
+
+    private SessionFactory login(AuthFactory auth) throws RemoteException {
+        SessionFactory s = auth.login(user, password);
+        if (s == null) throw new RemoteException("Wrong user name or password");
+        new SyncObserver(s.getSubjectRI());
+        if (!s.changeDirectory("local")) throw new RemoteException("No local folder");
+        s.subscribe(".");
+        return s;
+    }
+
+    // ========== Pull ==========
+
+    private void pull() throws IOException, InterruptedException {
+        ChangeSet changes;
+        do {
+            changes = session.changesSince(token, CHANGES_PER_REQUEST);
+            if (changes.isReset()) {
+                token = changes.getToken();
+                reconcile();
+                manifestChanged = true;
+                return;
+            }
+            for (FileChange change : changes.getChanges()) {
+                apply(change);
+            }
+            if (!changes.getToken().equals(token)) {
+                token = changes.getToken();
+                manifestChanged = true;
+            }
+        } while (changes.hasMore());
+    }
+
+    private void apply(FileChange change) throws IOException, InterruptedException {
+        Path local = resolve(change.getPath());
+        if (local == null) return;
+        switch (change.getKind()) {
+            case UPDATED -> download(change.getPath(), local, change.getSequence());
+            case FOLDER -> {
+                Files.createDirectories(local);
+                manifest.put(change.getPath(), Stamp.FOLDER);
+                watchTree(local);
+            }
+            case MOVED -> {
+                Path target = resolve(change.getTarget());
+                if (target == null || !Files.exists(local)) return;
+                Files.createDirectories(target.getParent());
+                Files.move(local, target, StandardCopyOption.REPLACE_EXISTING);
+                for (String moved : under(change.getPath())) {
+                    manifest.put(change.getTarget() + moved.substring(change.getPath().length()), manifest.remove(moved));
+                }
+                if (Files.isDirectory(target)) watchTree(target);
+            }
+            case DELETED -> {
+                if (Files.isRegularFile(local) && !Stamp.of(local).equals(manifest.get(change.getPath()))) {
+                    // changed here since the last sync: keep it, it goes back up as a new file
+                    manifest.remove(change.getPath());
+                    return;
+                }
+                deleteRecursively(local);
+                under(change.getPath()).forEach(manifest::remove);
+            }
+        }
+        pulled++;
+        manifestChanged = true;
+    }
+
+    /** Fetches {@code remote} into {@code local}, keeping a local version that changed since the last sync. */
+    private void download(String remote, Path local, long sequence) throws IOException, InterruptedException {
+        if (Files.isRegularFile(local) && !Stamp.of(local).equals(manifest.get(remote))) {
+            Path conflict = local.resolveSibling(local.getFileName() + ".conflict-" + sequence);
+            Files.move(local, conflict, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("[SYNC] '" + remote + "' changed on both sides; local version kept as " + conflict.getFileName());
+        }
+        Path incoming = root.resolve(STATE_DIR).resolve("incoming");
+        Files.createDirectories(incoming);
+        Path staged = incoming.resolve(UUID.nameUUIDFromBytes(remote.getBytes(StandardCharsets.UTF_8)).toString());
+        try {
+            ResumableTransfer.download(session, remote, staged);
+        } catch (RemoteException e) {
+            if (e.getMessage() != null && e.getMessage().contains("No such file")) return; // deleted again since
+            throw e;
+        }
+        Files.createDirectories(local.getParent());
+        Files.move(staged, local, StandardCopyOption.REPLACE_EXISTING);
+        manifest.put(remote, Stamp.of(local));
+    }
+
+    // ========== Push ==========
+
+    private void collect(WatchKey key) throws IOException {
+        Path dir = watched.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                rescan = true;
+                continue;
+            }
+            Path p = dir.resolve((Path) event.context());
+            String rel = relative(p);
+            if (rel == null) continue;
+            dirty.add(rel);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                watchTree(p);
+            }
+        }
+        if (!key.reset()) watched.remove(key);
+    }
+
+    private void push() throws IOException, InterruptedException {
+        if (rescan) {
+            rescan = false;
+            dirty.addAll(manifest.keySet());
+            walkLocal(root, (rel, stamp) -> dirty.add(rel));
+        }
+        // pushing a new folder marks its files dirty, so take one path at a time rather than iterate
+        while (!dirty.isEmpty()) {
+            String rel = dirty.iterator().next();
+            push(rel);
+            dirty.remove(rel);
+        }
+    }
+
+    private void push(String rel) throws IOException, InterruptedException {
+        Path p = resolve(rel);
+        if (p == null) return;
+        if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+            if (Stamp.FOLDER.equals(manifest.get(rel))) return;
+            session.createFolders(List.of(rel));
+            manifest.put(rel, Stamp.FOLDER);
+            manifestChanged = true;
+            pushed++;
+            // a new folder may have been filled before it was watched
+            walkLocal(p, (child, stamp) -> {
+                if (!stamp.equals(manifest.get(child))) dirty.add(child);
+            });
+        } else if (Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+            Stamp stamp = Stamp.of(p);
+            if (stamp.equals(manifest.get(rel))) return;
+            FolderUploader.uploadFile(session, rel, p);
+            manifest.put(rel, stamp);
+            manifestChanged = true;
+            pushed++;
+        } else if (!Files.exists(p, LinkOption.NOFOLLOW_LINKS)) {
+            List<String> gone = under(rel);
+            if (gone.isEmpty()) return;
+            session.delete(rel);
+            gone.forEach(manifest::remove);
+            manifestChanged = true;
+            pushed++;
+        }
+    }
+
+    // ========== Full comparison ==========
+
+    /**
+     * Brings both trees together without the journal: what only one side has is copied to the
+     * other, unless the manifest shows it was synced before and so was deleted on the other side.
+     */
+    private void reconcile() throws IOException, InterruptedException {
+        System.out.println("[SYNC] Comparing " + root + " with the server");
+        Map<String, FileEntry> remote = new TreeMap<>();
+        walkRemote("", remote);
+        Map<String, Stamp> local = new TreeMap<>();
+        walkLocal(root, local::put);
+
+        for (Map.Entry<String, FileEntry> e : remote.entrySet()) {
+            String rel = e.getKey();
+            FileEntry entry = e.getValue();
+            Stamp here = local.get(rel);
+            Stamp synced = manifest.get(rel);
+            Path p = resolve(rel);
+            if (p == null) continue;
+            if (entry.isFolder()) {
+                if (here == null && synced != null) {
+                    session.delete(rel);
+                } else if (here == null) {
+                    Files.createDirectories(p);
+                    manifest.put(rel, Stamp.FOLDER);
+                }
+                continue;
+            }
+            if (here == null) {
+                if (synced != null) session.delete(rel);
+                else download(rel, p, 0);
+            } else if (here.folder()) {
+                continue;
+            } else if (synced != null && !here.equals(synced)) {
+                FolderUploader.uploadFile(session, rel, p);
+                manifest.put(rel, here);
+            } else if (here.size() != entry.getSize()) {
+                if (synced == null && here.modified() > entry.getModified()) {
+                    FolderUploader.uploadFile(session, rel, p);
+                    manifest.put(rel, here);
+                } else {
+                    manifest.put(rel, here);
+                    download(rel, p, 0);
+                }
+            } else {
+                manifest.put(rel, here);
+            }
+        }
+        for (Map.Entry<String, Stamp> e : local.entrySet()) {
+            String rel = e.getKey();
+            if (remote.containsKey(rel)) continue;
+            Path p = resolve(rel);
+            if (p == null || !Files.exists(p)) continue;
+            if (manifest.containsKey(rel)) {
+                deleteRecursively(p);
+                under(rel).forEach(manifest::remove);
+            } else if (e.getValue().folder()) {
+                session.createFolders(List.of(rel));
+                manifest.put(rel, Stamp.FOLDER);
+            } else {
+                FolderUploader.uploadFile(session, rel, p);
+                manifest.put(rel, e.getValue());
+            }
+        }
+        manifest.keySet().removeIf(rel -> !local.containsKey(rel) && !remote.containsKey(rel)
+                && !Files.exists(root.resolve(rel)));
+        watchTree(root);
+    }
+
+    private void walkRemote(String prefix, Map<String, FileEntry> out) throws RemoteException {
+        List<String> folders = new ArrayList<>();
+        String cursor = null;
+        do {
+            ListingPage page = session.list(null, FileEntry.Sort.NAME, false, LIST_PAGE, cursor);
+            for (FileEntry entry : page.getEntries()) {
+                String rel = prefix + entry.getName();
+                if (rel.equals(STATE_DIR)) continue;
+                out.put(rel, entry);
+                if (entry.isFolder()) folders.add(entry.getName());
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        for (String folder : folders) {
+            if (!session.changeDirectory(folder)) continue;
+            try {
+                walkRemote(prefix + folder + "/", out);
+            } finally {
+                session.changeDirectory("..");
+            }
+        }
+    }
+
+    // ========== Local tree ==========
+
+    @FunctionalInterface
+    private interface Visitor {
+        void visit(String rel, Stamp stamp) throws IOException;
+    }
+
+    private void walkLocal(Path start, Visitor visitor) throws IOException {
+        try (Stream<Path> tree = Files.walk(start)) {
+            for (Path p : (Iterable<Path>) tree::iterator) {
+                String rel = relative(p);
+                if (rel == null) continue;
+                try {
+                    visitor.visit(rel, Stamp.of(p));
+                } catch (NoSuchFileException ignored) {
+                }
+            }
+        }
+    }
+
+    private void watchTree(Path start) throws IOException {
+        try (Stream<Path> tree = Files.walk(start)) {
+            for (Path dir : (Iterable<Path>) tree.filter(Files::isDirectory)::iterator) {
+                if (dir.startsWith(root.resolve(STATE_DIR))) continue;
+                watched.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+            }
+        }
+    }
+
+    /** Path of {@code p} relative to the root, with {@code /}; null for the root, the agent's state or outside paths. */
+    private String relative(Path p) {
+        Path rel = root.relativize(p.toAbsolutePath().normalize());
+        if (rel.toString().isEmpty() || rel.startsWith("..") || rel.startsWith(STATE_DIR)) return null;
+        return rel.toString().replace('\\', '/');
+    }
+
+    private Path resolve(String rel) {
+        Path p = root.resolve(rel).normalize();
+        return p.startsWith(root) && !p.equals(root) && !p.startsWith(root.resolve(STATE_DIR)) ? p : null;
+    }
+
+    /** Manifest paths of {@code rel} and everything under it. */
+    private List<String> under(String rel) {
+        List<String> keys = new ArrayList<>();
+        if (manifest.containsKey(rel)) keys.add(rel);
+        // '0' follows '/', so this is exactly the paths starting with rel + "/"
+        keys.addAll(manifest.subMap(rel + "/", rel + "0").keySet());
+        return keys;
+    }
+
+    private static void deleteRecursively(Path target) throws IOException {
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) return;
+        try (Stream<Path> tree = Files.walk(target)) {
+            for (Path p : (Iterable<Path>) tree.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    // ========== State file ==========
+
+    private void loadState() throws IOException {
+        Path file = root.resolve(STATE_DIR).resolve("manifest");
+        if (!Files.exists(file)) return;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            token = in.readLine();
+            if (token != null && token.isEmpty()) token = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t", 3);
+                if (f.length == 3) manifest.put(f[2], new Stamp(Long.parseLong(f[0]), Long.parseLong(f[1])));
+            }
+        }
+    }
+
+    private void saveState() throws IOException {
+        if (!manifestChanged) return;
+        Path file = root.resolve(STATE_DIR).resolve("manifest");
+        Path temp = file.resolveSibling("manifest.tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(token == null ? "" : token);
+            out.newLine();
+            for (Map.Entry<String, Stamp> e : manifest.entrySet()) {
+                out.write(e.getValue().size() + "\t" + e.getValue().modified() + "\t" + e.getKey());
+                out.newLine();
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        manifestChanged = false;
+        System.out.printf("[SYNC] Up to date at %s (%d pushed, %d pulled so far)%n", token, pushed, pulled);
+    }
+
+    // ========== Entry point ==========
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+                case "--host" -> host = value;
+                case "--port" -> port = Integer.parseInt(value);
+                case "--backup-port" -> backupPort = Integer.parseInt(value);
+                case "--user" -> user = value;
+                case "--password" -> password = value;
+                case "--dir" -> root = Paths.get(value).toAbsolutePath().normalize();
+                case "--debounce" -> debounceMillis = Long.parseLong(value);
+                case "--poll" -> pollMillis = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            i++;
+        }
+        if (user == null || password == null || root == null) {
+            throw new IllegalArgumentException("Usage: SyncAgent --user <name> --password <password> --dir <local_dir>"
+                    + " [--host h] [--port p] [--backup-port p] [--debounce ms] [--poll ms]");
+        }
+    }
+
+    public static void main(String[] args) {
+        SyncAgent agent = new SyncAgent();
+        try {
+            agent.parse(args);
+            agent.run();
+        } catch (Exception e) {
+            System.err.println("[ERROR] Sync agent failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package Interface;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Changes to a user's {@code local} folder after a sync token, oldest first, and the token to ask
+ * with next time. When {@link #isReset()} is set the server could not tell what changed since the
+ * token (it was never issued, or the changes after it are no longer kept), so the client must
+ * compare the whole folder once and continue from {@link #getToken()}.
+ */
+public class ChangeSet implements Serializable {
+    private final List<FileChange> changes;
+    private final String token;
+    private final boolean reset;
+    private final boolean more;
+
+    public ChangeSet(List<FileChange> changes, String token, boolean reset, boolean more) {
+        this.changes = changes;
+        this.token = token;
+        this.reset = reset;
+        this.more = more;
+    }
+
+    public List<FileChange> getChanges() {
+        return changes;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    /** Whether more changes follow {@link #getToken()} already. */
+    public boolean hasMore() {
+        return more;
+    }
+}
@@ -0,0 +1,53 @@
+package Interface;
+
+import java.io.Serializable;
+
+/** One change to a user's {@code local} folder, as recorded in their change journal. */
+public class FileChange implements Serializable {
+
+    public enum Kind {
+        /** A file was written. */
+        UPDATED,
+        /** A folder was created. */
+        FOLDER,
+        /** The file or folder at {@code path} was moved to {@code target}. */
+        MOVED,
+        /** The file or folder was deleted. */
+        DELETED
+    }
+
+    private final long sequence;
+    private final Kind kind;
+    private final String path;
+    private final String target;
+
+    public FileChange(long sequence, Kind kind, String path, String target) {
+        this.sequence = sequence;
+        this.kind = kind;
+        this.path = path;
+        this.target = target;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** Path relative to the {@code local} folder, with {@code /} as separator. */
+    public String getPath() {
+        return path;
+    }
+
+    /** Where a {@link Kind#MOVED} item went; null otherwise. */
+    public String getTarget() {
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + kind + " " + path + (target == null ? "" : " -> " + target);
+    }
+}
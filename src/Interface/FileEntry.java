@@ -0,0 +1,59 @@
+package Interface;
+
+import java.io.Serializable;
+
+/** One item of a directory listing, with the attributes a client would otherwise ask for one by one. */
+public class FileEntry implements Serializable {
+
+    /** Order of a listing; ties are broken by name. */
+    public enum Sort {
+        NAME,
+        SIZE,
+        MODIFIED
+    }
+
+    private final String name;
+    private final boolean folder;
+    private final long size;
+    private final long modified;
+    private final long version;
+
+    public FileEntry(String name, boolean folder, long size, long modified, long version) {
+        this.name = name;
+        this.folder = folder;
+        this.size = size;
+        this.modified = modified;
+        this.version = version;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isFolder() {
+        return folder;
+    }
+
+    /** Size in bytes; 0 for folders. */
+    public long getSize() {
+        return size;
+    }
+
+    /** Last-modified time in milliseconds since the epoch. */
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * The version the item's owner is at, to pass as the expected version of a conditional write;
+     * every write, move or delete gives the item a new one.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return name + (folder ? "/" : "");
+    }
+}
@@ -3,17 +3,34 @@ package Interface;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 
 public interface FileSystemInterface extends Remote {
     List<String> listFiles() throws RemoteException;
+    ListingPage list(String prefix, FileEntry.Sort sort, boolean descending, int pageSize, String cursor) throws RemoteException;
+    ChangeSet changesSince(String token, int max) throws RemoteException;
     boolean changeDirectory(String folderName) throws RemoteException;
     boolean createFolder(String folderName) throws RemoteException;
+    int createFolders(List<String> folderNames) throws RemoteException;
     boolean rename(String oldName, String newName) throws RemoteException;
+    WriteResult rename(String oldName, String newName, long expectedVersion) throws RemoteException;
     boolean move(String itemName, String targetFolder) throws RemoteException;
+    boolean copy(String sourceName, String targetName) throws RemoteException;
     boolean upload(String filename, byte[] data) throws RemoteException;
+    WriteResult upload(String filename, byte[] data, long expectedVersion) throws RemoteException;
+    List<String> uploadAll(Map<String, byte[]> files) throws RemoteException;
+    boolean uploadFrom(String filename, String stagedFile) throws RemoteException;
+    WriteResult uploadFrom(String filename, String stagedFile, long expectedVersion) throws RemoteException;
+    String readablePath(String filename) throws RemoteException;
+    String readableFolder(String folderName) throws RemoteException;
     boolean download(String filename) throws RemoteException;
     boolean delete(String name) throws RemoteException;
+    WriteResult delete(String name, long expectedVersion) throws RemoteException;
+    long version(String name) throws RemoteException;
     boolean share(String name, String withUsername) throws RemoteException;
     String getPath() throws RemoteException;
+    List<String> find(String query) throws RemoteException;
+    long[] usage(String folderName) throws RemoteException;
+    String topic(String name) throws RemoteException;
     List<String> getAuthorizedUsers(String itemName) throws RemoteException;
 }
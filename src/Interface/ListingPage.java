@@ -0,0 +1,26 @@
+package Interface;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a directory listing. Pass {@link #getNextCursor()} back, with the same prefix and
+ * order, to get the entries that follow; it is null on the last page.
+ */
+public class ListingPage implements Serializable {
+    private final List<FileEntry> entries;
+    private final String nextCursor;
+
+    public ListingPage(List<FileEntry> entries, String nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<FileEntry> getEntries() {
+        return entries;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,13 @@
+package Interface;
+
+import Server.MetricsSnapshot;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+public interface MetricsService extends Remote {
+    MetricsSnapshot getSnapshot() throws RemoteException;
+    String scrape() throws RemoteException;
+    List<String> getSlowOperations() throws RemoteException;
+}
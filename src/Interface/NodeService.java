@@ -0,0 +1,75 @@
+package Interface;
+
+import Server.State;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Node-to-node calls between the servers of a sharded deployment. Paths are relative to the
+ * owner's {@code local} folder and use {@code /} as separator. Every call carries the cluster secret
+ * first and is refused without it.
+ * <p>
+ * File contents are not sent along with a write: the call names the node and the file, relative to
+ * that node's data dir, and the receiver {@link #read}s it from there in chunks before it returns.
+ */
+public interface NodeService extends Remote {
+
+    String getNodeId(String secret) throws RemoteException;
+
+    boolean hasUser(String secret, String username) throws RemoteException;
+
+    /** Users on this node holding a shared copy of {@code owner}'s {@code relative}. */
+    List<String> localSharees(String secret, String owner, String relative) throws RemoteException;
+
+    /**
+     * Writes {@code user}'s shared copy of a file from {@code source} on {@code node}, or creates
+     * the folder when {@code source} is null.
+     */
+    void putShared(String secret, String user, String owner, String relative, String node, String source)
+            throws RemoteException;
+
+    void moveShared(String secret, String user, String owner, String from, String to) throws RemoteException;
+
+    void deleteShared(String secret, String user, String owner, String relative) throws RemoteException;
+
+    /**
+     * Writes a file of a user owned by this node from {@code source} on {@code node}, if it is at
+     * {@code expectedVersion}, and propagates it to its sharees, except {@code fromUser}.
+     */
+    WriteResult putOwned(String secret, String owner, String relative, String node, String source, String fromUser,
+                         long expectedVersion) throws RemoteException;
+
+    WriteResult moveOwned(String secret, String owner, String from, String to, long expectedVersion) throws RemoteException;
+
+    WriteResult deleteOwned(String secret, String owner, String relative, long expectedVersion) throws RemoteException;
+
+    /** Versions of files of a user owned by this node, in the order of {@code relatives}. */
+    long[] ownedVersions(String secret, String owner, List<String> relatives) throws RemoteException;
+
+    /** Delivers a notification to {@code username} if they are logged in on this node. */
+    void notify(String secret, String username, State state) throws RemoteException;
+
+    /** Delivers a notification about the items {@code topics} to their subscribers on this node. */
+    void publish(String secret, List<String> topics, State state) throws RemoteException;
+
+    /**
+     * Up to {@code max} bytes from {@code offset} of the file at {@code path}, relative to this
+     * node's data dir; fewer only at its end.
+     *
+     * @return the bytes, or null if the file no longer exists
+     */
+    byte[] read(String secret, String path, long offset, int max) throws RemoteException;
+
+    // ========== Rebalancing ==========
+
+    void importUser(String secret, String username, String password) throws RemoteException;
+
+    /**
+     * Writes a file from {@code source} on {@code node} (or creates a folder when {@code source} is
+     * null) relative to this node's data dir, inside some user's {@code storage/} or
+     * {@code serverStorage/} folder.
+     */
+    void importFile(String secret, String path, String node, String source) throws RemoteException;
+}
@@ -0,0 +1,14 @@
+package Interface;
+
+/**
+ * Thrown when an upload or copy would take a user past their storage quota. Nothing was stored;
+ * the call can succeed once the user has deleted enough.
+ * <p>
+ * Unchecked for the same reason as {@link ServerBusyException}.
+ */
+public class QuotaExceededException extends RuntimeException {
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -1,9 +1,52 @@
 package Interface;
 
+import Server.ReplicationEntry;
+
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.Map;
+import java.util.List;
 
+/**
+ * The primary's change log, served to its backup, and the heartbeats between the two. Every call
+ * carries the cluster secret first and is refused without it.
+ */
 public interface ReplicationInterface extends Remote {
-    void setFullState(Map<String, Object> state) throws RemoteException;
-}
\ No newline at end of file
+
+    /** Identifies the primary's current change log; sequence numbers are only comparable within one. */
+    long getLogId(String secret) throws RemoteException;
+
+    long getSequence(String secret) throws RemoteException;
+
+    /**
+     * Up to {@code max} entries of log {@code logId} after {@code sequence}, waiting up to
+     * {@code waitMillis} for new ones.
+     *
+     * @return the entries, or null if the caller must start over from {@link #snapshot}
+     */
+    List<ReplicationEntry> since(String secret, long logId, long sequence, int max, long waitMillis) throws RemoteException;
+
+    /**
+     * One page of the whole replicated state: the files and folders after {@code after} (null for
+     * the first page, which starts with a {@code RESET} entry carrying the sequence the snapshot
+     * covers, then the users). Files come without their contents, to be {@link #read} in chunks.
+     *
+     * @return the entries, with fewer than {@code max} files and folders on the last page
+     */
+    List<ReplicationEntry> snapshot(String secret, String after, int max) throws RemoteException;
+
+    /**
+     * Up to {@code max} bytes from {@code offset} of the file at {@code path}, relative to the data
+     * dir; fewer only at its end.
+     *
+     * @return the bytes, or null if the file no longer exists
+     */
+    byte[] read(String secret, String path, long offset, int max) throws RemoteException;
+
+    /**
+     * Heartbeat from the peer node, carrying its epoch and whether it acts as the primary. A
+     * primary that hears of a primary with a higher epoch steps down.
+     *
+     * @return this node's epoch if it is the primary, otherwise -1
+     */
+    long heartbeat(String secret, long epoch, boolean primary) throws RemoteException;
+}
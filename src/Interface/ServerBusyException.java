@@ -0,0 +1,22 @@
+package Interface;
+
+/**
+ * Thrown when the server is at its concurrency limit and did not start the operation.
+ * Nothing was changed, so the call can be retried after {@link #getRetryAfterMillis()}.
+ * <p>
+ * Unchecked on purpose: RMI hands runtime exceptions to the caller as they are, whereas a
+ * {@link java.rmi.RemoteException} thrown by the server would arrive wrapped in a
+ * {@link java.rmi.ServerException}.
+ */
+public class ServerBusyException extends RuntimeException {
+    private final long retryAfterMillis;
+
+    public ServerBusyException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
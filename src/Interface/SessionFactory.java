@@ -3,26 +3,131 @@ package Interface;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 
 public interface SessionFactory extends Remote {
 
     void setSubjectRI(SubjectRI subjectRI) throws RemoteException;
     SubjectRI getSubjectRI() throws RemoteException;
     List<String> listFiles() throws RemoteException;
+
+    /**
+     * Up to {@code pageSize} entries of the current folder whose names start with {@code prefix}
+     * (null for all), in the given order, after {@code cursor} (null for the first page).
+     */
+    ListingPage list(String prefix, FileEntry.Sort sort, boolean descending, int pageSize, String cursor) throws RemoteException;
+
+    /**
+     * Up to {@code max} changes to the {@code local} folder after sync token {@code token} (null to
+     * just get the current token), leaving out those this session made. Served by the primary only.
+     */
+    ChangeSet changesSince(String token, int max) throws RemoteException;
     void createFolder(String folderName) throws RemoteException;
+
+    /** Creates every folder in {@code folderNames}, relative to the current one, with its parents. */
+    void createFolders(List<String> folderNames) throws RemoteException;
     boolean changeDirectory(String folderName) throws RemoteException;
 
+    /**
+     * Notifies this session of changes anywhere under {@code folderName} by other sessions, not
+     * just in the folder it has open; false if the folder belongs to no single owner.
+     */
+    boolean subscribe(String folderName) throws RemoteException;
+
+    void unsubscribe(String folderName) throws RemoteException;
+
     void rename(String oldName, String newName) throws RemoteException;
 
+    /**
+     * Renames {@code oldName} only if it is at {@code expectedVersion} ({@link WriteResult#ANY} for
+     * any); a conflict is reported in the result rather than thrown.
+     */
+    WriteResult rename(String oldName, String newName, long expectedVersion) throws RemoteException;
+
     void move(String itemName, String targetFolder) throws RemoteException;
 
+    /**
+     * Copies {@code sourceName} to {@code targetName}, or into it if it is a folder, on the server;
+     * the copy shares the original's storage until either is written.
+     */
+    void copy(String sourceName, String targetName) throws RemoteException;
+
     void upload(String filename, byte[] data) throws RemoteException;
 
+    /**
+     * Stores {@code filename} only if the file is at {@code expectedVersion}: {@link WriteResult#ABSENT}
+     * to create it, {@link WriteResult#ANY} to overwrite whatever is there.
+     */
+    WriteResult upload(String filename, byte[] data, long expectedVersion) throws RemoteException;
+
+    /**
+     * Uploads several files, keyed by their path relative to the current folder, in one request.
+     *
+     * @return the paths that were stored
+     */
+    List<String> uploadBatch(Map<String, byte[]> files) throws RemoteException;
+
+    /**
+     * Ticket to send {@code size} bytes of {@code filename} over the data plane; once they are sent,
+     * {@link #commitUpload(TransferTicket)} stores the file in the current directory like {@link #upload}.
+     */
+    TransferTicket openUpload(String filename, long size) throws RemoteException;
+
+    /**
+     * A new ticket for an upload opened earlier, on this server or on the one it took over from,
+     * listing the ranges still missing; null if the server no longer has it.
+     */
+    TransferTicket resumeUpload(long transferId) throws RemoteException;
+
+    /** Stores an upload once every range has arrived. */
+    void commitUpload(TransferTicket ticket) throws RemoteException;
+
+    /** Like {@link #commitUpload(TransferTicket)}, if the file is at {@code expectedVersion}. */
+    WriteResult commitUpload(TransferTicket ticket, long expectedVersion) throws RemoteException;
+
+    /** Ticket to read {@code filename}, a file in the current directory, over the data plane. */
+    TransferTicket openDownload(String filename) throws RemoteException;
+
+    /**
+     * Ticket to read {@code folderName}, a folder in the current directory ({@code .} for the current
+     * one), as a {@code zip}, {@code tar} or {@code tgz} archive streamed over the data plane;
+     * {@code level} is the compression level, 0 to 9, or -1 for the default.
+     */
+    TransferTicket openArchive(String folderName, String format, int level) throws RemoteException;
+
     void download(String filename) throws RemoteException;
 
     void delete(String filename) throws RemoteException;
 
+    /** Deletes {@code filename} only if it is at {@code expectedVersion}. */
+    WriteResult delete(String filename, long expectedVersion) throws RemoteException;
+
+    /**
+     * The current version of {@code filename} in the current folder, {@link WriteResult#ABSENT} if
+     * there is none. Served by the primary only.
+     */
+    long version(String filename) throws RemoteException;
+
     void shareWithUser(String filename, String withUsername) throws RemoteException;
 
     String getPath() throws RemoteException;
+
+    /**
+     * Paths, as {@link #getPath()} shows them, of the files and folders in {@code local} and
+     * {@code shared} whose names contain {@code query}, ignoring case; {@code abc*} matches names
+     * starting with abc and {@code *.pdf} names ending in .pdf. Folders end in {@code /}.
+     */
+    List<String> find(String query) throws RemoteException;
+
+    /**
+     * Bytes and files stored in {@code folderName} ("." for the current folder, "/" for all of the
+     * user's {@code local} and {@code shared}), then the user's byte and file quotas, 0 for none.
+     */
+    long[] usage(String folderName) throws RemoteException;
+
+    /** Replication sequence this server has reached: the log head on the primary, the replayed entries on a backup. */
+    long getSequence() throws RemoteException;
+
+    /** On a backup, makes later reads of this session wait for (or fail without) at least {@code sequence}. */
+    void setMinSequence(long sequence) throws RemoteException;
 }
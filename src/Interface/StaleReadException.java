@@ -0,0 +1,20 @@
+package Interface;
+
+/**
+ * Thrown by a backup when it has not yet replayed the replication sequence a read asked for
+ * (see {@link SessionFactory#setMinSequence(long)}). The read can be sent to the primary instead.
+ * <p>
+ * Unchecked for the same reason as {@link ServerBusyException}.
+ */
+public class StaleReadException extends RuntimeException {
+    private final long applied;
+
+    public StaleReadException(String message, long applied) {
+        super(message);
+        this.applied = applied;
+    }
+
+    public long getApplied() {
+        return applied;
+    }
+}
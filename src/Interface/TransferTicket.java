@@ -0,0 +1,60 @@
+package Interface;
+
+import java.io.Serializable;
+
+/**
+ * Permission to move one file's bytes over a server's data plane instead of through RMI.
+ * The client connects to {@code host:port} and sends {@link #getId()}, a byte offset and a length
+ * as three big-endian longs, then streams (upload) or reads (download) that range of the file.
+ * <p>
+ * An upload ticket names a server-side partial file that outlives the connection: every range sent
+ * is answered with one status byte, {@link #getMissing()} lists the {@code [start, end)} ranges the
+ * server did not have yet when the ticket was issued, and
+ * {@link SessionFactory#resumeUpload(long)} hands out a fresh ticket for the same upload after a
+ * reconnect or failover. A download ticket is single-use; {@link #getModified()} lets the client
+ * tell whether a partial download still matches the file.
+ */
+public class TransferTicket implements Serializable {
+    private final long id;
+    private final String host;
+    private final int port;
+    private final long size;
+    private final long modified;
+    private final long[] missing;
+
+    public TransferTicket(long id, String host, int port, long size, long modified, long[] missing) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        this.size = size;
+        this.modified = modified;
+        this.missing = missing;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Bytes to transfer; -1 for a folder archive, which ends when the server closes the connection. */
+    public long getSize() {
+        return size;
+    }
+
+    /** Last-modified time of a download's file, in milliseconds; 0 for uploads. */
+    public long getModified() {
+        return modified;
+    }
+
+    /** Ranges an upload still needs, as {@code [start, end)} pairs; empty for downloads. */
+    public long[] getMissing() {
+        return missing.clone();
+    }
+}
@@ -0,0 +1,46 @@
+package Interface;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of a write that named the version of the file it expected to replace. A write that found
+ * another version is not applied and reports the version it found, so the client can fetch that
+ * version, merge and try again; nothing is locked while it does.
+ */
+public class WriteResult implements Serializable {
+
+    /** Expected version that matches whatever is there, i.e. an unconditional write. */
+    public static final long ANY = -1;
+    /** Version of a file that does not exist; expecting it makes an upload create-only. */
+    public static final long ABSENT = 0;
+
+    private final boolean applied;
+    private final long version;
+
+    private WriteResult(boolean applied, long version) {
+        this.applied = applied;
+        this.version = version;
+    }
+
+    public static WriteResult applied(long version) {
+        return new WriteResult(true, version);
+    }
+
+    public static WriteResult conflict(long current) {
+        return new WriteResult(false, current);
+    }
+
+    public boolean isApplied() {
+        return applied;
+    }
+
+    /** The file's version after the write, or the version that made it conflict. */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return applied ? "applied at version " + version : "conflict with version " + version;
+    }
+}
@@ -8,26 +8,31 @@ import java.io.*;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AuthFactoryImpl extends UnicastRemoteObject implements AuthFactory{
-    private static final String USERS_FILE = "users.dat";
-    private final HashMap<String, String> users;
-    private final HashMap<String, SessionFactory> sessions;
+    private static final File USERS_FILE = ServerConfig.dataDir().resolve("users.dat").toFile();
+    private final ConcurrentHashMap<String, String> users;
 
     public AuthFactoryImpl() throws RemoteException{
         super();
-        this.users = new HashMap<>();
-        this.sessions = new HashMap<>();
+        this.users = new ConcurrentHashMap<>();
         loadUsers();
+        Metrics.increment(Metrics.EXPORTED_OBJECTS);
     }
 
     @Override
     public SessionFactory login(String username, String password) throws RemoteException{
-        if (users.containsKey(username) && users.get(username).equals(password)){
+        if (!Cluster.isLocal(username)) {
+            Metrics.increment("cluster.forwarded");
+            return Cluster.auth(username).login(username, password);
+        }
+        String stored = users.get(username);
+        if (stored != null && stored.equals(password)){
             SessionFactory session = new SessionFactoryImpl(username);
             SubjectRI subjectRI = new SubjectImpl();
             session.setSubjectRI(subjectRI);
-            sessions.put(username, session);
             SubjectRegistry.register(username, subjectRI);
 
             return session;
@@ -36,15 +41,46 @@ public class AuthFactoryImpl extends UnicastRemoteObject implements AuthFactory{
     }
     @Override
     public boolean register(String username, String password) throws RemoteException{
-        if(users.containsKey(username)) return false;
-        users.put(username,password);
+        if (!Cluster.isLocal(username)) {
+            Metrics.increment("cluster.forwarded");
+            return Cluster.auth(username).register(username, password);
+        }
+        if(users.putIfAbsent(username,password) != null) return false;
+        ReplicationLog.user(username, password);
         saveUsers();
         return true;
     }
 
-    private void saveUsers() {
+    // ========== Rebalancing ==========
+
+    Map<String, String> credentials() {
+        return new HashMap<>(users);
+    }
+
+    void adopt(String username, String password) {
+        users.put(username, password);
+        ReplicationLog.user(username, password);
+        saveUsers();
+    }
+
+    void forget(String username) {
+        users.remove(username);
+        ReplicationLog.user(username, null);
+        saveUsers();
+    }
+
+    void forgetAll() {
+        users.clear();
+        saveUsers();
+    }
+
+    private synchronized void saveUsers() {
+        File parent = USERS_FILE.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
         try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USERS_FILE))) {
-            oos.writeObject(users);
+            oos.writeObject(new HashMap<>(users));
             oos.flush();
         } catch (IOException e) {
             e.printStackTrace();
@@ -53,12 +89,11 @@ public class AuthFactoryImpl extends UnicastRemoteObject implements AuthFactory{
 
     @SuppressWarnings("unchecked")
     private void loadUsers() {
-        File file = new File(USERS_FILE);
-        if (!file.exists()) {
+        if (!USERS_FILE.exists()) {
             return;
         }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USERS_FILE))) {
             Object obj = ois.readObject();
             if (obj instanceof HashMap) {
                 this.users.clear();
@@ -0,0 +1,283 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Off-heap cache of file blocks, so repeated reads of a hot file are served from memory.
+ * <p>
+ * The budget ({@code -Ddds.cache.bytes}, default 64 MiB, 0 turns the cache off) is allocated once,
+ * lazily, as direct buffers cut into {@code -Ddds.cache.blockBytes} slots (default 256 KiB); blocks
+ * are read into free slots and written out of them, so a hit allocates nothing but a buffer view.
+ * Eviction is segmented LRU: a block enters a probation segment and moves to the protected segment
+ * (80% of the slots) only when it is read again, so one pass over a large file cannot push out the
+ * blocks that are read over and over. Files above {@code -Ddds.cache.maxFileBytes} (default a
+ * quarter of the budget) are not cached.
+ * <p>
+ * Blocks are keyed by the file's owner and path in the owner's {@code local} folder, not by where
+ * it is read from, so the copies a share hands out share one set of blocks. Every block also
+ * carries the size and modification time of the file it was read from; shared copies keep the
+ * owner's modification time, and a read that finds a different one drops the file's blocks.
+ * Writes, moves and deletes drop them directly through {@link #invalidate}.
+ */
+final class BlockCache {
+
+    static final int BLOCK_BYTES = ServerConfig.getInt("cache.blockBytes", 256 * 1024);
+    private static final long BUDGET = ServerConfig.getLong("cache.bytes", 64L << 20);
+    private static final long MAX_FILE_BYTES = ServerConfig.getLong("cache.maxFileBytes", BUDGET / 4);
+    private static final int SLAB_BYTES = 64 << 20;
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final int SLOTS = (int) (BUDGET / BLOCK_BYTES);
+    private static final int PROTECTED_SLOTS = SLOTS * 4 / 5;
+    private static ByteBuffer[] slots;
+    private static final ArrayDeque<Integer> FREE = new ArrayDeque<>();
+    /** Least recently used first. */
+    private static final LinkedHashMap<String, Block> PROBATION = new LinkedHashMap<>(16, 0.75f, true);
+    private static final LinkedHashMap<String, Block> PROTECTED = new LinkedHashMap<>(16, 0.75f, true);
+    /** Cached files by key, with the version their blocks were read from. */
+    private static final TreeMap<String, Version> FILES = new TreeMap<>();
+
+    private BlockCache() {
+    }
+
+    private record Version(long size, long modified) {
+    }
+
+    /** One cached block; pinned, and so not reused, until {@link #release()}. */
+    static final class Block {
+        private final String key;
+        private final String file;
+        private final int slot;
+        private final int length;
+        private int pins;
+        private boolean dropped;
+
+        private Block(String key, String file, int slot, int length) {
+            this.key = key;
+            this.file = file;
+            this.slot = slot;
+            this.length = length;
+        }
+
+        /** The block's bytes from {@code offset} on, as a fresh read-only view. */
+        ByteBuffer view(int offset) {
+            return slots[slot].asReadOnlyBuffer().limit(length).position(offset);
+        }
+
+        void release() {
+            LOCK.lock();
+            try {
+                if (--pins == 0 && dropped) FREE.push(slot);
+            } finally {
+                LOCK.unlock();
+            }
+        }
+    }
+
+    static boolean enabled() {
+        return SLOTS > 1;
+    }
+
+    /** The cache key of a file of a user area, or null if it is not in one. */
+    static String keyOf(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        Path server = FileSystemImpl.SERVERSTORAGE_ROOT.toAbsolutePath().normalize();
+        Path storage = FileSystemImpl.STORAGE_ROOT.toAbsolutePath().normalize();
+        if (absolute.startsWith(server)) {
+            Path rel = server.relativize(absolute);
+            // serverStorage/<owner>/local/<path>
+            if (rel.getNameCount() < 3 || !rel.getName(1).toString().equals("local")) return null;
+            return rel.getName(0) + "/" + FileSystemImpl.slashed(rel.subpath(2, rel.getNameCount()));
+        }
+        if (absolute.startsWith(storage)) {
+            Path rel = storage.relativize(absolute);
+            // storage/<user>/shared/<owner>/<path>
+            if (rel.getNameCount() < 4 || !rel.getName(1).toString().equals("shared")) return null;
+            return rel.getName(2) + "/" + FileSystemImpl.slashed(rel.subpath(3, rel.getNameCount()));
+        }
+        return null;
+    }
+
+    /**
+     * Block {@code index} of {@code file}, pinned, from the cache or read into it; null when the
+     * file is not cacheable or every slot is pinned, and the caller should read the file itself.
+     */
+    static Block get(Path file, FileChannel channel, long index) throws IOException {
+        if (!enabled()) return null;
+        String fileKey = keyOf(file);
+        if (fileKey == null) return null;
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.size() > MAX_FILE_BYTES) return null;
+        Version version = new Version(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS));
+        String key = fileKey + "#" + index;
+        int slot;
+        LOCK.lock();
+        try {
+            init();
+            Version cached = FILES.get(fileKey);
+            if (cached != null && !cached.equals(version)) {
+                drop(fileKey);
+                cached = null;
+            }
+            Block block = cached == null ? null : hit(key);
+            if (block != null) {
+                block.pins++;
+                Metrics.increment("cache.hits");
+                return block;
+            }
+            Metrics.increment("cache.misses");
+            Integer free = FREE.isEmpty() ? evict() : FREE.pop();
+            if (free == null) return null;
+            slot = free;
+        } finally {
+            LOCK.unlock();
+        }
+
+        // read outside the lock; the slot belongs to nobody else until it is published
+        ByteBuffer target = slots[slot].duplicate().clear();
+        long position = index * BLOCK_BYTES;
+        target.limit((int) Math.max(0, Math.min(BLOCK_BYTES, version.size() - position)));
+        try {
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position()) < 0) break;
+            }
+        } catch (IOException e) {
+            free(slot);
+            throw e;
+        }
+
+        LOCK.lock();
+        try {
+            Version now = FILES.get(fileKey);
+            if ((now != null && !now.equals(version)) || PROBATION.containsKey(key) || PROTECTED.containsKey(key)) {
+                // the file changed, or another reader cached the block first: hand out a private copy
+                Block block = new Block(key, fileKey, slot, target.position());
+                block.pins = 1;
+                block.dropped = true;
+                return block;
+            }
+            FILES.put(fileKey, version);
+            Block block = new Block(key, fileKey, slot, target.position());
+            block.pins = 1;
+            PROBATION.put(key, block);
+            return block;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /** Drops the cached blocks of {@code owner}'s {@code relative} and everything under it. */
+    static void invalidate(String owner, Path relative) {
+        if (!enabled()) return;
+        String fileKey = owner + "/" + FileSystemImpl.slashed(relative);
+        LOCK.lock();
+        try {
+            if (slots == null) return;
+            List<String> files = new ArrayList<>();
+            if (FILES.containsKey(fileKey)) files.add(fileKey);
+            // '0' follows '/', so this is exactly the paths under the folder
+            files.addAll(FILES.subMap(fileKey + "/", fileKey + "0").keySet());
+            for (String file : files) {
+                drop(file);
+            }
+            if (!files.isEmpty()) Metrics.increment("cache.invalidations");
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    // ========== Segments (LOCK held) ==========
+
+    private static void init() {
+        if (slots != null) return;
+        slots = new ByteBuffer[SLOTS];
+        int perSlab = Math.max(1, SLAB_BYTES / BLOCK_BYTES);
+        ByteBuffer slab = null;
+        for (int i = 0; i < SLOTS; i++) {
+            if (i % perSlab == 0) slab = ByteBuffer.allocateDirect(Math.min(perSlab, SLOTS - i) * BLOCK_BYTES);
+            slots[i] = slab.slice((i % perSlab) * BLOCK_BYTES, BLOCK_BYTES);
+            FREE.push(i);
+        }
+        Metrics.gauge("cache.usedBytes", () -> (long) (PROBATION.size() + PROTECTED.size()) * BLOCK_BYTES);
+        System.out.println("[CACHE] " + SLOTS + " blocks of " + BLOCK_BYTES + " bytes off-heap");
+    }
+
+    /** A probation hit moves the block to the protected segment, whose oldest block goes back to probation. */
+    private static Block hit(String key) {
+        Block block = PROTECTED.get(key);
+        if (block != null) return block;
+        block = PROBATION.remove(key);
+        if (block == null) return null;
+        PROTECTED.put(key, block);
+        if (PROTECTED.size() > PROTECTED_SLOTS) {
+            Iterator<Map.Entry<String, Block>> oldest = PROTECTED.entrySet().iterator();
+            Block demoted = oldest.next().getValue();
+            oldest.remove();
+            PROBATION.put(demoted.key, demoted);
+        }
+        return block;
+    }
+
+    /** Frees the least recently used unpinned block, probation first; null if all are pinned. */
+    private static Integer evict() {
+        for (LinkedHashMap<String, Block> segment : List.of(PROBATION, PROTECTED)) {
+            Iterator<Block> it = segment.values().iterator();
+            while (it.hasNext()) {
+                Block block = it.next();
+                if (block.pins > 0) continue;
+                it.remove();
+                forgetIfEmpty(block.file);
+                Metrics.increment("cache.evictions");
+                return block.slot;
+            }
+        }
+        return null;
+    }
+
+    private static void drop(String file) {
+        Version version = FILES.remove(file);
+        if (version == null) return;
+        long blocks = (version.size() + BLOCK_BYTES - 1) / BLOCK_BYTES;
+        for (long i = 0; i < blocks; i++) {
+            String key = file + "#" + i;
+            Block block = PROBATION.remove(key);
+            if (block == null) block = PROTECTED.remove(key);
+            if (block == null) continue;
+            block.dropped = true;
+            if (block.pins == 0) FREE.push(block.slot);
+        }
+    }
+
+    private static void forgetIfEmpty(String file) {
+        Version version = FILES.get(file);
+        if (version == null) return;
+        long blocks = (version.size() + BLOCK_BYTES - 1) / BLOCK_BYTES;
+        for (long i = 0; i < blocks; i++) {
+            if (PROBATION.containsKey(file + "#" + i) || PROTECTED.containsKey(file + "#" + i)) return;
+        }
+        FILES.remove(file);
+    }
+
+    private static void free(int slot) {
+        LOCK.lock();
+        try {
+            FREE.push(slot);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+}
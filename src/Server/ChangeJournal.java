@@ -0,0 +1,211 @@
+package Server;
+
+import Interface.ChangeSet;
+import Interface.FileChange;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-user journal of changes to the {@code local} folder, numbered by a sequence that only grows,
+ * so a sync client can ask for what changed after the last sequence it saw instead of comparing
+ * whole folders.
+ * <p>
+ * The journal lives in {@code serverStorage/<user>/.sync/changes}, one change per line, after a
+ * header naming the journal. Appends are replicated as {@link ReplicationEntry.Op#PATCH}es at the
+ * end of the file, so a promoted backup continues the same sequence. The last
+ * {@code -Ddds.sync.journalEntries} changes (default 10000) are kept; a token from before them, or
+ * from another journal, gets a reset. Each change remembers the session that made it, so a client
+ * is not sent back its own changes.
+ */
+final class ChangeJournal {
+
+    /** Origin of changes no session made, e.g. a sharee's write reaching the owner. */
+    static final long NO_ORIGIN = 0;
+
+    private static final int MAX_ENTRIES = ServerConfig.getInt("sync.journalEntries", 10_000);
+    private static final String HEADER = "#dds-journal ";
+    private static final ConcurrentHashMap<String, ChangeJournal> JOURNALS = new ConcurrentHashMap<>();
+
+    private record Entry(FileChange change, long origin) {
+    }
+
+    private final String user;
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long id;
+    private long sequence;
+    private int lines;
+    private boolean loaded;
+
+    private ChangeJournal(String user) {
+        this.user = user;
+        this.file = FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve(".sync").resolve("changes");
+    }
+
+    static ChangeJournal of(String user) {
+        return JOURNALS.computeIfAbsent(user, ChangeJournal::new);
+    }
+
+    /** Drops the cached journal of {@code user}, once their files were replaced or moved away. */
+    static void forget(String user) {
+        JOURNALS.remove(user);
+    }
+
+    static void forgetAll() {
+        JOURNALS.clear();
+    }
+
+    /** Records a change to {@code owner}'s local folder, if {@code relative} is in it. */
+    static void record(String owner, FileChange.Kind kind, Path relative, Path target, long origin) {
+        try {
+            of(owner).append(kind, FileSystemImpl.slashed(relative), target == null ? null : FileSystemImpl.slashed(target), origin);
+        } catch (IOException e) {
+            Metrics.increment("sync.journal.errors");
+            System.err.println("[SYNC] Could not record " + kind + " of '" + relative + "' for " + owner + ": " + e.getMessage());
+        }
+    }
+
+    private void append(FileChange.Kind kind, String path, String target, long origin) throws IOException {
+        lock.lock();
+        try {
+            load();
+            FileChange change = new FileChange(++sequence, kind, path, target);
+            byte[] line = (change.getSequence() + "\t" + kind + "\t" + origin + "\t" + escape(path) + "\t"
+                    + (target == null ? "" : escape(target)) + "\n").getBytes(StandardCharsets.UTF_8);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long offset = channel.size();
+                ByteBuffer buffer = ByteBuffer.wrap(line);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                ReplicationLog.patch(file, offset, line);
+            }
+            entries.addLast(new Entry(change, origin));
+            if (entries.size() > MAX_ENTRIES) entries.removeFirst();
+            if (++lines > 2 * MAX_ENTRIES) compact();
+            Metrics.increment("sync.journal.changes");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Up to {@code max} changes after {@code token} that {@code origin} did not make. */
+    ChangeSet since(String token, int max, long origin) throws IOException {
+        lock.lock();
+        try {
+            load();
+            long after = parse(token);
+            long first = entries.isEmpty() ? sequence + 1 : entries.peekFirst().change().getSequence();
+            if (after < 0 || after > sequence || after < first - 1) {
+                return new ChangeSet(List.of(), token(sequence), true, false);
+            }
+            List<FileChange> changes = new ArrayList<>();
+            long last = after;
+            for (Entry entry : entries) {
+                long seq = entry.change().getSequence();
+                if (seq <= after) continue;
+                if (changes.size() >= max) break;
+                if (entry.origin() != origin) changes.add(entry.change());
+                last = seq;
+            }
+            return new ChangeSet(changes, token(last), false, last < sequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String token(long seq) {
+        return Long.toHexString(id) + ":" + seq;
+    }
+
+    /** The sequence in {@code token}, or -1 if it was not issued by this journal. */
+    private long parse(String token) {
+        if (token == null) return -1;
+        int colon = token.indexOf(':');
+        try {
+            if (colon < 0 || Long.parseUnsignedLong(token.substring(0, colon), 16) != id) return -1;
+            return Long.parseLong(token.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // ========== File ==========
+
+    private void load() throws IOException {
+        if (loaded) return;
+        if (!Files.exists(file)) {
+            id = ThreadLocalRandom.current().nextLong();
+            rewrite();
+            loaded = true;
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null || !header.startsWith(HEADER)) throw new IOException("Not a change journal: " + file);
+            id = Long.parseUnsignedLong(header.substring(HEADER.length()), 16);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                // a line cut short by a crash is dropped
+                if (f.length != 5) continue;
+                FileChange change = new FileChange(Long.parseLong(f[0]), FileChange.Kind.valueOf(f[1]),
+                        unescape(f[3]), f[4].isEmpty() ? null : unescape(f[4]));
+                sequence = change.getSequence();
+                entries.addLast(new Entry(change, Long.parseLong(f[2])));
+                if (entries.size() > MAX_ENTRIES) entries.removeFirst();
+                lines++;
+            }
+        }
+        loaded = true;
+    }
+
+    /** Rewrites the journal with just the changes still kept. */
+    private void compact() throws IOException {
+        rewrite();
+        lines = entries.size();
+        Metrics.increment("sync.journal.compactions");
+    }
+
+    private void rewrite() throws IOException {
+        StringBuilder out = new StringBuilder(HEADER).append(Long.toHexString(id)).append('\n');
+        for (Entry entry : entries) {
+            FileChange c = entry.change();
+            out.append(c.getSequence()).append('\t').append(c.getKind()).append('\t').append(entry.origin()).append('\t')
+                    .append(escape(c.getPath())).append('\t').append(c.getTarget() == null ? "" : escape(c.getTarget())).append('\n');
+        }
+        FileSystemImpl.writeAtomically(FileSystemImpl.tempDir(user), file, out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String escape(String path) {
+        return path.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    static String unescape(String path) {
+        StringBuilder out = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char ch = path.charAt(i);
+            if (ch != '\\' || i + 1 == path.length()) {
+                out.append(ch);
+                continue;
+            }
+            char next = path.charAt(++i);
+            out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+        }
+        return out.toString();
+    }
+}
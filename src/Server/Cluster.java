@@ -0,0 +1,145 @@
+package Server;
+
+import Interface.AuthFactory;
+import Interface.NodeService;
+import Interface.SubjectRI;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Membership and routing of a sharded deployment.
+ * <p>
+ * {@code -Ddds.cluster=n1@localhost:1099,n2@localhost:1101,...} lists every node and
+ * {@code -Ddds.node.id} names this one. Usernames are assigned to nodes by a {@link HashRing}
+ * ({@code -Ddds.cluster.vnodes} points per node, default 128); a node only stores the users it owns
+ * and reaches the others through their {@link NodeService}. Without {@code dds.cluster} the server
+ * runs as a single node on port 1099 and owns every user.
+ */
+public final class Cluster {
+
+    private static final Map<String, String> NODES = parse(ServerConfig.get("cluster", ""));
+    private static final String SELF = ServerConfig.get("node.id",
+            NODES.isEmpty() ? "local" : NODES.keySet().iterator().next());
+    private static final HashRing RING = new HashRing(NODES.keySet(), ServerConfig.getInt("cluster.vnodes", 128));
+    private static final ConcurrentMap<String, NodeService> STUBS = new ConcurrentHashMap<>();
+
+    private Cluster() {
+    }
+
+    private static Map<String, String> parse(String spec) {
+        Map<String, String> nodes = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int at = entry.indexOf('@');
+            if (at <= 0) {
+                throw new IllegalArgumentException("Bad dds.cluster entry '" + entry + "', expected id@host:port");
+            }
+            nodes.put(entry.substring(0, at), entry.substring(at + 1));
+        }
+        return nodes;
+    }
+
+    // ========== Membership ==========
+
+    public static boolean enabled() {
+        return !NODES.isEmpty();
+    }
+
+    public static String selfId() {
+        return SELF;
+    }
+
+    /** Port of this node's RMI registry. */
+    public static int port() {
+        if (!enabled()) return 1099;
+        String address = NODES.get(SELF);
+        if (address == null) {
+            throw new IllegalStateException("dds.node.id '" + SELF + "' is not listed in dds.cluster");
+        }
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    public static String ownerOf(String username) {
+        return enabled() ? RING.owner(username) : SELF;
+    }
+
+    public static boolean isLocal(String username) {
+        return SELF.equals(ownerOf(username));
+    }
+
+    // ========== Routing ==========
+
+    public static NodeService node(String username) throws RemoteException {
+        return stub(ownerOf(username));
+    }
+
+    public static AuthFactory auth(String username) throws RemoteException {
+        return lookup(NODES.get(ownerOf(username)), "AuthService");
+    }
+
+    static NodeService stub(String nodeId) throws RemoteException {
+        NodeService stub = STUBS.get(nodeId);
+        if (stub == null) {
+            stub = lookup(NODES.get(nodeId), "NodeService");
+            STUBS.put(nodeId, stub);
+        }
+        return stub;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T lookup(String address, String name) throws RemoteException {
+        try {
+            return (T) Naming.lookup("rmi://" + address + "/" + name);
+        } catch (NotBoundException | MalformedURLException e) {
+            throw new RemoteException("Cannot reach " + name + " at " + address, e);
+        }
+    }
+
+    /** Users on other nodes holding a shared copy of {@code owner}'s {@code relative}. */
+    static List<String> remoteSharees(String owner, String relative) {
+        List<String> result = new ArrayList<>();
+        for (String nodeId : NODES.keySet()) {
+            if (nodeId.equals(SELF)) continue;
+            try {
+                result.addAll(Trace.call("cluster.sharees:" + nodeId, () -> stub(nodeId).localSharees(ClusterSecret.get(), owner, relative)));
+            } catch (RemoteException e) {
+                STUBS.remove(nodeId);
+                System.err.println("[CLUSTER] Sharee lookup on node " + nodeId + " failed: " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /** Passes a notification about the items {@code topics} to every other node's subscribers. */
+    static void publish(List<String> topics, State state) {
+        for (String nodeId : NODES.keySet()) {
+            if (nodeId.equals(SELF)) continue;
+            try {
+                Trace.run("cluster.publish:" + nodeId, () -> stub(nodeId).publish(ClusterSecret.get(), topics, state));
+            } catch (RemoteException e) {
+                STUBS.remove(nodeId);
+                System.err.println("[CLUSTER] Publish to node " + nodeId + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Notifies {@code username} on whichever node they are logged in. */
+    public static void notify(String username, State state) throws RemoteException {
+        SubjectRI subject = SubjectRegistry.get(username);
+        if (subject != null) {
+            subject.setState(state);
+        } else if (!isLocal(username)) {
+            Trace.run("cluster.notify", () -> node(username).notify(ClusterSecret.get(), username, state));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/**
+ * Secret shared by the servers of one deployment, which they present on every
+ * {@link Interface.NodeService} and replication call so that clients cannot reach those services.
+ * <p>
+ * {@code -Ddds.cluster.secret} sets it directly. Otherwise it is read from
+ * {@code -Ddds.cluster.secretFile} (default {@code cluster.secret} in the working directory), which
+ * the first server to start creates with a random value; nodes started from the same directory
+ * therefore agree without any setup.
+ */
+public final class ClusterSecret {
+
+    private static final String SECRET = load();
+
+    private ClusterSecret() {
+    }
+
+    private static String load() {
+        String secret = ServerConfig.get("cluster.secret", "");
+        if (!secret.isEmpty()) return secret;
+        Path file = Paths.get(ServerConfig.get("cluster.secretFile", "cluster.secret")).toAbsolutePath();
+        try {
+            if (!Files.exists(file)) create(file);
+            secret = Files.readString(file, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the cluster secret from " + file, e);
+        }
+        if (secret.isEmpty()) {
+            throw new IllegalStateException("Cluster secret file " + file + " is empty");
+        }
+        return secret;
+    }
+
+    /** Writes a random secret to {@code file}, unless a server starting alongside wins the race. */
+    private static void create(Path file) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        Path tmp = Files.createTempFile(file.getParent(), ".cluster", ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            Files.writeString(tmp, HexFormat.of().formatHex(random), StandardCharsets.UTF_8);
+            Files.createLink(file, tmp);
+            System.out.println("[CLUSTER] Created cluster secret " + file);
+        } catch (FileAlreadyExistsException ignored) {
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    static String get() {
+        return SECRET;
+    }
+
+    /** Refuses a node-to-node call that does not carry this deployment's secret. */
+    static void check(String presented) throws RemoteException {
+        if (presented == null || !MessageDigest.isEqual(presented.getBytes(StandardCharsets.UTF_8),
+                SECRET.getBytes(StandardCharsets.UTF_8))) {
+            Metrics.increment("cluster.refused");
+            System.err.println("[CLUSTER] Refused a call without the cluster secret");
+            throw new RemoteException("Not authorized");
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compressed cold tier for the files nobody has read or written in a while.
+ * <p>
+ * Every {@code -Ddds.tier.scanMillis} (default an hour) a scan goes through each user's local files.
+ * A file of at least {@code -Ddds.tier.minBytes} (default 64 KiB) that has been neither written
+ * nor read for {@code -Ddds.tier.coldAfterMillis} (default 30 days, 0 turns tiering off) is
+ * gzipped into the user's cold directory, {@code serverStorage/<user>/.cold}, and its blocks are
+ * given back. The file stays where it is, with its size and time, as a sparse stub whose
+ * {@code user.dds.tier} attribute names the compressed copy. Mirrors and copies are hard links to
+ * the same stub, so they go cold with it. A file that does not shrink by a tenth is marked and left
+ * alone.
+ * <p>
+ * Reads that hand a file out (downloads, archives, shares) go through {@link #open}, which records
+ * the access and writes the data back into a cold stub first. The compressed copy is kept while the
+ * file is unchanged: the hot file is a read-through cache of it, and once it is cold again it is
+ * dropped without being compressed a second time. Writes replace files rather than changing them, so
+ * a written file is always hot. Snapshots and moves read or copy stubs through {@link #read} and
+ * {@link #copy} and leave them cold.
+ */
+final class ColdTier {
+
+    private static final long COLD_AFTER_MILLIS = ServerConfig.getLong("tier.coldAfterMillis", TimeUnit.DAYS.toMillis(30));
+    private static final long SCAN_MILLIS = ServerConfig.getLong("tier.scanMillis", TimeUnit.HOURS.toMillis(1));
+    private static final long MIN_BYTES = ServerConfig.getLong("tier.minBytes", 64 * 1024);
+    private static final int LEVEL = ServerConfig.getInt("tier.level", Deflater.DEFAULT_COMPRESSION);
+    private static final int COPY_BYTES = 64 * 1024;
+    static final String COLD = ".cold";
+    private static final String ATTRIBUTE = "dds.tier";
+
+    /** Held while a file changes tier, by file key, so all the links of a file share one. */
+    private static final ReentrantLock[] STRIPES = new ReentrantLock[64];
+    /**
+     * Reads since the start, by file key. The access time is set too, so they outlive a restart,
+     * but the kernel also moves it, for the scan's own reads among others.
+     */
+    private static final ConcurrentHashMap<Object, Long> READS = new ConcurrentHashMap<>();
+    /**
+     * Decompressions left open by {@link #read(Path, long, int)} where the last chunk ended, by
+     * compressed copy, so a file read in order is decompressed once rather than once per chunk.
+     */
+    private static final ConcurrentHashMap<Path, Cursor> CURSORS = new ConcurrentHashMap<>();
+    private static final long CURSOR_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    static {
+        for (int i = 0; i < STRIPES.length; i++) {
+            STRIPES[i] = new ReentrantLock();
+        }
+    }
+
+    private ColdTier() {
+    }
+
+    /** Where a file is: {@code COLD} in {@code blob}, {@code HOT} with a copy still in {@code blob}, or {@code RAW}. */
+    private record Tag(State state, String blob) {
+        enum State { COLD, HOT, RAW }
+
+        static Tag parse(String value) {
+            int colon = value.indexOf(':');
+            State state = State.valueOf(colon < 0 ? value : value.substring(0, colon));
+            return new Tag(state, colon < 0 ? null : value.substring(colon + 1));
+        }
+
+        Path path() {
+            return ServerConfig.dataDir().resolve(blob);
+        }
+
+        @Override
+        public String toString() {
+            return blob == null ? state.name() : state + ":" + blob;
+        }
+    }
+
+    static void start() {
+        if (COLD_AFTER_MILLIS <= 0) return;
+        try {
+            Files.createDirectories(FileSystemImpl.SERVERSTORAGE_ROOT);
+            if (!Files.getFileStore(FileSystemImpl.SERVERSTORAGE_ROOT).supportsFileAttributeView(UserDefinedFileAttributeView.class)) {
+                System.err.println("[TIER] The data dir has no user attributes; the cold tier is off");
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("[TIER] Could not check the data dir; the cold tier is off: " + e);
+            return;
+        }
+        Thread.ofPlatform().daemon().name("cold-tier").start(ColdTier::run);
+    }
+
+    // ========== Reads ==========
+
+    /** Records a read of {@code file} and, if it is cold, brings it back first. */
+    static void open(Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!attrs.isRegularFile()) return;
+        ReentrantLock lock = stripe(file, attrs);
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (attrs.fileKey() != null) READS.put(attrs.fileKey(), now);
+            Tag tag = tag(file);
+            if (tag != null && tag.state() == Tag.State.COLD) rehydrate(file, tag, attrs);
+            Files.getFileAttributeView(file, BasicFileAttributeView.class).setTimes(null, FileTime.fromMillis(now), null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@link #open}s every file under {@code root}. */
+    static void openTree(Path root) throws IOException {
+        if (Files.isRegularFile(root)) {
+            open(root);
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                open(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Up to {@code max} bytes of {@code file} from {@code offset}, cold or not, leaving it where it
+     * is; fewer only at the end of the file.
+     */
+    static byte[] read(Path file, long offset, int max) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        ReentrantLock lock = stripe(file, attrs);
+        Tag tag;
+        lock.lock();
+        try {
+            tag = tag(file);
+            if (tag == null || tag.state() != Tag.State.COLD) {
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(0, Math.min(max, in.size() - offset)));
+                    while (chunk.hasRemaining()) {
+                        if (in.read(chunk, offset + chunk.position()) < 0) break;
+                    }
+                    return chunk.hasRemaining() ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // the compressed copy is never changed, only dropped, so it is read without the lock
+        long now = System.nanoTime();
+        CURSORS.values().removeIf(idle -> now - idle.used > CURSOR_IDLE_NANOS && idle.close());
+        Path blob = tag.path();
+        Cursor cursor = CURSORS.remove(blob);
+        if (cursor == null || cursor.position != offset) {
+            if (cursor != null) cursor.close();
+            cursor = new Cursor(new GZIPInputStream(Files.newInputStream(blob), COPY_BYTES));
+            try {
+                cursor.in.skipNBytes(offset);
+            } catch (IOException e) {
+                cursor.close();
+                throw e;
+            }
+            cursor.position = offset;
+        }
+        byte[] chunk;
+        try {
+            chunk = cursor.in.readNBytes(max);
+        } catch (IOException e) {
+            cursor.close();
+            throw e;
+        }
+        cursor.position += chunk.length;
+        cursor.used = now;
+        if (chunk.length < max || CURSORS.putIfAbsent(blob, cursor) != null) cursor.close();
+        return chunk;
+    }
+
+    private static final class Cursor {
+        final InputStream in;
+        long position;
+        long used;
+
+        Cursor(InputStream in) {
+            this.in = in;
+        }
+
+        /** Closes the decompression; always true, to be used as a removal predicate. */
+        boolean close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+            return true;
+        }
+    }
+
+    static boolean isCold(Path file) throws IOException {
+        Tag tag = tag(file);
+        return tag != null && tag.state() == Tag.State.COLD;
+    }
+
+    /**
+     * Copies {@code source} to the new file {@code target} with its times; a cold file as a stub of
+     * the same compressed copy.
+     *
+     * @return the bytes copied
+     */
+    static long copy(Path source, Path target) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        ReentrantLock lock = stripe(source, attrs);
+        lock.lock();
+        try {
+            Tag tag = tag(source);
+            if (tag == null || tag.state() != Tag.State.COLD) {
+                Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+                return attrs.size();
+            }
+            Files.createFile(target);
+            tag(target, tag);
+            stub(target, attrs);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void rehydrate(Path file, Tag tag, BasicFileAttributes attrs) throws IOException {
+        long start = System.nanoTime();
+        long position = 0;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(tag.path()), COPY_BYTES);
+             FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[COPY_BYTES];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+                while (data.hasRemaining()) {
+                    position += out.write(data, position);
+                }
+            }
+            out.force(true);
+        }
+        tag(file, new Tag(Tag.State.HOT, tag.blob()));
+        Files.setLastModifiedTime(file, attrs.lastModifiedTime());
+        Metrics.increment("tier.rehydrated");
+        Metrics.add("tier.rehydratedBytes", position);
+        Metrics.operation("tier.rehydrate").record(start);
+    }
+
+    // ========== Scan ==========
+
+    private static void run() {
+        while (true) {
+            try {
+                scan();
+            } catch (RuntimeException e) {
+                System.err.println("[TIER] Scan failed: " + e);
+            }
+            try {
+                Thread.sleep(SCAN_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void scan() {
+        long started = System.currentTimeMillis();
+        long cutoff = started - COLD_AFTER_MILLIS;
+        READS.values().removeIf(read -> read < cutoff);
+        if (!Files.isDirectory(FileSystemImpl.SERVERSTORAGE_ROOT)) return;
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(FileSystemImpl.SERVERSTORAGE_ROOT)) {
+            for (Path userDir : users) {
+                String user = userDir.getFileName().toString();
+                try {
+                    Set<String> used = new HashSet<>();
+                    Path local = userDir.resolve("local");
+                    // everything that may hold a stub: the files, their trash and their mirrors
+                    scan(userDir.toRealPath(), userDir, local, user, cutoff, used);
+                    Path mirrors = FileSystemImpl.STORAGE_ROOT.resolve(user).resolve("local");
+                    if (Files.isDirectory(mirrors)) scan(mirrors.toRealPath(), mirrors, null, user, cutoff, used);
+                    collect(user, used, started);
+                } catch (IOException e) {
+                    System.err.println("[TIER] Could not scan '" + user + "': " + e);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[TIER] Could not list the users: " + e);
+        }
+    }
+
+    /**
+     * Walks {@code root} (the real path of {@code logical}) noting the compressed copies its files
+     * use, and moves the cold ones under {@code local} to the cold tier.
+     */
+    private static void scan(Path root, Path logical, Path local, String user, long cutoff, Set<String> used) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String name = dir.getFileName().toString();
+                return dir.equals(root) || !(name.equals(COLD) || name.equals(".tmp")) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path path = logical.resolve(root.relativize(file));
+                try {
+                    Tag tag = tag(path);
+                    if (local != null && path.startsWith(local) && cold(attrs, cutoff) && (tag == null || tag.state() == Tag.State.HOT)) {
+                        tag = demote(path, attrs, tag, user, cutoff);
+                    }
+                    if (tag != null && tag.blob() != null) used.add(tag.blob());
+                } catch (IOException e) {
+                    System.err.println("[TIER] " + path + ": " + e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean cold(BasicFileAttributes attrs, long cutoff) {
+        return attrs.isRegularFile() && attrs.size() >= MIN_BYTES
+                && attrs.lastModifiedTime().toMillis() < cutoff && attrs.lastAccessTime().toMillis() < cutoff
+                && (attrs.fileKey() == null || READS.getOrDefault(attrs.fileKey(), 0L) < cutoff);
+    }
+
+    /** Moves {@code file} to the cold tier unless it was read or changed meanwhile; returns its tag. */
+    private static Tag demote(Path file, BasicFileAttributes attrs, Tag tag, String user, long cutoff) throws IOException {
+        Path blob = tag != null && Files.exists(tag.path()) ? tag.path() : null;
+        boolean compressed = false;
+        if (blob == null) {
+            blob = FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve(COLD)
+                    .resolve(String.format("%016x.gz", ThreadLocalRandom.current().nextLong()));
+            Path part = blob.resolveSibling(blob.getFileName() + ".part");
+            Files.createDirectories(blob.getParent());
+            long packed = compress(file, part);
+            if (packed > attrs.size() - attrs.size() / 10) {
+                Files.delete(part);
+                Tag raw = new Tag(Tag.State.RAW, null);
+                tag(file, raw);
+                Metrics.increment("tier.incompressible");
+                return raw;
+            }
+            Files.move(part, blob, StandardCopyOption.ATOMIC_MOVE);
+            compressed = true;
+        }
+        Tag cold = new Tag(Tag.State.COLD, FileSystemImpl.slashed(ServerConfig.dataDir().relativize(blob)));
+        ReentrantLock lock = stripe(file, attrs);
+        lock.lock();
+        try {
+            BasicFileAttributes now = Files.readAttributes(file, BasicFileAttributes.class);
+            boolean unchanged = Objects.equals(now.fileKey(), attrs.fileKey()) && now.size() == attrs.size()
+                    && now.lastModifiedTime().equals(attrs.lastModifiedTime())
+                    && (attrs.fileKey() == null || READS.getOrDefault(attrs.fileKey(), 0L) < cutoff);
+            if (!unchanged) {
+                if (compressed) Files.deleteIfExists(blob);
+                return tag(file);
+            }
+            tag(file, cold);
+            stub(file, attrs);
+        } finally {
+            lock.unlock();
+        }
+        Metrics.increment("tier.demoted");
+        Metrics.add("tier.demotedBytes", attrs.size());
+        return cold;
+    }
+
+    private static long compress(Path file, Path part) throws IOException {
+        try (InputStream in = Files.newInputStream(file);
+             OutputStream out = Files.newOutputStream(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             GZIPOutputStream gzip = new GZIPOutputStream(out, COPY_BYTES) {
+                 {
+                     def.setLevel(LEVEL);
+                 }
+             }) {
+            in.transferTo(gzip);
+        }
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            channel.force(true);
+            return channel.size();
+        }
+    }
+
+    /** Gives back the blocks of {@code file}, keeping its size and times from {@code attrs}. */
+    private static void stub(Path file, BasicFileAttributes attrs) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(0);
+            raf.setLength(attrs.size());
+        }
+        Files.getFileAttributeView(file, BasicFileAttributeView.class)
+                .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), null);
+    }
+
+    /** Deletes the compressed copies of {@code user} no file uses, but those made since {@code started}. */
+    private static void collect(String user, Set<String> used, long started) throws IOException {
+        Path dir = FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve(COLD);
+        if (!Files.isDirectory(dir)) return;
+        try (DirectoryStream<Path> blobs = Files.newDirectoryStream(dir)) {
+            for (Path blob : blobs) {
+                if (used.contains(FileSystemImpl.slashed(ServerConfig.dataDir().relativize(blob)))) continue;
+                if (Files.getLastModifiedTime(blob).toMillis() >= started) continue;
+                Files.deleteIfExists(blob);
+                Metrics.increment("tier.collected");
+            }
+        }
+    }
+
+    // ========== Tags ==========
+
+    private static Tag tag(Path file) throws IOException {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null || !view.list().contains(ATTRIBUTE)) return null;
+        ByteBuffer value = ByteBuffer.allocate(view.size(ATTRIBUTE));
+        view.read(ATTRIBUTE, value);
+        return Tag.parse(new String(value.array(), 0, value.position(), StandardCharsets.UTF_8));
+    }
+
+    private static void tag(Path file, Tag tag) throws IOException {
+        Files.getFileAttributeView(file, UserDefinedFileAttributeView.class)
+                .write(ATTRIBUTE, ByteBuffer.wrap(tag.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static ReentrantLock stripe(Path file, BasicFileAttributes attrs) {
+        Object key = attrs.fileKey() != null ? attrs.fileKey() : file.toAbsolutePath().normalize();
+        return STRIPES[Math.floorMod(key.hashCode(), STRIPES.length)];
+    }
+}
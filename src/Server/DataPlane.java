@@ -0,0 +1,465 @@
+package Server;
+
+import Interface.TransferTicket;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves file bytes over a plain socket, next to RMI, so large transfers skip Java serialization.
+ * <p>
+ * A session hands out a {@link TransferTicket}; the client connects to
+ * {@code -Ddds.dataplane.port} (default RMI port + 1000), sends the ticket id and the byte range it
+ * wants to move, and streams the bytes without waiting for acknowledgements. One selector thread
+ * serves every connection. Downloads go to the socket from the {@link BlockCache}, or from the file
+ * with {@link FileChannel#transferTo} when it is not cached. Uploads are read into pooled direct buffers
+ * ({@code -Ddds.dataplane.bufferBytes}, default 256 KiB) and written into the upload's
+ * {@link UploadState} partial file, because {@link FileChannel#transferFrom} cannot tell a
+ * non-blocking socket's end of stream from no data yet; each chunk is recorded as it completes, so
+ * a dropped connection only loses the chunk in flight. After the last byte of a range the server
+ * answers with one status byte, and the upload is stored only when the client commits the ticket
+ * through its session. A download ticket not used within {@code -Ddds.dataplane.ticketMillis}
+ * (default 60000) expires, and one whose file changed since it was issued is refused; an idle
+ * upload is only dropped from memory then, and resumed from disk.
+ * <p>
+ * A folder archive has no size until it ends: its ticket reports -1, the server streams the
+ * {@link FolderArchive} from one of the archive threads, since compression blocks, and closes the
+ * connection after the last byte. A failure resets the connection instead, so a client never takes
+ * a cut archive for a whole one.
+ */
+public final class DataPlane {
+
+    private static final String HOST = ServerConfig.get("dataplane.host", "localhost");
+    private static final int BUFFER_BYTES = ServerConfig.getInt("dataplane.bufferBytes", 256 * 1024);
+    private static final long CHUNK_BYTES = ServerConfig.getLong("dataplane.chunkBytes", 8L << 20);
+    private static final long TICKET_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("dataplane.ticketMillis", 60_000));
+    private static final long SWEEP_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int HEADER_BYTES = 3 * Long.BYTES;
+    private static final byte OK = 0;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** Download tickets, and the uploads resumed or opened on this node, by id. */
+    private static final ConcurrentHashMap<Long, Ticket> TICKETS = new ConcurrentHashMap<>();
+    private static final AtomicInteger CONNECTIONS = new AtomicInteger();
+    private static final ArrayDeque<ByteBuffer> BUFFERS = new ArrayDeque<>();
+    private static volatile int port = -1;
+
+    private DataPlane() {
+    }
+
+    /** One transfer a session allowed. */
+    private static final class Ticket {
+        final long id;
+        final String user;
+        final Path file;
+        final long size;
+        /** Download: when the file was last modified as the ticket was issued. */
+        final long modified;
+        /** The upload behind the ticket, or null for a download. */
+        final UploadState upload;
+        /** The archive of folder {@code file} the ticket streams, or null for a file transfer. */
+        final FolderArchive archive;
+        final AtomicBoolean claimed = new AtomicBoolean();
+        /** Connections sending to an upload, touched only by the selector thread. */
+        int connections;
+        volatile long expiresAtNanos = System.nanoTime() + TICKET_NANOS;
+
+        Ticket(long id, String user, Path file, long size, UploadState upload) {
+            this(id, user, file, size, 0, upload, null);
+        }
+
+        Ticket(long id, String user, Path file, long size, long modified, UploadState upload, FolderArchive archive) {
+            this.id = id;
+            this.user = user;
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.upload = upload;
+            this.archive = archive;
+        }
+    }
+
+    /** State of one data connection, touched only by the selector thread. */
+    private static final class Connection {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        Ticket ticket;
+        FileChannel file;
+        ByteBuffer buffer;
+        ByteBuffer reply;
+        long position;
+        long end;
+        /** Download: false once the file turned out not to be cacheable, so it goes by transferTo. */
+        boolean cacheable;
+        BlockCache.Block block;
+        ByteBuffer blockView;
+    }
+
+    public static void start(int listenPort) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(listenPort));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        port = listenPort;
+        Metrics.gauge("dataplane.connections", CONNECTIONS::get);
+        Metrics.gauge("dataplane.tickets", () -> TICKETS.size());
+        Thread.ofPlatform().daemon().name("data-plane").start(() -> serve(selector));
+        Thread.ofPlatform().daemon().name("transfer-sweeper").start(DataPlane::sweep);
+        System.out.println("[DATAPLANE] Listening on port " + listenPort);
+    }
+
+    // ========== Tickets ==========
+
+    static TransferTicket openUpload(String user, String filename, long size) throws IOException {
+        checkRunning();
+        UploadState state = UploadState.create(user, filename, size);
+        return issue(new Ticket(state.id, user, state.part, size, state));
+    }
+
+    /** A fresh ticket for upload {@code id} of {@code user}, or null if neither memory nor disk has it. */
+    static TransferTicket resumeUpload(String user, long id) throws IOException {
+        checkRunning();
+        UploadState state = upload(user, id);
+        if (state == null) return null;
+        Metrics.increment("dataplane.resumed");
+        Ticket ticket = TICKETS.computeIfAbsent(id, k -> new Ticket(id, user, state.part, state.size, state));
+        ticket.expiresAtNanos = System.nanoTime() + TICKET_NANOS;
+        return issue(ticket);
+    }
+
+    static TransferTicket openDownload(String user, Path file) throws IOException {
+        checkRunning();
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        return issue(new Ticket(newId(), user, file, attrs.size(), attrs.lastModifiedTime().toMillis(), null, null));
+    }
+
+    static TransferTicket openArchive(String user, Path folder, FolderArchive.Format format, int level) throws IOException {
+        checkRunning();
+        return issue(new Ticket(newId(), user, folder, -1, 0, null, new FolderArchive(folder, format, level)));
+    }
+
+    /** Upload {@code id} if {@code user} owns it and all its bytes arrived, else null. */
+    static UploadState claimComplete(String user, long id) throws IOException {
+        UploadState state = upload(user, id);
+        if (state == null || !state.complete()) return null;
+        Ticket ticket = TICKETS.get(id);
+        if (ticket != null) TICKETS.remove(id, ticket);
+        return state;
+    }
+
+    private static UploadState upload(String user, long id) throws IOException {
+        Ticket ticket = TICKETS.get(id);
+        if (ticket != null) {
+            return ticket.upload != null && ticket.user.equals(user) ? ticket.upload : null;
+        }
+        return UploadState.load(user, id);
+    }
+
+    private static void checkRunning() throws IOException {
+        if (port < 0) throw new IOException("Data plane is not running");
+    }
+
+    private static TransferTicket issue(Ticket ticket) throws IOException {
+        TICKETS.put(ticket.id, ticket);
+        if (ticket.upload != null) {
+            return new TransferTicket(ticket.id, HOST, port, ticket.size, 0, ticket.upload.missing());
+        }
+        return new TransferTicket(ticket.id, HOST, port, ticket.size, ticket.modified, new long[0]);
+    }
+
+    private static long newId() {
+        long id;
+        do {
+            id = RANDOM.nextLong();
+        } while (TICKETS.containsKey(id));
+        return id;
+    }
+
+    private static void expire() {
+        long now = System.nanoTime();
+        for (Ticket ticket : TICKETS.values()) {
+            boolean idle = ticket.upload != null ? ticket.connections == 0 : !ticket.claimed.get();
+            if (idle && now - ticket.expiresAtNanos > 0 && TICKETS.remove(ticket.id, ticket)) {
+                Metrics.increment("dataplane.tickets.expired");
+            }
+        }
+    }
+
+    private static void sweep() {
+        while (true) {
+            UploadState.sweep();
+            try {
+                Thread.sleep(SWEEP_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // ========== Selector loop ==========
+
+    private static void serve(Selector selector) {
+        while (true) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) accept(selector, (ServerSocketChannel) key.channel());
+                        else if (key.isReadable()) read(key);
+                        else if (key.isWritable()) write(key);
+                    } catch (IOException e) {
+                        Metrics.increment("dataplane.errors");
+                        System.err.println("[DATAPLANE] Transfer failed: " + e.getMessage());
+                        if (key.attachment() instanceof Connection) close(key);
+                    }
+                }
+                expire();
+            } catch (IOException e) {
+                System.err.println("[DATAPLANE] Selector failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void accept(Selector selector, ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+        CONNECTIONS.incrementAndGet();
+    }
+
+    private static void read(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (c.ticket == null) {
+            if (channel.read(c.header) < 0) {
+                close(key);
+                return;
+            }
+            if (c.header.hasRemaining()) return;
+            c.header.flip();
+            Ticket ticket = TICKETS.get(c.header.getLong());
+            long offset = c.header.getLong();
+            long length = c.header.getLong();
+            if (ticket == null || !valid(ticket, offset, length)
+                    || (ticket.upload == null && !ticket.claimed.compareAndSet(false, true))) {
+                Metrics.increment("dataplane.rejected");
+                close(key);
+                return;
+            }
+            c.ticket = ticket;
+            c.position = offset;
+            c.end = offset + length;
+            if (ticket.archive != null) {
+                TICKETS.remove(ticket.id, ticket);
+                stream(key, ticket.archive);
+                return;
+            }
+            if (ticket.upload == null) {
+                TICKETS.remove(ticket.id, ticket);
+                c.file = FileChannel.open(ticket.file, StandardOpenOption.READ);
+                // the range was checked against the file the ticket was issued for, not a newer one
+                if (c.file.size() != ticket.size || Files.getLastModifiedTime(ticket.file).toMillis() != ticket.modified) {
+                    Metrics.increment("dataplane.rejected");
+                    close(key);
+                    return;
+                }
+                c.cacheable = BlockCache.enabled();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (!Usage.admits(ticket.user, ticket.size)) {
+                Metrics.increment("quota.rejected");
+                close(key);
+                return;
+            }
+            ticket.connections++;
+            c.file = FileChannel.open(ticket.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            c.buffer = BUFFERS.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_BYTES) : BUFFERS.pop();
+        }
+        Ticket ticket = c.ticket;
+        UploadState upload = ticket.upload;
+        while (c.position < c.end) {
+            c.buffer.clear().limit((int) Math.min(c.buffer.capacity(), c.end - c.position));
+            int n = channel.read(c.buffer);
+            if (n < 0) throw new IOException("Upload of '" + upload.filename + "' ended at byte " + c.position + " of " + c.end);
+            if (n == 0) return;
+            c.buffer.flip();
+            long chunk = c.position / upload.chunkBytes;
+            while (c.buffer.hasRemaining()) {
+                c.position += c.file.write(c.buffer, c.position);
+            }
+            Metrics.add(Metrics.BYTES_IN, n);
+            Volumes.written(ticket.file, n);
+            // ranges start on a chunk boundary, so every chunk passed here was sent in full
+            for (; chunk < upload.chunks() && upload.chunkEnd((int) chunk) <= c.position; chunk++) {
+                upload.received((int) chunk);
+            }
+            ticket.expiresAtNanos = System.nanoTime() + TICKET_NANOS;
+        }
+        c.reply = ByteBuffer.allocate(1).put(0, OK);
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /** Uploads take whole chunks; downloads any range of the file; archives are read from the start. */
+    private static boolean valid(Ticket ticket, long offset, long length) {
+        if (ticket.archive != null) return offset == 0;
+        if (offset < 0 || length < 0 || offset + length > ticket.size) return false;
+        if (ticket.upload == null) return true;
+        long chunk = ticket.upload.chunkBytes;
+        return offset % chunk == 0 && (length % chunk == 0 || offset + length == ticket.size);
+    }
+
+    private static void write(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (c.reply != null) {
+            channel.write(c.reply);
+            if (!c.reply.hasRemaining()) close(key);
+            return;
+        }
+        long n = c.cacheable ? writeCached(c, channel)
+                : c.file.transferTo(c.position, Math.min(CHUNK_BYTES, c.end - c.position), channel);
+        if (n == 0 && !c.cacheable && c.position >= c.file.size()) {
+            throw new IOException("'" + c.ticket.file.getFileName() + "' shrank during the download");
+        }
+        c.position += n;
+        Metrics.add(Metrics.BYTES_OUT, n);
+        Volumes.read(c.ticket.file, n);
+        if (c.position >= c.end) close(key);
+    }
+
+    /** Writes from the block holding {@code c.position}, or falls back to transferTo if it cannot be cached. */
+    private static long writeCached(Connection c, SocketChannel channel) throws IOException {
+        if (c.block == null) {
+            long index = c.position / BlockCache.BLOCK_BYTES;
+            long start = index * BlockCache.BLOCK_BYTES;
+            c.block = BlockCache.get(c.ticket.file, c.file, index);
+            if (c.block == null) {
+                c.cacheable = false;
+                return c.file.transferTo(c.position, Math.min(CHUNK_BYTES, c.end - c.position), channel);
+            }
+            c.blockView = c.block.view((int) (c.position - start));
+            c.blockView.limit((int) Math.min(c.blockView.limit(), c.end - start));
+            if (!c.blockView.hasRemaining()) throw new IOException("'" + c.ticket.file.getFileName() + "' shrank during the download");
+        }
+        long n = channel.write(c.blockView);
+        if (!c.blockView.hasRemaining()) {
+            c.block.release();
+            c.block = null;
+            c.blockView = null;
+        }
+        return n;
+    }
+
+    /** Hands the connection over to an archive thread, which writes to it until the archive ends. */
+    private static void stream(SelectionKey key, FolderArchive archive) {
+        key.cancel();
+        SocketChannel channel = (SocketChannel) key.channel();
+        Metrics.increment("archive.streams");
+        FolderArchive.start(() -> {
+            try {
+                try (SocketOutput socket = new SocketOutput(channel)) {
+                    BufferedOutputStream out = new BufferedOutputStream(socket, BUFFER_BYTES);
+                    archive.writeTo(out);
+                    out.flush();
+                }
+                channel.close();
+            } catch (IOException e) {
+                Metrics.increment("dataplane.errors");
+                System.err.println("[DATAPLANE] Archive failed: " + e.getMessage());
+                try {
+                    channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            } finally {
+                CONNECTIONS.decrementAndGet();
+            }
+        });
+    }
+
+    /** Blocking writes to a non-blocking socket: waits on a selector of its own while the socket is full. */
+    private static final class SocketOutput extends OutputStream {
+        private final SocketChannel channel;
+        private final Selector selector;
+
+        SocketOutput(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                int n = channel.write(buffer);
+                if (n > 0) {
+                    Metrics.add(Metrics.BYTES_OUT, n);
+                } else if (selector.select(TimeUnit.NANOSECONDS.toMillis(TICKET_NANOS)) == 0) {
+                    throw new IOException("Client stopped reading the archive");
+                } else {
+                    selector.selectedKeys().clear();
+                }
+            }
+        }
+
+        /** Closes the selector; the channel stays open. */
+        @Override
+        public void close() throws IOException {
+            selector.close();
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        Connection c = (Connection) key.attachment();
+        if (c.block != null) {
+            c.block.release();
+            c.block = null;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+            if (c.file != null) c.file.close();
+        } catch (IOException e) {
+            System.err.println("[DATAPLANE] Error closing connection: " + e.getMessage());
+        }
+        if (c.buffer != null) {
+            if (BUFFERS.size() < 64) BUFFERS.push(c.buffer);
+            c.buffer = null;
+        }
+        if (c.ticket != null && c.ticket.upload != null) c.ticket.connections--;
+        CONNECTIONS.decrementAndGet();
+    }
+}
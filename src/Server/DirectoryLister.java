@@ -0,0 +1,115 @@
+package Server;
+
+import Interface.FileEntry;
+import Interface.ListingPage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Pages through a directory without holding all of it.
+ * <p>
+ * Each page streams the directory once and keeps only the {@code pageSize} entries that sort
+ * first after the cursor, in a bounded heap, so a page costs one directory scan and
+ * {@code O(pageSize)} memory however many entries there are. The cursor is the sort key and name of
+ * the last entry returned, so nothing is kept on the server between pages; entries added or removed
+ * meanwhile show up or disappear according to where they sort. Pages hold at most
+ * {@code -Ddds.list.maxPage} entries (default 1000).
+ */
+final class DirectoryLister {
+
+    static final int MAX_PAGE = ServerConfig.getInt("list.maxPage", 1000);
+
+    private DirectoryLister() {
+    }
+
+    static ListingPage list(Path dir, String prefix, FileEntry.Sort sort, boolean descending,
+                            int pageSize, String cursor) throws IOException {
+        int limit = Math.max(1, Math.min(pageSize, MAX_PAGE));
+        Comparator<FileEntry> order = comparator(sort, descending);
+        FileEntry after = cursor == null ? null : decode(cursor, sort, descending);
+        // largest kept entry on top, so it is the one to drop when a better one comes
+        PriorityQueue<FileEntry> page = new PriorityQueue<>(limit + 1, order.reversed());
+        boolean more = false;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (prefix != null && !name.startsWith(prefix)) continue;
+                FileEntry entry;
+                try {
+                    entry = entry(name, Files.readAttributes(p, BasicFileAttributes.class));
+                } catch (NoSuchFileException gone) {
+                    continue;
+                }
+                if (after != null && order.compare(entry, after) <= 0) continue;
+                page.add(entry);
+                if (page.size() > limit) {
+                    page.poll();
+                    more = true;
+                }
+            }
+        }
+        List<FileEntry> entries = new ArrayList<>(page);
+        entries.sort(order);
+        String next = more ? encode(entries.get(entries.size() - 1), sort, descending) : null;
+        return new ListingPage(entries, next);
+    }
+
+    static FileEntry entry(String name, BasicFileAttributes attributes) {
+        boolean folder = attributes.isDirectory();
+        // the caller fills in versions, which the directory does not know
+        return new FileEntry(name, folder, folder ? 0 : attributes.size(),
+                attributes.lastModifiedTime().toMillis(), FileVersions.UNTRACKED);
+    }
+
+    private static Comparator<FileEntry> comparator(FileEntry.Sort sort, boolean descending) {
+        Comparator<FileEntry> order = switch (sort) {
+            case NAME -> Comparator.comparing(FileEntry::getName);
+            case SIZE -> Comparator.comparingLong(FileEntry::getSize).thenComparing(FileEntry::getName);
+            case MODIFIED -> Comparator.comparingLong(FileEntry::getModified).thenComparing(FileEntry::getName);
+        };
+        return descending ? order.reversed() : order;
+    }
+
+    // ========== Cursors ==========
+
+    private static String encode(FileEntry last, FileEntry.Sort sort, boolean descending) {
+        long key = switch (sort) {
+            case NAME -> 0;
+            case SIZE -> last.getSize();
+            case MODIFIED -> last.getModified();
+        };
+        String raw = sort + "," + descending + "," + key + "," + last.getName();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The last entry of the previous page, with just the fields the order compares. */
+    private static FileEntry decode(String cursor, FileEntry.Sort sort, boolean descending) throws IOException {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",", 4);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid listing cursor");
+        }
+        if (parts.length != 4 || !parts[0].equals(sort.name()) || !parts[1].equals(Boolean.toString(descending))) {
+            throw new IOException("Listing cursor does not match the requested order");
+        }
+        long key;
+        try {
+            key = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid listing cursor");
+        }
+        return new FileEntry(parts[3], false, key, key, 0);
+    }
+}
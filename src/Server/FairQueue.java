@@ -0,0 +1,117 @@
+package Server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out a fixed number of slots in start-time fair queuing order.
+ * <p>
+ * Each request gets a virtual start tag of {@code max(now, user's last finish)} and a finish tag
+ * {@code cost / weight} later; the waiting request with the smallest start tag gets the next free
+ * slot. A user pushing a long stream of large requests therefore only ever holds its weighted share
+ * of the slots, and a user arriving with a single request goes straight to the front.
+ */
+final class FairQueue {
+
+    private final int slots;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private final Map<String, Double> lastFinish = new HashMap<>();
+    private double virtualTime;
+    private long sequence;
+    private int running;
+
+    FairQueue(int slots) {
+        this.slots = Math.max(1, slots);
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+        final double start;
+        final long seq;
+
+        Ticket(double start, long seq) {
+            this.start = start;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            int byStart = Double.compare(start, other.start);
+            return byStart != 0 ? byStart : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Waits for a slot for one request of {@code user} costing {@code cost} units.
+     *
+     * @return false if no slot came free within {@code timeoutMillis}
+     */
+    boolean acquire(String user, double cost, double weight, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            double start = Math.max(virtualTime, lastFinish.getOrDefault(user, 0.0));
+            lastFinish.put(user, start + cost / Math.max(weight, 1e-9));
+            Ticket ticket = new Ticket(start, sequence++);
+            waiting.add(ticket);
+            try {
+                while (running >= slots || waiting.peek() != ticket) {
+                    if (remaining <= 0) {
+                        waiting.remove(ticket);
+                        changed.signalAll();
+                        return false;
+                    }
+                    remaining = changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(ticket);
+                changed.signalAll();
+                throw e;
+            }
+            waiting.poll();
+            running++;
+            virtualTime = Math.max(virtualTime, ticket.start);
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            running--;
+            if (running == 0 && waiting.isEmpty()) {
+                lastFinish.clear();
+                virtualTime = 0;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int running() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int waiting() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
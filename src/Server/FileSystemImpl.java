@@ -1,21 +1,35 @@
 package Server;
 
+import Interface.ChangeSet;
+import Interface.FileChange;
+import Interface.FileEntry;
 import Interface.FileSystemInterface;
+import Interface.ListingPage;
+import Interface.NodeService;
+import Interface.QuotaExceededException;
+import Interface.WriteResult;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInterface {
 
     private final String username;
-    private static final Path STORAGE_ROOT = Paths.get("storage");
-    private static final Path SERVERSTORAGE_ROOT = Paths.get("serverStorage");
+    static final Path STORAGE_ROOT = ServerConfig.dataDir().resolve("storage");
+    static final Path SERVERSTORAGE_ROOT = ServerConfig.dataDir().resolve("serverStorage");
+    private static final Path DATA_DIR = ServerConfig.dataDir().toAbsolutePath().normalize();
 
     // ========== Paths ==========
 
@@ -24,7 +38,15 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
     private final Path storageSharedDir;
     private final Path userServerStorageDir;
     private final Path serverLocalDir;
-    private Path currentDir;
+    private final Path tempDir;
+    private volatile Path currentDir;
+    /**
+     * Serializes this session's structural changes. A lock rather than a monitor: requests run on
+     * virtual threads, which a monitor would pin to their carrier across the remote calls made under it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Tags the changes this session makes in the {@link ChangeJournal}. */
+    private final long origin = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
 
     // ========== Constructor ==========
 
@@ -39,18 +61,27 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
         // serverStorage config
         this.userServerStorageDir = SERVERSTORAGE_ROOT.resolve(username);
         this.serverLocalDir       = userServerStorageDir.resolve("local");
+        this.tempDir              = tempDir(username);
 
         try {
+            // a new user's folders go on the volume they are placed on
+            Volumes.ensure(username);
+
             // checks
             if (!Files.exists(storageLocalDir)) {
                 Files.createDirectories(storageLocalDir);
             }
             if (!Files.exists(storageSharedDir)) {
                 Files.createDirectories(storageSharedDir);
+                ReplicationLog.mkdir(storageSharedDir);
             }
 
             if (!Files.exists(serverLocalDir)) {
                 Files.createDirectories(serverLocalDir);
+                ReplicationLog.mkdir(serverLocalDir);
+            }
+            if (!Files.exists(tempDir)) {
+                Files.createDirectories(tempDir);
             }
 
         } catch (IOException e) {
@@ -58,6 +89,7 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
         }
 
         this.currentDir = userStorageDir;
+        Metrics.increment(Metrics.EXPORTED_OBJECTS);
     }
 
     private static class OwnerInfo {
@@ -71,6 +103,10 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
 
     // ================= Helpers =================
 
+    private void lock() {
+        Trace.run("fs.lock.wait", lock::lock);
+    }
+
     private boolean isInsideServerLocal(Path p) {
         return p.normalize().startsWith(serverLocalDir.normalize());
     }
@@ -96,11 +132,22 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
             return new OwnerInfo(owner, relative);
         }
     }
-    private void deleteRecursively(Path target) throws IOException {
+    static void deleteRecursively(Path target) throws IOException {
+        if (Files.isSymbolicLink(target)) {
+            // a user's tree on another volume: the tree goes with its link
+            Path volumeTree = Files.readSymbolicLink(target);
+            Files.delete(target);
+            deleteRecursively(volumeTree);
+            return;
+        }
         if (!Files.exists(target)) return;
         Files.walkFileTree(target, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) {
+                    deleteRecursively(file);
+                    return FileVisitResult.CONTINUE;
+                }
                 Files.delete(file);
                 return FileVisitResult.CONTINUE;
             }
@@ -112,6 +159,133 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
         });
     }
 
+    /**
+     * Writes {@code data} to a temp file and moves it over {@code target}, so readers never see a
+     * half-written file and the data write needs no lock.
+     */
+    static void writeAtomically(Path tempDir, Path target, byte[] data) throws IOException {
+        Path tmp = stage(tempDir, data);
+        try {
+            install(tmp, target, data);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Writes {@code data} to a new temp file in {@code tempDir}, to be {@link #install}ed later. */
+    static Path stage(Path tempDir, byte[] data) throws IOException {
+        Files.createDirectories(tempDir);
+        Path tmp = Files.createTempFile(tempDir, "upload-", ".part");
+        try {
+            Files.write(tmp, data);
+            Volumes.written(tmp, data.length);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return tmp;
+    }
+
+    /** Moves a staged file over {@code target} and logs {@code data}, when known, for the backup. */
+    static void install(Path staged, Path target, byte[] data) throws IOException {
+        Files.createDirectories(target.getParent());
+        Usage.Change change = Usage.before(target);
+        try {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        change.done();
+        if (data != null) ReplicationLog.put(target, data);
+        SearchIndex.added(target);
+    }
+
+    /** {@link #install}s a staged file and logs it for the backup by reference, without reading it. */
+    static void installFile(Path staged, Path target) throws IOException {
+        install(staged, target, null);
+        ReplicationLog.putFile(target);
+    }
+
+    // ========== Chunked transfers ==========
+
+    /** Most bytes moved in one call when another server reads a file. */
+    static final int CHUNK_BYTES = 1 << 20;
+
+    /** A file on another server, read a chunk at a time; see {@link #stage(Path, Chunks)}. */
+    interface Chunks {
+        /** Up to {@code max} bytes from {@code offset}, fewer only at the end; null if the file is gone. */
+        byte[] read(long offset, int max) throws IOException;
+    }
+
+    /**
+     * Copies a file on another server into a new temp file in {@code tempDir}, to be
+     * {@link #install}ed later, holding one chunk in memory at a time.
+     *
+     * @return the temp file, or null if the file is gone
+     */
+    static Path stage(Path tempDir, Chunks source) throws IOException {
+        Files.createDirectories(tempDir);
+        Path tmp = Files.createTempFile(tempDir, "upload-", ".part");
+        long offset = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            byte[] chunk;
+            do {
+                chunk = source.read(offset, CHUNK_BYTES);
+                if (chunk == null) {
+                    offset = -1;
+                    break;
+                }
+                ByteBuffer data = ByteBuffer.wrap(chunk);
+                while (data.hasRemaining()) {
+                    out.write(data, offset + data.position());
+                }
+                offset += chunk.length;
+            } while (chunk.length == CHUNK_BYTES);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        if (offset < 0) {
+            Files.delete(tmp);
+            return null;
+        }
+        Volumes.written(tmp, offset);
+        return tmp;
+    }
+
+    /**
+     * A hard link to {@code file} in {@code user}'s temp dir, which another server can read while
+     * the file itself is replaced; the caller deletes it once that is done.
+     */
+    static Path pin(Path file, String user) throws IOException {
+        Path tempDir = tempDir(user);
+        Files.createDirectories(tempDir);
+        Path pin = tempDir.resolve("pinned-" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        Files.createLink(pin, file);
+        return pin;
+    }
+
+    /**
+     * Serves a chunk of a file to another server: {@code path} is relative to the data dir and must
+     * lie in the users' folders.
+     *
+     * @return up to {@code max} bytes from {@code offset}, or null if the file is gone
+     */
+    static byte[] readChunk(String path, long offset, int max) throws RemoteException {
+        Path relative = Paths.get(path).normalize();
+        if (relative.isAbsolute() || relative.startsWith("..")
+                || !(relative.startsWith("storage") || relative.startsWith("serverStorage"))) {
+            throw new RemoteException("Invalid path: " + path);
+        }
+        try {
+            return ColdTier.read(DATA_DIR.resolve(relative), offset, max);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RemoteException("Error reading " + path, e);
+        }
+    }
+
     private void copyRecursively(Path source, Path target) throws IOException {
         Files.walkFileTree(source, new SimpleFileVisitor<>() {
             @Override
@@ -127,7 +301,7 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                 Path relative   = source.relativize(file);
                 Path targetFile = target.resolve(relative);
-                Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
                 return FileVisitResult.CONTINUE;
             }
         });
@@ -135,11 +309,13 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
 
     @Override
     public List<String> getAuthorizedUsers(String itemName) throws RemoteException {
-        List<String> result = new ArrayList<>();
+        return authorizedUsers(currentDir.resolve(itemName).normalize());
+    }
 
-        Path fullPath = currentDir.resolve(itemName).normalize();
+    private List<String> authorizedUsers(Path fullPath) throws RemoteException {
+        List<String> result = new ArrayList<>();
 
-        Path serverLocalDir = Paths.get("serverStorage")
+        Path serverLocalDir = SERVERSTORAGE_ROOT
                 .resolve(username)
                 .resolve("local");
 
@@ -167,25 +343,231 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
         }
 
         result.add(owner);
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(STORAGE_ROOT)) {
-            for (Path userDir : ds) {
-                String user = userDir.getFileName().toString();
-                if (user.equals(owner)) continue;
-                Path sharedCopy = userDir
-                        .resolve("shared")
-                        .resolve(owner)
-                        .resolve(relative);
-                if (Files.exists(sharedCopy)) {
-                    result.add(user);
+        result.addAll(sharees(owner, relative));
+        return result;
+    }
+
+    // ================= Owner-side changes =================
+    // Run on the node that owns the item; sharees on other nodes are reached through Cluster.
+
+    static Path ownerServerPath(String owner, Path relative) {
+        return SERVERSTORAGE_ROOT.resolve(owner).resolve("local").resolve(relative);
+    }
+
+    static Path ownerMirrorPath(String owner, Path relative) {
+        return STORAGE_ROOT.resolve(owner).resolve("local").resolve(relative);
+    }
+
+    static Path sharedPath(String user, String owner, Path relative) {
+        return STORAGE_ROOT.resolve(user).resolve("shared").resolve(owner).resolve(relative);
+    }
+
+    static String slashed(Path relative) {
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * The user whose {@code local} or {@code shared} tree holds {@code path}, a path in the data dir,
+     * and the path as {@link #getPath()} shows it; null for anything else, such as the mirrors.
+     */
+    static String[] visiblePath(Path path) {
+        Path relative = DATA_DIR.relativize(path.toAbsolutePath().normalize());
+        if (relative.getNameCount() < 3) return null;
+        String root = relative.getName(0).toString();
+        String area = relative.getName(2).toString();
+        if (!(root.equals("serverStorage") && area.equals("local")) && !(root.equals("storage") && area.equals("shared"))) {
+            return null;
+        }
+        String rest = relative.getNameCount() > 3 ? "/" + slashed(relative.subpath(3, relative.getNameCount())) : "";
+        return new String[]{relative.getName(1).toString(), "/" + area + rest};
+    }
+
+    /**
+     * Copies the file or folder {@code source} to {@code target} as hard links, so a copy costs no
+     * space and no time per byte. Stored files are never written in place: a write stages a new file
+     * and moves it over the old one ({@link #install}), so the other links keep the old contents.
+     * Where links are not supported the files are copied.
+     */
+    static void cloneTree(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path copy = target.resolve(source.relativize(file));
+                Files.deleteIfExists(copy);
+                try {
+                    Files.createLink(copy, file);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
                 }
+                return FileVisitResult.CONTINUE;
             }
+        });
+    }
+
+    /** Users of this node, other than {@code owner}, holding a shared copy of {@code owner}'s {@code relative}. */
+    static List<String> localSharees(String owner, Path relative) throws RemoteException {
+        List<String> result = new ArrayList<>();
+        if (!Files.isDirectory(STORAGE_ROOT)) {
+            return result;
+        }
+        try {
+            Trace.run("fs.authorizedUsers.scan", () -> {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(STORAGE_ROOT)) {
+                    for (Path userDir : ds) {
+                        String user = userDir.getFileName().toString();
+                        if (user.equals(owner)) continue;
+                        if (Files.exists(sharedPath(user, owner, relative))) {
+                            result.add(user);
+                        }
+                    }
+                }
+            });
         } catch (IOException e) {
             throw new RemoteException("Error", e);
         }
+        return result;
+    }
 
+    static List<String> sharees(String owner, Path relative) throws RemoteException {
+        List<String> result = localSharees(owner, relative);
+        if (Cluster.enabled()) {
+            result.addAll(Cluster.remoteSharees(owner, slashed(relative)));
+        }
         return result;
     }
 
+    /**
+     * Copies a new version of {@code owner}'s file from {@code source}, the owner's own copy, to
+     * every sharee in {@code authorized} but {@code except}. {@code data} is the file's contents if
+     * they are in memory anyway, otherwise null.
+     */
+    static void propagateWrite(Path source, byte[] data, String owner, Path relative,
+                               List<String> authorized, String except) {
+        BlockCache.invalidate(owner, relative);
+        for (String u : authorized) {
+            if (u.equals(except) || u.equals(owner)) {
+                continue;
+            }
+            try {
+                if (Cluster.isLocal(u)) {
+                    Path sharedCopy = sharedPath(u, owner, relative);
+                    Files.createDirectories(sharedCopy.getParent());
+                    Usage.Change change = Usage.before(sharedCopy);
+                    Files.copy(source, sharedCopy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                    change.done();
+                    if (data != null) ReplicationLog.put(sharedCopy, data);
+                    else ReplicationLog.putFile(sharedCopy);
+                    SearchIndex.added(sharedCopy);
+                } else {
+                    // pinned, so that a newer version written meanwhile cannot mix into the copy
+                    Path pin = pin(source, owner);
+                    try {
+                        Cluster.node(u).putShared(ClusterSecret.get(), u, owner, slashed(relative),
+                                Cluster.selfId(), ReplicationLog.relative(pin));
+                    } finally {
+                        Files.deleteIfExists(pin);
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static void applyMove(String owner, Path relativeOld, Path relativeNew, long origin) throws IOException {
+        Path ownerServerNew = ownerServerPath(owner, relativeNew);
+        Files.createDirectories(ownerServerNew.getParent());
+        Usage.Change from = Usage.before(ownerServerPath(owner, relativeOld));
+        Usage.Change to = Usage.before(ownerServerNew);
+        Files.move(ownerServerPath(owner, relativeOld), ownerServerNew, StandardCopyOption.REPLACE_EXISTING);
+        from.done();
+        to.done();
+        ReplicationLog.move(ownerServerPath(owner, relativeOld), ownerServerNew);
+        SearchIndex.moved(ownerServerPath(owner, relativeOld), ownerServerNew);
+        FileVersions.of(owner).moved(relativeOld, relativeNew);
+        BlockCache.invalidate(owner, relativeOld);
+        BlockCache.invalidate(owner, relativeNew);
+        MirrorWriter.mirrorMove(ownerMirrorPath(owner, relativeOld), ownerMirrorPath(owner, relativeNew));
+        ChangeJournal.record(owner, FileChange.Kind.MOVED, relativeOld, relativeNew, origin);
+    }
+
+    /** Copies {@code owner}'s file or folder to a new path, with new versions for the copies. */
+    static void applyCopy(String owner, Path relativeSource, Path relativeTarget, long origin) throws IOException {
+        Path source = ownerServerPath(owner, relativeSource);
+        Path target = ownerServerPath(owner, relativeTarget);
+        Usage.Change change = Usage.before(target);
+        cloneTree(source, target);
+        change.done();
+        ReplicationLog.copy(source, target);
+        SearchIndex.added(target);
+        FileVersions versions = FileVersions.of(owner);
+        try (Stream<Path> tree = Files.walk(target)) {
+            for (Path p : (Iterable<Path>) tree::iterator) {
+                Path relative = relativeTarget.resolve(target.relativize(p));
+                if (Files.isDirectory(p)) {
+                    MirrorWriter.mirrorDirectory(ownerMirrorPath(owner, relative));
+                    ChangeJournal.record(owner, FileChange.Kind.FOLDER, relative, null, origin);
+                } else {
+                    MirrorWriter.mirrorFile(p, ownerMirrorPath(owner, relative));
+                    versions.updated(relative);
+                    ChangeJournal.record(owner, FileChange.Kind.UPDATED, relative, null, origin);
+                }
+            }
+        }
+    }
+
+    static void propagateMove(String owner, Path relativeOld, Path relativeNew, List<String> authorized) {
+        for (String u : authorized) {
+            if (u.equals(owner)) continue;
+            try {
+                if (Cluster.isLocal(u)) {
+                    Path sharedOld = sharedPath(u, owner, relativeOld);
+                    Path sharedNew = sharedPath(u, owner, relativeNew);
+                    if (Files.exists(sharedOld)) {
+                        Files.createDirectories(sharedNew.getParent());
+                        Usage.Change from = Usage.before(sharedOld);
+                        Usage.Change to = Usage.before(sharedNew);
+                        Files.move(sharedOld, sharedNew, StandardCopyOption.REPLACE_EXISTING);
+                        from.done();
+                        to.done();
+                        ReplicationLog.move(sharedOld, sharedNew);
+                        SearchIndex.moved(sharedOld, sharedNew);
+                    }
+                } else {
+                    Cluster.node(u).moveShared(ClusterSecret.get(), u, owner, slashed(relativeOld), slashed(relativeNew));
+                }
+            } catch (IOException ignored) {}
+        }
+    }
+
+    static void applyDelete(String owner, Path relative, long origin) throws IOException {
+        Tombstones.bury(owner, ownerServerPath(owner, relative), ownerMirrorPath(owner, relative));
+        FileVersions.of(owner).removed(relative);
+        BlockCache.invalidate(owner, relative);
+        ChangeJournal.record(owner, FileChange.Kind.DELETED, relative, null, origin);
+    }
+
+    static void propagateDelete(String owner, Path relative, List<String> authorized) {
+        for (String u : authorized) {
+            if (u.equals(owner)) {
+                continue;
+            }
+            try {
+                if (Cluster.isLocal(u)) {
+                    Tombstones.bury(u, sharedPath(u, owner, relative), null);
+                } else {
+                    Cluster.node(u).deleteShared(ClusterSecret.get(), u, owner, slashed(relative));
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     // ================= Remote Methods =================
 
     @Override
@@ -226,6 +608,47 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
         }
     }
 
+    @Override
+    public ListingPage list(String prefix, FileEntry.Sort sort, boolean descending, int pageSize, String cursor)
+            throws RemoteException {
+        Path dir = currentDir;
+        // the top level holds just the local and shared folders, which storage/<user> also has
+        if (!dir.equals(userStorageDir) && !isInsideServerLocal(dir) && !isInsideStorageShared(dir)) {
+            return new ListingPage(List.of(), null);
+        }
+        ListingPage page;
+        try {
+            page = Trace.call("fs.list", () -> DirectoryLister.list(dir, prefix, sort, descending, pageSize, cursor));
+        } catch (IOException e) {
+            throw new RemoteException("Error listing " + getPath() + ": " + e.getMessage(), e);
+        }
+        // an entry of the folder is one owner's item unless the folder is the top or the shared folder
+        Path child = dir.resolve("entry");
+        if (page.getEntries().isEmpty() || !isOwnedItem(child)) return page;
+        OwnerInfo info = resolveOwnerAndRelative(child);
+        Path parent = info.relative.getParent();
+        List<Path> relatives = new ArrayList<>();
+        for (FileEntry entry : page.getEntries()) {
+            relatives.add(parent == null ? Paths.get(entry.getName()) : parent.resolve(entry.getName()));
+        }
+        long[] versions = Trace.call("fs.list.versions", () -> versions(info.owner, relatives));
+        List<FileEntry> entries = new ArrayList<>();
+        for (int i = 0; i < versions.length; i++) {
+            FileEntry e = page.getEntries().get(i);
+            entries.add(new FileEntry(e.getName(), e.isFolder(), e.getSize(), e.getModified(), versions[i]));
+        }
+        return new ListingPage(entries, page.getNextCursor());
+    }
+
+    @Override
+    public ChangeSet changesSince(String token, int max) throws RemoteException {
+        try {
+            return ChangeJournal.of(username).since(token, Math.max(1, Math.min(max, DirectoryLister.MAX_PAGE)), origin);
+        } catch (IOException e) {
+            throw new RemoteException("Error reading changes: " + e.getMessage(), e);
+        }
+    }
+
     @Override
     public boolean changeDirectory(String folderName) throws RemoteException {
 
@@ -294,253 +717,366 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
     }
 
     @Override
-    public synchronized boolean createFolder(String folderName) throws RemoteException {
-        // Local
-        if (isInsideServerLocal(currentDir)) {
-            Path newDir = currentDir.resolve(folderName).normalize();
-            if (!newDir.startsWith(serverLocalDir)) {
-                return false;
-            }
-            try {
-                if (Files.exists(newDir)) {
+    public boolean createFolder(String folderName) throws RemoteException {
+        lock();
+        try {
+            // Local
+            if (isInsideServerLocal(currentDir)) {
+                Path newDir = currentDir.resolve(folderName).normalize();
+                if (!newDir.startsWith(serverLocalDir)) {
                     return false;
                 }
-                Files.createDirectories(newDir);
+                try {
+                    if (Files.exists(newDir)) {
+                        return false;
+                    }
+                    Trace.run("fs.createFolder.mkdir", () -> Files.createDirectories(newDir));
+                    ReplicationLog.mkdir(newDir);
+                    SearchIndex.added(newDir);
 
-                Path relative = serverLocalDir.relativize(newDir);
-                Path mirror   = storageLocalDir.resolve(relative);
-                if (!Files.exists(mirror.getParent())) {
-                    Files.createDirectories(mirror.getParent());
+                    Path relative = serverLocalDir.relativize(newDir);
+                    MirrorWriter.mirrorDirectory(storageLocalDir.resolve(relative));
+                    ChangeJournal.record(username, FileChange.Kind.FOLDER, relative, null, origin);
+                    return true;
+                } catch (IOException e) {
+                    throw new RemoteException("Error creating folder " + folderName, e);
                 }
-                Files.createDirectories(mirror);
-                return true;
-            } catch (IOException e) {
-                throw new RemoteException("Error creating folder " + folderName, e);
             }
-        }
 
-        // Server
-        if (isInsideStorageShared(currentDir)) {
-            Path newDir = currentDir.resolve(folderName).normalize();
-            if (!newDir.startsWith(storageSharedDir)) {
-                return false;
-            }
-            try {
-                if (Files.exists(newDir)) {
+            // Server
+            if (isInsideStorageShared(currentDir)) {
+                Path newDir = currentDir.resolve(folderName).normalize();
+                if (!newDir.startsWith(storageSharedDir)) {
                     return false;
                 }
-                Files.createDirectories(newDir);
-                return true;
-            } catch (IOException e) {
-                throw new RemoteException("Error creating folder " + folderName, e);
+                try {
+                    if (Files.exists(newDir)) {
+                        return false;
+                    }
+                    Files.createDirectories(newDir);
+                    ReplicationLog.mkdir(newDir);
+                    SearchIndex.added(newDir);
+                    return true;
+                } catch (IOException e) {
+                    throw new RemoteException("Error creating folder " + folderName, e);
+                }
             }
-        }
 
-        return false;
+            return false;
+        } finally {
+            lock.unlock();
+        }
     }
 
 
+    /**
+     * Creates each of {@code folderNames} (relative paths, parents first or not) under the current
+     * folder, skipping those that exist; returns how many were created.
+     */
     @Override
-    public synchronized boolean rename(String oldName, String newName) throws RemoteException {
-        Path fullOld = currentDir.resolve(oldName).normalize();
-        if (!Files.exists(fullOld)) {
-            return false;
+    public int createFolders(List<String> folderNames) throws RemoteException {
+        lock();
+        try {
+            boolean local = isInsideServerLocal(currentDir);
+            Path root = local ? serverLocalDir : storageSharedDir;
+            if (!local && !isInsideStorageShared(currentDir)) {
+                return 0;
+            }
+            try {
+                return Trace.call("fs.createFolders.mkdir", () -> {
+                    int created = 0;
+                    for (String folderName : folderNames) {
+                        Path newDir = currentDir.resolve(folderName).normalize();
+                        if (!newDir.startsWith(root) || Files.isDirectory(newDir)) {
+                            continue;
+                        }
+                        for (Path dir = newDir; !Files.exists(dir); dir = dir.getParent()) {
+                            created++;
+                        }
+                        Files.createDirectories(newDir);
+                        ReplicationLog.mkdir(newDir);
+                        SearchIndex.added(newDir);
+                        if (local) {
+                            MirrorWriter.mirrorDirectory(storageLocalDir.resolve(serverLocalDir.relativize(newDir)));
+                            ChangeJournal.record(username, FileChange.Kind.FOLDER, serverLocalDir.relativize(newDir), null, origin);
+                        }
+                    }
+                    return created;
+                });
+            } catch (IOException e) {
+                throw new RemoteException("Error creating folders", e);
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        OwnerInfo info = resolveOwnerAndRelative(fullOld);
-        String owner       = info.owner;
-        Path relativeOld   = info.relative;
-        Path relativeParent= relativeOld.getNameCount()>1
-                ? relativeOld.getParent()
-                : Paths.get("");
+    @Override
+    public boolean rename(String oldName, String newName) throws RemoteException {
+        return rename(oldName, newName, WriteResult.ANY).isApplied();
+    }
 
-        List<String> authorized = getAuthorizedUsers(oldName);
+    @Override
+    public WriteResult rename(String oldName, String newName, long expectedVersion) throws RemoteException {
+        lock();
+        try {
+            Path fullOld = currentDir.resolve(oldName).normalize();
+            if (!Files.exists(fullOld)) {
+                return WriteResult.conflict(WriteResult.ABSENT);
+            }
 
-        Path ownerServerOld  = SERVERSTORAGE_ROOT.resolve(owner).resolve("local").resolve(relativeOld);
-        Path ownerServerNew  = SERVERSTORAGE_ROOT.resolve(owner).resolve("local").resolve(relativeParent).resolve(newName);
-        Path ownerMirrorOld  = STORAGE_ROOT       .resolve(owner).resolve("local").resolve(relativeOld);
-        Path ownerMirrorNew  = STORAGE_ROOT       .resolve(owner).resolve("local").resolve(relativeParent).resolve(newName);
+            OwnerInfo info = resolveOwnerAndRelative(fullOld);
+            String owner       = info.owner;
+            Path relativeOld   = info.relative;
+            Path relativeParent= relativeOld.getNameCount()>1
+                    ? relativeOld.getParent()
+                    : Paths.get("");
 
-        try {
-            // rename in serverStorage
-            Files.createDirectories(ownerServerNew.getParent());
-            Files.move(ownerServerOld, ownerServerNew, StandardCopyOption.REPLACE_EXISTING);
+            Path relativeNew   = relativeParent.resolve(newName);
 
-            // rename in storageMirror
-            if (Files.exists(ownerMirrorOld)) {
-                Files.createDirectories(ownerMirrorNew.getParent());
-                Files.move(ownerMirrorOld, ownerMirrorNew, StandardCopyOption.REPLACE_EXISTING);
+            if (!Cluster.isLocal(owner)) {
+                return Trace.call("fs.rename.remote",
+                        () -> Cluster.node(owner).moveOwned(ClusterSecret.get(), owner, slashed(relativeOld), slashed(relativeNew), expectedVersion));
             }
-        } catch (IOException e) {
-            throw new RemoteException("Error renaming: " + oldName, e);
-        }
 
-        for (String u : authorized) {
-            if (u.equals(owner)) continue;
-            Path sharedOld = STORAGE_ROOT.resolve(u)
-                    .resolve("shared")
-                    .resolve(owner)
-                    .resolve(relativeOld);
-            Path sharedNew = STORAGE_ROOT.resolve(u)
-                    .resolve("shared")
-                    .resolve(owner)
-                    .resolve(relativeParent)
-                    .resolve(newName);
-            if (Files.exists(sharedOld)) {
-                try {
-                    Files.createDirectories(sharedNew.getParent());
-                    Files.move(sharedOld, sharedNew, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException ignored) {}
+            List<String> authorized = getAuthorizedUsers(oldName);
+
+            WriteResult result;
+            try {
+                result = Trace.call("fs.rename.move", () -> FileVersions.of(owner).change(relativeOld, expectedVersion,
+                        () -> applyMove(owner, relativeOld, relativeNew, origin)));
+            } catch (IOException e) {
+                throw new RemoteException("Error renaming: " + oldName, e);
             }
-        }
+            if (!result.isApplied()) return result;
 
-        return true;
+            Trace.run("fs.rename.propagate", () -> propagateMove(owner, relativeOld, relativeNew, authorized));
+
+            return result;
+        } finally {
+            lock.unlock();
+        }
     }
 
 
     @Override
-    public synchronized boolean move(String itemName, String targetFolder) throws RemoteException {
-        if (!isInsideServerLocal(currentDir)) {
-            return false;
-        }
-
-        Path source = currentDir.resolve(itemName).normalize();
-        Path destDir = currentDir.resolve(targetFolder).normalize();
-        if (!Files.exists(source) || !Files.isDirectory(destDir) || !isInsideServerLocal(destDir)) {
-            return false;
-        }
+    public boolean move(String itemName, String targetFolder) throws RemoteException {
+        lock();
+        try {
+            if (!isInsideServerLocal(currentDir)) {
+                return false;
+            }
 
-        List<String> authorized = getAuthorizedUsers(itemName);
-        Path serverLocalInvoker = SERVERSTORAGE_ROOT.resolve(username).resolve("local");
+            Path source = currentDir.resolve(itemName).normalize();
+            Path destDir = currentDir.resolve(targetFolder).normalize();
+            if (!Files.exists(source) || !Files.isDirectory(destDir) || !isInsideServerLocal(destDir)) {
+                return false;
+            }
 
-        String owner = username;
-        Path relativeOld = serverLocalInvoker.relativize(source);
+            List<String> authorized = getAuthorizedUsers(itemName);
+            Path serverLocalInvoker = SERVERSTORAGE_ROOT.resolve(username).resolve("local");
 
-        Path newLocation     = destDir.resolve(source.getFileName());
-        Path relativeNew     = serverLocalDir.relativize(newLocation);
+            String owner = username;
+            Path relativeOld = serverLocalInvoker.relativize(source);
 
-        try {
-            Files.createDirectories(newLocation.getParent());
-            Files.move(source, newLocation, StandardCopyOption.REPLACE_EXISTING);
+            Path newLocation     = destDir.resolve(source.getFileName());
+            Path relativeNew     = serverLocalDir.relativize(newLocation);
 
-            Path mirrorOld = storageLocalDir.resolve(relativeOld);
-            Path mirrorNew = storageLocalDir.resolve(relativeNew);
-            if (Files.exists(mirrorOld)) {
-                Files.createDirectories(mirrorNew.getParent());
-                Files.move(mirrorOld, mirrorNew, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Trace.run("fs.move.move", () -> applyMove(owner, relativeOld, relativeNew, origin));
+            } catch (IOException e) {
+                throw new RemoteException(
+                        String.format("Error moving %s → %s", source, newLocation), e
+                );
             }
-        } catch (IOException e) {
-            throw new RemoteException(
-                    String.format("Error moving %s → %s", source, newLocation), e
-            );
+
+            Trace.run("fs.move.propagate", () -> propagateMove(owner, relativeOld, relativeNew, authorized));
+
+            return true;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        for (String u : authorized) {
-            if (u.equals(owner)) {
-                continue;
+    @Override
+    public boolean copy(String sourceName, String targetName) throws RemoteException {
+        lock();
+        try {
+            if (!isInsideServerLocal(currentDir)) {
+                return false;
             }
 
-            Path sharedOld = STORAGE_ROOT
-                    .resolve(u)
-                    .resolve("shared")
-                    .resolve(owner)
-                    .resolve(relativeOld);
-
-            Path sharedNew = STORAGE_ROOT
-                    .resolve(u)
-                    .resolve("shared")
-                    .resolve(owner)
-                    .resolve(relativeNew);
+            Path source = currentDir.resolve(sourceName).normalize();
+            Path named = currentDir.resolve(targetName).normalize();
+            Path target = Files.isDirectory(named) ? named.resolve(source.getFileName()) : named;
+            if (!isInsideServerLocal(source) || !Files.exists(source) || Files.exists(target) || !isInsideServerLocal(target)
+                    || target.startsWith(source) || !Files.isDirectory(target.getParent())) {
+                return false;
+            }
 
-            if (Files.exists(sharedOld)) {
-                try {
-                    Files.createDirectories(sharedNew.getParent());
-                    Files.move(sharedOld, sharedNew, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException ignored) {
-                }
+            Path relativeSource = serverLocalDir.relativize(source);
+            Path relativeTarget = serverLocalDir.relativize(target);
+            try {
+                Trace.run("fs.copy.clone", () -> {
+                    Usage.admitCopy(source, target);
+                    applyCopy(username, relativeSource, relativeTarget, origin);
+                });
+            } catch (IOException e) {
+                throw new RemoteException(String.format("Error copying %s → %s", source, target), e);
             }
+            return true;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return true;
+    @Override
+    public boolean upload(String filename, byte[] data) throws RemoteException {
+        return upload(filename, data, WriteResult.ANY).isApplied();
     }
 
     @Override
-    public synchronized boolean upload(String filename, byte[] data) throws RemoteException {
-        Path dst = currentDir.resolve(filename).normalize();
-        boolean ok;
+    public WriteResult upload(String filename, byte[] data, long expectedVersion) throws RemoteException {
+        Path dir = currentDir;
+        Path dst = dir.resolve(filename).normalize();
+        Path staged;
         try {
-            Files.createDirectories(dst.getParent());
-            Files.write(dst, data);
-            if (isInsideServerLocal(currentDir)) {
-                Path relative = serverLocalDir.relativize(dst);
-                Path mirror   = storageLocalDir.resolve(relative);
-                Files.createDirectories(mirror.getParent());
-                Files.write(mirror, data);
-            }
-            ok = true;
+            staged = Trace.call("fs.upload.write", () -> stage(tempDir, data));
         } catch (IOException e) {
             throw new RemoteException("Error uploading file: " + filename, e);
         }
+        return published(dir, dst, staged, data, expectedVersion);
+    }
 
-        if (!ok) {
-            return false;
+    /** Uploads each file of {@code files} (paths relative to the current folder); returns those stored. */
+    @Override
+    public List<String> uploadAll(Map<String, byte[]> files) throws RemoteException {
+        Path dir = currentDir;
+        if (!isInsideServerLocal(dir) && !isInsideStorageShared(dir)) {
+            return List.of();
         }
+        List<String> stored = new ArrayList<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Path dst = dir.resolve(file.getKey()).normalize();
+            if (!dst.startsWith(dir) || dst.equals(dir)) continue;
+            try {
+                Path staged = Trace.call("fs.upload.write", () -> stage(tempDir, file.getValue()));
+                if (published(dir, dst, staged, file.getValue(), WriteResult.ANY).isApplied()) stored.add(file.getKey());
+            } catch (IOException | QuotaExceededException ignored) {
+                // left out of the result, so the client can retry it
+            }
+        }
+        return stored;
+    }
 
-        OwnerInfo info = resolveOwnerAndRelative(dst);
-        String owner   = info.owner;
-        Path relative   = info.relative;
+    /** Like {@link #upload}, for a file the data plane already received into {@code stagedFile}. */
+    @Override
+    public boolean uploadFrom(String filename, String stagedFile) throws RemoteException {
+        return uploadFrom(filename, stagedFile, WriteResult.ANY).isApplied();
+    }
 
-        List<String> authorized = getAuthorizedUsers(filename);
+    @Override
+    public WriteResult uploadFrom(String filename, String stagedFile, long expectedVersion) throws RemoteException {
+        Path dir = currentDir;
+        Path dst = dir.resolve(filename).normalize();
+        // never read into memory: the change log and other nodes take the file by reference
+        return published(dir, dst, Paths.get(stagedFile), null, expectedVersion);
+    }
 
-        for (String u : authorized) {
-            if (u.equals(username)) {
-                continue;
+    /**
+     * Moves {@code staged} into place as the owner's copy of {@code dst}, if the owner's copy is at
+     * {@code expectedVersion}, then mirrors it and passes it on to the sharees and the uploader's
+     * own copy. The owner's versions are locked only for the move. {@code data} is the upload's
+     * contents if it came in memory, null if it only exists as {@code staged}.
+     */
+    private WriteResult published(Path dir, Path dst, Path staged, byte[] data, long expectedVersion) throws RemoteException {
+        String owner;
+        Path relative;
+        Path ownerServer;
+        WriteResult result;
+        try {
+            OwnerInfo info = resolveOwnerAndRelative(dst);
+            owner   = info.owner;
+            relative   = info.relative;
+            ownerServer = ownerServerPath(owner, relative);
+            long size = Files.size(staged);
+            // the uploader's own copy of a shared file counts towards their usage too
+            if (!owner.equals(username)) Usage.admit(dst, size);
+            if (!Cluster.isLocal(owner)) {
+                // the owner's node decides; the shared copy here is replaced only once it agreed
+                return Trace.call("fs.upload.remote", () -> {
+                    WriteResult remote = Cluster.node(owner).putOwned(ClusterSecret.get(), owner, slashed(relative),
+                            Cluster.selfId(), ReplicationLog.relative(staged), username, expectedVersion);
+                    if (!remote.isApplied()) return remote;
+                    if (data != null) install(staged, dst, data);
+                    else installFile(staged, dst);
+                    return remote;
+                });
             }
-
-            if (u.equals(owner)) {
-                Path ownerServer = SERVERSTORAGE_ROOT.resolve(owner)
-                        .resolve("local")
-                        .resolve(relative);
-                Path ownerMirror = STORAGE_ROOT.resolve(owner)
-                        .resolve("local")
-                        .resolve(relative);
-                try {
-                    Files.createDirectories(ownerServer.getParent());
-                    Files.copy(dst, ownerServer, StandardCopyOption.REPLACE_EXISTING);
-                    Files.createDirectories(ownerMirror.getParent());
-                    Files.copy(dst, ownerMirror, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException ignored) {
-                }
-            } else {
-                Path sharedCopy = STORAGE_ROOT.resolve(u)
-                        .resolve("shared")
-                        .resolve(owner)
-                        .resolve(relative);
-                try {
-                    Files.createDirectories(sharedCopy.getParent());
-                    Files.copy(dst, sharedCopy, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException ignored) {
-                }
+            Usage.admit(ownerServer, size);
+            result = Trace.call("fs.upload.move", () -> FileVersions.of(owner).write(relative, expectedVersion, () -> {
+                if (data != null) install(staged, ownerServer, data);
+                else installFile(staged, ownerServer);
+            }));
+            if (!result.isApplied()) return result;
+            Trace.run("fs.upload.mirror", () -> MirrorWriter.mirrorFile(ownerServer, ownerMirrorPath(owner, relative)));
+        } catch (IOException e) {
+            throw new RemoteException("Error uploading file: " + dst.getFileName(), e);
+        } finally {
+            try {
+                Files.deleteIfExists(staged);
+            } catch (IOException ignored) {
             }
         }
+        ChangeJournal.record(owner, FileChange.Kind.UPDATED, relative, null,
+                owner.equals(username) ? origin : ChangeJournal.NO_ORIGIN);
 
-        return true;
+        List<String> authorized = sharees(owner, relative);
+        if (!owner.equals(username) && !authorized.contains(username)) authorized.add(username);
+
+        Trace.run("fs.upload.propagate", () -> propagateWrite(ownerServer, data, owner, relative, authorized, null));
+
+        return result;
     }
 
+    @Override
+    public String readablePath(String filename) throws RemoteException {
+        Path file = currentDir.resolve(filename).normalize();
+        if (!isInsideServerLocal(file) && !isInsideStorageShared(file)) return null;
+        if (!Files.isRegularFile(file)) return null;
+        try {
+            ColdTier.open(file);
+        } catch (IOException e) {
+            throw new RemoteException("Error reading: " + filename, e);
+        }
+        return file.toString();
+    }
 
     @Override
-    public synchronized boolean download(String filename) throws RemoteException {
-        if (!isInsideStorageShared(currentDir)) {
+    public String readableFolder(String folderName) throws RemoteException {
+        Path folder = currentDir.resolve(folderName).normalize();
+        if (!isInsideServerLocal(folder) && !isInsideStorageShared(folder)) return null;
+        return Files.isDirectory(folder) ? folder.toString() : null;
+    }
+
+    /** Where the data plane stages {@code user}'s uploads; on the same file system as their files. */
+    static Path tempDir(String user) {
+        return SERVERSTORAGE_ROOT.resolve(user).resolve(".tmp");
+    }
+
+
+    @Override
+    public boolean download(String filename) throws RemoteException {
+        Path dir = currentDir;
+        if (!isInsideStorageShared(dir)) {
             return false;
         }
 
-        Path sharedFile = currentDir.resolve(filename).normalize();
+        Path sharedFile = dir.resolve(filename).normalize();
         if (!Files.exists(sharedFile) || Files.isDirectory(sharedFile)) {
             return false;
         }
         try {
-            byte[] data = Files.readAllBytes(sharedFile);
-
             OwnerInfo info = resolveOwnerAndRelative(sharedFile);
             String owner   = info.owner;
             Path relative  = info.relative;
@@ -552,12 +1088,24 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
                     .resolve("local")
                     .resolve(relative);
 
-            Files.createDirectories(serverPath.getParent());
-            Files.write(serverPath, data);
-
-            Files.createDirectories(mirrorDst.getParent());
-            Files.write(mirrorDst, data);
-
+            Trace.run("fs.download.copy", () -> {
+                Usage.admit(serverPath, Files.size(sharedFile));
+                // copied aside and moved over serverPath, which may be linked to other copies
+                Path tempDir = tempDir(username);
+                Files.createDirectories(tempDir);
+                Path staged = Files.createTempFile(tempDir, "download-", ".part");
+                try {
+                    MirrorWriter.transfer(sharedFile, staged);
+                    BlockCache.invalidate(username, relative);
+                    install(staged, serverPath, null);
+                } finally {
+                    Files.deleteIfExists(staged);
+                }
+                ReplicationLog.copy(sharedFile, serverPath);
+                FileVersions.of(username).updated(relative);
+                MirrorWriter.mirrorFile(serverPath, mirrorDst);
+            });
+            ChangeJournal.record(username, FileChange.Kind.UPDATED, relative, null, origin);
 
         } catch (IOException e) {
             throw new RemoteException("Error downloading: " + filename, e);
@@ -567,81 +1115,117 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
 
         @Override
         public boolean delete(String name) throws RemoteException {
+            return delete(name, WriteResult.ANY).isApplied();
+        }
+
+        @Override
+        public WriteResult delete(String name, long expectedVersion) throws RemoteException {
             Path fullPath = currentDir.resolve(name).normalize();
             if (!Files.exists(fullPath)) {
-                return false;
+                return WriteResult.conflict(WriteResult.ABSENT);
             }
 
             OwnerInfo info = resolveOwnerAndRelative(fullPath);
             String owner   = info.owner;
             Path relative  = info.relative;
 
-            Path ownerServerPath = SERVERSTORAGE_ROOT.resolve(owner)
-                    .resolve("local")
-                    .resolve(relative);
-            Path ownerMirrorPath = STORAGE_ROOT.resolve(owner)
-                    .resolve("local")
-                    .resolve(relative);
+            if (!Cluster.isLocal(owner)) {
+                return Trace.call("fs.delete.remote",
+                        () -> Cluster.node(owner).deleteOwned(ClusterSecret.get(), owner, slashed(relative), expectedVersion));
+            }
 
             List<String> authorized = getAuthorizedUsers(name);
 
+            WriteResult result;
             try {
-                deleteRecursively(ownerServerPath);
-                if (Files.exists(ownerMirrorPath)) {
-                    deleteRecursively(ownerMirrorPath);
-                }
+                result = Trace.call("fs.delete.owner", () -> FileVersions.of(owner).change(relative, expectedVersion,
+                        () -> applyDelete(owner, relative, origin)));
             } catch (IOException e) {
                 throw new RemoteException("Error deleting file: " + name, e);
             }
+            if (!result.isApplied()) return result;
 
-        for (String u : authorized) {
-            if (u.equals(owner)) {
-                continue;
-            }
-            Path sharedPath = STORAGE_ROOT.resolve(u)
-                    .resolve("shared")
-                    .resolve(owner)
-                    .resolve(relative);
-            if (Files.exists(sharedPath)) {
-                try {
-                    deleteRecursively(sharedPath);
-                } catch (IOException ignored) {
-                }
+        Trace.run("fs.delete.propagate", () -> propagateDelete(owner, relative, authorized));
+        return result;
+    }
+
+    @Override
+    public long version(String name) throws RemoteException {
+        Path fullPath = currentDir.resolve(name).normalize();
+        if (!isOwnedItem(fullPath)) return WriteResult.ABSENT;
+        OwnerInfo info = resolveOwnerAndRelative(fullPath);
+        return versions(info.owner, List.of(info.relative))[0];
+    }
+
+    /** Whether {@code p} is a file or folder inside the local folder or one owner's shared folder. */
+    private boolean isOwnedItem(Path p) {
+        if (isInsideServerLocal(p)) return !p.normalize().equals(serverLocalDir.normalize());
+        return isInsideStorageShared(p) && storageSharedDir.normalize().relativize(p.normalize()).getNameCount() > 1;
+    }
+
+    /** The versions of {@code owner}'s {@code relatives}, asked of the owner's node. */
+    private static long[] versions(String owner, List<Path> relatives) throws RemoteException {
+        if (!Cluster.isLocal(owner)) {
+            List<String> paths = new ArrayList<>();
+            for (Path relative : relatives) paths.add(slashed(relative));
+            return Cluster.node(owner).ownedVersions(ClusterSecret.get(), owner, paths);
+        }
+        long[] result = new long[relatives.size()];
+        try {
+            FileVersions versions = FileVersions.of(owner);
+            for (int i = 0; i < result.length; i++) {
+                result[i] = versions.current(relatives.get(i));
             }
+        } catch (IOException e) {
+            throw new RemoteException("Error reading versions of " + owner + "'s files", e);
         }
-        return true;
+        return result;
     }
 
     @Override
-    public synchronized boolean share(String name, String withUsername) throws RemoteException {
-        if (!isInsideServerLocal(currentDir)) {
+    public boolean share(String name, String withUsername) throws RemoteException {
+        Path dir = currentDir;
+        if (!isInsideServerLocal(dir)) {
             return false;
         }
 
-        Path source = currentDir.resolve(name).normalize();
+        Path source = dir.resolve(name).normalize();
         if (!Files.exists(source)) {
             return false;
         }
 
-        Path recipientSharedRoot = STORAGE_ROOT.resolve(withUsername).resolve("shared");
-        if (!Files.exists(recipientSharedRoot)) {
-            return false;
+        try {
+            ColdTier.openTree(source);
+        } catch (IOException e) {
+            throw new RemoteException("Error reading: " + name, e);
         }
 
         Path relativeFromLocal = serverLocalDir.relativize(source);
+        if (!Cluster.isLocal(withUsername)) {
+            return shareRemote(source, relativeFromLocal, withUsername);
+        }
 
+        Path recipientSharedRoot = STORAGE_ROOT.resolve(withUsername).resolve("shared");
+        if (!Files.exists(recipientSharedRoot)) {
+            return false;
+        }
 
         Path mirrorRoot = recipientSharedRoot.resolve(username);
         Path targetPath = mirrorRoot.resolve(relativeFromLocal).normalize();
         try {
+            Trace.run("fs.share.copy", () -> {
+                Files.createDirectories(targetPath.getParent());
 
-            Files.createDirectories(targetPath.getParent());
-
-            if (Files.isDirectory(source)) {
-                copyRecursively(source, targetPath);
-            } else {
-                Files.copy(source, targetPath, StandardCopyOption.REPLACE_EXISTING);
-            }
+                Usage.Change change = Usage.before(targetPath);
+                if (Files.isDirectory(source)) {
+                    copyRecursively(source, targetPath);
+                } else {
+                    Files.copy(source, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                change.done();
+                ReplicationLog.copy(source, targetPath);
+                SearchIndex.added(targetPath);
+            });
             return true;
         } catch (IOException e) {
             throw new RemoteException(
@@ -653,6 +1237,37 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
         }
     }
 
+    /** Pushes {@code source} (a file or a whole folder) into the shared folder of a user on another node. */
+    private boolean shareRemote(Path source, Path relative, String withUsername) throws RemoteException {
+        NodeService node = Cluster.node(withUsername);
+        if (!node.hasUser(ClusterSecret.get(), withUsername)) {
+            return false;
+        }
+        try {
+            Trace.run("fs.share.remote", () -> {
+                try (Stream<Path> tree = Files.walk(source)) {
+                    for (Path p : (Iterable<Path>) tree::iterator) {
+                        Path rel = relative.resolve(source.relativize(p));
+                        if (Files.isDirectory(p)) {
+                            node.putShared(ClusterSecret.get(), withUsername, username, slashed(rel), null, null);
+                            continue;
+                        }
+                        Path pin = pin(p, username);
+                        try {
+                            node.putShared(ClusterSecret.get(), withUsername, username, slashed(rel),
+                                    Cluster.selfId(), ReplicationLog.relative(pin));
+                        } finally {
+                            Files.deleteIfExists(pin);
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            throw new RemoteException("Error sharing " + source + " with user " + withUsername, e);
+        }
+    }
+
     @Override
     public String getPath() throws RemoteException {
         if (currentDir.equals(userStorageDir)) {
@@ -681,4 +1296,44 @@ public class FileSystemImpl extends UnicastRemoteObject implements FileSystemInt
 
         return "/";
     }
+
+    @Override
+    public List<String> find(String query) throws RemoteException {
+        try {
+            return SearchIndex.find(username, query);
+        } catch (IOException e) {
+            throw new RemoteException("Error searching for " + query, e);
+        }
+    }
+
+    /** {@code name} resolved against the current folder, with {@code local} at the root meaning the user's files. */
+    private Path resolveName(String name) {
+        Path path = currentDir.resolve(name).normalize();
+        if (path.startsWith(storageLocalDir)) path = serverLocalDir.resolve(storageLocalDir.relativize(path));
+        return path;
+    }
+
+    @Override
+    public String topic(String name) throws RemoteException {
+        Path path = resolveName(name);
+        if (!isInsideServerLocal(path) && !isInsideStorageShared(path)) return null;
+        String[] at = visiblePath(path);
+        return at == null ? null : Topics.of(username, at[1]);
+    }
+
+    @Override
+    public long[] usage(String folderName) throws RemoteException {
+        Path folder = folderName.equals("/") ? userStorageDir : resolveName(folderName);
+        String visible = folder.equals(userStorageDir) ? "/" : null;
+        if (isInsideServerLocal(folder) || isInsideStorageShared(folder)) {
+            String[] at = visiblePath(folder);
+            visible = at == null ? null : at[1];
+        }
+        if (visible == null || !Files.isDirectory(folder)) return null;
+        try {
+            return Usage.of(username, visible);
+        } catch (IOException e) {
+            throw new RemoteException("Error counting usage of " + folderName, e);
+        }
+    }
 }
\ No newline at end of file
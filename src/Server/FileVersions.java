@@ -0,0 +1,237 @@
+package Server;
+
+import Interface.WriteResult;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Version numbers of the files in a user's {@code local} folder, for writes that must not replace
+ * a version they have not seen.
+ * <p>
+ * Each write, move or delete takes the next number of the owner's counter, so a version is never
+ * reused, even by a file deleted and created again. A file written before versions were kept
+ * reports {@link #UNTRACKED}, and one that does not exist {@link WriteResult#ABSENT}. A conditional
+ * write holds the owner's lock only to compare the version and move the new contents into place;
+ * the bytes were staged before it, so a concurrent writer never waits for a transfer and a stale
+ * one gets a conflict right away.
+ * <p>
+ * Versions live in {@code serverStorage/<user>/.sync/versions}: a header with the counter, then
+ * one line per change, appended and replicated like the {@link ChangeJournal}; the file is
+ * rewritten with just the live entries once it holds twice as many lines. On a backup every lookup
+ * reads the replicated file, since the primary keeps appending to it.
+ */
+final class FileVersions {
+
+    static final long UNTRACKED = 1;
+
+    private static final String HEADER = "#dds-versions ";
+    private static final ConcurrentHashMap<String, FileVersions> VERSIONS = new ConcurrentHashMap<>();
+
+    /** A change made while the owner's versions are locked. */
+    interface Change {
+        void apply() throws IOException;
+    }
+
+    private final String owner;
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Versions by slashed path; a TreeMap so a folder's files are one range. */
+    private final TreeMap<String, Long> versions = new TreeMap<>();
+    private long counter = UNTRACKED;
+    private int lines;
+    private boolean loaded;
+
+    private FileVersions(String owner) {
+        this.owner = owner;
+        this.file = FileSystemImpl.SERVERSTORAGE_ROOT.resolve(owner).resolve(".sync").resolve("versions");
+    }
+
+    static FileVersions of(String owner) {
+        if (ReplicaFollower.isRunning()) return new FileVersions(owner);
+        return VERSIONS.computeIfAbsent(owner, FileVersions::new);
+    }
+
+    static void forget(String owner) {
+        VERSIONS.remove(owner);
+    }
+
+    static void forgetAll() {
+        VERSIONS.clear();
+    }
+
+    /** The version of {@code relative}. */
+    long current(Path relative) throws IOException {
+        lock.lock();
+        try {
+            load();
+            if (!Files.exists(FileSystemImpl.ownerServerPath(owner, relative))) return WriteResult.ABSENT;
+            return versions.getOrDefault(FileSystemImpl.slashed(relative), UNTRACKED);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Applies {@code write} to {@code relative} if it is at {@code expected}, and gives it a new version. */
+    WriteResult write(Path relative, long expected, Change write) throws IOException {
+        lock.lock();
+        try {
+            WriteResult conflict = check(relative, expected);
+            if (conflict != null) return conflict;
+            write.apply();
+            return WriteResult.applied(updated(relative));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies {@code change}, a move or delete of {@code relative} that records its own versions
+     * through {@link #moved} or {@link #removed}, if {@code relative} is at {@code expected}.
+     */
+    WriteResult change(Path relative, long expected, Change change) throws IOException {
+        lock.lock();
+        try {
+            WriteResult conflict = check(relative, expected);
+            if (conflict != null) return conflict;
+            change.apply();
+            return WriteResult.applied(counter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private WriteResult check(Path relative, long expected) throws IOException {
+        if (expected == WriteResult.ANY) return null;
+        long current = current(relative);
+        if (current == expected) return null;
+        Metrics.increment("versions.conflicts");
+        return WriteResult.conflict(current);
+    }
+
+    /** Gives {@code relative} a new version, after a write that could not conflict. */
+    long updated(Path relative) throws IOException {
+        lock.lock();
+        try {
+            load();
+            long version = ++counter;
+            String path = FileSystemImpl.slashed(relative);
+            append(version + "\tS\t" + ChangeJournal.escape(path) + "\n");
+            versions.put(path, version);
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Moves the versions of {@code from} and the files under it to {@code to}, as new versions. */
+    void moved(Path from, Path to) throws IOException {
+        lock.lock();
+        try {
+            load();
+            String source = FileSystemImpl.slashed(from);
+            String target = FileSystemImpl.slashed(to);
+            removeUnder(target);
+            List<String> moved = removeUnder(source);
+            if (!moved.contains(source)) moved.add(source);
+            for (String path : moved) {
+                String renamed = target + path.substring(source.length());
+                long version = ++counter;
+                append(version + "\tS\t" + ChangeJournal.escape(renamed) + "\n");
+                versions.put(renamed, version);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops the versions of {@code relative} and the files under it. */
+    void removed(Path relative) throws IOException {
+        lock.lock();
+        try {
+            load();
+            removeUnder(FileSystemImpl.slashed(relative));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<String> removeUnder(String path) throws IOException {
+        List<String> removed = new ArrayList<>();
+        if (versions.containsKey(path)) removed.add(path);
+        // '0' follows '/', so this is exactly the paths under the folder
+        removed.addAll(versions.subMap(path + "/", path + "0").keySet());
+        for (String p : removed) {
+            versions.remove(p);
+            append(++counter + "\tD\t" + ChangeJournal.escape(p) + "\n");
+        }
+        return removed;
+    }
+
+    // ========== File ==========
+
+    private void load() throws IOException {
+        if (loaded) return;
+        if (Files.exists(file)) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String header = in.readLine();
+                if (header == null || !header.startsWith(HEADER)) throw new IOException("Not a version file: " + file);
+                counter = Math.max(counter, Long.parseLong(header.substring(HEADER.length())));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", 3);
+                    // a line cut short by a crash is dropped
+                    if (f.length != 3) continue;
+                    long version = Long.parseLong(f[0]);
+                    String path = ChangeJournal.unescape(f[2]);
+                    if (f[1].equals("S")) versions.put(path, version);
+                    else versions.remove(path);
+                    counter = Math.max(counter, version);
+                    lines++;
+                }
+            }
+        } else if (ReplicaFollower.isRunning()) {
+            loaded = true;
+            return;
+        } else {
+            rewrite();
+        }
+        loaded = true;
+    }
+
+    private void append(String line) throws IOException {
+        if (!loaded || ReplicaFollower.isRunning()) throw new IOException("Versions of " + owner + " are read-only here");
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long offset = channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            ReplicationLog.patch(file, offset, bytes);
+        }
+        if (++lines > 2 * versions.size() + 1000) {
+            rewrite();
+            Metrics.increment("versions.compactions");
+        }
+    }
+
+    private void rewrite() throws IOException {
+        StringBuilder out = new StringBuilder(HEADER).append(counter).append('\n');
+        versions.forEach((path, version) ->
+                out.append(version).append("\tS\t").append(ChangeJournal.escape(path)).append('\n'));
+        FileSystemImpl.writeAtomically(FileSystemImpl.tempDir(owner), file, out.toString().getBytes(StandardCharsets.UTF_8));
+        lines = versions.size();
+    }
+}
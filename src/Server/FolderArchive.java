@@ -0,0 +1,257 @@
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A folder written out as one zip or tar stream, produced while it is sent.
+ * <p>
+ * Nothing is staged: entries are compressed straight into the connection, so memory stays bounded
+ * however large the folder is. While one file is written, the first
+ * {@code -Ddds.archive.readAheadBytes} (default 1 MiB) of each of the next
+ * {@code -Ddds.archive.readAheadFiles} files (default 4) are read in parallel, so folders of many
+ * small files are not paced by one read at a time; the rest of a large file is read as it is
+ * written. Zip and gzipped tar take a compression level, 0 (stored) to 9, or -1 for the default.
+ * At most {@code -Ddds.archive.threads} archives (default 4) are produced at once; more wait.
+ */
+final class FolderArchive {
+
+    private static final int READ_AHEAD_FILES = ServerConfig.getInt("archive.readAheadFiles", 4);
+    private static final int READ_AHEAD_BYTES = ServerConfig.getInt("archive.readAheadBytes", 1 << 20);
+    private static final int COPY_BYTES = 64 * 1024;
+    private static final int BLOCK = 512;
+
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+            ServerConfig.getInt("archive.threads", 4), Thread.ofPlatform().daemon().name("archive-writer-", 0).factory());
+    private static final ExecutorService READERS = Executors.newFixedThreadPool(
+            Math.max(1, READ_AHEAD_FILES) * 2, Thread.ofPlatform().daemon().name("archive-reader-", 0).factory());
+
+    enum Format {
+        ZIP, TAR, TGZ;
+
+        /** The format named {@code name} ({@code zip}, {@code tar}, {@code tgz} or {@code tar.gz}), or null. */
+        static Format of(String name) {
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "zip" -> ZIP;
+                case "tar" -> TAR;
+                case "tgz", "tar.gz" -> TGZ;
+                default -> null;
+            };
+        }
+    }
+
+    /** An entry and, for a file, a read of its first bytes that may still be running. */
+    private record Pending(Path path, BasicFileAttributes attributes, Future<byte[]> head) {
+    }
+
+    private final Path root;
+    private final Format format;
+    private final int level;
+
+    FolderArchive(Path root, Format format, int level) {
+        this.root = root;
+        this.format = format;
+        this.level = level;
+    }
+
+    /** Runs {@code task} on one of the archive threads. */
+    static void start(Runnable task) {
+        WRITERS.execute(task);
+    }
+
+    /** Writes the archive to {@code out}, and finishes the format but does not close {@code out}. */
+    void writeTo(OutputStream out) throws IOException {
+        ArrayDeque<Pending> window = new ArrayDeque<>();
+        try (Stream<Path> tree = Files.walk(root)) {
+            Iterator<Path> paths = tree.iterator();
+            switch (format) {
+                case ZIP -> {
+                    ZipOutputStream zip = new ZipOutputStream(out);
+                    zip.setLevel(level);
+                    while (next(paths, window)) {
+                        zip(zip, window.poll());
+                    }
+                    zip.finish();
+                }
+                case TAR -> {
+                    while (next(paths, window)) {
+                        tar(out, window.poll());
+                    }
+                    out.write(new byte[2 * BLOCK]);
+                }
+                case TGZ -> {
+                    GZIPOutputStream gzip = new GZIPOutputStream(out, COPY_BYTES) {
+                        {
+                            def.setLevel(level);
+                        }
+                    };
+                    while (next(paths, window)) {
+                        tar(gzip, window.poll());
+                    }
+                    gzip.write(new byte[2 * BLOCK]);
+                    gzip.finish();
+                }
+            }
+        } finally {
+            for (Pending pending : window) {
+                if (pending.head() != null) pending.head().cancel(true);
+            }
+        }
+    }
+
+    /** Tops the read-ahead window up; false once it is empty. */
+    private static boolean next(Iterator<Path> paths, ArrayDeque<Pending> window) throws IOException {
+        while (window.size() <= READ_AHEAD_FILES && paths.hasNext()) {
+            Path path = paths.next();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() && !attributes.isDirectory()) continue;
+            Future<byte[]> head = attributes.isRegularFile() ? READERS.submit(() -> head(path)) : null;
+            window.add(new Pending(path, attributes, head));
+        }
+        return !window.isEmpty();
+    }
+
+    private static byte[] head(Path file) throws IOException {
+        ColdTier.open(file);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(in.size(), READ_AHEAD_BYTES));
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) break;
+            }
+            Volumes.read(file, buffer.position());
+            return buffer.position() == buffer.capacity() ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+
+    private String name(Path path) {
+        Path relative = root.getParent() == null ? root.relativize(path) : root.getParent().relativize(path);
+        return FileSystemImpl.slashed(relative);
+    }
+
+    // ========== Zip ==========
+
+    private void zip(ZipOutputStream zip, Pending pending) throws IOException {
+        boolean directory = pending.attributes().isDirectory();
+        ZipEntry entry = new ZipEntry(name(pending.path()) + (directory ? "/" : ""));
+        entry.setLastModifiedTime(pending.attributes().lastModifiedTime());
+        zip.putNextEntry(entry);
+        if (!directory) copy(pending, zip, Long.MAX_VALUE);
+        zip.closeEntry();
+        Metrics.increment("archive.entries");
+    }
+
+    // ========== Tar ==========
+
+    private void tar(OutputStream out, Pending pending) throws IOException {
+        boolean directory = pending.attributes().isDirectory();
+        String name = name(pending.path()) + (directory ? "/" : "");
+        long size = directory ? 0 : pending.attributes().size();
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 100) {
+            // GNU long name: the name is the data of an entry of its own
+            out.write(header("././@LongLink", bytes.length + 1, 0, 'L'));
+            out.write(bytes);
+            out.write(new byte[padding(bytes.length + 1) + 1]);
+        }
+        out.write(header(name, size, pending.attributes().lastModifiedTime().to(TimeUnit.SECONDS), directory ? '5' : '0'));
+        if (directory) {
+            Metrics.increment("archive.entries");
+            return;
+        }
+        // the header promised the size seen when the entry was listed: a file that grew is cut
+        // there, one that shrank is padded with zeros
+        long written = copy(pending, out, size);
+        out.write(new byte[(int) (size - written) + padding(size)]);
+        Metrics.increment("archive.entries");
+    }
+
+    private static byte[] header(String name, long size, long modified, char type) {
+        byte[] header = new byte[BLOCK];
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, 0, Math.min(bytes.length, 100));
+        octal(header, 100, 8, type == '5' ? 0755 : 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        if (size < 077777777777L) {
+            octal(header, 124, 12, size);
+        } else {
+            // base-256, for files of 8 GiB and more
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(header, 136, 12, modified);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        octal(header, 148, 7, sum);
+        return header;
+    }
+
+    /** {@code value} as zero-padded octal digits and a NUL in {@code length} bytes at {@code offset}. */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        String padded = "0".repeat(Math.max(0, length - 1 - digits.length())) + digits;
+        System.arraycopy(padded.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+        header[offset + length - 1] = 0;
+    }
+
+    private static int padding(long size) {
+        return (int) ((BLOCK - size % BLOCK) % BLOCK);
+    }
+
+    // ========== Contents ==========
+
+    /** Writes up to {@code limit} bytes of the file: its read-ahead head, then the rest from disk. */
+    private static long copy(Pending pending, OutputStream out, long limit) throws IOException {
+        byte[] head;
+        try {
+            head = pending.head().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while archiving " + pending.path(), e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read " + pending.path(), e.getCause());
+        }
+        long written = Math.min(head.length, limit);
+        out.write(head, 0, (int) written);
+        if (head.length < READ_AHEAD_BYTES || written == limit) return written;
+        try (FileChannel in = FileChannel.open(pending.path(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BYTES);
+            while (written < limit) {
+                buffer.clear().limit((int) Math.min(COPY_BYTES, limit - written));
+                int n = in.read(buffer, written);
+                if (n < 0) break;
+                out.write(buffer.array(), 0, n);
+                written += n;
+            }
+            Volumes.read(pending.path(), written - head.length);
+        }
+        return written;
+    }
+}
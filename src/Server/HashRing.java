@@ -0,0 +1,58 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring mapping keys (usernames) to node ids.
+ * <p>
+ * Every node is placed on the ring at {@code vnodes} points; a key belongs to the first node point
+ * at or after its own hash. Adding or removing one node therefore only moves the keys between that
+ * node's points and their predecessors, about 1/N of them.
+ */
+final class HashRing {
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    HashRing(Collection<String> nodeIds, int vnodes) {
+        for (String node : nodeIds) {
+            for (int i = 0; i < vnodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /** A ring where each node has its own number of points, so it gets that share of the keys. */
+    HashRing(Map<String, Integer> vnodesByNode) {
+        vnodesByNode.forEach((node, vnodes) -> {
+            for (int i = 0; i < vnodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        });
+    }
+
+    String owner(String key) {
+        if (points.isEmpty()) {
+            throw new IllegalStateException("Hash ring has no nodes");
+        }
+        Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : points.firstEntry().getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
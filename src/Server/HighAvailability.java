@@ -0,0 +1,276 @@
+package Server;
+
+import Interface.ReplicationInterface;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.rmi.ConnectException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Primary/backup roles of a {@code Server} + {@code ServerBackup} pair, fenced by an epoch.
+ * <p>
+ * Each node heartbeats its peer ({@code -Ddds.ha.peer}) every {@code -Ddds.ha.heartbeatMillis}.
+ * The backup feeds the primary's answers to a {@link PhiAccrualDetector}; once phi passes
+ * {@code -Ddds.ha.phiThreshold} it promotes itself with the next epoch, saved to
+ * {@code <data dir>/epoch} before it takes a write. A primary that learns of a primary with a
+ * higher epoch, from a heartbeat either way or on startup, steps down to a backup of it and refuses
+ * writes. A primary that has not confirmed for {@code -Ddds.ha.leaseMillis} that its peer is not
+ * a newer primary asks again before each write, so one that was stalled through a failover does
+ * not take writes before it finds out it was replaced. A peer that refuses connections is taken
+ * to be down; one that does not answer in time is not.
+ */
+public final class HighAvailability {
+
+    public enum Role { PRIMARY, BACKUP }
+
+    private static final long HEARTBEAT_MILLIS = ServerConfig.getLong("ha.heartbeatMillis", 200);
+    private static final double PHI_THRESHOLD = ServerConfig.getDouble("ha.phiThreshold", 8.0);
+    private static final long PAUSE_MILLIS = ServerConfig.getLong("ha.acceptablePauseMillis", 2000);
+    private static final long LEASE_MILLIS = ServerConfig.getLong("ha.leaseMillis", 1000);
+    private static final long LEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS);
+    private static final Path EPOCH_FILE = ServerConfig.dataDir().resolve("epoch");
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final ExecutorService CALLS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final PhiAccrualDetector DETECTOR = new PhiAccrualDetector(HEARTBEAT_MILLIS, PAUSE_MILLIS, 100);
+
+    private static volatile Role role = Role.PRIMARY;
+    private static volatile long epoch;
+    private static volatile long primaryEpoch;
+    private static volatile long confirmedNanos;
+    private static volatile ReplicationInterface peerStub;
+    private static String peer = "";
+    private static AuthFactoryImpl auth;
+
+    private HighAvailability() {
+    }
+
+    /**
+     * Takes up {@code initial}, or the backup role if the peer already is a primary of at least this
+     * node's epoch, and starts heartbeating. Without a peer (a cluster node, unless
+     * {@code -Ddds.ha.peer} is set) the node is simply the primary.
+     */
+    public static void start(Role initial, AuthFactoryImpl authService) throws IOException {
+        auth = authService;
+        String defaultPeer = initial == Role.BACKUP ? ServerConfig.get("replication.primary", "localhost:1099")
+                : Cluster.enabled() ? "" : "localhost:1100";
+        peer = ServerConfig.get("ha.peer", defaultPeer);
+        epoch = readEpoch();
+        Metrics.gauge("ha.epoch", () -> epoch);
+        Metrics.gauge("ha.primary", () -> role == Role.PRIMARY ? 1 : 0);
+
+        if (peer.isEmpty()) {
+            role = Role.PRIMARY;
+            ReplicationLog.enable();
+            return;
+        }
+        if (initial == Role.PRIMARY) {
+            if (epoch == 0) writeEpoch(epoch = 1);
+            long peerEpoch = startupCheck();
+            if (peerEpoch >= epoch) {
+                System.out.println("[HA] " + peer + " is the primary at epoch " + peerEpoch + "; starting as its backup");
+                initial = Role.BACKUP;
+                primaryEpoch = peerEpoch;
+            }
+        }
+        role = initial;
+        if (initial == Role.PRIMARY) {
+            confirmedNanos = System.nanoTime();
+            ReplicationLog.enable();
+        } else {
+            DETECTOR.reset(System.nanoTime());
+            ReplicaFollower.start(auth, peer);
+        }
+        System.out.println("[HA] " + role + " at epoch " + epoch + ", peer " + peer);
+        Thread.ofPlatform().daemon().name("ha-monitor").start(HighAvailability::monitor);
+    }
+
+    public static Role role() {
+        return role;
+    }
+
+    public static long epoch() {
+        return epoch;
+    }
+
+    /** Throws unless this node is the primary and, within the lease, nothing says otherwise. */
+    public static void checkWritable() throws RemoteException {
+        if (role != Role.PRIMARY) {
+            throw new RemoteException("Not the primary (epoch " + epoch + "): send writes to " + peer);
+        }
+        if (peer.isEmpty() || System.nanoTime() - confirmedNanos < LEASE_NANOS) return;
+
+        Metrics.increment("ha.lease.checks");
+        try {
+            Trace.run("ha.lease", () -> CALLS.submit(HighAvailability::beat).get(LEASE_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            // peer neither answered nor refused: confirmedNanos stays stale
+        } catch (Exception e) {
+            throw new RemoteException("Could not confirm the primary lease", e);
+        }
+        if (role != Role.PRIMARY) {
+            throw new RemoteException("Not the primary (epoch " + epoch + "): send writes to " + peer);
+        }
+        if (System.nanoTime() - confirmedNanos >= LEASE_NANOS) {
+            Metrics.increment("ha.lease.refused");
+            throw new RemoteException("Could not confirm the primary lease with " + peer + " (epoch " + epoch + ")");
+        }
+    }
+
+    /** A heartbeat from the peer; see {@link Interface.ReplicationInterface#heartbeat}. */
+    static long onHeartbeat(long peerEpoch, boolean peerIsPrimary) {
+        if (peerIsPrimary && peerEpoch > epoch && role == Role.PRIMARY) {
+            demote(peerEpoch);
+        }
+        return role == Role.PRIMARY ? epoch : -1;
+    }
+
+    // ========== Heartbeats ==========
+
+    private static void monitor() {
+        Future<?> pending = null;
+        while (true) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (pending == null || pending.isDone()) {
+                pending = CALLS.submit(HighAvailability::beat);
+            }
+            if (role == Role.BACKUP) {
+                long now = System.nanoTime();
+                double phi = DETECTOR.phi(now);
+                if (phi > PHI_THRESHOLD) {
+                    promote(phi, DETECTOR.silenceMillis(now));
+                }
+            }
+        }
+    }
+
+    /** One heartbeat to the peer, acting on its answer. */
+    private static void beat() {
+        long sentNanos = System.nanoTime();
+        long peerEpoch;
+        try {
+            peerEpoch = ping();
+        } catch (ConnectException | NotBoundException e) {
+            // nothing is listening there, so the peer cannot be acting as a primary
+            if (role == Role.PRIMARY) confirmedNanos = sentNanos;
+            return;
+        } catch (Exception e) {
+            return;
+        }
+        if (role == Role.BACKUP) {
+            if (peerEpoch >= 0) {
+                primaryEpoch = Math.max(primaryEpoch, peerEpoch);
+                DETECTOR.heartbeat(System.nanoTime());
+            }
+        } else if (peerEpoch > epoch) {
+            demote(peerEpoch);
+        } else {
+            confirmedNanos = sentNanos;
+        }
+    }
+
+    private static long ping() throws Exception {
+        ReplicationInterface stub = peerStub;
+        if (stub == null) {
+            stub = (ReplicationInterface) Naming.lookup("rmi://" + peer + "/Replication");
+            peerStub = stub;
+        }
+        try {
+            return stub.heartbeat(ClusterSecret.get(), epoch, role == Role.PRIMARY);
+        } catch (RemoteException e) {
+            peerStub = null;
+            throw e;
+        }
+    }
+
+    /** The peer's epoch if it is a primary, else -1; waits at most a few heartbeats for it to answer. */
+    private static long startupCheck() {
+        try {
+            return CALLS.submit(HighAvailability::ping).get(Math.max(LEASE_MILLIS, 5 * HEARTBEAT_MILLIS), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // ========== Role changes ==========
+
+    private static void promote(double phi, long silenceMillis) {
+        LOCK.lock();
+        try {
+            if (role == Role.PRIMARY) return;
+            ReplicaFollower.stop();
+            // journals cached while following may predate entries replayed since
+            ChangeJournal.forgetAll();
+            FileVersions.forgetAll();
+            SearchIndex.forgetAll();
+            Usage.forgetAll();
+            long next = Math.max(epoch, primaryEpoch) + 1;
+            writeEpoch(next);
+            epoch = next;
+            ReplicationLog.enable();
+            confirmedNanos = System.nanoTime();
+            role = Role.PRIMARY;
+            Metrics.increment("ha.promotions");
+            System.out.printf("[HA] No heartbeat from %s for %d ms (phi %.1f); promoted to primary at epoch %d%n",
+                    peer, silenceMillis, phi, next);
+        } catch (IOException e) {
+            System.err.println("[HA] Could not save epoch, staying a backup: " + e.getMessage());
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static void demote(long newerEpoch) {
+        LOCK.lock();
+        try {
+            if (role == Role.BACKUP) return;
+            role = Role.BACKUP;
+            ReplicationLog.disable();
+            ChangeJournal.forgetAll();
+            FileVersions.forgetAll();
+            SearchIndex.forgetAll();
+            Usage.forgetAll();
+            primaryEpoch = newerEpoch;
+            DETECTOR.reset(System.nanoTime());
+            ReplicaFollower.start(auth, peer);
+            Metrics.increment("ha.demotions");
+            System.out.println("[HA] " + peer + " is the primary at epoch " + newerEpoch
+                    + "; stepped down from epoch " + epoch + " to follow it");
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    // ========== Epoch file ==========
+
+    private static long readEpoch() throws IOException {
+        if (!Files.exists(EPOCH_FILE)) return 0;
+        try {
+            return Long.parseLong(Files.readString(EPOCH_FILE).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt epoch file " + EPOCH_FILE, e);
+        }
+    }
+
+    private static void writeEpoch(long value) throws IOException {
+        Path temp = EPOCH_FILE.resolveSibling("epoch.tmp");
+        if (EPOCH_FILE.getParent() != null) Files.createDirectories(EPOCH_FILE.getParent());
+        Files.writeString(temp, Long.toString(value));
+        Files.move(temp, EPOCH_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,177 @@
+package Server;
+
+import Interface.LatencyHistogram;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics registry: per-operation latency histograms and error counts, plain
+ * counters and sampled gauges. Everything is lock-free on the recording side.
+ * <p>
+ * Every operation and the server totals are also published as JMX MXBeans under the
+ * {@code DDSystem} domain, and {@link MetricsServiceImpl} serves them over RMI.
+ */
+public final class Metrics {
+
+    public static final String BYTES_IN = "bytes.in";
+    public static final String BYTES_OUT = "bytes.out";
+    public static final String EXPORTED_OBJECTS = "rmi.exported";
+    public static final String ACTIVE_SESSIONS = "sessions.active";
+
+    private static final ConcurrentMap<String, OperationStats> OPERATIONS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private static final MBeanServer MBEAN_SERVER = ManagementFactory.getPlatformMBeanServer();
+
+    static {
+        gauge("mirror.queue", MirrorWriter::pendingWrites);
+        register("DDSystem:type=Server", new ServerMetrics());
+    }
+
+    private Metrics() {
+    }
+
+    // ========== Operations ==========
+
+    public static final class OperationStats implements OperationMetricsMXBean {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        /** Records one call that started at {@code startNanos} ({@link System#nanoTime()}). */
+        public void record(long startNanos) {
+            latency.recordSince(startNanos);
+        }
+
+        public void error() {
+            errors.increment();
+        }
+
+        @Override public long getCount() { return latency.count(); }
+        @Override public long getErrors() { return errors.sum(); }
+        @Override public double getMeanMicros() { return latency.mean(); }
+        @Override public long getP50Micros() { return latency.percentile(50); }
+        @Override public long getP99Micros() { return latency.percentile(99); }
+        @Override public long getP999Micros() { return latency.percentile(99.9); }
+        @Override public long getMaxMicros() { return latency.max(); }
+    }
+
+    public static OperationStats operation(String name) {
+        OperationStats stats = OPERATIONS.get(name);
+        if (stats != null) return stats;
+        return OPERATIONS.computeIfAbsent(name, n -> {
+            OperationStats created = new OperationStats();
+            register("DDSystem:type=Operation,name=" + ObjectName.quote(n), created);
+            return created;
+        });
+    }
+
+    /**
+     * Wraps {@code target} so every call through {@code iface} is timed as {@code prefix.<method>},
+     * both in the metrics and as a span of the current trace.
+     * Exceptions thrown by the target count as errors and are rethrown unchanged.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T instrument(Class<T> iface, T target, String prefix) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(target, args);
+            }
+            OperationStats stats = operation(prefix + "." + method.getName());
+            long start = System.nanoTime();
+            try {
+                return Trace.call(prefix + "." + method.getName(), () -> method.invoke(target, args));
+            } catch (InvocationTargetException e) {
+                stats.error();
+                throw e.getCause();
+            } finally {
+                stats.record(start);
+            }
+        };
+        return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface}, handler);
+    }
+
+    // ========== Counters and gauges ==========
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long delta) {
+        COUNTERS.computeIfAbsent(counter, c -> new LongAdder()).add(delta);
+    }
+
+    /** Unexports {@code remote}, so that {@link #EXPORTED_OBJECTS} counts only live objects. */
+    static void unexport(Remote remote) {
+        try {
+            if (UnicastRemoteObject.unexportObject(remote, true)) add(EXPORTED_OBJECTS, -1);
+        } catch (NoSuchObjectException e) {
+            // already unexported
+        }
+    }
+
+    public static long counter(String counter) {
+        LongAdder adder = COUNTERS.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /** Registers a value sampled on every read, e.g. a queue depth. */
+    public static void gauge(String name, LongSupplier supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    public static long gaugeValue(String name) {
+        LongSupplier supplier = GAUGES.get(name);
+        return supplier == null ? 0 : supplier.getAsLong();
+    }
+
+    // ========== Export ==========
+
+    public static MetricsSnapshot snapshot() {
+        Map<String, Long> counters = new TreeMap<>();
+        COUNTERS.forEach((name, adder) -> counters.put(name, adder.sum()));
+        Map<String, Long> gauges = new TreeMap<>();
+        GAUGES.forEach((name, supplier) -> gauges.put(name, supplier.getAsLong()));
+        Map<String, LatencyHistogram.Snapshot> operations = new TreeMap<>();
+        Map<String, Long> errors = new TreeMap<>();
+        OPERATIONS.forEach((name, stats) -> {
+            operations.put(name, stats.latency.snapshot());
+            errors.put(name, stats.errors.sum());
+        });
+        return new MetricsSnapshot(System.currentTimeMillis(), counters, gauges, operations, errors);
+    }
+
+    private static void register(String objectName, Object mbean) {
+        try {
+            ObjectName name = new ObjectName(objectName);
+            if (!MBEAN_SERVER.isRegistered(name)) {
+                MBEAN_SERVER.registerMBean(mbean, name);
+            }
+        } catch (Exception e) {
+            System.err.println("[METRICS] Could not register MBean " + objectName + ": " + e.getMessage());
+        }
+    }
+
+    private static class ServerMetrics implements ServerMetricsMXBean {
+        @Override public long getActiveSessions() { return gaugeValue(ACTIVE_SESSIONS); }
+        @Override public long getExportedObjects() { return counter(EXPORTED_OBJECTS); }
+        @Override public long getBytesIn() { return counter(BYTES_IN); }
+        @Override public long getBytesOut() { return counter(BYTES_OUT); }
+        @Override public Map<String, Long> getCounters() { return snapshot().getCounters(); }
+        @Override public Map<String, Long> getGauges() { return snapshot().getGauges(); }
+    }
+}
@@ -0,0 +1,30 @@
+package Server;
+
+import Interface.MetricsService;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+public class MetricsServiceImpl extends UnicastRemoteObject implements MetricsService {
+
+    public MetricsServiceImpl() throws RemoteException {
+        super();
+        Metrics.increment(Metrics.EXPORTED_OBJECTS);
+    }
+
+    @Override
+    public MetricsSnapshot getSnapshot() throws RemoteException {
+        return Metrics.snapshot();
+    }
+
+    @Override
+    public String scrape() throws RemoteException {
+        return Metrics.snapshot().toPrometheus();
+    }
+
+    @Override
+    public List<String> getSlowOperations() throws RemoteException {
+        return Trace.slowOperations();
+    }
+}
@@ -0,0 +1,70 @@
+package Server;
+
+import Interface.LatencyHistogram;
+
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Point-in-time copy of every counter, gauge and operation histogram, as returned by
+ * {@code MetricsService}.
+ */
+public class MetricsSnapshot implements Serializable {
+    private final long capturedAtMillis;
+    private final Map<String, Long> counters;
+    private final Map<String, Long> gauges;
+    private final Map<String, LatencyHistogram.Snapshot> operations;
+    private final Map<String, Long> errors;
+
+    public MetricsSnapshot(long capturedAtMillis, Map<String, Long> counters, Map<String, Long> gauges,
+                           Map<String, LatencyHistogram.Snapshot> operations, Map<String, Long> errors) {
+        this.capturedAtMillis = capturedAtMillis;
+        this.counters = counters;
+        this.gauges = gauges;
+        this.operations = operations;
+        this.errors = errors;
+    }
+
+    public long getCapturedAtMillis() {
+        return capturedAtMillis;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getOperations() {
+        return operations;
+    }
+
+    public Map<String, Long> getErrors() {
+        return errors;
+    }
+
+    /** Renders the snapshot in the Prometheus text exposition format. */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        out.append("# TYPE dds_counter counter\n");
+        counters.forEach((name, value) ->
+                out.append("dds_counter{name=\"").append(name).append("\"} ").append(value).append('\n'));
+        out.append("# TYPE dds_gauge gauge\n");
+        gauges.forEach((name, value) ->
+                out.append("dds_gauge{name=\"").append(name).append("\"} ").append(value).append('\n'));
+        out.append("# TYPE dds_operation_latency_micros summary\n");
+        operations.forEach((name, s) -> {
+            for (double q : new double[]{50, 99, 99.9}) {
+                out.append(String.format(Locale.ROOT, "dds_operation_latency_micros{op=\"%s\",quantile=\"%s\"} %d%n",
+                        name, q / 100, s.percentile(q)));
+            }
+            out.append(String.format(Locale.ROOT, "dds_operation_latency_micros_sum{op=\"%s\"} %.0f%n", name, s.mean() * s.count()));
+            out.append(String.format(Locale.ROOT, "dds_operation_latency_micros_count{op=\"%s\"} %d%n", name, s.count()));
+            out.append(String.format(Locale.ROOT, "dds_operation_errors_total{op=\"%s\"} %d%n", name, errors.getOrDefault(name, 0L)));
+        });
+        return out.toString();
+    }
+}
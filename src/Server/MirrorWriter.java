@@ -0,0 +1,162 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps {@code storage/<user>/local} in step with {@code serverStorage/<user>/local}.
+ * <p>
+ * The mode is chosen with {@code -Ddds.mirror.mode}:
+ * <ul>
+ *   <li>{@code LINK} (default) - hard link to the server file, falls back to {@code TRANSFER}
+ *       when the two trees are on different volumes or links are not supported.</li>
+ *   <li>{@code TRANSFER} - {@link FileChannel#transferTo} copy, kept inside the kernel.</li>
+ *   <li>{@code ASYNC} - {@code TRANSFER} done by a background writer, off the request path.</li>
+ *   <li>{@code COPY} - the old behaviour, a plain {@link Files#copy}.</li>
+ * </ul>
+ * In {@code ASYNC} mode every mirror operation (files, folders, moves and deletes) goes through
+ * the same single writer thread so they are applied in the order they were issued.
+ */
+public final class MirrorWriter {
+
+    public enum Mode { COPY, LINK, TRANSFER, ASYNC }
+
+    private static final Mode MODE = parseMode(ServerConfig.get("mirror.mode", "LINK"));
+
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mirror-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MirrorWriter() {
+    }
+
+    private interface MirrorTask {
+        void run() throws IOException;
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[MIRROR] Unknown mirror mode '" + value + "', using LINK");
+            return Mode.LINK;
+        }
+    }
+
+    public static Mode mode() {
+        return MODE;
+    }
+
+    /** Number of mirror operations queued on the background writer. */
+    public static int pendingWrites() {
+        return PENDING.get();
+    }
+
+    // ================= Mirror operations =================
+
+    public static void mirrorFile(Path source, Path mirror) throws IOException {
+        submit(() -> {
+            if (!Files.exists(source)) return;
+            Files.createDirectories(mirror.getParent());
+            if (MODE != Mode.LINK && ColdTier.isCold(source)) {
+                // a copy of a cold file: its mirror is a stub of the same compressed copy
+                Files.deleteIfExists(mirror);
+                ColdTier.copy(source, mirror);
+                return;
+            }
+            switch (MODE) {
+                case COPY -> Files.copy(source, mirror, StandardCopyOption.REPLACE_EXISTING);
+                case LINK -> link(source, mirror);
+                default -> transfer(source, mirror);
+            }
+        });
+    }
+
+    public static void mirrorDirectory(Path mirror) throws IOException {
+        submit(() -> Files.createDirectories(mirror));
+    }
+
+    public static void mirrorMove(Path from, Path to) throws IOException {
+        submit(() -> {
+            if (!Files.exists(from)) return;
+            Files.createDirectories(to.getParent());
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        });
+    }
+
+    public static void mirrorDelete(Path target) throws IOException {
+        submit(() -> deleteRecursively(target));
+    }
+
+    // ================= Copy primitives =================
+
+    /**
+     * Copies {@code source} to {@code target} with {@link FileChannel#transferTo}, which lets the
+     * kernel move the bytes directly between the two files.
+     */
+    public static void transfer(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target,
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private static void link(Path source, Path mirror) throws IOException {
+        try {
+            Files.deleteIfExists(mirror);
+            Files.createLink(mirror, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            transfer(source, mirror);
+        }
+    }
+
+    private static void submit(MirrorTask task) throws IOException {
+        if (MODE != Mode.ASYNC) {
+            task.run();
+            return;
+        }
+        PENDING.incrementAndGet();
+        WRITER.execute(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                System.err.println("[MIRROR] " + e);
+            } finally {
+                PENDING.decrementAndGet();
+            }
+        });
+    }
+
+    private static void deleteRecursively(Path target) throws IOException {
+        if (!Files.exists(target)) return;
+        Files.walkFileTree(target, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,340 @@
+package Server;
+
+import Interface.FileChange;
+import Interface.NodeService;
+import Interface.SubjectRI;
+import Interface.WriteResult;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+public class NodeServiceImpl extends UnicastRemoteObject implements NodeService {
+
+    private static final Path DATA_DIR = ServerConfig.dataDir().toAbsolutePath().normalize();
+    private static final Pattern USERNAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]{0,63}");
+
+    private final AuthFactoryImpl auth;
+
+    public NodeServiceImpl(AuthFactoryImpl auth) throws RemoteException {
+        super();
+        this.auth = auth;
+        Metrics.increment(Metrics.EXPORTED_OBJECTS);
+    }
+
+    /** Parses a relative path sent by another node, refusing anything that would escape its root. */
+    private static Path relative(String path) throws RemoteException {
+        Path relative = Paths.get(path).normalize();
+        if (relative.isAbsolute() || relative.startsWith("..")) {
+            throw new RemoteException("Invalid path: " + path);
+        }
+        return relative;
+    }
+
+    /** Checks a username sent by another node, refusing one that would resolve outside its own folders. */
+    private static String user(String username) throws RemoteException {
+        if (username == null || !USERNAME.matcher(username).matches()) {
+            throw new RemoteException("Invalid username: " + username);
+        }
+        return username;
+    }
+
+    /** Parses a path sent by a node handing users over, which must lie in a user's storage folders. */
+    private static Path imported(String path) throws RemoteException {
+        Path relative = relative(path);
+        if (relative.getNameCount() < 2
+                || !(relative.startsWith("storage") || relative.startsWith("serverStorage"))) {
+            throw new RemoteException("Invalid path: " + path);
+        }
+        user(relative.getName(1).toString());
+        return relative;
+    }
+
+    @Override
+    public String getNodeId(String secret) throws RemoteException {
+        ClusterSecret.check(secret);
+        return Cluster.selfId();
+    }
+
+    @Override
+    public boolean hasUser(String secret, String username) throws RemoteException {
+        ClusterSecret.check(secret);
+        return Files.exists(FileSystemImpl.STORAGE_ROOT.resolve(user(username)).resolve("shared"));
+    }
+
+    @Override
+    public List<String> localSharees(String secret, String owner, String relative) throws RemoteException {
+        ClusterSecret.check(secret);
+        return FileSystemImpl.localSharees(user(owner), relative(relative));
+    }
+
+    @Override
+    public void putShared(String secret, String user, String owner, String relative, String node, String source)
+            throws RemoteException {
+        ClusterSecret.check(secret);
+        Path target = FileSystemImpl.sharedPath(user(user), user(owner), relative(relative));
+        BlockCache.invalidate(owner, relative(relative));
+        try {
+            if (source == null) {
+                Files.createDirectories(target);
+                ReplicationLog.mkdir(target);
+                SearchIndex.added(target);
+            } else {
+                Path staged = fetch(node, source, FileSystemImpl.tempDir(user));
+                try {
+                    FileSystemImpl.installFile(staged, target);
+                } finally {
+                    Files.deleteIfExists(staged);
+                }
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Error writing shared copy " + target, e);
+        }
+    }
+
+    @Override
+    public void moveShared(String secret, String user, String owner, String from, String to) throws RemoteException {
+        ClusterSecret.check(secret);
+        user(user);
+        user(owner);
+        Path sharedOld = FileSystemImpl.sharedPath(user, owner, relative(from));
+        Path sharedNew = FileSystemImpl.sharedPath(user, owner, relative(to));
+        if (!Files.exists(sharedOld)) return;
+        BlockCache.invalidate(owner, relative(from));
+        BlockCache.invalidate(owner, relative(to));
+        try {
+            Files.createDirectories(sharedNew.getParent());
+            Usage.Change source = Usage.before(sharedOld);
+            Usage.Change target = Usage.before(sharedNew);
+            Files.move(sharedOld, sharedNew, StandardCopyOption.REPLACE_EXISTING);
+            source.done();
+            target.done();
+            ReplicationLog.move(sharedOld, sharedNew);
+            SearchIndex.moved(sharedOld, sharedNew);
+        } catch (IOException e) {
+            throw new RemoteException("Error moving shared copy " + sharedOld, e);
+        }
+    }
+
+    @Override
+    public void deleteShared(String secret, String user, String owner, String relative) throws RemoteException {
+        ClusterSecret.check(secret);
+        Path target = FileSystemImpl.sharedPath(user(user), user(owner), relative(relative));
+        BlockCache.invalidate(owner, relative(relative));
+        try {
+            Tombstones.bury(user, target, null);
+        } catch (IOException e) {
+            throw new RemoteException("Error deleting shared copy " + relative, e);
+        }
+    }
+
+    @Override
+    public WriteResult putOwned(String secret, String owner, String relative, String node, String source,
+                                String fromUser, long expectedVersion) throws RemoteException {
+        ClusterSecret.check(secret);
+        user(owner);
+        Path rel = relative(relative);
+        Path ownerServer = FileSystemImpl.ownerServerPath(owner, rel);
+        WriteResult result;
+        try {
+            Path staged = fetch(node, source, FileSystemImpl.tempDir(owner));
+            try {
+                Usage.admit(ownerServer, Files.size(staged));
+                result = FileVersions.of(owner).write(rel, expectedVersion, () -> FileSystemImpl.installFile(staged, ownerServer));
+            } finally {
+                Files.deleteIfExists(staged);
+            }
+            if (!result.isApplied()) return result;
+            MirrorWriter.mirrorFile(ownerServer, FileSystemImpl.ownerMirrorPath(owner, rel));
+        } catch (IOException e) {
+            throw new RemoteException("Error uploading file: " + relative, e);
+        }
+        ChangeJournal.record(owner, FileChange.Kind.UPDATED, rel, null, ChangeJournal.NO_ORIGIN);
+        FileSystemImpl.propagateWrite(ownerServer, null, owner, rel, FileSystemImpl.sharees(owner, rel), fromUser);
+        return result;
+    }
+
+    @Override
+    public WriteResult moveOwned(String secret, String owner, String from, String to, long expectedVersion)
+            throws RemoteException {
+        ClusterSecret.check(secret);
+        user(owner);
+        Path relativeOld = relative(from);
+        Path relativeNew = relative(to);
+        List<String> authorized = FileSystemImpl.sharees(owner, relativeOld);
+        WriteResult result;
+        try {
+            result = FileVersions.of(owner).change(relativeOld, expectedVersion,
+                    () -> FileSystemImpl.applyMove(owner, relativeOld, relativeNew, ChangeJournal.NO_ORIGIN));
+        } catch (IOException e) {
+            throw new RemoteException("Error renaming: " + from, e);
+        }
+        if (result.isApplied()) FileSystemImpl.propagateMove(owner, relativeOld, relativeNew, authorized);
+        return result;
+    }
+
+    @Override
+    public WriteResult deleteOwned(String secret, String owner, String relative, long expectedVersion)
+            throws RemoteException {
+        ClusterSecret.check(secret);
+        user(owner);
+        Path rel = relative(relative);
+        List<String> authorized = FileSystemImpl.sharees(owner, rel);
+        WriteResult result;
+        try {
+            result = FileVersions.of(owner).change(rel, expectedVersion,
+                    () -> FileSystemImpl.applyDelete(owner, rel, ChangeJournal.NO_ORIGIN));
+        } catch (IOException e) {
+            throw new RemoteException("Error deleting file: " + relative, e);
+        }
+        if (result.isApplied()) FileSystemImpl.propagateDelete(owner, rel, authorized);
+        return result;
+    }
+
+    @Override
+    public long[] ownedVersions(String secret, String owner, List<String> relatives) throws RemoteException {
+        ClusterSecret.check(secret);
+        user(owner);
+        long[] result = new long[relatives.size()];
+        try {
+            FileVersions versions = FileVersions.of(owner);
+            for (int i = 0; i < result.length; i++) {
+                result[i] = versions.current(relative(relatives.get(i)));
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Error reading versions of " + owner + "'s files", e);
+        }
+        return result;
+    }
+
+    @Override
+    public void notify(String secret, String username, State state) throws RemoteException {
+        ClusterSecret.check(secret);
+        SubjectRI subject = SubjectRegistry.get(username);
+        if (subject != null) {
+            subject.setState(state);
+        }
+    }
+
+    @Override
+    public void publish(String secret, List<String> topics, State state) throws RemoteException {
+        ClusterSecret.check(secret);
+        Topics.deliver(topics, state, null);
+    }
+
+    @Override
+    public byte[] read(String secret, String path, long offset, int max) throws RemoteException {
+        ClusterSecret.check(secret);
+        return FileSystemImpl.readChunk(path, offset, max);
+    }
+
+    /** Copies {@code source} from {@code node} into a new temp file in {@code tempDir}. */
+    private static Path fetch(String node, String source, Path tempDir) throws IOException {
+        NodeService from = Cluster.stub(node);
+        Path staged = FileSystemImpl.stage(tempDir, (offset, max) -> from.read(ClusterSecret.get(), source, offset, max));
+        if (staged == null) {
+            throw new NoSuchFileException(source, null, "gone from node " + node);
+        }
+        return staged;
+    }
+
+    // ========== Rebalancing ==========
+
+    @Override
+    public void importUser(String secret, String username, String password) throws RemoteException {
+        ClusterSecret.check(secret);
+        auth.adopt(user(username), password);
+    }
+
+    @Override
+    public void importFile(String secret, String path, String node, String source) throws RemoteException {
+        ClusterSecret.check(secret);
+        Path relative = imported(path);
+        Path target = DATA_DIR.resolve(relative);
+        try {
+            if (source == null) {
+                Files.createDirectories(target);
+                ReplicationLog.mkdir(target);
+                SearchIndex.added(target);
+            } else {
+                Path staged = fetch(node, source, FileSystemImpl.tempDir(relative.getName(1).toString()));
+                try {
+                    FileSystemImpl.installFile(staged, target);
+                } finally {
+                    Files.deleteIfExists(staged);
+                }
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Error importing " + path, e);
+        }
+    }
+
+    /**
+     * Hands every user this node stores but no longer owns (the cluster grew or shrank since the
+     * data was written) over to its owner: credentials, server files and storage tree.
+     *
+     * @return the number of users that could not be moved yet
+     */
+    public int rebalance() {
+        int remaining = 0;
+        for (Map.Entry<String, String> user : auth.credentials().entrySet()) {
+            String username = user.getKey();
+            if (Cluster.isLocal(username)) continue;
+            try {
+                NodeService owner = Cluster.node(username);
+                owner.importUser(ClusterSecret.get(), username, user.getValue());
+                for (Path root : List.of(FileSystemImpl.SERVERSTORAGE_ROOT.resolve(username),
+                                         FileSystemImpl.STORAGE_ROOT.resolve(username))) {
+                    export(owner, username, root);
+                }
+                auth.forget(username);
+                ChangeJournal.forget(username);
+                FileVersions.forget(username);
+                SearchIndex.forget(username);
+                Usage.forget(username);
+                for (Path root : List.of(FileSystemImpl.SERVERSTORAGE_ROOT.resolve(username),
+                                         FileSystemImpl.STORAGE_ROOT.resolve(username))) {
+                    FileSystemImpl.deleteRecursively(root);
+                    ReplicationLog.delete(root);
+                }
+                System.out.println("[CLUSTER] Moved '" + username + "' to node " + Cluster.ownerOf(username));
+            } catch (IOException e) {
+                remaining++;
+                System.err.println("[CLUSTER] Could not move '" + username + "': " + e.getMessage());
+            }
+        }
+        return remaining;
+    }
+
+    /** Has {@code owner} pull every file under {@code root} from this node, a chunk at a time. */
+    private static void export(NodeService owner, String username, Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> tree = Files.walk(root, FileVisitOption.FOLLOW_LINKS)) {
+            for (Path p : (Iterable<Path>) tree::iterator) {
+                if (root.relativize(p).startsWith(".tmp") || root.relativize(p).startsWith(".trash")
+                        || root.relativize(p).startsWith(ColdTier.COLD)) continue;
+                String path = FileSystemImpl.slashed(DATA_DIR.relativize(p.toAbsolutePath().normalize()));
+                if (Files.isDirectory(p)) {
+                    owner.importFile(ClusterSecret.get(), path, null, null);
+                    continue;
+                }
+                Path pin = FileSystemImpl.pin(p, username);
+                try {
+                    owner.importFile(ClusterSecret.get(), path, Cluster.selfId(), ReplicationLog.relative(pin));
+                } finally {
+                    Files.deleteIfExists(pin);
+                }
+            }
+        }
+    }
+}
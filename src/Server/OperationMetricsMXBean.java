@@ -0,0 +1,15 @@
+package Server;
+
+/**
+ * JMX view of one instrumented operation, registered as {@code DDSystem:type=Operation,name=<op>}.
+ * Latencies are in microseconds.
+ */
+public interface OperationMetricsMXBean {
+    long getCount();
+    long getErrors();
+    double getMeanMicros();
+    long getP50Micros();
+    long getP99Micros();
+    long getP999Micros();
+    long getMaxMicros();
+}
@@ -0,0 +1,100 @@
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.): instead of a fixed timeout it keeps the
+ * recent heartbeat inter-arrival times and reports phi, -log10 of the probability that a heartbeat
+ * is still on its way after the time since the last one. Phi 1 means a 10% chance of a false
+ * suspicion, phi 8 one in 10^8. The interval distribution is taken as normal, with a standard
+ * deviation of at least a quarter of its mean, and {@code acceptablePauseMillis} is added to the
+ * mean so short stalls (GC, a slow RMI call) do not count.
+ */
+final class PhiAccrualDetector {
+
+    private final int window;
+    private final double expectedMillis;
+    private final double pauseMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Double> intervals = new ArrayDeque<>();
+    private double sum;
+    private double sumOfSquares;
+    private long lastNanos;
+
+    PhiAccrualDetector(long expectedMillis, long acceptablePauseMillis, int window) {
+        this.window = window;
+        this.expectedMillis = expectedMillis;
+        this.pauseMillis = acceptablePauseMillis;
+        reset(System.nanoTime());
+    }
+
+    /** Forgets the history, as if a heartbeat at the expected interval had just arrived. */
+    void reset(long nowNanos) {
+        lock.lock();
+        try {
+            intervals.clear();
+            sum = 0;
+            sumOfSquares = 0;
+            add(expectedMillis);
+            lastNanos = nowNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void heartbeat(long nowNanos) {
+        lock.lock();
+        try {
+            add((nowNanos - lastNanos) / 1e6);
+            lastNanos = nowNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    double phi(long nowNanos) {
+        lock.lock();
+        try {
+            double elapsed = (nowNanos - lastNanos) / 1e6;
+            double mean = sum / intervals.size();
+            double variance = sumOfSquares / intervals.size() - mean * mean;
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), mean / 4);
+            return phi(elapsed, mean + pauseMillis, deviation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Millis since the last heartbeat. */
+    long silenceMillis(long nowNanos) {
+        lock.lock();
+        try {
+            return (nowNanos - lastNanos) / 1_000_000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(double interval) {
+        intervals.addLast(interval);
+        sum += interval;
+        sumOfSquares += interval * interval;
+        if (intervals.size() > window) {
+            double dropped = intervals.removeFirst();
+            sum -= dropped;
+            sumOfSquares -= dropped * dropped;
+        }
+    }
+
+    /** -log10 of the normal tail beyond {@code elapsed}, via the logistic approximation of the CDF. */
+    private static double phi(double elapsed, double mean, double deviation) {
+        double y = (elapsed - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
@@ -0,0 +1,306 @@
+package Server;
+
+import Interface.ReplicationInterface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a backup's data dir in sync with the primary by pulling and replaying its
+ * {@link ReplicationLog}. {@link HighAvailability} starts it on a backup and stops it on promotion.
+ * <p>
+ * While it is following, the backup serves reads only, and a read can demand a minimum sequence:
+ * it waits up to {@code -Ddds.replication.readWaitMillis} (default 500) for the replica to catch
+ * up.
+ */
+public final class ReplicaFollower {
+
+    private static final int BATCH = ServerConfig.getInt("replication.batch", 512);
+    private static final long POLL_MILLIS = 1000;
+    private static final long READ_WAIT_MILLIS = ServerConfig.getLong("replication.readWaitMillis", 500);
+    private static final Path DATA_DIR = ServerConfig.dataDir().toAbsolutePath().normalize();
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final Condition ADVANCED = LOCK.newCondition();
+    private static volatile int generation;
+    private static volatile boolean running;
+    private static volatile long applied;
+    private static volatile long primarySequence;
+
+    private static volatile AuthFactoryImpl auth;
+    private static volatile String primaryAddress;
+    private static long logId;
+
+    private ReplicaFollower() {
+    }
+
+    /** Starts following the primary at {@code primary} ({@code host:port}). */
+    public static void start(AuthFactoryImpl authService, String primary) {
+        auth = authService;
+        primaryAddress = primary;
+        int current = ++generation;
+        running = true;
+        Metrics.gauge("replication.applied", () -> applied);
+        Metrics.gauge("replication.lag", () -> Math.max(0, primarySequence - applied));
+        Thread.ofPlatform().daemon().name("replica-follower").start(() -> follow(current));
+    }
+
+    /** Stops applying entries; a pull still in flight is discarded. */
+    public static void stop() {
+        generation++;
+        running = false;
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    public static long applied() {
+        return applied;
+    }
+
+    /** Waits until the replica has applied at least {@code sequence}; false if it did not in time. */
+    public static boolean awaitApplied(long sequence) throws InterruptedException {
+        if (applied >= sequence) return true;
+        long remaining = TimeUnit.MILLISECONDS.toNanos(READ_WAIT_MILLIS);
+        return Trace.call("replica.wait", () -> {
+            long left = remaining;
+            LOCK.lock();
+            try {
+                while (applied < sequence && left > 0) {
+                    left = ADVANCED.awaitNanos(left);
+                }
+                return applied >= sequence;
+            } finally {
+                LOCK.unlock();
+            }
+        });
+    }
+
+    // ========== Replay ==========
+
+    private static void follow(int current) {
+        ReplicationInterface primary = null;
+        boolean resync = false;
+        while (generation == current) {
+            try {
+                String secret = ClusterSecret.get();
+                if (primary == null) {
+                    primary = (ReplicationInterface) Naming.lookup("rmi://" + primaryAddress + "/Replication");
+                    logId = primary.getLogId(secret);
+                }
+                List<ReplicationEntry> entries = resync ? null : primary.since(secret, logId, applied, BATCH, POLL_MILLIS);
+                if (entries == null) {
+                    logId = primary.getLogId(secret);
+                    resync = false;
+                    snapshot(primary, current);
+                    continue;
+                }
+                primarySequence = primary.getSequence(secret);
+                for (ReplicationEntry entry : entries) {
+                    if (generation != current) return;
+                    if (!replay(primary, entry)) {
+                        // its contents were dropped from the log before they could be fetched
+                        resync = true;
+                        break;
+                    }
+                    advance(entry.getSequence());
+                }
+            } catch (Exception e) {
+                if (primary != null) {
+                    System.err.println("[REPLICA] Lost contact with " + primaryAddress + ": " + e.getMessage());
+                }
+                primary = null;
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces everything replicated so far with the primary's current state, page by page; then
+     * the log is followed from the sequence the snapshot started at.
+     */
+    private static void snapshot(ReplicationInterface primary, int current) throws IOException {
+        System.out.println("[REPLICA] Resyncing from a snapshot of " + primaryAddress);
+        long sequence = 0;
+        String after = null;
+        int walked;
+        do {
+            List<ReplicationEntry> page = primary.snapshot(ClusterSecret.get(), after, BATCH);
+            primarySequence = primary.getSequence(ClusterSecret.get());
+            walked = 0;
+            for (ReplicationEntry entry : page) {
+                if (generation != current) return;
+                if (entry.getOp() == ReplicationEntry.Op.RESET) {
+                    sequence = entry.getSequence();
+                } else if (entry.getOp() != ReplicationEntry.Op.USER) {
+                    walked++;
+                    after = entry.getPath();
+                }
+                // a file gone since it was listed is moved or deleted by an entry after the snapshot
+                if (!replay(primary, entry)) Metrics.increment("replication.snapshot.vanished");
+            }
+        } while (walked == BATCH);
+        if (generation == current) advance(sequence);
+    }
+
+    /** Applies one entry, logging a failure; false if its contents are gone from the primary. */
+    private static boolean replay(ReplicationInterface primary, ReplicationEntry entry) throws RemoteException {
+        try {
+            return apply(primary, entry);
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            Metrics.increment("replication.apply.errors");
+            System.err.println("[REPLICA] Could not apply " + entry + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    private static void advance(long sequence) {
+        LOCK.lock();
+        try {
+            applied = sequence;
+            ADVANCED.signalAll();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static boolean apply(ReplicationInterface primary, ReplicationEntry entry) throws IOException {
+        Metrics.increment("replication.applied.entries");
+        switch (entry.getOp()) {
+            case RESET -> {
+                auth.forgetAll();
+                ChangeJournal.forgetAll();
+                FileVersions.forgetAll();
+                SearchIndex.forgetAll();
+                Usage.forgetAll();
+                FileSystemImpl.deleteRecursively(FileSystemImpl.SERVERSTORAGE_ROOT);
+                FileSystemImpl.deleteRecursively(FileSystemImpl.STORAGE_ROOT);
+                advance(0);
+            }
+            case USER -> {
+                if (entry.getTarget() == null) auth.forget(entry.getPath());
+                else auth.adopt(entry.getPath(), entry.getTarget());
+            }
+            case PUT -> {
+                Path file = resolve(entry.getPath());
+                Path tempDir = FileSystemImpl.tempDir(entry.getPath().split("/")[1]);
+                // replaced rather than overwritten: a copy may share the file's storage
+                if (entry.getData() != null) {
+                    FileSystemImpl.writeAtomically(tempDir, file, entry.getData());
+                } else {
+                    Path staged = FileSystemImpl.stage(tempDir,
+                            (offset, max) -> primary.read(ClusterSecret.get(), entry.getTarget(), offset, max));
+                    if (staged == null) return false;
+                    try {
+                        FileSystemImpl.install(staged, file, null);
+                    } finally {
+                        Files.deleteIfExists(staged);
+                    }
+                }
+                Path mirror = mirrorOf(file);
+                if (mirror != null) MirrorWriter.mirrorFile(file, mirror);
+            }
+            case COPY -> {
+                Path from = resolve(entry.getPath());
+                Path to = resolve(entry.getTarget());
+                if (!Files.exists(from)) return true;
+                Usage.Change change = Usage.before(to);
+                FileSystemImpl.cloneTree(from, to);
+                change.done();
+                SearchIndex.added(to);
+                Path mirror = mirrorOf(to);
+                if (mirror != null) {
+                    try (Stream<Path> tree = Files.walk(to)) {
+                        for (Path p : (Iterable<Path>) tree::iterator) {
+                            Path m = mirrorOf(p);
+                            if (Files.isDirectory(p)) MirrorWriter.mirrorDirectory(m);
+                            else MirrorWriter.mirrorFile(p, m);
+                        }
+                    }
+                }
+            }
+            case MKDIR -> {
+                Path dir = resolve(entry.getPath());
+                Files.createDirectories(dir);
+                SearchIndex.added(dir);
+                Path mirror = mirrorOf(dir);
+                if (mirror != null) MirrorWriter.mirrorDirectory(mirror);
+            }
+            case MOVE -> {
+                Path from = resolve(entry.getPath());
+                Path to = resolve(entry.getTarget());
+                if (!Files.exists(from)) return true;
+                Files.createDirectories(to.getParent());
+                Usage.Change source = Usage.before(from);
+                Usage.Change target = Usage.before(to);
+                Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+                source.done();
+                target.done();
+                SearchIndex.moved(from, to);
+                Path mirrorFrom = mirrorOf(from);
+                if (mirrorFrom != null) {
+                    // a delete moves a local file into the trash, and its mirror next to it
+                    Path mirrorTo = mirrorOf(to);
+                    MirrorWriter.mirrorMove(mirrorFrom, mirrorTo != null ? mirrorTo : Tombstones.mirrorOf(to));
+                }
+            }
+            case PATCH -> {
+                Path file = resolve(entry.getPath());
+                Files.createDirectories(file.getParent());
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    ByteBuffer data = ByteBuffer.wrap(entry.getData());
+                    long offset = Long.parseLong(entry.getTarget());
+                    while (data.hasRemaining()) {
+                        channel.write(data, offset + data.position());
+                    }
+                }
+            }
+            case DELETE -> {
+                Path path = resolve(entry.getPath());
+                Usage.Change change = Usage.before(path);
+                FileSystemImpl.deleteRecursively(path);
+                change.done();
+                SearchIndex.removed(path);
+                Path mirror = mirrorOf(path);
+                if (mirror != null) MirrorWriter.mirrorDelete(mirror);
+            }
+        }
+        return true;
+    }
+
+    private static Path resolve(String path) throws IOException {
+        Path resolved = DATA_DIR.resolve(path).normalize();
+        if (!resolved.startsWith(DATA_DIR)) {
+            throw new IOException("Invalid path: " + path);
+        }
+        return resolved;
+    }
+
+    /** The {@code storage/<user>/local} mirror of a path in {@code serverStorage/<user>/local}, or null. */
+    private static Path mirrorOf(Path path) {
+        Path serverRoot = FileSystemImpl.SERVERSTORAGE_ROOT.toAbsolutePath().normalize();
+        if (!path.startsWith(serverRoot)) return null;
+        Path relative = serverRoot.relativize(path);
+        if (relative.getNameCount() < 2 || !relative.getName(1).toString().equals("local")) return null;
+        return FileSystemImpl.STORAGE_ROOT.toAbsolutePath().normalize().resolve(relative);
+    }
+}
@@ -0,0 +1,74 @@
+package Server;
+
+import java.io.Serializable;
+
+/**
+ * One change recorded by the primary's {@link ReplicationLog} and replayed by the backup.
+ * Paths are relative to the data dir and use {@code /} as separator.
+ */
+public class ReplicationEntry implements Serializable {
+
+    public enum Op {
+        /**
+         * Write {@code data} to {@code path}; without data, the primary's file at {@code target},
+         * read through {@link Interface.ReplicationInterface#read} in chunks.
+         */
+        PUT,
+        /** Copy the file or folder at {@code path} to {@code target}. */
+        COPY,
+        MKDIR,
+        /** Move {@code path} to {@code target}. */
+        MOVE,
+        DELETE,
+        /** Write {@code data} into {@code path} at byte offset {@code target}, creating it if needed. */
+        PATCH,
+        /** Register user {@code path} with password {@code target}, or remove it when {@code target} is null. */
+        USER,
+        /** Start of a snapshot: drop everything replicated so far. */
+        RESET
+    }
+
+    private final long sequence;
+    private final Op op;
+    private final String path;
+    private final String target;
+    private final byte[] data;
+
+    public ReplicationEntry(long sequence, Op op, String path, String target, byte[] data) {
+        this.sequence = sequence;
+        this.op = op;
+        this.path = path;
+        this.target = target;
+        this.data = data;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationEntry{" +
+                "sequence=" + sequence +
+                ", op=" + op +
+                ", path='" + path + '\'' +
+                ", target='" + target + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,255 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The primary's change log: every change to the data dir is appended here with a sequence number,
+ * after it was made, and the backup pulls and replays them through {@link ReplicationServiceImpl}.
+ * <p>
+ * Only the most recent {@code -Ddds.replication.logEntries} entries (default 10000) and
+ * {@code -Ddds.replication.logBytes} of file data (default 64 MiB) are kept; a backup that falls
+ * further behind, or that followed an earlier run of the primary (different {@link #logId()}),
+ * starts over from a snapshot. Recording is off until {@link #enable()}, so only the primary pays
+ * for it.
+ * <p>
+ * A file that reached the server without passing through memory, like a data plane upload, is
+ * logged by reference ({@link #putFile}): a hard link in its user's temp dir keeps the logged
+ * version until the entry leaves the log, and the backup reads it from there in chunks. Its size
+ * counts towards {@code logBytes} like data kept in memory.
+ */
+public final class ReplicationLog {
+
+    private static final int MAX_ENTRIES = ServerConfig.getInt("replication.logEntries", 10_000);
+    private static final long MAX_BYTES = ServerConfig.getLong("replication.logBytes", 64L << 20);
+    private static final Path DATA_DIR = ServerConfig.dataDir().toAbsolutePath().normalize();
+    private static final long LOG_ID = ThreadLocalRandom.current().nextLong();
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final Condition APPENDED = LOCK.newCondition();
+    private static final String PIN = "replicated-";
+
+    private static final ArrayDeque<Logged> ENTRIES = new ArrayDeque<>();
+    private static long sequence;
+    private static long bytes;
+    private static volatile boolean enabled;
+
+    /** An entry with the bytes it keeps, in memory or pinned on disk at {@code pin}. */
+    private record Logged(ReplicationEntry entry, long bytes, Path pin) {
+    }
+
+    private ReplicationLog() {
+    }
+
+    public static void enable() {
+        if (sequence() == 0) unpinAll();
+        enabled = true;
+        Metrics.gauge("replication.sequence", ReplicationLog::sequence);
+    }
+
+    /** Stops recording, once this node has stepped down to a backup. */
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /** Identifies this run of the primary; sequence numbers restart with it. */
+    public static long logId() {
+        return LOG_ID;
+    }
+
+    public static long sequence() {
+        LOCK.lock();
+        try {
+            return sequence;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    // ========== Recording ==========
+
+    public static void put(Path file, byte[] data) {
+        append(ReplicationEntry.Op.PUT, file, null, data);
+    }
+
+    /**
+     * Logs the current contents of {@code file} by reference, without reading them; nothing is
+     * logged if it is already gone, since whatever removed it is logged too.
+     */
+    public static void putFile(Path file) {
+        if (!enabled) return;
+        String path = relative(file);
+        Path pin = FileSystemImpl.tempDir(path.split("/")[1])
+                .resolve(PIN + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        long size;
+        try {
+            size = Trace.call("replication.pin", () -> {
+                Files.createDirectories(pin.getParent());
+                Files.createLink(pin, file);
+                return Files.size(pin);
+            });
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            // the backup cannot be told about the file, so it must start over
+            System.err.println("[REPLICA] Could not log " + path + ", the backup will resync: " + e.getMessage());
+            reset();
+            return;
+        }
+        append(new Logged(new ReplicationEntry(0, ReplicationEntry.Op.PUT, path, relative(pin), null), size, pin));
+    }
+
+    public static void copy(Path from, Path to) {
+        append(ReplicationEntry.Op.COPY, from, to, null);
+    }
+
+    public static void mkdir(Path dir) {
+        append(ReplicationEntry.Op.MKDIR, dir, null, null);
+    }
+
+    public static void move(Path from, Path to) {
+        append(ReplicationEntry.Op.MOVE, from, to, null);
+    }
+
+    public static void delete(Path path) {
+        append(ReplicationEntry.Op.DELETE, path, null, null);
+    }
+
+    public static void patch(Path file, long offset, byte[] data) {
+        if (!enabled) return;
+        append(new ReplicationEntry(0, ReplicationEntry.Op.PATCH, relative(file), Long.toString(offset), data));
+    }
+
+    public static void user(String username, String password) {
+        if (!enabled) return;
+        append(new ReplicationEntry(0, ReplicationEntry.Op.USER, username, password, null));
+    }
+
+    /** {@code path} relative to the data dir, as carried by {@link ReplicationEntry}. */
+    static String relative(Path path) {
+        return FileSystemImpl.slashed(DATA_DIR.relativize(path.toAbsolutePath().normalize()));
+    }
+
+    private static void append(ReplicationEntry.Op op, Path path, Path target, byte[] data) {
+        if (!enabled) return;
+        append(new ReplicationEntry(0, op, relative(path), target == null ? null : relative(target), data));
+    }
+
+    private static void append(ReplicationEntry entry) {
+        append(new Logged(entry, entry.getData() == null ? 0 : entry.getData().length, null));
+    }
+
+    private static void append(Logged logged) {
+        List<Path> dropped = new ArrayList<>();
+        Trace.run("replication.append", () -> {
+            LOCK.lock();
+            try {
+                ReplicationEntry entry = logged.entry();
+                ENTRIES.addLast(new Logged(new ReplicationEntry(++sequence, entry.getOp(), entry.getPath(),
+                        entry.getTarget(), entry.getData()), logged.bytes(), logged.pin()));
+                bytes += logged.bytes();
+                while (ENTRIES.size() > MAX_ENTRIES || (bytes > MAX_BYTES && ENTRIES.size() > 1)) {
+                    Logged first = ENTRIES.removeFirst();
+                    bytes -= first.bytes();
+                    if (first.pin() != null) dropped.add(first.pin());
+                }
+                APPENDED.signalAll();
+            } finally {
+                LOCK.unlock();
+            }
+            unpin(dropped);
+        });
+    }
+
+    /** Drops every entry, so that the backup has to start over from a snapshot. */
+    private static void reset() {
+        List<Path> dropped = new ArrayList<>();
+        LOCK.lock();
+        try {
+            for (Logged logged : ENTRIES) {
+                if (logged.pin() != null) dropped.add(logged.pin());
+            }
+            ENTRIES.clear();
+            bytes = 0;
+            // one past the last entry, so no backup can follow on from the entries it has
+            sequence++;
+        } finally {
+            LOCK.unlock();
+        }
+        unpin(dropped);
+    }
+
+    private static void unpin(List<Path> pins) {
+        for (Path pin : pins) {
+            try {
+                Files.deleteIfExists(pin);
+            } catch (IOException e) {
+                System.err.println("[REPLICA] Could not delete " + pin + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Deletes the links a previous run left behind. */
+    private static void unpinAll() {
+        if (!Files.isDirectory(FileSystemImpl.SERVERSTORAGE_ROOT)) return;
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(FileSystemImpl.SERVERSTORAGE_ROOT)) {
+            for (Path user : users) {
+                if (!Files.isDirectory(user.resolve(".tmp"))) continue;
+                try (DirectoryStream<Path> pins = Files.newDirectoryStream(user.resolve(".tmp"), PIN + "*")) {
+                    List<Path> stale = new ArrayList<>();
+                    pins.forEach(stale::add);
+                    unpin(stale);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[REPLICA] Could not clear the links of a previous run: " + e.getMessage());
+        }
+    }
+
+    // ========== Reading ==========
+
+    /**
+     * Up to {@code max} entries after {@code after}, waiting up to {@code waitMillis} if there are
+     * none yet.
+     *
+     * @return the entries, or null if entries after {@code after} are no longer retained
+     */
+    static List<ReplicationEntry> since(long after, int max, long waitMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        LOCK.lock();
+        try {
+            while (sequence <= after && remaining > 0) {
+                remaining = APPENDED.awaitNanos(remaining);
+            }
+            if (after > sequence) {
+                return null;
+            }
+            if (after < sequence && (ENTRIES.isEmpty() || ENTRIES.peekFirst().entry().getSequence() > after + 1)) {
+                return null;
+            }
+            List<ReplicationEntry> result = new ArrayList<>();
+            for (Logged logged : ENTRIES) {
+                if (logged.entry().getSequence() <= after) continue;
+                if (result.size() >= max) break;
+                result.add(logged.entry());
+            }
+            return result;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package Server;
+
+import Interface.ReplicationInterface;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/** Serves the primary's {@link ReplicationLog} to the backup, and answers its peer's heartbeats. */
+public class ReplicationServiceImpl extends UnicastRemoteObject implements ReplicationInterface {
+
+    private final AuthFactoryImpl auth;
+
+    public ReplicationServiceImpl(AuthFactoryImpl auth) throws RemoteException {
+        super();
+        this.auth = auth;
+        Metrics.increment(Metrics.EXPORTED_OBJECTS);
+    }
+
+    @Override
+    public long getLogId(String secret) throws RemoteException {
+        ClusterSecret.check(secret);
+        return ReplicationLog.logId();
+    }
+
+    @Override
+    public long getSequence(String secret) throws RemoteException {
+        ClusterSecret.check(secret);
+        return ReplicationLog.sequence();
+    }
+
+    @Override
+    public List<ReplicationEntry> since(String secret, long logId, long sequence, int max, long waitMillis)
+            throws RemoteException {
+        ClusterSecret.check(secret);
+        if (logId != ReplicationLog.logId()) {
+            return null;
+        }
+        try {
+            return ReplicationLog.since(sequence, max, waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for changes", e);
+        }
+    }
+
+    @Override
+    public long heartbeat(String secret, long epoch, boolean primary) throws RemoteException {
+        ClusterSecret.check(secret);
+        return HighAvailability.onHeartbeat(epoch, primary);
+    }
+
+    @Override
+    public List<ReplicationEntry> snapshot(String secret, String after, int max) throws RemoteException {
+        ClusterSecret.check(secret);
+        long sequence = ReplicationLog.sequence();
+        List<ReplicationEntry> entries = new ArrayList<>();
+        if (after == null) {
+            entries.add(new ReplicationEntry(sequence, ReplicationEntry.Op.RESET, null, null, null));
+            for (Map.Entry<String, String> user : auth.credentials().entrySet()) {
+                entries.add(new ReplicationEntry(sequence, ReplicationEntry.Op.USER, user.getKey(), user.getValue(), null));
+            }
+        }
+        Page page = new Page(after == null ? null : Paths.get(after), sequence, max, entries);
+        try {
+            if (page.visit(FileSystemImpl.SERVERSTORAGE_ROOT) && Files.isDirectory(FileSystemImpl.STORAGE_ROOT)) {
+                for (Path userDir : sorted(FileSystemImpl.STORAGE_ROOT)) {
+                    if (!page.visit(userDir.resolve("shared"))) break;
+                }
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Error taking snapshot", e);
+        }
+        return entries;
+    }
+
+    @Override
+    public byte[] read(String secret, String path, long offset, int max) throws RemoteException {
+        ClusterSecret.check(secret);
+        return FileSystemImpl.readChunk(path, offset, max);
+    }
+
+    /**
+     * A snapshot page being filled: a depth-first walk in name order, so that a page can resume
+     * right after the last path of the previous one without listing what came before it again.
+     */
+    private static final class Page {
+        private final Path after;
+        private final long sequence;
+        private final int max;
+        private final List<ReplicationEntry> entries;
+        private int walked;
+
+        Page(Path after, long sequence, int max, List<ReplicationEntry> entries) {
+            this.after = after;
+            this.sequence = sequence;
+            this.max = max;
+            this.entries = entries;
+        }
+
+        /** Adds {@code path} and what is under it, past {@link #after}; false once the page is full. */
+        boolean visit(Path path) throws IOException {
+            // the backup keeps its own counters
+            if (!Files.exists(path) || Usage.isCountersFile(path)) return true;
+            Path relative = Paths.get(ReplicationLog.relative(path));
+            if (after != null && !after.startsWith(relative) && compare(relative, after) < 0) return true;
+            boolean directory = Files.isDirectory(path);
+            if (after == null || !after.startsWith(relative)) {
+                if (walked == max) return false;
+                walked++;
+                entries.add(directory
+                        ? new ReplicationEntry(sequence, ReplicationEntry.Op.MKDIR, FileSystemImpl.slashed(relative), null, null)
+                        : new ReplicationEntry(sequence, ReplicationEntry.Op.PUT, FileSystemImpl.slashed(relative),
+                                FileSystemImpl.slashed(relative), null));
+            }
+            if (directory) {
+                for (Path child : sorted(path)) {
+                    String name = child.getFileName().toString();
+                    if (name.equals(".tmp") || name.equals(".trash") || name.equals(ColdTier.COLD)) continue;
+                    if (!visit(child)) return false;
+                }
+            }
+            return true;
+        }
+
+        /** Orders paths name by name, a folder before what it holds. */
+        private static int compare(Path a, Path b) {
+            for (int i = 0; i < Math.min(a.getNameCount(), b.getNameCount()); i++) {
+                int c = a.getName(i).toString().compareTo(b.getName(i).toString());
+                if (c != 0) return c;
+            }
+            return Integer.compare(a.getNameCount(), b.getNameCount());
+        }
+    }
+
+    private static List<Path> sorted(Path dir) throws IOException {
+        try (Stream<Path> children = Files.list(dir)) {
+            return children.sorted((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString())).toList();
+        } catch (NoSuchFileException e) {
+            return List.of();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package Server;
+
+import Interface.ServerBusyException;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs session operations on virtual threads, behind admission control.
+ * <p>
+ * An operation is admitted only if a server-wide permit ({@code -Ddds.executor.maxConcurrent},
+ * default 1024) and a permit for the calling user ({@code -Ddds.executor.maxPerUser}, default 16)
+ * are both available within {@code -Ddds.executor.admissionMillis} (default 0: fail fast).
+ * Otherwise the caller gets a {@link ServerBusyException} straight away, instead of the server
+ * piling up blocked threads.
+ * <p>
+ * Admitted operations run in one of two {@link Lane}s. Interactive ones start immediately. Bulk
+ * ones (file transfers) share {@code -Ddds.scheduler.bulkSlots} slots (default 4), granted by a
+ * {@link FairQueue} that charges each user the bytes it moves divided by its weight
+ * ({@code -Ddds.scheduler.weight.<user>}, default 1), so one user's large uploads can neither
+ * starve other users' transfers nor sit in front of anybody's {@code ls}. A bulk operation takes
+ * its user's permit only once it has a slot, so queued transfers never use up the permits the
+ * user's interactive operations need.
+ */
+public final class RequestExecutor {
+
+    private static final int MAX_CONCURRENT = ServerConfig.getInt("executor.maxConcurrent", 1024);
+    private static final int MAX_PER_USER = ServerConfig.getInt("executor.maxPerUser", 16);
+    private static final long ADMISSION_MILLIS = ServerConfig.getLong("executor.admissionMillis", 0);
+    private static final long RETRY_AFTER_MILLIS = ServerConfig.getLong("executor.retryAfterMillis", 100);
+    private static final long BULK_WAIT_MILLIS = ServerConfig.getLong("scheduler.bulkWaitMillis", 30_000);
+    private static final long MIN_BULK_COST = 64 * 1024;
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("request-", 0).factory());
+    private static final Semaphore SERVER_PERMITS = new Semaphore(MAX_CONCURRENT);
+    private static final ConcurrentMap<String, Semaphore> USER_PERMITS = new ConcurrentHashMap<>();
+    private static final AtomicInteger WAITING = new AtomicInteger();
+    private static final FairQueue BULK = new FairQueue(ServerConfig.getInt("scheduler.bulkSlots", 4));
+
+    static {
+        Metrics.gauge("executor.active", () -> MAX_CONCURRENT - SERVER_PERMITS.availablePermits());
+        Metrics.gauge("executor.waiting", WAITING::get);
+        Metrics.gauge("scheduler.bulk.running", BULK::running);
+        Metrics.gauge("scheduler.bulk.queued", BULK::waiting);
+    }
+
+    private RequestExecutor() {
+    }
+
+    public enum Lane { INTERACTIVE, BULK }
+
+    @FunctionalInterface
+    public interface Task<T> {
+        T run() throws RemoteException;
+    }
+
+    public static <T> T call(String user, Task<T> task) throws RemoteException {
+        return call(user, Lane.INTERACTIVE, 0, task);
+    }
+
+    /**
+     * Runs {@code task} for {@code user} on a virtual thread and waits for its result. The caller's
+     * {@link Trace} follows the task onto the worker thread.
+     *
+     * @param bytes for {@link Lane#BULK}, the amount of data the task moves (0 if unknown)
+     * @throws ServerBusyException if the server or the user is at the concurrency limit, or a bulk
+     *                             task waited too long for a slot
+     */
+    public static <T> T call(String user, Lane lane, long bytes, Task<T> task) throws RemoteException {
+        Semaphore userPermits = USER_PERMITS.computeIfAbsent(user, u -> new Semaphore(MAX_PER_USER));
+        boolean bulk = lane == Lane.BULK;
+        if (!acquire(SERVER_PERMITS)) {
+            throw rejected("Server is busy");
+        }
+        if (!bulk && !acquire(userPermits)) {
+            SERVER_PERMITS.release();
+            throw rejected("Too many concurrent operations for '" + user + "'");
+        }
+
+        Trace trace = Trace.current();
+        Future<T> future;
+        try {
+            future = EXECUTOR.submit(() -> {
+                Trace.bind(trace);
+                try {
+                    if (!bulk) {
+                        try {
+                            return task.run();
+                        } finally {
+                            userPermits.release();
+                        }
+                    }
+                    acquireBulk(user, bytes);
+                    try {
+                        if (!acquire(userPermits)) {
+                            throw rejected("Too many concurrent operations for '" + user + "'");
+                        }
+                        try {
+                            return task.run();
+                        } finally {
+                            userPermits.release();
+                        }
+                    } finally {
+                        BULK.release();
+                    }
+                } finally {
+                    Trace.unbind();
+                    SERVER_PERMITS.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (!bulk) userPermits.release();
+            SERVER_PERMITS.release();
+            throw rejected("Server is shutting down");
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException remote) throw remote;
+            if (cause instanceof RuntimeException runtime) throw runtime;
+            if (cause instanceof Error error) throw error;
+            throw new RemoteException("Operation failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the operation", e);
+        }
+    }
+
+    private static boolean acquire(Semaphore permits) {
+        if (ADMISSION_MILLIS <= 0) {
+            return permits.tryAcquire();
+        }
+        WAITING.incrementAndGet();
+        try {
+            return permits.tryAcquire(ADMISSION_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            WAITING.decrementAndGet();
+        }
+    }
+
+    private static void acquireBulk(String user, long bytes) throws InterruptedException {
+        int weight = ServerConfig.getInt("scheduler.weight." + user, 1);
+        long start = System.nanoTime();
+        boolean granted = Trace.call("scheduler.bulk.wait",
+                () -> BULK.acquire(user, Math.max(bytes, MIN_BULK_COST), weight, BULK_WAIT_MILLIS));
+        Metrics.operation("scheduler.bulk.wait").record(start);
+        if (!granted) {
+            throw rejected("No transfer slot for '" + user + "'");
+        }
+    }
+
+    private static ServerBusyException rejected(String message) {
+        Metrics.increment("executor.rejected");
+        return new ServerBusyException(message + ", retry in " + RETRY_AFTER_MILLIS + "ms", RETRY_AFTER_MILLIS);
+    }
+}
@@ -0,0 +1,310 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Per-user index of file and folder names, behind {@code find}.
+ * <p>
+ * A user's index covers their {@code local} tree and what others share with them, under the paths
+ * {@code getPath} shows: {@code /local/...} and {@code /shared/<owner>/...}. It is built by one walk
+ * the first time the user searches, then kept current by the calls every change makes
+ * ({@link #added}, {@link #moved}, {@link #removed}); these look at the changed path on disk rather
+ * than trusting the caller, so repeating one does no harm. Names are indexed lower-cased three ways:
+ * sorted, for prefixes; by extension; and by every three-character sequence, for substrings, whose
+ * lists are intersected smallest first so that only a few candidates are left to check. Removed
+ * entries stay in those lists until they outnumber the live ones and the index is rebuilt.
+ * <p>
+ * {@code abc*} finds names starting with abc, {@code *.pdf} names ending in .pdf, and anything else
+ * names containing it. At most {@code -Ddds.search.maxResults} (default 1000) matches are returned,
+ * sorted by path.
+ */
+final class SearchIndex {
+
+    private static final int MAX_RESULTS = ServerConfig.getInt("search.maxResults", 1000);
+    private static final String LOCAL = "/local";
+    private static final String SHARED = "/shared";
+    private static final ConcurrentHashMap<String, SearchIndex> INDEXES = new ConcurrentHashMap<>();
+
+    /** A growing list of ids, in the order they were given out. */
+    private static final class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    private final String user;
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean built;
+    /** Paths by id; null once removed. */
+    private final ArrayList<String> paths = new ArrayList<>();
+    private final BitSet folders = new BitSet();
+    private final TreeMap<String, Integer> ids = new TreeMap<>();
+    private final TreeMap<String, Postings> names = new TreeMap<>();
+    private final HashMap<String, Postings> extensions = new HashMap<>();
+    private final HashMap<Long, Postings> trigrams = new HashMap<>();
+    private int removed;
+
+    private SearchIndex(String user) {
+        this.user = user;
+    }
+
+    // ========== Changes ==========
+
+    /** {@code path}, a file or folder in the data dir, was created or written. */
+    static void added(Path path) {
+        String[] at = FileSystemImpl.visiblePath(path);
+        if (at != null) update(at[0], index -> index.sync(at[1], path));
+    }
+
+    static void moved(Path from, Path to) {
+        String[] source = FileSystemImpl.visiblePath(from);
+        String[] target = FileSystemImpl.visiblePath(to);
+        if (source != null) update(source[0], index -> index.removeTree(source[1]));
+        if (target != null) update(target[0], index -> index.sync(target[1], to));
+    }
+
+    static void removed(Path path) {
+        String[] at = FileSystemImpl.visiblePath(path);
+        if (at != null) update(at[0], index -> index.removeTree(at[1]));
+    }
+
+    /** Drops the index of {@code user}, to be built again at the next search. */
+    static void forget(String user) {
+        INDEXES.remove(user);
+    }
+
+    static void forgetAll() {
+        INDEXES.clear();
+    }
+
+    private interface Change {
+        void apply(SearchIndex index) throws IOException;
+    }
+
+    /** Applies {@code change} to the index of {@code user}, if there is one yet. */
+    private static void update(String user, Change change) {
+        SearchIndex index = INDEXES.get(user);
+        if (index == null) return;
+        index.lock.lock();
+        try {
+            if (index.built) change.apply(index);
+        } catch (IOException e) {
+            // the next search starts over from the disk
+            INDEXES.remove(user, index);
+        } finally {
+            index.lock.unlock();
+        }
+    }
+
+    // ========== Search ==========
+
+    static List<String> find(String user, String query) throws IOException {
+        SearchIndex index = INDEXES.computeIfAbsent(user, SearchIndex::new);
+        index.lock.lock();
+        try {
+            if (!index.built) index.build();
+            return index.find(query.trim().toLowerCase(Locale.ROOT));
+        } finally {
+            index.lock.unlock();
+        }
+    }
+
+    private void build() throws IOException {
+        long start = System.nanoTime();
+        sync(LOCAL, FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve("local"));
+        sync(SHARED, FileSystemImpl.STORAGE_ROOT.resolve(user).resolve("shared"));
+        built = true;
+        Metrics.operation("search.build").record(start);
+        Metrics.add("search.indexed", ids.size());
+    }
+
+    private List<String> find(String query) {
+        List<String> found = new ArrayList<>();
+        if (query.isEmpty() || query.equals("*")) return found;
+        Predicate<String> matches;
+        if (query.startsWith("*.") && query.indexOf('*', 1) < 0) {
+            String suffix = query.substring(1);
+            matches = name -> name.endsWith(suffix);
+            collect(extensions.get(query.substring(query.lastIndexOf('.') + 1)), matches, found);
+        } else if (query.endsWith("*") && !query.startsWith("*")) {
+            String prefix = query.substring(0, query.length() - 1);
+            matches = name -> name.startsWith(prefix);
+            for (Postings postings : names.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+                if (found.size() >= MAX_RESULTS) break;
+                collect(postings, matches, found);
+            }
+        } else {
+            String part = query.replace("*", "");
+            matches = name -> name.contains(part);
+            if (part.length() < 3) {
+                for (Map.Entry<String, Postings> entry : names.entrySet()) {
+                    if (found.size() >= MAX_RESULTS) break;
+                    if (entry.getKey().contains(part)) collect(entry.getValue(), matches, found);
+                }
+            } else {
+                collect(candidates(part), matches, found);
+            }
+        }
+        found.sort(null);
+        return found;
+    }
+
+    /** The ids in every trigram list of {@code part}, intersected smallest list first. */
+    private Postings candidates(String part) {
+        List<Postings> lists = new ArrayList<>();
+        for (long gram : grams(part)) {
+            Postings postings = trigrams.get(gram);
+            if (postings == null) return null;
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(postings -> postings.size));
+        Postings result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.size > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    private static Postings intersect(Postings a, Postings b) {
+        Postings both = new Postings();
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            int id = a.ids[i];
+            // lists are in id order, so the larger one is skipped through by binary search
+            j = Arrays.binarySearch(b.ids, j, b.size, id);
+            if (j >= 0) {
+                both.add(id);
+            } else {
+                j = -j - 1;
+                if (j == b.size) break;
+            }
+        }
+        return both;
+    }
+
+    /** Adds the live entries of {@code postings} whose name {@code matches}, up to the limit. */
+    private void collect(Postings postings, Predicate<String> matches, List<String> found) {
+        if (postings == null) return;
+        for (int i = 0; i < postings.size && found.size() < MAX_RESULTS; i++) {
+            int id = postings.ids[i];
+            String path = paths.get(id);
+            if (path == null || !matches.test(name(path))) continue;
+            found.add(folders.get(id) ? path + "/" : path);
+        }
+    }
+
+    // ========== Entries ==========
+
+    /** Makes the entries at and under {@code visible} those of {@code path} on disk. */
+    private void sync(String visible, Path path) throws IOException {
+        if (!Files.exists(path)) {
+            removeTree(visible);
+            return;
+        }
+        Set<String> seen = new HashSet<>();
+        try (Stream<Path> tree = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) tree::iterator) {
+                Path relative = path.relativize(p);
+                String entry = relative.toString().isEmpty() ? visible : visible + "/" + FileSystemImpl.slashed(relative);
+                seen.add(entry);
+                add(entry, Files.isDirectory(p));
+            }
+        }
+        for (String entry : new ArrayList<>(under(visible).keySet())) {
+            if (!seen.contains(entry)) remove(entry);
+        }
+    }
+
+    /** Adds {@code path} and the folders above it that are missing. */
+    private void add(String path, boolean folder) {
+        if (path.equals(LOCAL) || path.equals(SHARED) || ids.containsKey(path)) return;
+        add(path.substring(0, path.lastIndexOf('/')), true);
+        int id = paths.size();
+        paths.add(path);
+        ids.put(path, id);
+        if (folder) folders.set(id);
+        String name = name(path);
+        names.computeIfAbsent(name, key -> new Postings()).add(id);
+        int dot = name.lastIndexOf('.');
+        if (!folder && dot > 0) extensions.computeIfAbsent(name.substring(dot + 1), key -> new Postings()).add(id);
+        for (long gram : grams(name)) {
+            trigrams.computeIfAbsent(gram, key -> new Postings()).add(id);
+        }
+    }
+
+    private void removeTree(String visible) {
+        for (String entry : new ArrayList<>(under(visible).keySet())) {
+            remove(entry);
+        }
+        if (removed > 1024 && removed > ids.size()) compact();
+    }
+
+    private void remove(String path) {
+        Integer id = ids.remove(path);
+        if (id == null) return;
+        paths.set(id, null);
+        removed++;
+    }
+
+    /** {@code visible} and everything under it. */
+    private Map<String, Integer> under(String visible) {
+        // '0' is the character after '/', so the range is exactly the paths below visible
+        Map<String, Integer> below = new TreeMap<>(ids.subMap(visible + "/", visible + "0"));
+        if (ids.containsKey(visible)) below.put(visible, ids.get(visible));
+        return below;
+    }
+
+    /** Gives the live entries new ids, in path order, dropping the removed ones. */
+    private void compact() {
+        List<String> live = new ArrayList<>(ids.keySet());
+        BitSet liveFolders = new BitSet();
+        for (int i = 0; i < live.size(); i++) {
+            if (folders.get(ids.get(live.get(i)))) liveFolders.set(i);
+        }
+        paths.clear();
+        folders.clear();
+        ids.clear();
+        names.clear();
+        extensions.clear();
+        trigrams.clear();
+        removed = 0;
+        for (int i = 0; i < live.size(); i++) {
+            add(live.get(i), liveFolders.get(i));
+        }
+        Metrics.increment("search.compactions");
+    }
+
+    private static String name(String path) {
+        return path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /** The distinct three-character sequences of {@code text}, each packed in a long. */
+    private static Set<Long> grams(String text) {
+        Set<Long> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            grams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+        return grams;
+    }
+}
@@ -1,18 +1,49 @@
 package Server;
 
-import Interface.AuthFactory;
+import Interface.MetricsService;
 
+import java.io.IOException;
 import java.rmi.Naming;
 import java.rmi.registry.LocateRegistry;
 
 public class Server {
     public static void main (String[] args){
         try {
-            LocateRegistry.createRegistry(1099);
-            AuthFactory authService = (AuthFactory) new AuthFactoryImpl();
-            Naming.rebind("rmi://localhost/AuthService", authService);
+            int port = Cluster.port();
+            LocateRegistry.createRegistry(port);
+            AuthFactoryImpl authService = new AuthFactoryImpl();
+            HighAvailability.start(HighAvailability.Role.PRIMARY, authService);
+            Naming.rebind("rmi://localhost:" + port + "/AuthService", authService);
+            MetricsService metricsService = new MetricsServiceImpl();
+            Naming.rebind("rmi://localhost:" + port + "/MetricsService", metricsService);
+            NodeServiceImpl nodeService = new NodeServiceImpl(authService);
+            Naming.rebind("rmi://localhost:" + port + "/NodeService", nodeService);
+            Naming.rebind("rmi://localhost:" + port + "/Replication", new ReplicationServiceImpl(authService));
 
-            System.out.println("[SERVER] RMI server is now running on port 1099\n[SERVER][NOTIFICATION] AuthService Registered");
+            Tombstones.start();
+            Volumes.start();
+            ColdTier.start();
+            Usage.start();
+
+            try {
+                DataPlane.start(ServerConfig.getInt("dataplane.port", port + 1000));
+            } catch (IOException e) {
+                System.err.println("[DATAPLANE] Not started, transfers stay on RMI: " + e.getMessage());
+            }
+
+            System.out.println("[SERVER] RMI server is now running on port " + port + "\n[SERVER][NOTIFICATION] AuthService and MetricsService Registered");
+            if (Cluster.enabled()) {
+                System.out.println("[CLUSTER] Node " + Cluster.selfId() + " joined");
+                long retryMillis = ServerConfig.getLong("cluster.rebalanceRetryMillis", 5000);
+                Thread.ofPlatform().daemon().name("rebalancer").start(() -> {
+                    try {
+                        while (nodeService.rebalance() > 0) {
+                            Thread.sleep(retryMillis);
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                });
+            }
         }catch (Exception e){
             System.err.println("Error starting RMI server:" + e.getMessage());
             e.printStackTrace();
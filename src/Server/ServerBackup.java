@@ -1,7 +1,8 @@
 package Server;
 
-import Interface.AuthFactory;
+import Interface.MetricsService;
 
+import java.io.IOException;
 import java.rmi.Naming;
 import java.rmi.registry.LocateRegistry;
 
@@ -9,10 +10,25 @@ public class ServerBackup {
     public static void main(String[] args) {
         try {
             LocateRegistry.createRegistry(1100);
-            AuthFactory authService = new AuthFactoryImpl();
+            AuthFactoryImpl authService = new AuthFactoryImpl();
+            HighAvailability.start(HighAvailability.Role.BACKUP, authService);
             Naming.rebind("rmi://localhost:1100/AuthService", authService);
+            MetricsService metricsService = new MetricsServiceImpl();
+            Naming.rebind("rmi://localhost:1100/MetricsService", metricsService);
+            Naming.rebind("rmi://localhost:1100/Replication", new ReplicationServiceImpl(authService));
 
-            System.out.println("[SERVER] RMI server is now running on port 1100\n[SERVER][NOTIFICATION] AuthService Registered");
+            Tombstones.start();
+            Volumes.start();
+            ColdTier.start();
+            Usage.start();
+
+            try {
+                DataPlane.start(ServerConfig.getInt("dataplane.port", 1100 + 1000));
+            } catch (IOException e) {
+                System.err.println("[DATAPLANE] Not started, transfers stay on RMI: " + e.getMessage());
+            }
+
+            System.out.println("[SERVER] RMI server is now running on port 1100\n[SERVER][NOTIFICATION] AuthService and MetricsService Registered");
         } catch (Exception e) {
             System.err.println("Error starting backup AuthService: " + e.getMessage());
             e.printStackTrace();
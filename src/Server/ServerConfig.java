@@ -0,0 +1,59 @@
+package Server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Server tunables, read from {@code -Ddds.<key>=<value>} system properties.
+ */
+public final class ServerConfig {
+
+    private static final String PREFIX = "dds.";
+
+    private ServerConfig() {
+    }
+
+    /** Directory holding {@code storage/}, {@code serverStorage/} and {@code users.dat}. */
+    public static Path dataDir() {
+        return Paths.get(get("data.dir", ""));
+    }
+
+    public static String get(String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
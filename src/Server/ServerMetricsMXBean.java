@@ -0,0 +1,15 @@
+package Server;
+
+import java.util.Map;
+
+/**
+ * JMX view of the server-wide counters and gauges, registered as {@code DDSystem:type=Server}.
+ */
+public interface ServerMetricsMXBean {
+    long getActiveSessions();
+    long getExportedObjects();
+    long getBytesIn();
+    long getBytesOut();
+    Map<String, Long> getCounters();
+    Map<String, Long> getGauges();
+}
@@ -1,24 +1,130 @@
 package Server;
 
+import Interface.ChangeSet;
+import Interface.FileEntry;
 import Interface.FileSystemInterface;
+import Interface.ListingPage;
+import Interface.ServerBusyException;
 import Interface.SessionFactory;
+import Interface.StaleReadException;
 import Interface.SubjectRI;
+import Interface.TransferTicket;
+import Interface.WriteResult;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
-public class SessionFactoryImpl extends UnicastRemoteObject implements SessionFactory {
+public class SessionFactoryImpl extends UnicastRemoteObject implements SessionFactory, Unreferenced {
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    static {
+        Metrics.gauge(Metrics.ACTIVE_SESSIONS, ACTIVE::get);
+    }
+
+    private final FileSystemImpl files;
     private final FileSystemInterface fileSystem;
     private final String username;
     private SubjectRI subjectRI;
+    private volatile long minSequence;
+    /** Topic of the folder this session has open, if it has one. */
+    private String openTopic;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     public SessionFactoryImpl(String username) throws RemoteException {
         super();
-        this.fileSystem = (FileSystemInterface) new FileSystemImpl(username);
+        this.files = new FileSystemImpl(username);
+        this.fileSystem = Metrics.instrument(FileSystemInterface.class, files, "fs");
         this.username = username;
         this.subjectRI = null;
+        Metrics.increment(Metrics.EXPORTED_OBJECTS);
+        ACTIVE.incrementAndGet();
+    }
+
+    private <T> T instrumented(String name, RequestExecutor.Task<T> body) throws RemoteException {
+        return instrumented(name, RequestExecutor.Lane.INTERACTIVE, 0, body);
+    }
+
+    /**
+     * Runs one session operation on the {@link RequestExecutor} in the given lane, under a new
+     * {@link Trace}, recording its latency (queueing included) as {@code session.<name>}.
+     */
+    private <T> T instrumented(String name, RequestExecutor.Lane lane, long bytes, RequestExecutor.Task<T> body)
+            throws RemoteException {
+        Metrics.OperationStats stats = Metrics.operation("session." + name);
+        Trace trace = Trace.begin("session." + name, username);
+        long start = System.nanoTime();
+        try {
+            return RequestExecutor.call(username, lane, bytes, body);
+        } catch (ServerBusyException e) {
+            throw e;
+        } catch (RemoteException | RuntimeException e) {
+            stats.error();
+            throw e;
+        } finally {
+            stats.record(start);
+            trace.end();
+        }
+    }
+
+    private void failed(String name, RemoteException e) {
+        Metrics.operation("session." + name).error();
+        System.err.println("[TRACE " + Trace.currentId() + "] session." + name + " failed for '" + username + "'");
+        e.printStackTrace();
+    }
+
+    /** On a backup, waits until the replica has caught up with what this session asked for. */
+    private void awaitReplica() throws RemoteException {
+        if (!ReplicaFollower.isRunning() || minSequence == 0) return;
+        try {
+            if (!ReplicaFollower.awaitApplied(minSequence)) {
+                Metrics.increment("replication.stale.reads");
+                throw new StaleReadException("Replica is at sequence " + ReplicaFollower.applied()
+                        + ", read needs " + minSequence, ReplicaFollower.applied());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the replica", e);
+        }
+    }
+
+    /** Refuses writes unless this node is the primary of the current epoch (see {@link HighAvailability}). */
+    private void checkWritable() throws RemoteException {
+        HighAvailability.checkWritable();
+    }
+
+    /** The topics of the items {@code names} of the current folder, leaving out those that have none. */
+    private List<String> topics(String... names) throws RemoteException {
+        List<String> topics = new ArrayList<>();
+        for (String name : names) {
+            String topic = fileSystem.topic(name);
+            if (topic != null) topics.add(topic);
+        }
+        return topics;
+    }
+
+    /** Notifies the sessions subscribed to {@code topics}, other than this one, on whichever node they are. */
+    private void publish(List<String> topics, State state) {
+        Topics.publish(topics, state, subjectRI);
+    }
+
+    /** Moves this session's folder subscription to the folder it has open now. */
+    private void followOpenFolder() throws RemoteException {
+        String topic = fileSystem.topic(".");
+        if (Objects.equals(topic, openTopic)) return;
+        if (openTopic != null) Topics.unsubscribe(openTopic, subjectRI, false);
+        if (topic != null) Topics.subscribe(topic, subjectRI, false);
+        openTopic = topic;
     }
 
     @Override
@@ -31,155 +137,465 @@ public class SessionFactoryImpl extends UnicastRemoteObject implements SessionFa
         return this.subjectRI;
     }
 
+    /** Called by RMI once no client holds this session any more, i.e. its DGC lease ran out. */
+    @Override
+    public void unreferenced() {
+        close();
+    }
+
+    /** Ends this session: drops its subscriptions and unexports it with the objects it exported. */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        ACTIVE.decrementAndGet();
+        if (subjectRI != null) {
+            Topics.unsubscribeAll(subjectRI);
+            SubjectRegistry.unregister(username, subjectRI);
+            if (subjectRI instanceof SubjectImpl subject) Metrics.unexport(subject);
+        }
+        Metrics.unexport(files);
+        Metrics.unexport(this);
+    }
+
     @Override
     public List<String> listFiles() throws RemoteException {
-        return fileSystem.listFiles();
+        return instrumented("listFiles", () -> {
+            awaitReplica();
+            List<String> names = fileSystem.listFiles();
+            long bytes = 0;
+            for (String name : names) bytes += name.length();
+            Metrics.add(Metrics.BYTES_OUT, bytes);
+            return names;
+        });
+    }
+    @Override
+    public ListingPage list(String prefix, FileEntry.Sort sort, boolean descending, int pageSize, String cursor)
+            throws RemoteException {
+        return instrumented("list", () -> {
+            awaitReplica();
+            ListingPage page = fileSystem.list(prefix, sort, descending, pageSize, cursor);
+            long bytes = 0;
+            for (FileEntry entry : page.getEntries()) bytes += entry.getName().length() + 3 * Long.BYTES;
+            Metrics.add(Metrics.BYTES_OUT, bytes);
+            return page;
+        });
     }
+
+    @Override
+    public ChangeSet changesSince(String token, int max) throws RemoteException {
+        checkWritable();
+        return instrumented("changesSince", () -> fileSystem.changesSince(token, max));
+    }
+
     @Override
     public void createFolder(String folderName) throws RemoteException{
-        try {
-            subjectRI.setState(new State(
-                    "CREATE",
-                    fileSystem.createFolder(folderName) ? "'" + folderName + "' created successfully.\n"
-                            : "Failed to create folder '" + folderName + "'.\n"
-            ));
-        } catch(RemoteException e) { e.printStackTrace(); }    }
+        checkWritable();
+        instrumented("createFolder", () -> {
+            try {
+                subjectRI.setState(new State(
+                        "CREATE",
+                        fileSystem.createFolder(folderName) ? "'" + folderName + "' created successfully.\n"
+                                : "Failed to create folder '" + folderName + "'.\n"
+                ));
+            } catch(RemoteException e) { failed("createFolder", e); }
+            return null;
+        });
+    }
+
+    @Override
+    public void createFolders(List<String> folderNames) throws RemoteException {
+        checkWritable();
+        instrumented("createFolders", () -> {
+            try {
+                int created = fileSystem.createFolders(folderNames);
+                subjectRI.setState(new State("CREATE", created + " folder(s) created.\n"));
+            } catch(RemoteException e) { failed("createFolders", e); }
+            return null;
+        });
+    }
 
     @Override
     public boolean changeDirectory(String folderName) throws RemoteException{
-        return fileSystem.changeDirectory(folderName);
+        return instrumented("changeDirectory", () -> {
+            awaitReplica();
+            boolean changed = fileSystem.changeDirectory(folderName);
+            if (changed) followOpenFolder();
+            return changed;
+        });
+    }
+
+    @Override
+    public boolean subscribe(String folderName) throws RemoteException {
+        return instrumented("subscribe", () -> {
+            String topic = fileSystem.topic(folderName);
+            if (topic == null) return false;
+            Topics.subscribe(topic, subjectRI, true);
+            return true;
+        });
+    }
+
+    @Override
+    public void unsubscribe(String folderName) throws RemoteException {
+        instrumented("unsubscribe", () -> {
+            String topic = fileSystem.topic(folderName);
+            if (topic != null) Topics.unsubscribe(topic, subjectRI, true);
+            return null;
+        });
+    }
+
+    /** A conditional write's result, or the error its session operation already logged. */
+    private static WriteResult reported(WriteResult result, String operation) throws RemoteException {
+        if (result == null) throw new RemoteException("Could not " + operation);
+        return result;
+    }
+
+    /** What the session is told about a write that was not applied. */
+    private static String notApplied(String failure, String item, long expectedVersion, WriteResult result) {
+        if (expectedVersion == WriteResult.ANY || result.getVersion() == expectedVersion) return failure;
+        return "'" + item + "' is at version " + result.getVersion() + ", not " + expectedVersion + "; it was left alone.\n";
     }
 
     @Override
     public void rename(String oldName, String newName) throws RemoteException {
-        try {
-            List<String> users = fileSystem.getAuthorizedUsers(oldName);
-            boolean ok = fileSystem.rename(oldName, newName);
-            subjectRI.setState(new State(
-                    "RENAME",
-                    ok ? "'" + oldName + "' renamed successfully to '" + newName  + "'.\n"
-                            : "Failed to rename '" + oldName + "' to '" + newName + "'.\n"
-            ));
+        renamed(oldName, newName, WriteResult.ANY);
+    }
+
+    @Override
+    public WriteResult rename(String oldName, String newName, long expectedVersion) throws RemoteException {
+        return reported(renamed(oldName, newName, expectedVersion), "rename '" + oldName + "'");
+    }
+
+    private WriteResult renamed(String oldName, String newName, long expectedVersion) throws RemoteException {
+        checkWritable();
+        return instrumented("rename", () -> {
+            try {
+                List<String> topics = topics(oldName);
+                WriteResult result = fileSystem.rename(oldName, newName, expectedVersion);
+                subjectRI.setState(new State(
+                        "RENAME",
+                        result.isApplied() ? "'" + oldName + "' renamed successfully to '" + newName  + "'.\n"
+                                : notApplied("Failed to rename '" + oldName + "' to '" + newName + "'.\n",
+                                        oldName, expectedVersion, result)
+                ));
+
+                if(!result.isApplied()) return result;
+
+                publish(topics, new State(
+                        "RENAME",
+                        "'" + oldName + "' was renamed to '" + newName + "' by '" + username + "'.\n"
+                ));
+                return result;
+            } catch(RemoteException e) { failed("rename", e); }
+            return null;
+        });
+    }
+
+    @Override
+    public void move(String itemName, String targetFolder) throws RemoteException {
+        checkWritable();
+        instrumented("move", () -> {
+            try {
+                List<String> topics = topics(itemName, targetFolder + "/" + Paths.get(itemName).getFileName());
+                boolean ok = fileSystem.move(itemName, targetFolder);
+                subjectRI.setState(new State(
+                        "MOVE",
+                         ok ? "'" + itemName + "' successfully moved to '" + targetFolder + "'.\n"
+                                : "Failed to move '" + itemName + "' to '" + targetFolder + "'.\n"
+                ));
+                if(!ok) return null;
+
+                publish(topics, new State(
+                        "MOVE",
+                        "'" + itemName + "' was moved to '" + targetFolder + "' by his owner.\n"
+                ));
+            } catch(RemoteException e) { failed("move", e); }
+            return null;
+        });
+    }
+
+    @Override
+    public void copy(String sourceName, String targetName) throws RemoteException {
+        checkWritable();
+        instrumented("copy", () -> {
+            try {
+                boolean ok = fileSystem.copy(sourceName, targetName);
+                subjectRI.setState(new State(
+                        "COPY",
+                        ok ? "'" + sourceName + "' copied to '" + targetName + "'.\n"
+                                : "Failed to copy '" + sourceName + "' to '" + targetName + "'.\n"
+                ));
+            } catch(RemoteException e) { failed("copy", e); }
+            return null;
+        });
+    }
 
-            if(!ok) return;
+    @Override
+    public void upload(String filename, byte[] data) throws RemoteException {
+        uploaded(filename, data, WriteResult.ANY);
+    }
+
+    @Override
+    public WriteResult upload(String filename, byte[] data, long expectedVersion) throws RemoteException {
+        return reported(uploaded(filename, data, expectedVersion), "upload '" + filename + "'");
+    }
+
+    private WriteResult uploaded(String filename, byte[] data, long expectedVersion) throws RemoteException {
+        checkWritable();
+        return instrumented("upload", RequestExecutor.Lane.BULK, data.length, () -> {
+            Metrics.add(Metrics.BYTES_IN, data.length);
+            return stored(filename, expectedVersion, () -> fileSystem.upload(filename, data, expectedVersion));
+        });
+    }
 
-            for (String user : users) {
-                SubjectRI subj = SubjectRegistry.get(user);
-                if(subjectRI.equals(subj)) continue;
-                if (subj != null) {
-                    subj.setState((new State(
-                            "RENAME",
-                            "'" + oldName + "' was renamed to '" + newName + "' by '" + username + "'.\n"
-                    )));
+    @Override
+    public List<String> uploadBatch(Map<String, byte[]> files) throws RemoteException {
+        checkWritable();
+        long bytes = 0;
+        for (byte[] data : files.values()) bytes += data.length;
+        long total = bytes;
+        return instrumented("uploadBatch", RequestExecutor.Lane.BULK, total, () -> {
+            Metrics.add(Metrics.BYTES_IN, total);
+            List<String> stored = fileSystem.uploadAll(files);
+            try {
+                subjectRI.setState(new State(
+                        "UPLOAD", stored.size() + " of " + files.size() + " file(s) uploaded.\n"));
+                if (!stored.isEmpty()) {
+                    publish(topics(stored.toArray(new String[0])), new State(
+                            "UPLOAD",
+                            stored.size() + " file(s) were uploaded by '" + username + "'.\n"
+                    ));
                 }
+            } catch(RemoteException e) { failed("uploadBatch", e); }
+            return stored;
+        });
+    }
+
+    @Override
+    public TransferTicket openUpload(String filename, long size) throws RemoteException {
+        checkWritable();
+        return instrumented("openUpload", () -> {
+            try {
+                Usage.admit(username, size);
+                return DataPlane.openUpload(username, filename, size);
+            } catch (IOException e) {
+                throw new RemoteException("Could not open upload of '" + filename + "'", e);
             }
+        });
+    }
 
-        } catch(RemoteException e) { e.printStackTrace(); }
+    @Override
+    public TransferTicket resumeUpload(long transferId) throws RemoteException {
+        checkWritable();
+        return instrumented("resumeUpload", () -> {
+            try {
+                return DataPlane.resumeUpload(username, transferId);
+            } catch (IOException e) {
+                throw new RemoteException("Could not resume upload", e);
+            }
+        });
     }
 
     @Override
-    public void move(String itemName, String targetFolder) throws RemoteException {
+    public void commitUpload(TransferTicket ticket) throws RemoteException {
+        committed(ticket, WriteResult.ANY);
+    }
+
+    @Override
+    public WriteResult commitUpload(TransferTicket ticket, long expectedVersion) throws RemoteException {
+        return reported(committed(ticket, expectedVersion), "store upload " + ticket.getId());
+    }
+
+    private WriteResult committed(TransferTicket ticket, long expectedVersion) throws RemoteException {
+        checkWritable();
+        UploadState received;
         try {
-            List<String> users = fileSystem.getAuthorizedUsers(itemName);
-            boolean ok = fileSystem.move(itemName, targetFolder);
-            subjectRI.setState(new State(
-                    "MOVE",
-                     ok ? "'" + itemName + "' successfully moved to '" + targetFolder + "'.\n"
-                            : "Failed to move '" + itemName + "' to '" + targetFolder + "'.\n"
-            ));
-            if(!ok) return;
-
-            for (String user : users) {
-                SubjectRI subj = SubjectRegistry.get(user);
-                if(subjectRI.equals(subj)) continue;
-                if (subj != null) {
-                    subj.setState((new State(
-                            "MOVE",
-                            "'" + itemName + "' was moved to '" + targetFolder + "' by his owner.\n"
-                    )));
+            received = DataPlane.claimComplete(username, ticket.getId());
+        } catch (IOException e) {
+            throw new RemoteException("Could not read upload state", e);
+        }
+        if (received == null) {
+            throw new RemoteException("Unknown or incomplete upload ticket");
+        }
+        return instrumented("upload", RequestExecutor.Lane.BULK, received.size, () -> {
+            try {
+                return stored(received.filename, expectedVersion,
+                        () -> fileSystem.uploadFrom(received.filename, received.part.toString(), expectedVersion));
+            } finally {
+                try {
+                    received.delete();
+                } catch (IOException ignored) {
                 }
             }
-        } catch(RemoteException e) { e.printStackTrace(); }
+        });
     }
 
-    @Override
-    public void upload(String filename, byte[] data) throws RemoteException {
+    /** Runs an upload's {@code write}, then tells the uploader and, if it was applied, the file's sharees. */
+    private WriteResult stored(String filename, long expectedVersion, RequestExecutor.Task<WriteResult> write) {
         try {
-            boolean ok = fileSystem.upload(filename, data);
+            WriteResult result = write.run();
             subjectRI.setState(new State(
                     "UPLOAD",
-                    ok ? "'" + filename + "' upload successful.\n"
-                            : "Failed to upload '" + filename + "'."
+                    result.isApplied() ? "'" + filename + "' upload successful.\n"
+                            : notApplied("Failed to upload '" + filename + "'.", filename, expectedVersion, result)
             ));
-            if(!ok) return;
-            List<String> users = fileSystem.getAuthorizedUsers(filename);
-            for (String user : users) {
-                SubjectRI subj = SubjectRegistry.get(user);
-                if(subjectRI.equals(subj)) continue;
-                if (subj != null) {
-                    subj.setState((new State(
-                            "UPLOAD",
-                            "'" + filename + "' was uploaded by '" + username + "'.\n"
-                    )));
-                }
+            if(!result.isApplied()) return result;
+            List<String> topics = topics(filename);
+            publish(topics, new State(
+                    "UPLOAD",
+                    "'" + filename + "' was uploaded by '" + username + "'.\n"
+            ));
+            return result;
+        } catch(RemoteException e) { failed("upload", e); }
+        return null;
+    }
+
+    @Override
+    public TransferTicket openDownload(String filename) throws RemoteException {
+        return instrumented("openDownload", () -> {
+            awaitReplica();
+            String path = fileSystem.readablePath(filename);
+            if (path == null) {
+                throw new RemoteException("No such file: " + filename);
             }
-        } catch(RemoteException e) { e.printStackTrace(); }
+            try {
+                return DataPlane.openDownload(username, Paths.get(path));
+            } catch (IOException e) {
+                throw new RemoteException("Could not open download of '" + filename + "'", e);
+            }
+        });
+    }
+
+    @Override
+    public TransferTicket openArchive(String folderName, String format, int level) throws RemoteException {
+        return instrumented("openArchive", () -> {
+            awaitReplica();
+            FolderArchive.Format archiveFormat = FolderArchive.Format.of(format);
+            if (archiveFormat == null) {
+                throw new RemoteException("Unknown archive format: " + format + " (zip, tar or tgz)");
+            }
+            if (level < -1 || level > 9) {
+                throw new RemoteException("Compression level must be 0 to 9, or -1 for the default");
+            }
+            String path = fileSystem.readableFolder(folderName);
+            if (path == null) {
+                throw new RemoteException("No such folder: " + folderName);
+            }
+            try {
+                return DataPlane.openArchive(username, Paths.get(path), archiveFormat, level);
+            } catch (IOException e) {
+                throw new RemoteException("Could not open archive of '" + folderName + "'", e);
+            }
+        });
     }
 
     @Override
     public void download(String filename) throws RemoteException {
-        try{
-            subjectRI.setState(new State(
-                    "DOWNLOAD", fileSystem.download(filename) ? "'" + filename + "' was downloaded to your local storage.\n"
-                    : "'" + filename + "' download failed.\n"));
-        }catch(RemoteException e) { e.printStackTrace(); }
+        checkWritable();
+        instrumented("download", RequestExecutor.Lane.BULK, 0, () -> {
+            try{
+                subjectRI.setState(new State(
+                        "DOWNLOAD", fileSystem.download(filename) ? "'" + filename + "' was downloaded to your local storage.\n"
+                        : "'" + filename + "' download failed.\n"));
+            }catch(RemoteException e) { failed("download", e); }
+            return null;
+        });
     }
 
     @Override
     public void delete(String filename) throws RemoteException {
-        try {
-            List<String> users = fileSystem.getAuthorizedUsers(filename);
+        deleted(filename, WriteResult.ANY);
+    }
 
-            boolean ok = fileSystem.delete(filename);
-            subjectRI.setState(new State(
-                            "DELETE",
-                            ok ? "'" + filename + "' delete successful.\n"
-                            : "Failed to delete '" + filename + "'.\n"
-            ));
-            if(!ok) return;
-
-            for (String user : users) {
-                SubjectRI subj = SubjectRegistry.get(user);
-                if(subjectRI.equals(subj)) continue;
-                if (subj != null) {
-                    subj.setState((new State(
-                            "DELETE",
-                            "'" + filename + "' was deleted by '" + username + "'.\n"
-                    )));
-                }
+    @Override
+    public WriteResult delete(String filename, long expectedVersion) throws RemoteException {
+        return reported(deleted(filename, expectedVersion), "delete '" + filename + "'");
+    }
+
+    private WriteResult deleted(String filename, long expectedVersion) throws RemoteException {
+        checkWritable();
+        return instrumented("delete", RequestExecutor.Lane.BULK, 0, () -> {
+            try {
+                List<String> topics = topics(filename);
+
+                WriteResult result = fileSystem.delete(filename, expectedVersion);
+                subjectRI.setState(new State(
+                                "DELETE",
+                                result.isApplied() ? "'" + filename + "' delete successful.\n"
+                                : notApplied("Failed to delete '" + filename + "'.\n", filename, expectedVersion, result)
+                ));
+                if(!result.isApplied()) return result;
+
+                publish(topics, new State(
+                        "DELETE",
+                        "'" + filename + "' was deleted by '" + username + "'.\n"
+                ));
+                return result;
+            } catch (RemoteException e) {
+                failed("delete", e);
             }
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
+            return null;
+        });
+    }
+
+    @Override
+    public long version(String filename) throws RemoteException {
+        // asked where the conditional write will go; a backup may not have replayed the last write yet
+        checkWritable();
+        return instrumented("version", () -> fileSystem.version(filename));
     }
 
     @Override
     public void shareWithUser(String filename, String withUsername) throws RemoteException {
-        try {
-            boolean ok = fileSystem.share(filename, withUsername);
-            subjectRI.setState(new State(
-                    "SHARE",
-                    ok ? "'" + filename + "' shared with '" + withUsername + "'.\n"
-                            : "Failed to share '" + filename + "' with '" + withUsername + "'.\n"
-            ));
-            if(!ok) return;
+        checkWritable();
+        instrumented("shareWithUser", RequestExecutor.Lane.BULK, 0, () -> {
+            try {
+                boolean ok = fileSystem.share(filename, withUsername);
+                subjectRI.setState(new State(
+                        "SHARE",
+                        ok ? "'" + filename + "' shared with '" + withUsername + "'.\n"
+                                : "Failed to share '" + filename + "' with '" + withUsername + "'.\n"
+                ));
+                if(!ok) return null;
 
-            SubjectRI subjectRIUser = SubjectRegistry.get(withUsername);
-            subjectRIUser.setState(new State("SHARE", "'" + username + "' shared '" + filename + "' with you.\n"));
-        } catch(RemoteException e) { e.printStackTrace(); }
+                Cluster.notify(withUsername, new State("SHARE", "'" + username + "' shared '" + filename + "' with you.\n"));
+            } catch(RemoteException e) { failed("shareWithUser", e); }
+            return null;
+        });
     }
     @Override
     public String getPath() throws RemoteException{
-        return fileSystem.getPath();
+        return instrumented("getPath", () -> {
+            awaitReplica();
+            return fileSystem.getPath();
+        });
+    }
+
+    @Override
+    public List<String> find(String query) throws RemoteException {
+        return instrumented("find", () -> {
+            awaitReplica();
+            List<String> found = fileSystem.find(query);
+            long bytes = 0;
+            for (String path : found) bytes += path.length();
+            Metrics.add(Metrics.BYTES_OUT, bytes);
+            return found;
+        });
+    }
+
+    @Override
+    public long[] usage(String folderName) throws RemoteException {
+        return instrumented("usage", () -> {
+            awaitReplica();
+            return fileSystem.usage(folderName);
+        });
+    }
+
+    @Override
+    public long getSequence() throws RemoteException {
+        return ReplicaFollower.isRunning() ? ReplicaFollower.applied() : ReplicationLog.sequence();
+    }
+
+    @Override
+    public void setMinSequence(long sequence) throws RemoteException {
+        this.minSequence = sequence;
     }
 }
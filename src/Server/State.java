@@ -1,19 +1,28 @@
 package Server;
 
 import java.io.Serializable;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 
 public class State implements Serializable {
     private String msg;
     private String id;
+    private final long createdAtMicros;
 
     public State(String id, String m) {
         this.id = id;
         this.msg = m;
+        this.createdAtMicros = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
     }
 
     public String getId() {
         return id;
     }
+    /** Wall-clock creation time in microseconds since the epoch, used to measure delivery delay. */
+    public long getCreatedAtMicros() {
+        return createdAtMicros;
+    }
+
     public String getInfo(){
         return this.msg;
     }
@@ -5,14 +5,22 @@ import Interface.SubjectRI;
 
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SubjectImpl extends UnicastRemoteObject implements SubjectRI{
 
+    private static final AtomicLong IN_FLIGHT = new AtomicLong();
+
+    static {
+        Metrics.gauge("notify.inflight", IN_FLIGHT::get);
+    }
+
     State subjectState;
     ObserverRI observer;
 
     public SubjectImpl() throws RemoteException {
         super();
+        Metrics.increment(Metrics.EXPORTED_OBJECTS);
     }
     @Override
     public void attach(ObserverRI obsRI) throws RemoteException {
@@ -32,6 +40,17 @@ public class SubjectImpl extends UnicastRemoteObject implements SubjectRI{
     @Override
     public void setState(State state) throws RemoteException {
         this.subjectState = state;
-        observer.update();
+        Metrics.OperationStats stats = Metrics.operation("notify.update");
+        long start = System.nanoTime();
+        IN_FLIGHT.incrementAndGet();
+        try {
+            Trace.run("notify.update", observer::update);
+        } catch (RemoteException | RuntimeException e) {
+            stats.error();
+            throw e;
+        } finally {
+            IN_FLIGHT.decrementAndGet();
+            stats.record(start);
+        }
     }
 }
@@ -13,6 +13,11 @@ public class SubjectRegistry {
         subjects.put(username, subject);
     }
 
+    /** Forgets {@code subject}, unless {@code username} has logged in again since. */
+    public static void unregister(String username, SubjectRI subject) {
+        subjects.remove(username, subject);
+    }
+
     public static SubjectRI get(String username) {
         return subjects.get(username);
     }
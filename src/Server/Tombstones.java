@@ -0,0 +1,168 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Deletes that return before the space is freed.
+ * <p>
+ * A delete moves the tree into the user's trash, {@code serverStorage/<user>/.trash}, in one rename:
+ * the entry there is the tombstone, so the tree is gone from every listing at once however large
+ * it is, and since it is on disk it is still there after a crash. The move is replicated like any
+ * other, and a local file's mirror is moved next to it. A background reclaimer on every node then
+ * deletes what is in the trash, oldest first, at most {@code -Ddds.reclaim.filesPerSecond} files
+ * and folders a second (default 2000, 0 for no limit), so a huge delete does not starve the
+ * transfers of disk I/O.
+ */
+final class Tombstones {
+
+    private static final long FILES_PER_SECOND = ServerConfig.getLong("reclaim.filesPerSecond", 2000);
+    private static final long SCAN_MILLIS = ServerConfig.getLong("reclaim.scanMillis", 10_000);
+    static final String TRASH = ".trash";
+    private static final String MIRROR = ".mirror";
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final Condition BURIED = LOCK.newCondition();
+    private static final AtomicLong PENDING = new AtomicLong();
+    private static boolean woken;
+    private static long next;
+
+    private Tombstones() {
+    }
+
+    static void start() {
+        Metrics.gauge("reclaim.pending", PENDING::get);
+        Thread.ofPlatform().daemon().name("reclaimer").start(Tombstones::reclaim);
+    }
+
+    static Path trash(String user) {
+        return FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve(TRASH);
+    }
+
+    /**
+     * Moves {@code target} into {@code user}'s trash, and {@code mirror}, if not null, next to it;
+     * either may be missing.
+     */
+    static void bury(String user, Path target, Path mirror) throws IOException {
+        Path grave = trash(user).resolve(String.format("%011x-%08x",
+                System.currentTimeMillis(), ThreadLocalRandom.current().nextInt()));
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(grave.getParent());
+            Usage.Change change = Usage.before(target);
+            Files.move(target, grave, StandardCopyOption.ATOMIC_MOVE);
+            change.done();
+            ReplicationLog.move(target, grave);
+            PENDING.incrementAndGet();
+        }
+        SearchIndex.removed(target);
+        if (mirror != null) MirrorWriter.mirrorMove(mirror, mirrorOf(grave));
+        LOCK.lock();
+        try {
+            woken = true;
+            BURIED.signal();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /** Where the mirror of what was buried at {@code grave} goes. */
+    static Path mirrorOf(Path grave) {
+        return grave.resolveSibling(grave.getFileName() + MIRROR);
+    }
+
+    // ========== Reclaimer ==========
+
+    private static void reclaim() {
+        try {
+            while (true) {
+                List<Path> graves = graves();
+                PENDING.set(graves.size());
+                for (Path grave : graves) {
+                    try {
+                        delete(grave);
+                    } catch (IOException e) {
+                        System.err.println("[RECLAIM] " + grave + ": " + e);
+                    }
+                    PENDING.updateAndGet(n -> Math.max(0, n - 1));
+                }
+                LOCK.lock();
+                try {
+                    if (!woken) BURIED.await(SCAN_MILLIS, TimeUnit.MILLISECONDS);
+                    woken = false;
+                } finally {
+                    LOCK.unlock();
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /** Everything in every user's trash, oldest first. */
+    private static List<Path> graves() {
+        List<Path> graves = new ArrayList<>();
+        if (!Files.isDirectory(FileSystemImpl.SERVERSTORAGE_ROOT)) return graves;
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(FileSystemImpl.SERVERSTORAGE_ROOT)) {
+            for (Path user : users) {
+                Path trash = user.resolve(TRASH);
+                if (!Files.isDirectory(trash)) continue;
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(trash)) {
+                    entries.forEach(graves::add);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[RECLAIM] Could not list the trash: " + e);
+        }
+        graves.sort((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+        return graves;
+    }
+
+    private static void delete(Path grave) throws IOException {
+        Files.walkFileTree(grave, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                pace();
+                Files.delete(file);
+                Metrics.increment("reclaim.files");
+                Metrics.add("reclaim.bytes", attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) throw exc;
+                pace();
+                Files.delete(dir);
+                Metrics.increment("reclaim.files");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** Waits as long as it takes to stay under the rate, allowing a burst of 100 ms worth. */
+    private static void pace() throws IOException {
+        if (FILES_PER_SECOND <= 0) return;
+        long now = System.nanoTime();
+        next = Math.max(next, now - TimeUnit.MILLISECONDS.toNanos(100)) + TimeUnit.SECONDS.toNanos(1) / FILES_PER_SECOND;
+        long ahead = next - now;
+        if (ahead < TimeUnit.MILLISECONDS.toNanos(10)) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(ahead);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Reclaimer interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package Server;
+
+import Interface.SubjectRI;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Folder-scoped update notifications: an in-process broker that routes each change only to the
+ * sessions looking at the folder it happened in.
+ * <p>
+ * A topic is an owner and a path in the owner's {@code local} folder, {@code owner/a/b}, which is
+ * what the owner sees as {@code /local/a/b} and a sharee as {@code /shared/owner/a/b}. A session is
+ * subscribed to the folder it has open, and can also subscribe to a whole subtree, as the sync
+ * agent does for {@code local}. Subscriptions live in a trie with one node per path segment, so a
+ * change to {@code owner/a/b/f} reaches the sessions with {@code owner/a/b} open, those subscribed
+ * to {@code owner}, {@code owner/a} or {@code owner/a/b} as a subtree, and any inside {@code f} itself,
+ * by walking one branch instead of scanning the file system for sharees. A change is also passed
+ * to the other nodes of a cluster, which deliver it to their own subscribers. A subscriber whose
+ * client cannot be reached is dropped.
+ */
+final class Topics {
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final Node ROOT = new Node(null, null);
+    private static final Map<SubjectRI, Set<Subscription>> BY_SUBSCRIBER = new HashMap<>();
+
+    static {
+        Metrics.gauge("topics.subscribers", () -> {
+            LOCK.lock();
+            try {
+                return BY_SUBSCRIBER.size();
+            } finally {
+                LOCK.unlock();
+            }
+        });
+    }
+
+    private record Subscription(String topic, boolean subtree) {
+    }
+
+    private static final class Node {
+        final Node parent;
+        final String segment;
+        final Map<String, Node> children = new HashMap<>();
+        /** Subscribed to this folder only. */
+        final Set<SubjectRI> folder = new HashSet<>();
+        /** Subscribed to this folder and everything under it. */
+        final Set<SubjectRI> subtree = new HashSet<>();
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+
+    private Topics() {
+    }
+
+    /**
+     * The topic of {@code visible}, a path of {@code user} as {@code getPath} shows it; null for
+     * the root and {@code /shared}, which belong to no single owner.
+     */
+    static String of(String user, String visible) {
+        if (visible.equals("/local") || visible.startsWith("/local/")) return user + visible.substring("/local".length());
+        if (visible.startsWith("/shared/")) return visible.substring("/shared/".length());
+        return null;
+    }
+
+    // ========== Subscriptions ==========
+
+    static void subscribe(String topic, SubjectRI subscriber, boolean subtree) {
+        LOCK.lock();
+        try {
+            Node node = ROOT;
+            for (String segment : topic.split("/")) {
+                Node parent = node;
+                node = node.children.computeIfAbsent(segment, s -> new Node(parent, s));
+            }
+            (subtree ? node.subtree : node.folder).add(subscriber);
+            BY_SUBSCRIBER.computeIfAbsent(subscriber, s -> new HashSet<>()).add(new Subscription(topic, subtree));
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    static void unsubscribe(String topic, SubjectRI subscriber, boolean subtree) {
+        LOCK.lock();
+        try {
+            Node node = find(topic);
+            if (node != null) {
+                (subtree ? node.subtree : node.folder).remove(subscriber);
+                prune(node);
+            }
+            Set<Subscription> subscriptions = BY_SUBSCRIBER.get(subscriber);
+            if (subscriptions != null && subscriptions.remove(new Subscription(topic, subtree)) && subscriptions.isEmpty()) {
+                BY_SUBSCRIBER.remove(subscriber);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /** Drops every subscription of {@code subscriber}. */
+    static void unsubscribeAll(SubjectRI subscriber) {
+        LOCK.lock();
+        try {
+            Set<Subscription> subscriptions = BY_SUBSCRIBER.remove(subscriber);
+            if (subscriptions == null) return;
+            for (Subscription subscription : subscriptions) {
+                Node node = find(subscription.topic());
+                if (node == null) continue;
+                (subscription.subtree() ? node.subtree : node.folder).remove(subscriber);
+                prune(node);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static Node find(String topic) {
+        Node node = ROOT;
+        for (String segment : topic.split("/")) {
+            node = node.children.get(segment);
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    /** Removes {@code node} and the ancestors that no longer lead to a subscriber. */
+    private static void prune(Node node) {
+        while (node != ROOT && node.folder.isEmpty() && node.subtree.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment);
+            node = node.parent;
+        }
+    }
+
+    // ========== Publishing ==========
+
+    /**
+     * Tells the subscribers of the items {@code topics}, on this node but {@code except} and on
+     * every other node of the cluster, about {@code state}.
+     */
+    static void publish(List<String> topics, State state, SubjectRI except) {
+        long start = System.nanoTime();
+        deliver(topics, state, except);
+        if (Cluster.enabled()) Cluster.publish(topics, state);
+        Metrics.operation("notify.fanout").record(start);
+    }
+
+    /** Tells the subscribers on this node of the items {@code topics} about {@code state}. */
+    static void deliver(List<String> topics, State state, SubjectRI except) {
+        Set<SubjectRI> recipients = new LinkedHashSet<>();
+        LOCK.lock();
+        try {
+            for (String topic : topics) {
+                if (topic != null) collect(topic, recipients);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        recipients.remove(except);
+        List<SubjectRI> unreachable = new ArrayList<>();
+        for (SubjectRI recipient : recipients) {
+            try {
+                Trace.run("notify.recipient", () -> recipient.setState(state));
+                Metrics.increment("topics.delivered");
+            } catch (RemoteException | RuntimeException e) {
+                unreachable.add(recipient);
+            }
+        }
+        for (SubjectRI recipient : unreachable) {
+            unsubscribeAll(recipient);
+            Metrics.increment("topics.dropped");
+        }
+    }
+
+    /**
+     * Adds the subscribers to a change of the item {@code topic}: those of its folder, of subtrees
+     * above it, and of anything at or under the item.
+     */
+    private static void collect(String topic, Set<SubjectRI> into) {
+        String[] segments = topic.split("/");
+        Node node = ROOT;
+        for (int i = 0; i < segments.length; i++) {
+            if (i == segments.length - 1) into.addAll(node.folder);
+            node = node.children.get(segments[i]);
+            if (node == null) return;
+            into.addAll(node.subtree);
+        }
+        ArrayDeque<Node> below = new ArrayDeque<>();
+        below.push(node);
+        while (!below.isEmpty()) {
+            Node next = below.pop();
+            into.addAll(next.folder);
+            into.addAll(next.subtree);
+            below.addAll(next.children.values());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-request trace: an id plus timed spans for the steps of one {@code SessionFactory} call.
+ * <p>
+ * A trace is bound to the thread handling the request; {@link #span(String)} opens a span on the
+ * current trace, or does nothing when there is none. When a trace ends and took longer than
+ * {@code -Ddds.trace.slowMillis} (default 1000), its full span breakdown is appended to the
+ * slow-op log ({@code -Ddds.trace.slowLog}, default {@code slowops.log} in the data dir) and kept
+ * in a bounded in-memory ring ({@code -Ddds.trace.ringSize}, default 128).
+ */
+public final class Trace {
+
+    private static final long SLOW_MICROS = ServerConfig.getLong("trace.slowMillis", 1000) * 1000;
+    private static final int RING_SIZE = Math.max(1, ServerConfig.getInt("trace.ringSize", 128));
+    private static final Path SLOW_LOG = Paths.get(ServerConfig.get("trace.slowLog",
+            ServerConfig.dataDir().resolve("slowops.log").toString()));
+
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    private static final AtomicLong IDS = new AtomicLong();
+    private static final String ID_PREFIX = Long.toHexString(ProcessHandle.current().pid()) + "-";
+
+    private static final String[] RING = new String[RING_SIZE];
+    private static long ringNext;
+
+    private static final Span NOOP = new Span(null, "", 0);
+
+    private final String id;
+    private final String operation;
+    private final String user;
+    private final long startNanos = System.nanoTime();
+    private final Instant startedAt = Instant.now();
+    private final List<Span> spans = new ArrayList<>();
+    private int depth;
+
+    private Trace(String operation, String user) {
+        this.id = ID_PREFIX + IDS.incrementAndGet();
+        this.operation = operation;
+        this.user = user;
+    }
+
+    /** A timed step inside a trace. Close it when the step is done, or let {@link #run} do it. */
+    public static final class Span implements AutoCloseable {
+        private final Trace trace;
+        private final String name;
+        private final int depth;
+        private final long startNanos = System.nanoTime();
+        private long endNanos;
+
+        private Span(Trace trace, String name, int depth) {
+            this.trace = trace;
+            this.name = name;
+            this.depth = depth;
+        }
+
+        @Override
+        public void close() {
+            if (trace == null || endNanos != 0) return;
+            endNanos = System.nanoTime();
+            synchronized (trace) {
+                trace.depth--;
+            }
+        }
+    }
+
+    // ========== Lifecycle ==========
+
+    /** Starts a trace for one request on the calling thread. */
+    public static Trace begin(String operation, String user) {
+        Trace trace = new Trace(operation, user);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    public static Trace current() {
+        return CURRENT.get();
+    }
+
+    /** Binds an already started trace to the calling thread, e.g. a worker picking up the request. */
+    public static void bind(Trace trace) {
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    public static void unbind() {
+        CURRENT.remove();
+    }
+
+    /** Id of the trace bound to the calling thread, or {@code "-"}. */
+    public static String currentId() {
+        Trace trace = CURRENT.get();
+        return trace == null ? "-" : trace.id;
+    }
+
+    /** A traced step with no result; see {@link #run}. */
+    @FunctionalInterface
+    public interface Step<E extends Exception> {
+        void run() throws E;
+    }
+
+    /** A traced step with a result; see {@link #call}. */
+    @FunctionalInterface
+    public interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /** Runs {@code step} as the span {@code name} of the current trace. */
+    public static <E extends Exception> void run(String name, Step<E> step) throws E {
+        Span span = span(name);
+        try {
+            step.run();
+        } finally {
+            span.close();
+        }
+    }
+
+    /** Runs {@code call} as the span {@code name} of the current trace and returns its result. */
+    public static <T, E extends Exception> T call(String name, Call<T, E> call) throws E {
+        Span span = span(name);
+        try {
+            return call.call();
+        } finally {
+            span.close();
+        }
+    }
+
+    public static Span span(String name) {
+        Trace trace = CURRENT.get();
+        if (trace == null) return NOOP;
+        synchronized (trace) {
+            Span span = new Span(trace, name, trace.depth++);
+            trace.spans.add(span);
+            return span;
+        }
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /** Ends the trace, unbinds it from the thread and logs it if it was slow. */
+    public void end() {
+        long totalMicros = (System.nanoTime() - startNanos) / 1000;
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+        if (totalMicros >= SLOW_MICROS) {
+            recordSlow(format(totalMicros));
+        }
+    }
+
+    // ========== Slow-op log ==========
+
+    private synchronized String format(long totalMicros) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.ROOT, "%s trace=%s op=%s user=%s total=%.1fms%n",
+                startedAt, id, operation, user, totalMicros / 1000.0));
+        for (Span span : spans) {
+            long end = span.endNanos == 0 ? System.nanoTime() : span.endNanos;
+            out.append(String.format(Locale.ROOT, "    %s+%.1fms %.1fms %s%s%n",
+                    "  ".repeat(span.depth),
+                    (span.startNanos - startNanos) / 1e6,
+                    (end - span.startNanos) / 1e6,
+                    span.name,
+                    span.endNanos == 0 ? " (unfinished)" : ""));
+        }
+        return out.toString();
+    }
+
+    private static void recordSlow(String entry) {
+        synchronized (RING) {
+            RING[(int) (ringNext++ % RING_SIZE)] = entry;
+            try {
+                Files.writeString(SLOW_LOG, entry, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("[TRACE] Could not write slow-op log: " + e.getMessage());
+            }
+        }
+    }
+
+    /** The most recent slow traces, oldest first. */
+    public static List<String> slowOperations() {
+        synchronized (RING) {
+            List<String> result = new ArrayList<>();
+            long first = Math.max(0, ringNext - RING_SIZE);
+            for (long i = first; i < ringNext; i++) {
+                result.add(RING[(int) (i % RING_SIZE)]);
+            }
+            return result;
+        }
+    }
+}
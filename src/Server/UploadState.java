@@ -0,0 +1,218 @@
+package Server;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An upload in progress over the data plane, kept on disk so it survives a dropped connection, a
+ * restart or a failover: {@code serverStorage/<user>/.transfers/<id>.part} holds the bytes
+ * received so far and {@code <id>.state} the file name, size and a bitmap of the
+ * {@code -Ddds.transfer.chunkBytes} (default 1 MiB) chunks that are complete. The state is saved by
+ * a worker thread, so the data plane's selector never waits on the disk for it, and lags the chunks
+ * by at most one save. Only the new upload is replicated, not its chunks: the committed file goes
+ * to the backup by reference, and an upload resumed on a backup that took over sends every chunk
+ * again. Uploads untouched for {@code -Ddds.transfer.keepMillis} (default 24 hours) are swept.
+ */
+final class UploadState {
+
+    static final int CHUNK_BYTES = ServerConfig.getInt("transfer.chunkBytes", 1 << 20);
+    private static final long KEEP_MILLIS = ServerConfig.getLong("transfer.keepMillis", TimeUnit.HOURS.toMillis(24));
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ExecutorService SAVER =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("transfer-saver").factory());
+
+    final long id;
+    final String user;
+    final String filename;
+    final long size;
+    final int chunkBytes;
+    final Path part;
+    private final Path stateFile;
+    private final BitSet received;
+    /** Guards {@link #received} and {@link #dirty}; held only briefly, since the selector takes it. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Guards writing and deleting {@link #stateFile}, so a late save cannot bring it back. */
+    private final ReentrantLock saveLock = new ReentrantLock();
+    /** Chunks were received since the state file was last written, and a save is queued. */
+    private boolean dirty;
+    private boolean deleted;
+
+    private UploadState(long id, String user, String filename, long size, int chunkBytes, BitSet received) {
+        this.id = id;
+        this.user = user;
+        this.filename = filename;
+        this.size = size;
+        this.chunkBytes = chunkBytes;
+        this.received = received;
+        Path dir = dir(user);
+        this.part = dir.resolve(Long.toUnsignedString(id, 16) + ".part");
+        this.stateFile = dir.resolve(Long.toUnsignedString(id, 16) + ".state");
+    }
+
+    static Path dir(String user) {
+        return FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve(".transfers");
+    }
+
+    static UploadState create(String user, String filename, long size) throws IOException {
+        Files.createDirectories(dir(user));
+        UploadState state;
+        do {
+            state = new UploadState(RANDOM.nextLong(), user, filename, size, CHUNK_BYTES, new BitSet());
+        } while (Files.exists(state.stateFile));
+        Files.createFile(state.part);
+        ReplicationLog.put(state.part, new byte[0]);
+        FileSystemImpl.writeAtomically(FileSystemImpl.tempDir(user), state.stateFile, state.properties(new byte[0]));
+        return state;
+    }
+
+    /** The upload {@code id} of {@code user}, or null if there is none. */
+    static UploadState load(String user, long id) throws IOException {
+        Path stateFile = dir(user).resolve(Long.toUnsignedString(id, 16) + ".state");
+        if (!Files.exists(stateFile)) return null;
+        Properties p = new Properties();
+        p.load(new StringReader(Files.readString(stateFile, StandardCharsets.UTF_8)));
+        return new UploadState(id, user, p.getProperty("name"), Long.parseLong(p.getProperty("size")),
+                Integer.parseInt(p.getProperty("chunk")), BitSet.valueOf(Base64.getDecoder().decode(p.getProperty("received"))));
+    }
+
+    int chunks() {
+        return (int) ((size + chunkBytes - 1) / chunkBytes);
+    }
+
+    long chunkStart(int chunk) {
+        return (long) chunk * chunkBytes;
+    }
+
+    long chunkEnd(int chunk) {
+        return Math.min(size, chunkStart(chunk + 1));
+    }
+
+    boolean complete() {
+        lock.lock();
+        try {
+            return received.cardinality() == chunks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Byte ranges still missing, as {@code [start, end)} pairs. */
+    long[] missing() {
+        lock.lock();
+        try {
+            List<Long> ranges = new ArrayList<>();
+            for (int chunk = received.nextClearBit(0); chunk < chunks(); ) {
+                int end = Math.min(received.nextSetBit(chunk) < 0 ? chunks() : received.nextSetBit(chunk), chunks());
+                ranges.add(chunkStart(chunk));
+                ranges.add(chunkEnd(end - 1));
+                chunk = received.nextClearBit(end);
+            }
+            return ranges.stream().mapToLong(Long::longValue).toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that chunk {@code chunk} of {@link #part} is complete, and queues a save of the state. */
+    void received(int chunk) {
+        lock.lock();
+        try {
+            received.set(chunk);
+            if (dirty) return;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+        SAVER.execute(this::save);
+    }
+
+    void delete() throws IOException {
+        saveLock.lock();
+        try {
+            deleted = true;
+            Files.deleteIfExists(stateFile);
+            ReplicationLog.delete(stateFile);
+        } finally {
+            saveLock.unlock();
+        }
+        // gone already once committed, but the backup still has its copy
+        Files.deleteIfExists(part);
+        ReplicationLog.delete(part);
+    }
+
+    /** Writes the chunks received so far to the state file, on this node only. */
+    private void save() {
+        saveLock.lock();
+        try {
+            byte[] bits;
+            lock.lock();
+            try {
+                dirty = false;
+                bits = received.toByteArray();
+            } finally {
+                lock.unlock();
+            }
+            if (deleted) return;
+            Path tmp = FileSystemImpl.stage(FileSystemImpl.tempDir(user), properties(bits));
+            try {
+                FileSystemImpl.install(tmp, stateFile, null);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            System.err.println("[TRANSFER] Could not save the state of upload '" + filename + "': " + e.getMessage());
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    private byte[] properties(byte[] receivedBits) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("name", filename);
+        p.setProperty("size", Long.toString(size));
+        p.setProperty("chunk", Integer.toString(chunkBytes));
+        p.setProperty("received", Base64.getEncoder().encodeToString(receivedBits));
+        StringWriter out = new StringWriter();
+        p.store(out, null);
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Deletes every upload nobody has touched for {@code -Ddds.transfer.keepMillis}. */
+    static void sweep() {
+        if (!Files.isDirectory(FileSystemImpl.SERVERSTORAGE_ROOT)) return;
+        long cutoff = System.currentTimeMillis() - KEEP_MILLIS;
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(FileSystemImpl.SERVERSTORAGE_ROOT)) {
+            for (Path userDir : users) {
+                Path dir = userDir.resolve(".transfers");
+                if (!Files.isDirectory(dir)) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.state")) {
+                    for (Path stateFile : files) {
+                        if (Files.getLastModifiedTime(stateFile).toMillis() >= cutoff) continue;
+                        String name = stateFile.getFileName().toString();
+                        long id = Long.parseUnsignedLong(name.substring(0, name.length() - ".state".length()), 16);
+                        UploadState state = load(userDir.getFileName().toString(), id);
+                        if (state != null) state.delete();
+                        Metrics.increment("transfer.swept");
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[TRANSFER] Sweep failed: " + e.getMessage());
+        }
+    }
+}
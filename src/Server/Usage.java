@@ -0,0 +1,405 @@
+package Server;
+
+import Interface.QuotaExceededException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bytes and files each user keeps in {@code local} and {@code shared}, in total and per folder, for
+ * quotas and {@code du}.
+ * <p>
+ * Counters follow the changes instead of walks of the user's tree: whatever writes, copies, shares,
+ * moves or deletes a path looks at it {@link #before} and calls {@link Change#done} after. Before, a
+ * file is one stat and a folder its own counter; after, only the changed path is walked. Its folders
+ * are counted afresh and the difference goes to every folder above it. Counters are written to
+ * {@code serverStorage/<user>/.sync/usage} within {@code -Ddds.usage.flushMillis} of a change, and
+ * every {@code -Ddds.usage.scrubMillis}, and once at start, a scrub walks each user's trees and
+ * corrects counters that drifted, for example through a crash before the file was written. The
+ * backup counts the changes it replays itself, so the file is not replicated.
+ * <p>
+ * Uploads and copies that would take a user past {@code -Ddds.quota.bytes} or
+ * {@code -Ddds.quota.files} (0 for no limit) fail with a {@link QuotaExceededException}; the test is
+ * a comparison with the user's total. Copies shared with a user count towards their usage but are
+ * never refused, so that a share or a write to a shared file does not stop halfway.
+ */
+final class Usage {
+
+    private static final long QUOTA_BYTES = ServerConfig.getLong("quota.bytes", 0);
+    private static final long QUOTA_FILES = ServerConfig.getLong("quota.files", 0);
+    private static final long FLUSH_MILLIS = ServerConfig.getLong("usage.flushMillis", 5000);
+    private static final long SCRUB_MILLIS = ServerConfig.getLong("usage.scrubMillis", 3_600_000);
+    private static final String HEADER = "#dds-usage";
+    private static final ConcurrentHashMap<String, Usage> USERS = new ConcurrentHashMap<>();
+
+    private final String user;
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Bytes and files by folder, as getPath shows it; "" is the user's total. */
+    private final TreeMap<String, long[]> folders = new TreeMap<>();
+    private boolean loaded;
+    private boolean dirty;
+    /** Changes counted so far, so the scrub can tell whether one came while it walked. */
+    private long changes;
+
+    private Usage(String user) {
+        this.user = user;
+        this.file = FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve(".sync").resolve("usage");
+    }
+
+    private static Usage of(String user) {
+        return USERS.computeIfAbsent(user, Usage::new);
+    }
+
+    static void forget(String user) {
+        USERS.remove(user);
+    }
+
+    /** Whether {@code path}, under {@code serverStorage}, is a user's counters file. */
+    static boolean isCountersFile(Path path) {
+        Path relative = FileSystemImpl.SERVERSTORAGE_ROOT.relativize(path);
+        return relative.getNameCount() == 3 && relative.getName(1).toString().equals(".sync")
+                && relative.getName(2).toString().equals("usage");
+    }
+
+    static void forgetAll() {
+        USERS.clear();
+    }
+
+    static void start() {
+        Thread.ofPlatform().daemon().name("usage").start(Usage::run);
+    }
+
+    // ========== Changes ==========
+
+    /** A path as it was before a change, to compare with what is there after it. */
+    static final class Change {
+        private final Usage usage;
+        private final String visible;
+        private final Path path;
+        private final long[] before;
+
+        private Change(Usage usage, String visible, Path path, long[] before) {
+            this.usage = usage;
+            this.visible = visible;
+            this.path = path;
+            this.before = before;
+        }
+
+        /** Counts the change; never fails it, since a scrub puts any error right. */
+        void done() {
+            if (usage == null) return;
+            try {
+                usage.changed(visible, path, before);
+            } catch (IOException e) {
+                Metrics.increment("usage.errors");
+            }
+        }
+    }
+
+    private static final Change NONE = new Change(null, null, null, null);
+
+    static Change before(Path path) {
+        String[] at = FileSystemImpl.visiblePath(path);
+        if (at == null) return NONE;
+        Usage usage = of(at[0]);
+        usage.lock.lock();
+        try {
+            usage.load();
+            return new Change(usage, at[1], path, usage.counted(at[1], path));
+        } catch (IOException e) {
+            Metrics.increment("usage.errors");
+            return NONE;
+        } finally {
+            usage.lock.unlock();
+        }
+    }
+
+    /** What {@code visible} holds as counted: a folder's counter, or the file itself. */
+    private long[] counted(String visible, Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            long[] folder = folders.get(visible);
+            return folder == null ? new long[2] : folder.clone();
+        }
+        return Files.isRegularFile(path) ? new long[]{Files.size(path), 1} : new long[2];
+    }
+
+    private void changed(String visible, Path path, long[] before) throws IOException {
+        Map<String, long[]> tree = new HashMap<>();
+        long[] after = Files.exists(path) ? measure(visible, path, tree) : new long[2];
+        lock.lock();
+        try {
+            folders.subMap(visible + "/", visible + "0").clear();
+            folders.remove(visible);
+            folders.putAll(tree);
+            long bytes = after[0] - before[0];
+            long files = after[1] - before[1];
+            for (String folder = parent(visible); folder != null; folder = parent(folder)) {
+                long[] counter = folders.computeIfAbsent(folder, f -> new long[2]);
+                counter[0] += bytes;
+                counter[1] += files;
+            }
+            changes++;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String parent(String visible) {
+        return visible.isEmpty() ? null : visible.substring(0, visible.lastIndexOf('/'));
+    }
+
+    /** Bytes and files at and under {@code path}, with a counter for each folder put in {@code into}. */
+    private static long[] measure(String visible, Path path, Map<String, long[]> into) throws IOException {
+        long[] total = new long[2];
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                into.put(folderOf(dir), new long[2]);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                total[0] += attrs.size();
+                total[1]++;
+                for (String folder = folderOf(file.getParent()); into.containsKey(folder); folder = parent(folder)) {
+                    long[] counter = into.get(folder);
+                    counter[0] += attrs.size();
+                    counter[1]++;
+                    if (folder.equals(visible)) break;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String folderOf(Path dir) {
+                Path relative = path.relativize(dir);
+                return relative.toString().isEmpty() ? visible : visible + "/" + FileSystemImpl.slashed(relative);
+            }
+        });
+        return total;
+    }
+
+    // ========== Quotas ==========
+
+    /** Refuses a write of {@code bytes} over whatever is at {@code target} that its user has no room for. */
+    static void admit(Path target, long bytes) throws IOException {
+        if (QUOTA_BYTES <= 0 && QUOTA_FILES <= 0) return;
+        String[] at = FileSystemImpl.visiblePath(target);
+        if (at == null) return;
+        boolean replaced = Files.isRegularFile(target);
+        check(at[0], bytes - (replaced ? Files.size(target) : 0), replaced ? 0 : 1);
+    }
+
+    /** Refuses a copy of {@code source} that the user of {@code target} has no room for. */
+    static void admitCopy(Path source, Path target) throws IOException {
+        if (QUOTA_BYTES <= 0 && QUOTA_FILES <= 0) return;
+        String[] from = FileSystemImpl.visiblePath(source);
+        String[] to = FileSystemImpl.visiblePath(target);
+        if (from == null || to == null) return;
+        Usage usage = of(from[0]);
+        long[] copied;
+        usage.lock.lock();
+        try {
+            usage.load();
+            copied = usage.counted(from[1], source);
+        } finally {
+            usage.lock.unlock();
+        }
+        check(to[0], copied[0], copied[1]);
+    }
+
+    /** Refuses a new file of {@code bytes} that {@code user} has no room for. */
+    static void admit(String user, long bytes) throws IOException {
+        if (QUOTA_BYTES <= 0 && QUOTA_FILES <= 0) return;
+        check(user, bytes, 1);
+    }
+
+    /** Whether {@code user} has room for a new file of {@code bytes}. */
+    static boolean admits(String user, long bytes) throws IOException {
+        return (QUOTA_BYTES <= 0 && QUOTA_FILES <= 0) || fits(of(user).folder(""), bytes, 1);
+    }
+
+    private static boolean fits(long[] total, long bytes, long files) {
+        return (QUOTA_BYTES <= 0 || total[0] + bytes <= QUOTA_BYTES) && (QUOTA_FILES <= 0 || total[1] + files <= QUOTA_FILES);
+    }
+
+    private static void check(String user, long bytes, long files) throws IOException {
+        long[] total = of(user).folder("");
+        if (!fits(total, bytes, files)) {
+            Metrics.increment("quota.rejected");
+            throw new QuotaExceededException(String.format("Quota exceeded: %d of %d bytes and %d of %d files in use",
+                    total[0], QUOTA_BYTES, total[1], QUOTA_FILES));
+        }
+    }
+
+    /** Bytes, files and the quota for both (0 for none) of {@code visible}, a folder of {@code user}. */
+    static long[] of(String user, String visible) throws IOException {
+        long[] counter = of(user).folder(visible.equals("/") ? "" : visible);
+        return new long[]{counter[0], counter[1], QUOTA_BYTES, QUOTA_FILES};
+    }
+
+    private long[] folder(String visible) throws IOException {
+        lock.lock();
+        try {
+            load();
+            long[] counter = folders.get(visible);
+            return counter == null ? new long[2] : counter.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ========== File ==========
+
+    private void load() throws IOException {
+        if (loaded) return;
+        if (Files.exists(file)) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String header = in.readLine();
+                if (header == null || !header.equals(HEADER)) throw new IOException("Not a usage file: " + file);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", 3);
+                    if (f.length != 3) continue;
+                    folders.put(ChangeJournal.unescape(f[2]), new long[]{Long.parseLong(f[0]), Long.parseLong(f[1])});
+                }
+            }
+        } else {
+            folders.putAll(walk());
+            dirty = true;
+        }
+        loaded = true;
+    }
+
+    /** Counters for the whole of the user's {@code local} and {@code shared} as they are on disk. */
+    private Map<String, long[]> walk() throws IOException {
+        Map<String, long[]> counted = new HashMap<>();
+        long[] total = new long[2];
+        for (Path root : new Path[]{FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user).resolve("local"),
+                                    FileSystemImpl.STORAGE_ROOT.resolve(user).resolve("shared")}) {
+            if (!Files.isDirectory(root)) continue;
+            long[] area = measure("/" + root.getFileName(), root, counted);
+            total[0] += area[0];
+            total[1] += area[1];
+        }
+        counted.put("", total);
+        return counted;
+    }
+
+    private void flush() throws IOException {
+        StringBuilder out = new StringBuilder(HEADER).append('\n');
+        lock.lock();
+        try {
+            if (!dirty) return;
+            folders.forEach((folder, counter) -> out.append(counter[0]).append('\t').append(counter[1]).append('\t')
+                    .append(ChangeJournal.escape(folder)).append('\n'));
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+        byte[] data = out.toString().getBytes(StandardCharsets.UTF_8);
+        // not logged: the backup counts what it replays
+        FileSystemImpl.install(FileSystemImpl.stage(FileSystemImpl.tempDir(user), data), file, null);
+    }
+
+    // ========== Scrub ==========
+
+    private static void run() {
+        long nextScrub = 0;
+        try {
+            while (true) {
+                if (System.currentTimeMillis() >= nextScrub) {
+                    scrub();
+                    nextScrub = System.currentTimeMillis() + SCRUB_MILLIS;
+                }
+                for (Usage usage : USERS.values()) {
+                    try {
+                        usage.flush();
+                    } catch (IOException e) {
+                        System.err.println("[USAGE] Could not save usage of '" + usage.user + "': " + e);
+                    }
+                }
+                Thread.sleep(FLUSH_MILLIS);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /** Checks the counters of every user on this node against the disk. */
+    private static void scrub() {
+        if (!Files.isDirectory(FileSystemImpl.SERVERSTORAGE_ROOT)) return;
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(FileSystemImpl.SERVERSTORAGE_ROOT)) {
+            for (Path dir : users) {
+                String user = dir.getFileName().toString();
+                if (user.startsWith(".")) continue;
+                try {
+                    of(user).verify();
+                } catch (IOException e) {
+                    System.err.println("[USAGE] Could not check usage of '" + user + "': " + e);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[USAGE] Could not list users: " + e);
+        }
+        Metrics.increment("usage.scrubs");
+    }
+
+    /**
+     * Walks the user's trees and replaces the counters with what was found, unless a change was
+     * counted during the walk; that user is then checked at the next scrub.
+     */
+    private void verify() throws IOException {
+        long seen;
+        lock.lock();
+        try {
+            load();
+            seen = changes;
+        } finally {
+            lock.unlock();
+        }
+        Map<String, long[]> counted = walk();
+        lock.lock();
+        try {
+            if (changes != seen) {
+                Metrics.increment("usage.scrubSkipped");
+                return;
+            }
+            long[] recorded = folders.getOrDefault("", new long[2]);
+            long[] found = counted.get("");
+            if (same(counted, folders) && same(folders, counted)) return;
+            System.out.println("[USAGE] Corrected '" + user + "': " + recorded[0] + " bytes, " + recorded[1]
+                    + " files counted, " + found[0] + " bytes, " + found[1] + " files on disk");
+            folders.clear();
+            folders.putAll(counted);
+            dirty = true;
+            Metrics.increment("usage.corrections");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Whether every counter of {@code a} is in {@code b}; a missing one counts as empty. */
+    private static boolean same(Map<String, long[]> a, Map<String, long[]> b) {
+        long[] empty = new long[2];
+        for (Map.Entry<String, long[]> entry : a.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), b.getOrDefault(entry.getKey(), empty))) return false;
+        }
+        return true;
+    }
+}
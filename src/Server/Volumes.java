@@ -0,0 +1,468 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage volumes: users' files spread over several disks, each user on one of them.
+ * <p>
+ * The data dir is volume 0, and {@code -Ddds.volumes} lists more as {@code path[=weight]}, comma
+ * separated. Users are placed on a {@link HashRing} where a volume has 64 points per unit of
+ * weight. The weight defaults to the volume's capacity in TiB, so a larger disk takes more users,
+ * and adding a volume only moves the users that now land on it. A user placed on another volume
+ * keeps the usual {@code serverStorage/<user>} and {@code storage/<user>} paths, as symbolic links
+ * to {@code <volume>/serverStorage/<user>} and {@code <volume>/storage/<user>}. Both trees stay on
+ * one volume, so moves into the trash and mirror links never cross disks.
+ * <p>
+ * A rebalancer thread moves every user the ring places elsewhere, one at a time, while they keep
+ * working. It copies both trees to the new volume, then again whatever changed meanwhile, then
+ * switches the links and copies over what was written to the old trees in between, and finally
+ * deletes them. Files hard-linked to each other, like mirrors and copies, stay linked. A move cut
+ * short by a crash is finished or undone at the next start. Bytes read and written are counted per
+ * volume in {@code volume.<n>.bytesRead} and {@code volume.<n>.bytesWritten}, next to gauges of its
+ * users and free space.
+ */
+final class Volumes {
+
+    private static final double VNODES_PER_WEIGHT = 64;
+    private static final long RESCAN_MILLIS = ServerConfig.getLong("volumes.rescanMillis", 60_000);
+    private static final String[] KINDS = {"serverStorage", "storage"};
+    /** Scratch space of a volume, next to its trees so renames out of it stay on the disk. */
+    private static final String WORK = ".volumes";
+
+    static final class Volume {
+        final int index;
+        final Path root;
+        final double weight;
+        final String bytesRead;
+        final String bytesWritten;
+        final AtomicInteger users = new AtomicInteger();
+
+        Volume(int index, Path root, double weight) {
+            this.index = index;
+            this.root = root;
+            this.weight = weight;
+            this.bytesRead = "volume." + index + ".bytesRead";
+            this.bytesWritten = "volume." + index + ".bytesWritten";
+        }
+
+        Path work(String name) {
+            return root.resolve(WORK).resolve(name);
+        }
+    }
+
+    private static final List<Volume> VOLUMES = parse(ServerConfig.get("volumes", ""));
+    private static final Map<String, Volume> BY_NAME = new HashMap<>();
+    private static final HashRing RING = ring();
+    /** The volume each user was last seen on. */
+    private static final ConcurrentHashMap<String, Volume> PLACED = new ConcurrentHashMap<>();
+
+    private Volumes() {
+    }
+
+    private static List<Volume> parse(String spec) {
+        Path dataDir = ServerConfig.dataDir().toAbsolutePath().normalize();
+        Map<Path, Double> weights = new LinkedHashMap<>();
+        weights.put(dataDir, Double.NaN);
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) continue;
+            int eq = item.lastIndexOf('=');
+            Path root = Paths.get(eq < 0 ? item : item.substring(0, eq)).toAbsolutePath().normalize();
+            weights.put(root, eq < 0 ? Double.NaN : Double.parseDouble(item.substring(eq + 1)));
+        }
+        List<Volume> volumes = new ArrayList<>();
+        weights.forEach((root, weight) ->
+                volumes.add(new Volume(volumes.size(), root, Double.isNaN(weight) ? capacity(root) : weight)));
+        return volumes;
+    }
+
+    /** The capacity in TiB of the disk holding {@code root}. */
+    private static double capacity(Path root) {
+        try {
+            Files.createDirectories(root);
+            return Files.getFileStore(root).getTotalSpace() / (double) (1L << 40);
+        } catch (IOException e) {
+            return 1;
+        }
+    }
+
+    private static HashRing ring() {
+        Map<String, Integer> vnodes = new LinkedHashMap<>();
+        for (Volume volume : VOLUMES) {
+            BY_NAME.put(volume.root.toString(), volume);
+            if (volume.weight > 0) vnodes.put(volume.root.toString(), (int) Math.ceil(volume.weight * VNODES_PER_WEIGHT));
+        }
+        if (vnodes.isEmpty()) vnodes.put(VOLUMES.get(0).root.toString(), 1);
+        return new HashRing(vnodes);
+    }
+
+    static boolean enabled() {
+        return VOLUMES.size() > 1;
+    }
+
+    static void start() {
+        for (Volume volume : VOLUMES) {
+            Metrics.gauge("volume." + volume.index + ".users", volume.users::get);
+            Metrics.gauge("volume." + volume.index + ".freeBytes", () -> {
+                try {
+                    return Files.getFileStore(volume.root).getUsableSpace();
+                } catch (IOException e) {
+                    return -1;
+                }
+            });
+        }
+        if (!enabled()) return;
+        for (Volume volume : VOLUMES) {
+            System.out.printf("[VOLUMES] Volume %d: %s, weight %.2f%n", volume.index, volume.root, volume.weight);
+        }
+        Thread.ofPlatform().daemon().name("volume-rebalancer").start(Volumes::rebalance);
+    }
+
+    /** Where the ring places {@code user}. */
+    static Volume placement(String user) {
+        return BY_NAME.get(RING.owner(user));
+    }
+
+    /** Where {@code user}'s files are now. */
+    static Volume current(String user) {
+        return PLACED.computeIfAbsent(user, Volumes::locate);
+    }
+
+    private static Volume locate(String user) {
+        Path logical = FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user);
+        if (!Files.isSymbolicLink(logical)) return VOLUMES.get(0);
+        try {
+            Path target = Files.readSymbolicLink(logical).toAbsolutePath().normalize();
+            for (Volume volume : VOLUMES) {
+                if (volume.index > 0 && target.startsWith(volume.root)) return volume;
+            }
+        } catch (IOException ignored) {
+        }
+        return VOLUMES.get(0);
+    }
+
+    /** Creates the trees of a user who has none yet on the volume the ring places them. */
+    static void ensure(String user) throws IOException {
+        if (!enabled() || Files.exists(FileSystemImpl.SERVERSTORAGE_ROOT.resolve(user), LinkOption.NOFOLLOW_LINKS)) return;
+        Volume volume = placement(user);
+        if (volume.index > 0) {
+            for (String kind : KINDS) {
+                Path physical = volume.root.resolve(kind).resolve(user);
+                Path logical = logicalRoot(kind).resolve(user);
+                Files.createDirectories(physical);
+                Files.createDirectories(logical.getParent());
+                if (!Files.exists(logical, LinkOption.NOFOLLOW_LINKS)) Files.createSymbolicLink(logical, physical);
+            }
+        }
+        PLACED.put(user, volume);
+    }
+
+    /** Counts {@code bytes} read from {@code file}, a path in a user's trees. */
+    static void read(Path file, long bytes) {
+        String user = userOf(file);
+        if (user != null) Metrics.add(current(user).bytesRead, bytes);
+    }
+
+    /** Counts {@code bytes} written to {@code file}, a path in a user's trees. */
+    static void written(Path file, long bytes) {
+        String user = userOf(file);
+        if (user != null) Metrics.add(current(user).bytesWritten, bytes);
+    }
+
+    private static String userOf(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        for (String kind : KINDS) {
+            Path root = logicalRoot(kind).toAbsolutePath().normalize();
+            if (absolute.startsWith(root) && absolute.getNameCount() > root.getNameCount()) {
+                return absolute.getName(root.getNameCount()).toString();
+            }
+        }
+        return null;
+    }
+
+    private static Path logicalRoot(String kind) {
+        return kind.equals("storage") ? FileSystemImpl.STORAGE_ROOT : FileSystemImpl.SERVERSTORAGE_ROOT;
+    }
+
+    // ========== Rebalancer ==========
+
+    private static void rebalance() {
+        try {
+            recover();
+        } catch (IOException e) {
+            System.err.println("[VOLUMES] Could not recover an interrupted move: " + e);
+        }
+        while (true) {
+            int[] users = new int[VOLUMES.size()];
+            for (String user : users()) {
+                Volume from = locate(user);
+                PLACED.put(user, from);
+                Volume to = placement(user);
+                if (from != to) {
+                    try {
+                        move(user, from, to);
+                        from = to;
+                    } catch (IOException e) {
+                        Metrics.increment("volumes.moveFailures");
+                        System.err.println("[VOLUMES] Could not move '" + user + "' to volume " + to.index + ": " + e);
+                    }
+                }
+                users[from.index]++;
+            }
+            for (Volume volume : VOLUMES) {
+                volume.users.set(users[volume.index]);
+            }
+            try {
+                Thread.sleep(RESCAN_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static TreeSet<String> users() {
+        TreeSet<String> users = new TreeSet<>();
+        for (String kind : KINDS) {
+            Path root = logicalRoot(kind);
+            if (!Files.isDirectory(root)) continue;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+                for (Path entry : entries) {
+                    users.add(entry.getFileName().toString());
+                }
+            } catch (IOException e) {
+                System.err.println("[VOLUMES] Could not list " + root + ": " + e);
+            }
+        }
+        return users;
+    }
+
+    private static void move(String user, Volume from, Volume to) throws IOException {
+        long start = System.nanoTime();
+        Path staging = to.work("moving").resolve(user);
+        Path scratch = to.work("tmp");
+        FileSystemImpl.deleteRecursively(staging);
+        Files.createDirectories(scratch);
+        long bytes = 0;
+        // twice: the second pass picks up what was written during the first
+        for (int pass = 0; pass < 2; pass++) {
+            Map<Object, Path> links = new HashMap<>();
+            for (String kind : KINDS) {
+                Path logical = logicalRoot(kind).resolve(user);
+                if (Files.exists(logical)) bytes += sync(logical.toRealPath(), staging.resolve(kind), scratch, links, true);
+            }
+        }
+        Map<Object, Path> links = new HashMap<>();
+        for (String kind : KINDS) {
+            if (!Files.exists(staging.resolve(kind))) continue;
+            Path old = swap(user, kind, from, to, staging.resolve(kind));
+            // what was written to the old tree between the last pass and the switch
+            bytes += sync(old, logicalRoot(kind).resolve(user).toRealPath(), scratch, links, false);
+            FileSystemImpl.deleteRecursively(old);
+        }
+        PLACED.put(user, to);
+        FileSystemImpl.deleteRecursively(staging);
+        Metrics.increment("volumes.moves");
+        Metrics.add("volumes.movedBytes", bytes);
+        System.out.println("[VOLUMES] Moved '" + user + "' from volume " + from.index + " to volume " + to.index
+                + " (" + bytes + " bytes) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /** Puts the staged tree in place of {@code user}'s {@code kind} tree; returns where the old one is now. */
+    private static Path swap(String user, String kind, Volume from, Volume to, Path staged) throws IOException {
+        Path logical = logicalRoot(kind).resolve(user);
+        Path old;
+        if (Files.isSymbolicLink(logical)) {
+            old = Files.readSymbolicLink(logical);
+        } else {
+            // on the data dir the tree is a directory, which a link cannot be renamed over
+            old = VOLUMES.get(0).work("old").resolve(user).resolve(kind);
+            FileSystemImpl.deleteRecursively(old);
+            Files.createDirectories(old.getParent());
+            Files.move(logical, old, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (to.index == 0) {
+            Files.deleteIfExists(logical);
+            Files.move(staged, logical, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Path physical = to.root.resolve(kind).resolve(user);
+            FileSystemImpl.deleteRecursively(physical);
+            Files.createDirectories(physical.getParent());
+            Files.move(staged, physical, StandardCopyOption.ATOMIC_MOVE);
+            link(logical, physical);
+        }
+        return old;
+    }
+
+    /** Points {@code logical} at {@code physical} in one rename, replacing the link there. */
+    private static void link(Path logical, Path physical) throws IOException {
+        Path links = VOLUMES.get(0).work("links");
+        Files.createDirectories(links);
+        Path link = links.resolve(Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        Files.createSymbolicLink(link, physical);
+        Files.move(link, logical, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copies the files of {@code source} that {@code target} lacks or has another version of. With
+     * {@code prune}, target is a copy nobody uses yet: a file counts as changed when its size or
+     * time differs, and what source no longer has is deleted. Without it, target is in use and only
+     * files newer than its own are copied. Files in {@code links} are linked rather than copied.
+     *
+     * @return the bytes copied
+     */
+    private static long sync(Path source, Path target, Path scratch, Map<Object, Path> links, boolean prune) throws IOException {
+        long[] copied = {0};
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                // what is in the trash is deleted with the old tree rather than moved
+                if (dir.equals(source.resolve(Tombstones.TRASH))) return FileVisitResult.SKIP_SUBTREE;
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path copy = target.resolve(source.relativize(file));
+                Object key = attrs.fileKey();
+                Path linked = key == null ? null : links.get(key);
+                if (!current(attrs, copy, prune)) {
+                    if (linked != null) {
+                        Files.deleteIfExists(copy);
+                        Files.createLink(copy, linked);
+                    } else {
+                        Path temp = scratch.resolve(Long.toHexString(ThreadLocalRandom.current().nextLong()));
+                        copied[0] += ColdTier.copy(file, temp);
+                        Files.move(temp, copy, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                if (key != null && linked == null && linkCount(file) > 1) links.put(key, copy);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                // deleted while the tree was walked
+                if (exc instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                throw exc;
+            }
+        });
+        if (prune) prune(source, target);
+        return copied[0];
+    }
+
+    private static boolean current(BasicFileAttributes source, Path copy, boolean prune) throws IOException {
+        if (!Files.exists(copy, LinkOption.NOFOLLOW_LINKS)) return false;
+        BasicFileAttributes attrs = Files.readAttributes(copy, BasicFileAttributes.class);
+        // copies keep the time only to the microsecond
+        long newer = attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS) - source.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+        return prune ? newer == 0 && attrs.size() == source.size() : newer >= 0;
+    }
+
+    private static int linkCount(Path file) {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /** Deletes what {@code target} has and {@code source} does not. */
+    private static void prune(Path source, Path target) throws IOException {
+        Files.walkFileTree(target, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (Files.exists(source.resolve(target.relativize(dir)), LinkOption.NOFOLLOW_LINKS)) return FileVisitResult.CONTINUE;
+                FileSystemImpl.deleteRecursively(dir);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!Files.exists(source.resolve(target.relativize(file)), LinkOption.NOFOLLOW_LINKS)) Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // ========== Recovery ==========
+
+    /**
+     * Finishes the moves a crash interrupted between moving a tree aside and linking its copy, and
+     * deletes the leftovers of the others.
+     */
+    private static void recover() throws IOException {
+        for (Volume volume : VOLUMES) {
+            Path moving = volume.work("moving");
+            for (Path user : list(moving)) {
+                for (String kind : KINDS) {
+                    Path staged = user.resolve(kind);
+                    Path logical = logicalRoot(kind).resolve(user.getFileName().toString());
+                    if (!Files.exists(staged) || Files.exists(logical, LinkOption.NOFOLLOW_LINKS)) continue;
+                    if (volume.index == 0) {
+                        Files.move(staged, logical, StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Path physical = volume.root.resolve(kind).resolve(user.getFileName().toString());
+                        FileSystemImpl.deleteRecursively(physical);
+                        Files.createDirectories(physical.getParent());
+                        Files.move(staged, physical, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            }
+            FileSystemImpl.deleteRecursively(moving);
+            FileSystemImpl.deleteRecursively(volume.work("tmp"));
+            if (volume.index == 0) continue;
+            for (String kind : KINDS) {
+                for (Path physical : list(volume.root.resolve(kind))) {
+                    Path logical = logicalRoot(kind).resolve(physical.getFileName().toString());
+                    if (!Files.exists(logical, LinkOption.NOFOLLOW_LINKS)) {
+                        Files.createDirectories(logical.getParent());
+                        link(logical, physical);
+                    } else if (!Files.isSymbolicLink(logical) || !Files.readSymbolicLink(logical).equals(physical)) {
+                        FileSystemImpl.deleteRecursively(physical);
+                    }
+                }
+            }
+        }
+        Volume dataDir = VOLUMES.get(0);
+        for (Path user : list(dataDir.work("old"))) {
+            for (String kind : KINDS) {
+                Path old = user.resolve(kind);
+                Path logical = logicalRoot(kind).resolve(user.getFileName().toString());
+                if (Files.exists(old) && !Files.exists(logical, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.move(old, logical, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+        FileSystemImpl.deleteRecursively(dataDir.work("old"));
+        FileSystemImpl.deleteRecursively(dataDir.work("links"));
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return entries;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            stream.forEach(entries::add);
+        }
+        return entries;
+    }
+}